@@ -0,0 +1,334 @@
+#!/usr/bin/env python3
+# Admission control and load shedding for the Attendance System API
+#
+# At the morning bell, attendance takes, enrollments and principals' report pulls all
+# arrive at once. Instead of letting every request slow down together until clients
+# time out, each request is put in a priority class and admitted against a
+# concurrency limit that adapts to observed latency. Requests that can't be admitted
+# soon are turned away at once with 503 and Retry-After, lowest priority first.
+import json
+import time
+import heapq
+import itertools
+import contextlib
+import threading
+
+# Priority classes, most important first
+TAKE = 0
+MANUAL = 1
+REPORT = 2
+BULK = 3
+
+PRIORITY_NAMES = ('take', 'manual', 'report', 'bulk')
+
+# Requests under admission control, as (method or None for any, path prefix, class);
+# the first match wins. Class and roster reads go with manual marks, since teachers
+# make them while taking attendance. Event streams, job and change feed polls and
+# photos hold no server work while they wait, and the shard router paces school
+# moves itself, so those are let through.
+REQUEST_CLASSES = [
+    ('POST', '/api/take_attendance', TAKE),
+    ('POST', '/api/attendance_jobs', TAKE),
+    (None, '/api/attendance_sessions', TAKE),
+    ('POST', '/api/manual_attendance', MANUAL),
+    ('GET', '/api/classes', MANUAL),
+    ('GET', '/api/students', MANUAL),
+    ('GET', '/api/attendance_report', REPORT),
+    ('GET', '/api/student_attendance_report', REPORT),
+    ('POST', '/api/students', BULK),
+    ('DELETE', '/api/students/', BULK),
+    ('POST', '/api/classes', BULK),
+    ('PUT', '/api/classes/', BULK)
+]
+
+# Share of the concurrency limit each class may fill, so lower classes always leave
+# headroom for higher ones
+LIMIT_SHARES = (1.0, 0.9, 0.6, 0.4)
+
+# Longest a request may wait for a slot before it is shed
+MAX_QUEUE_SECONDS = (5.0, 2.0, 1.0, 0.5)
+
+# Retry-After sent with a shed request; lower classes are asked to stay away longer
+RETRY_AFTER_SECONDS = (1, 2, 3, 5)
+
+# Concurrency limit at startup, and the range it adapts within. It starts low so the
+# latency baselines are learned with little queueing, even when a restart lands in
+# the middle of a rush, and grows from there
+INITIAL_LIMIT = 2
+MIN_LIMIT = 2
+MAX_LIMIT = 256
+
+# A request slower than its baseline times this, plus the slack, counts as queueing;
+# the slack keeps scheduling noise on millisecond requests from counting
+LATENCY_TOLERANCE = 1.5
+LATENCY_SLACK_SECONDS = 0.02
+
+# Factor the limit is cut by when requests are queueing
+BACKOFF_RATIO = 0.9
+
+# Baselines are the lowest latency seen over the last one or two windows, so they
+# follow changes in request cost, e.g. a class growing, without drifting up under load
+BASELINE_WINDOW_SECONDS = 60
+
+class Overloaded(Exception):
+    """Raised when a request is shed"""
+    def __init__(self, priority, retry_after):
+        super().__init__(f"Server is busy with {PRIORITY_NAMES[priority]} requests, retry in {retry_after}s")
+        self.priority = priority
+        self.retry_after = retry_after
+
+class AdaptiveLimit:
+    def __init__(self, initial=INITIAL_LIMIT, min_limit=MIN_LIMIT, max_limit=MAX_LIMIT,
+                 tolerance=LATENCY_TOLERANCE, slack=LATENCY_SLACK_SECONDS, backoff=BACKOFF_RATIO,
+                 baseline_window=BASELINE_WINDOW_SECONDS):
+        """
+        Initialize a concurrency limit that adapts to latency
+        
+        This is AIMD driven by a Vegas-style delay signal. Each kind of request keeps
+        a baseline, roughly its cost with nothing queued. A completion near its
+        baseline grows the limit by one per limit's worth of completions; a slower one
+        means requests are contending for CPU or disk inside the server, and cuts the
+        limit by `backoff`. The limit settles where a small share of completions, about
+        one in seven at a limit of 8, are slow.
+        
+        Args:
+            initial (int): Limit at startup
+            min_limit (int): Lowest the limit goes
+            max_limit (int): Highest the limit goes
+            tolerance (float): Multiple of the baseline a request may take
+            slack (float): Seconds a request may take on top of that
+            backoff (float): Factor the limit is cut by
+            baseline_window (float): Seconds per baseline window
+        """
+        self.limit = float(initial)
+        self.min_limit = min_limit
+        self.max_limit = max_limit
+        self.tolerance = tolerance
+        self.slack = slack
+        self.backoff = backoff
+        self.baseline_window = baseline_window
+        
+        # key -> [lowest latency this window, lowest last window]
+        self._baselines = {}
+        self._window_end = time.monotonic() + baseline_window
+    
+    def update(self, key, latency, inflight):
+        """
+        Adjust the limit after a request completes. Caller serializes calls.
+        
+        Args:
+            key (str): Kind of request, e.g. its method and path
+            latency (float): Seconds the request took once admitted
+            inflight (int): Requests in progress, including this one
+        
+        Returns:
+            float: The new limit
+        """
+        now = time.monotonic()
+        if now >= self._window_end:
+            for baseline in self._baselines.values():
+                baseline[1], baseline[0] = baseline[0], float('inf')
+            self._window_end = now + self.baseline_window
+        
+        baseline = self._baselines.setdefault(key, [latency, latency])
+        baseline[0] = min(baseline[0], latency)
+        
+        if latency > min(baseline) * self.tolerance + self.slack:
+            self.limit = max(self.min_limit, self.limit * self.backoff)
+        elif inflight * 2 >= self.limit:
+            # Only grow a limit that is being used
+            self.limit = min(self.max_limit, self.limit + 1 / self.limit)
+        return self.limit
+
+class AdmissionController:
+    def __init__(self, limit=None, shares=LIMIT_SHARES, max_queue_seconds=MAX_QUEUE_SECONDS,
+                 retry_after=RETRY_AFTER_SECONDS):
+        """
+        Initialize the admission controller
+        
+        A request is admitted while fewer requests are in progress than its class's
+        share of the limit. Otherwise it waits, behind any waiting request of the same
+        or a higher class, until a slot frees or its class's queue time runs out.
+        
+        Args:
+            limit (AdaptiveLimit): Concurrency limit (default: a new AdaptiveLimit)
+            shares (tuple): Share of the limit per class
+            max_queue_seconds (tuple): Longest wait per class
+            retry_after (tuple): Retry-After seconds per class
+        """
+        self.limit = limit or AdaptiveLimit()
+        self.shares = shares
+        self.max_queue_seconds = max_queue_seconds
+        self.retry_after = retry_after
+        
+        self._inflight = 0
+        # Heap of [priority, arrival, admitted]
+        self._waiters = []
+        self._arrivals = itertools.count()
+        self._condition = threading.Condition()
+        self._admitted = [0] * len(shares)
+        self._shed = [0] * len(shares)
+    
+    def acquire(self, priority):
+        """
+        Wait for a slot
+        
+        Raises:
+            Overloaded: If no slot frees within the class's queue time
+        """
+        with self._condition:
+            if (not self._waiters or self._waiters[0][0] > priority) and self._inflight < self._cap(priority):
+                self._inflight += 1
+                self._admitted[priority] += 1
+                return
+            
+            wait = self.max_queue_seconds[priority]
+            if wait <= 0:
+                self._reject(priority)
+            
+            waiter = [priority, next(self._arrivals), False]
+            heapq.heappush(self._waiters, waiter)
+            deadline = time.monotonic() + wait
+            while not waiter[2]:
+                remaining = deadline - time.monotonic()
+                if remaining <= 0:
+                    self._waiters.remove(waiter)
+                    heapq.heapify(self._waiters)
+                    # Lower classes queued behind this one may fit now
+                    self._admit_waiters()
+                    self._reject(priority)
+                self._condition.wait(remaining)
+            self._admitted[priority] += 1
+    
+    @contextlib.contextmanager
+    def occupy(self, key):
+        """
+        Count work accepted earlier, such as a queued recognition job, against the
+        limit while it runs
+        
+        It never waits, so it may take the requests in progress past the limit; new
+        requests are then held back instead.
+        
+        Args:
+            key (str): Kind of work
+        """
+        with self._condition:
+            self._inflight += 1
+        started = time.monotonic()
+        try:
+            yield
+        finally:
+            self.release(key, time.monotonic() - started)
+    
+    def release(self, key, latency):
+        """
+        Free a slot and feed the request's latency to the limit
+        
+        Args:
+            key (str): Kind of request
+            latency (float): Seconds the request took once admitted
+        """
+        with self._condition:
+            self.limit.update(key, latency, self._inflight)
+            self._inflight -= 1
+            self._admit_waiters()
+    
+    def stats(self):
+        """
+        Get the current limit and counts
+        
+        Returns:
+            dict: Limit, requests in progress and waiting, and admitted and shed
+                  requests per class
+        """
+        with self._condition:
+            return {
+                'limit': round(self.limit.limit, 1),
+                'inflight': self._inflight,
+                'waiting': len(self._waiters),
+                'admitted': dict(zip(PRIORITY_NAMES, self._admitted)),
+                'shed': dict(zip(PRIORITY_NAMES, self._shed))
+            }
+    
+    def _cap(self, priority):
+        return max(1, int(self.limit.limit * self.shares[priority]))
+    
+    def _admit_waiters(self):
+        """Admit waiters in priority order while they fit. Caller holds the condition."""
+        admitted = False
+        while self._waiters and self._inflight < self._cap(self._waiters[0][0]):
+            waiter = heapq.heappop(self._waiters)
+            waiter[2] = True
+            self._inflight += 1
+            admitted = True
+        if admitted:
+            self._condition.notify_all()
+    
+    def _reject(self, priority):
+        self._shed[priority] += 1
+        raise Overloaded(priority, self.retry_after[priority])
+
+class AdmissionMiddleware:
+    def __init__(self, app, controller=None, request_classes=REQUEST_CLASSES):
+        """
+        WSGI middleware that admits requests through an AdmissionController
+        
+        It sits outside the rest of the stack, so a shed request costs no body
+        decoding. A request holds its slot until its response has been sent.
+        
+        Args:
+            app: The WSGI application to wrap
+            controller (AdmissionController): Controller to admit through
+                                              (default: a new AdmissionController)
+            request_classes (list): (method, path prefix, class) of controlled requests
+        """
+        self.app = app
+        self.controller = controller or AdmissionController()
+        self.request_classes = request_classes
+    
+    def __call__(self, environ, start_response):
+        method = environ.get('REQUEST_METHOD', 'GET')
+        path = environ.get('PATH_INFO', '')
+        for rule_method, prefix, priority in self.request_classes:
+            if (rule_method is None or rule_method == method) and path.startswith(prefix):
+                break
+        else:
+            return self.app(environ, start_response)
+        
+        try:
+            self.controller.acquire(priority)
+        except Overloaded as e:
+            body = json.dumps({"success": False, "error": str(e)}).encode('utf-8')
+            start_response('503 Service Unavailable', [
+                ('Content-Type', 'application/json'),
+                ('Content-Length', str(len(body))),
+                ('Retry-After', str(e.retry_after))
+            ])
+            return [body]
+        
+        key = f"{method} {prefix}"
+        started = time.monotonic()
+        try:
+            return _ReleasingBody(self.app(environ, start_response),
+                                  lambda: self.controller.release(key, time.monotonic() - started))
+        except BaseException:
+            self.controller.release(key, time.monotonic() - started)
+            raise
+
+class _ReleasingBody:
+    """Response body that frees its request's slot when the server closes it"""
+    def __init__(self, body, release):
+        self._body = body
+        self._release = release
+    
+    def __iter__(self):
+        return iter(self._body)
+    
+    def close(self):
+        try:
+            if hasattr(self._body, 'close'):
+                self._body.close()
+        finally:
+            release, self._release = self._release, None
+            if release is not None:
+                release()
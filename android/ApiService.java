@@ -6,6 +6,8 @@ import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.DELETE;
 import retrofit2.http.GET;
+import retrofit2.http.Header;
+import retrofit2.http.Headers;
 import retrofit2.http.POST;
 import retrofit2.http.Path;
 import retrofit2.http.Query;
@@ -24,17 +26,52 @@ public interface ApiService {
     @GET("api/classes")
     Call<Map<String, Object>> getClasses();
     
+    // The copy in the HTTP disk cache, however old, or 504 if there is none
+    @Headers("Cache-Control: only-if-cached, max-stale=2147483647")
+    @GET("api/classes")
+    Call<Map<String, Object>> getCachedClasses();
+    
     @POST("api/classes")
     Call<Map<String, Object>> addClass(@Body Map<String, Object> classData);
     
+    // Submissions carry an Idempotency-Key per attempt, so the server runs a retried one
+    // once; a null key sends no header
     @POST("api/take_attendance")
-    Call<Map<String, Object>> takeAttendance(@Body Map<String, Object> attendanceData);
+    Call<Map<String, Object>> takeAttendance(
+            @Header("Idempotency-Key") String idempotencyKey,
+            @Body Map<String, Object> attendanceData
+    );
+    
+    @POST("api/attendance_jobs")
+    Call<Map<String, Object>> submitAttendanceJob(
+            @Header("Idempotency-Key") String idempotencyKey,
+            @Body Map<String, Object> attendanceData
+    );
+    
+    @GET("api/attendance_jobs/{job_id}")
+    Call<Map<String, Object>> getAttendanceJob(
+            @Path("job_id") String jobId,
+            @Query("wait") int waitSeconds
+    );
+    
+    @POST("api/attendance_sessions")
+    Call<Map<String, Object>> openAttendanceSession(@Body Map<String, Object> sessionData);
+    
+    @GET("api/attendance_sessions/{session_id}")
+    Call<Map<String, Object>> getAttendanceSession(@Path("session_id") String sessionId);
+    
+    @POST("api/attendance_sessions/{session_id}/close")
+    Call<Map<String, Object>> closeAttendanceSession(@Path("session_id") String sessionId);
     
     @POST("api/manual_attendance")
-    Call<Map<String, Object>> manualAttendance(@Body Map<String, Object> attendanceData);
+    Call<Map<String, Object>> manualAttendance(
+            @Header("Idempotency-Key") String idempotencyKey,
+            @Body Map<String, Object> attendanceData
+    );
     
     @GET("api/attendance_report")
     Call<Map<String, Object>> getAttendanceReport(
+            @Header("Cache-Control") String cacheControl,
             @Query("class_id") String classId,
             @Query("date") String date
     );
@@ -2,6 +2,7 @@ package com.example.attendancesystem;
 
 import android.app.DatePickerDialog;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
@@ -15,21 +16,44 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
+import okhttp3.HttpUrl;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
 
 public class AttendanceActivity extends AppCompatActivity {
     
+    // Optional class and date to show, e.g. from an upload notification
+    public static final String EXTRA_CLASS_ID = "class_id";
+    public static final String EXTRA_DATE = "date";
+    
+    // Request header that makes the HTTP cache check a stored report with the server
+    // before using it; an unchanged one costs a 304
+    private static final String REVALIDATE = "max-age=0";
+    
+    // Response to a correction of a mark someone else changed since it was shown
+    private static final int CONFLICT = 409;
+    
+    private static final String EVENT_STREAM_TAG = "AttendanceEventStream";
+    
     private Spinner classSpinner;
     private Button dateButton;
     private ListView attendanceListView;
@@ -37,10 +61,28 @@ public class AttendanceActivity extends AppCompatActivity {
     private TextView statusText;
     
     private ApiService apiService;
-    private List<ClassItem> classes = new ArrayList<>();
+    private List<ClassInfo> classes = new ArrayList<>();
     private String selectedDate;
     private Calendar calendar;
     
+    // Records currently shown, keyed by student ID so pushed marks can replace them in place
+    private final Map<String, AttendanceMark> currentRecords = new LinkedHashMap<>();
+    private AttendanceEventStream eventStream;
+    private String streamClassId;
+    private String streamDate;
+    
+    // Reports ("classId/date") changed since the HTTP cache stored them, as seen from
+    // pushed marks, so it doesn't show the old one when the teacher pages back
+    private final Set<String> staleReports = new HashSet<>();
+    
+    // Background upload of photos for the selected class and date
+    private LiveData<List<WorkInfo>> uploadWork;
+    private String uploadWorkName;
+    private Observer<List<WorkInfo>> uploadObserver;
+    private String uploadStatus = "";
+    private boolean uploadRunning;
+    private String initialClassId;
+    
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -56,8 +98,17 @@ public class AttendanceActivity extends AppCompatActivity {
         // Initialize API service
         apiService = RetrofitClient.getApiService();
         
-        // Initialize calendar with current date
+        // Initialize calendar with current date, or the one asked for
         calendar = Calendar.getInstance();
+        initialClassId = getIntent().getStringExtra(EXTRA_CLASS_ID);
+        String initialDate = getIntent().getStringExtra(EXTRA_DATE);
+        if (initialDate != null) {
+            try {
+                calendar.setTime(new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault()).parse(initialDate));
+            } catch (ParseException e) {
+                // Keep today
+            }
+        }
         updateDateButton();
         
         // Set up date button click listener
@@ -83,6 +134,17 @@ public class AttendanceActivity extends AppCompatActivity {
                 // Do nothing
             }
         });
+        
+        // Tapping a student flips their mark
+        attendanceListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                List<AttendanceMark> shown = new ArrayList<>(currentRecords.values());
+                if (position < shown.size()) {
+                    correctMark(shown.get(position));
+                }
+            }
+        });
     }
     
     private void updateDateButton() {
@@ -115,64 +177,58 @@ public class AttendanceActivity extends AppCompatActivity {
         progressBar.setVisibility(View.VISIBLE);
         statusText.setText("Loading classes...");
         
-        apiService.getClasses().enqueue(new Callback<Map<String, Object>>() {
+        RosterCache.getInstance().getClasses(new RosterCache.LoadCallback<List<ClassInfo>>() {
             @Override
-            public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
+            public void onLoaded(List<ClassInfo> data) {
                 progressBar.setVisibility(View.GONE);
+                classes = data;
                 
-                if (response.isSuccessful() && response.body() != null) {
-                    Map<String, Object> responseData = response.body();
-                    boolean success = (boolean) responseData.get("success");
-                    
-                    if (success) {
-                        classes.clear();
-                        ArrayList<Map<String, Object>> classesData = (ArrayList<Map<String, Object>>) responseData.get("classes");
-                        
-                        for (Map<String, Object> classData : classesData) {
-                            String id = (String) classData.get("id");
-                            String name = (String) classData.get("name");
-                            classes.add(new ClassItem(id, name));
-                        }
-                        
-                        if (classes.isEmpty()) {
-                            statusText.setText("No classes found. Please add classes first.");
-                        } else {
-                            // Set up spinner adapter
-                            ArrayAdapter<ClassItem> adapter = new ArrayAdapter<>(
-                                    AttendanceActivity.this,
-                                    android.R.layout.simple_spinner_item,
-                                    classes
-                            );
-                            adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-                            classSpinner.setAdapter(adapter);
-                            
-                            // Load attendance report for the first class
-                            loadAttendanceReport();
+                if (classes.isEmpty()) {
+                    statusText.setText("No classes found. Please add classes first.");
+                } else {
+                    // Set up spinner adapter
+                    ArrayAdapter<ClassInfo> adapter = new ArrayAdapter<>(
+                            AttendanceActivity.this,
+                            android.R.layout.simple_spinner_item,
+                            classes
+                    );
+                    adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+                    classSpinner.setAdapter(adapter);
+                    for (int i = 0; i < classes.size(); i++) {
+                        if (classes.get(i).getId().equals(initialClassId)) {
+                            classSpinner.setSelection(i);
                         }
-                    } else {
-                        String error = (String) responseData.get("error");
-                        statusText.setText("Error: " + error);
                     }
-                } else {
-                    statusText.setText("Error: " + response.message());
+                    
+                    // Load attendance report for the selected class
+                    loadAttendanceReport();
                 }
             }
             
             @Override
-            public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+            public void onError(String message) {
                 progressBar.setVisibility(View.GONE);
-                statusText.setText("Error loading classes: " + t.getMessage());
+                statusText.setText("Error loading classes: " + message);
             }
         });
     }
     
     private void loadAttendanceReport() {
+        loadAttendanceReport(false);
+    }
+    
+    /**
+     * Shows the report of the selected class and date. Past days' reports come from the
+     * HTTP cache when it has them; revalidate checks with the server first, for when
+     * the report is known to have changed.
+     */
+    private void loadAttendanceReport(boolean revalidate) {
         if (classes.isEmpty()) {
             statusText.setText("No classes available.");
             return;
         }
         
-        ClassItem selectedClass = (ClassItem) classSpinner.getSelectedItem();
+        ClassInfo selectedClass = (ClassInfo) classSpinner.getSelectedItem();
         if (selectedClass == null) {
             return;
         }
@@ -182,24 +238,35 @@ public class AttendanceActivity extends AppCompatActivity {
         
         // Clear current list
         attendanceListView.setAdapter(null);
+        currentRecords.clear();
+        watchSelection(selectedClass.getId(), selectedDate);
+        watchUploads(selectedClass.getId(), selectedDate);
         
-        apiService.getAttendanceReport(selectedClass.getId(), selectedDate).enqueue(new Callback<Map<String, Object>>() {
+        boolean stale = staleReports.remove(reportKey(selectedClass.getId(), selectedDate));
+        String cacheControl = revalidate || stale ? REVALIDATE : null;
+        apiService.getAttendanceReport(cacheControl, selectedClass.getId(), selectedDate).enqueue(new Callback<Map<String, Object>>() {
             @Override
             public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
                 progressBar.setVisibility(View.GONE);
+                PrefetchWorker.recordLoad(response);
                 
                 if (response.isSuccessful() && response.body() != null) {
                     Map<String, Object> responseData = response.body();
                     boolean success = (boolean) responseData.get("success");
                     
                     if (success) {
-                        ArrayList<Map<String, Object>> records = (ArrayList<Map<String, Object>>) responseData.get("attendance_records");
+                        List<Map<String, Object>> recordsData = (List<Map<String, Object>>) responseData.get("attendance_records");
+                        currentRecords.clear();
+                        for (Map<String, Object> record : recordsData) {
+                            AttendanceMark mark = AttendanceMark.fromMap(record);
+                            currentRecords.put(mark.getStudentId(), mark);
+                        }
                         
-                        if (records.isEmpty()) {
-                            statusText.setText("No attendance records found for this date.");
+                        if (currentRecords.isEmpty()) {
+                            statusText.setText("No attendance records found for this date." + uploadStatus);
                         } else {
                             statusText.setText("");
-                            displayAttendanceRecords(records);
+                            displayAttendanceRecords(new ArrayList<>(currentRecords.values()));
                         }
                     } else {
                         String error = (String) responseData.get("error");
@@ -218,21 +285,19 @@ public class AttendanceActivity extends AppCompatActivity {
         });
     }
     
-    private void displayAttendanceRecords(ArrayList<Map<String, Object>> records) {
+    private void displayAttendanceRecords(List<AttendanceMark> records) {
         // Prepare data for the list adapter
         List<Map<String, String>> data = new ArrayList<>();
         
         int presentCount = 0;
         int absentCount = 0;
         
-        for (Map<String, Object> record : records) {
+        for (AttendanceMark record : records) {
             Map<String, String> item = new HashMap<>();
-            String name = (String) record.get("student_name");
-            String studentId = (String) record.get("student_id");
-            boolean status = (boolean) record.get("status");
+            boolean status = record.isPresent();
             
-            item.put("name", name);
-            item.put("id", "ID: " + studentId);
+            item.put("name", record.getStudentName());
+            item.put("id", "ID: " + record.getStudentId());
             item.put("status", status ? "✅ Present" : "❌ Absent");
             
             if (status) {
@@ -245,10 +310,10 @@ public class AttendanceActivity extends AppCompatActivity {
         }
         
         // Update status text with summary
-        ClassItem selectedClass = (ClassItem) classSpinner.getSelectedItem();
+        ClassInfo selectedClass = (ClassInfo) classSpinner.getSelectedItem();
         String summary = String.format("Class: %s | Date: %s | Present: %d | Absent: %d",
                 selectedClass.getName(), selectedDate, presentCount, absentCount);
-        statusText.setText(summary);
+        statusText.setText(summary + uploadStatus);
         
         // Create and set the adapter
         SimpleAdapter adapter = new SimpleAdapter(
@@ -262,27 +327,175 @@ public class AttendanceActivity extends AppCompatActivity {
         attendanceListView.setAdapter(adapter);
     }
     
-    // Class item for spinner
-    private static class ClassItem {
-        private String id;
-        private String name;
+    /**
+     * Marks a student the other way. The correction carries the version of the mark the
+     * teacher saw, so if another teacher or a photo changed it meanwhile the server
+     * refuses it rather than overwriting their change, and the report is reloaded.
+     */
+    private void correctMark(final AttendanceMark mark) {
+        Map<String, Object> attendanceData = new HashMap<>();
+        attendanceData.put("student_id", mark.getStudentId());
+        attendanceData.put("class_id", mark.getClassId());
+        attendanceData.put("date", mark.getDate());
+        attendanceData.put("status", !mark.isPresent());
+        attendanceData.put("expected_seq", mark.getSeq());
         
-        public ClassItem(String id, String name) {
-            this.id = id;
-            this.name = name;
+        progressBar.setVisibility(View.VISIBLE);
+        apiService.manualAttendance(UUID.randomUUID().toString(), attendanceData).enqueue(new Callback<Map<String, Object>>() {
+            @Override
+            public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
+                progressBar.setVisibility(View.GONE);
+                staleReports.add(reportKey(mark.getClassId(), mark.getDate()));
+                
+                if (response.code() == CONFLICT) {
+                    Toast.makeText(AttendanceActivity.this,
+                            mark.getStudentName() + " was just marked by someone else; check and tap again",
+                            Toast.LENGTH_LONG).show();
+                    loadAttendanceReport(true);
+                } else if (response.isSuccessful() && response.body() != null
+                        && response.body().get("attendance") instanceof Map) {
+                    Map<String, Object> record = new HashMap<>((Map<String, Object>) response.body().get("attendance"));
+                    record.put("student_name", mark.getStudentName());
+                    applyMark(AttendanceMark.fromMap(record));
+                } else {
+                    Toast.makeText(AttendanceActivity.this, "Error: " + response.message(), Toast.LENGTH_SHORT).show();
+                }
+            }
+            
+            @Override
+            public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+                progressBar.setVisibility(View.GONE);
+                Toast.makeText(AttendanceActivity.this, "Error: " + t.getMessage(), Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+    
+    private void watchSelection(String classId, String date) {
+        if (eventStream != null && classId.equals(streamClassId) && date.equals(streamDate)) {
+            return;
+        }
+        
+        if (eventStream != null) {
+            eventStream.close();
         }
         
-        public String getId() {
-            return id;
+        streamClassId = classId;
+        streamDate = date;
+        AttendanceEventStream.Listener listener = new AttendanceEventStream.Listener() {
+            @Override
+            public void onEvent(String type, Map<String, Object> data) {
+                if ("mark".equals(type)) {
+                    applyPushedMark(data);
+                }
+            }
+            
+            @Override
+            public void onReset() {
+                // Missed changes can't be replayed; fetch the report again
+                loadAttendanceReport(true);
+            }
+        };
+        AttendanceEventStream.Logger logger = new AttendanceEventStream.Logger() {
+            @Override
+            public void warn(String message) {
+                Log.w(EVENT_STREAM_TAG, message);
+            }
+        };
+        eventStream = new AttendanceEventStream(RetrofitClient.getHttpClient(), HttpUrl.get(RetrofitClient.getBaseUrl()),
+                classId, date, listener, new MainThreadScheduler(), logger);
+        eventStream.start();
+    }
+    
+    private void watchUploads(final String classId, final String date) {
+        String workName = AttendanceUploadWorker.workName(classId, date);
+        if (uploadWork != null && workName.equals(uploadWorkName)) {
+            return;
+        }
+        
+        if (uploadWork != null) {
+            uploadWork.removeObserver(uploadObserver);
+        }
+        
+        uploadWorkName = workName;
+        
+        uploadStatus = "";
+        uploadRunning = false;
+        uploadObserver = new Observer<List<WorkInfo>>() {
+            @Override
+            public void onChanged(List<WorkInfo> workInfos) {
+                boolean running = false;
+                WorkInfo last = null;
+                for (WorkInfo info : workInfos) {
+                    running |= !info.getState().isFinished();
+                    last = info;
+                }
+                
+                int pending = PendingTakeStore.getInstance(AttendanceActivity.this).countTakes(classId, date);
+                if (running) {
+                    uploadStatus = pending > 0 ? "\nUploading " + pending + " photo(s)..." : "\nFinishing upload...";
+                } else if (last != null && last.getState() == WorkInfo.State.FAILED) {
+                    uploadStatus = "\n" + last.getOutputData().getString(AttendanceUploadWorker.KEY_ERROR);
+                } else {
+                    uploadStatus = "";
+                }
+                
+                boolean finished = uploadRunning && !running;
+                uploadRunning = running;
+                if (finished) {
+                    // Absences are written when the session closes; fetch the whole report
+                    loadAttendanceReport(true);
+                } else if (!currentRecords.isEmpty()) {
+                    displayAttendanceRecords(new ArrayList<>(currentRecords.values()));
+                }
+            }
+        };
+        uploadWork = WorkManager.getInstance(this).getWorkInfosForUniqueWorkLiveData(workName);
+        uploadWork.observe(this, uploadObserver);
+    }
+    
+    private void applyPushedMark(Map<String, Object> data) {
+        AttendanceMark mark = AttendanceMark.fromMap(data);
+        staleReports.add(reportKey(mark.getClassId(), mark.getDate()));
+        applyMark(mark);
+    }
+    
+    private void applyMark(AttendanceMark mark) {
+        // The selection may have changed since the event was sent
+        ClassInfo selectedClass = (ClassInfo) classSpinner.getSelectedItem();
+        if (selectedClass == null
+                || !selectedClass.getId().equals(mark.getClassId())
+                || !selectedDate.equals(mark.getDate())) {
+            return;
         }
         
-        public String getName() {
-            return name;
+        // A push can arrive after the response to the correction that replaced it
+        AttendanceMark shown = currentRecords.get(mark.getStudentId());
+        if (shown != null && shown.getSeq() > mark.getSeq()) {
+            return;
         }
         
-        @Override
-        public String toString() {
-            return name;
+        currentRecords.put(mark.getStudentId(), mark);
+        displayAttendanceRecords(new ArrayList<>(currentRecords.values()));
+    }
+    
+    private static String reportKey(String classId, String date) {
+        return classId + "/" + date;
+    }
+    
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (eventStream != null) {
+            // Resumes from the last seen event, replaying anything missed while stopped
+            eventStream.start();
+        }
+    }
+    
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (eventStream != null) {
+            eventStream.close();
         }
     }
 }
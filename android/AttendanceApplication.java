@@ -0,0 +1,58 @@
+package com.example.attendancesystem;
+
+import android.app.Application;
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.work.Configuration;
+import androidx.work.ListenableWorker;
+import androidx.work.WorkerFactory;
+import androidx.work.WorkerParameters;
+
+import java.util.concurrent.Executors;
+
+/**
+ * Gives the API client its disk cache, turns on pipeline metrics in debug builds, and
+ * configures WorkManager on demand, so background uploads share one small thread pool
+ * and the app's API client.
+ *
+ * Needs {@code android:name=".AttendanceApplication"} on the manifest's application
+ * element, and the default {@code androidx.work.WorkManagerInitializer} removed from
+ * the {@code androidx.startup.InitializationProvider} with {@code tools:node="remove"}.
+ */
+public class AttendanceApplication extends Application implements Configuration.Provider {
+    
+    // Uploads running at once across all classes; each holds a photo in memory and a
+    // recognition job on the server
+    private static final int MAX_CONCURRENT_UPLOADS = 2;
+    
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        PipelineMetrics.setEnabled(BuildConfig.DEBUG);
+        RetrofitClient.init(this);
+    }
+    
+    @NonNull
+    @Override
+    public Configuration getWorkManagerConfiguration() {
+        return new Configuration.Builder()
+                .setExecutor(Executors.newFixedThreadPool(MAX_CONCURRENT_UPLOADS))
+                .setWorkerFactory(new WorkerFactory() {
+                    @Override
+                    public ListenableWorker createWorker(@NonNull Context appContext, @NonNull String workerClassName,
+                                                         @NonNull WorkerParameters workerParameters) {
+                        if (AttendanceUploadWorker.class.getName().equals(workerClassName)) {
+                            return new AttendanceUploadWorker(appContext, workerParameters,
+                                    RetrofitClient.getApiService(), PendingTakeStore.getInstance(appContext));
+                        }
+                        if (PrefetchWorker.class.getName().equals(workerClassName)) {
+                            return new PrefetchWorker(appContext, workerParameters, RetrofitClient.getApiService());
+                        }
+                        // Fall back to the default reflective factory
+                        return null;
+                    }
+                })
+                .build();
+    }
+}
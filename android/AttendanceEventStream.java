@@ -0,0 +1,264 @@
+package com.example.attendancesystem;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * Client for the {@code api/events} Server-Sent Events stream.
+ *
+ * Reconnects with exponential backoff and resumes from the last seen event via
+ * {@code Last-Event-ID}, so delivery is at-least-once; events already delivered are
+ * dropped by id before they reach the listener. Listener callbacks run on the
+ * {@link Scheduler}, the main thread in the app; the class itself has no Android
+ * dependency, so it runs on a plain JVM in tests.
+ */
+public class AttendanceEventStream {
+    
+    public interface Listener {
+        void onEvent(String type, Map<String, Object> data);
+        
+        /**
+         * The server could not replay the events missed while disconnected;
+         * the listener should reload its state from the REST endpoints.
+         */
+        void onReset();
+    }
+    
+    /**
+     * Runs listener callbacks and delayed reconnects; on the main thread in the app.
+     */
+    public interface Scheduler {
+        void post(Runnable task);
+        
+        void postDelayed(Runnable task, long delayMs);
+        
+        void cancel(Runnable task);
+    }
+    
+    /**
+     * Receives warnings about dropped connections and malformed events.
+     */
+    public interface Logger {
+        void warn(String message);
+    }
+    
+    private static final long MIN_RECONNECT_DELAY_MS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MS = 30000;
+    private static final int SEEN_EVENT_CAPACITY = 512;
+    private static final Type DATA_TYPE = new TypeToken<Map<String, Object>>() {}.getType();
+    
+    private final OkHttpClient client;
+    private final HttpUrl url;
+    private final Listener listener;
+    private final Scheduler scheduler;
+    private final Logger logger;
+    private final Gson gson = new Gson();
+    
+    // Only touched by the single active reader thread
+    private final Map<String, Boolean> seenEventIds = new LinkedHashMap<String, Boolean>(SEEN_EVENT_CAPACITY, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > SEEN_EVENT_CAPACITY;
+        }
+    };
+    
+    private volatile String lastEventId;
+    private volatile Call currentCall;
+    private volatile boolean closed;
+    private long reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+    
+    private final Runnable reconnect = new Runnable() {
+        @Override
+        public void run() {
+            connect();
+        }
+    };
+    
+    /**
+     * @param client client to stream with; the server sends a keep-alive comment every
+     *               15s, so a normal read timeout applies
+     * @param baseUrl the server's base URL
+     * @param classId only deliver events for this class, or null for all classes
+     * @param date only deliver events for this date, or null for all dates
+     */
+    public AttendanceEventStream(OkHttpClient client, HttpUrl baseUrl, String classId, String date,
+                                 Listener listener, Scheduler scheduler, Logger logger) {
+        HttpUrl.Builder urlBuilder = baseUrl.newBuilder()
+                .addPathSegments("api/events");
+        if (classId != null) {
+            urlBuilder.addQueryParameter("class_id", classId);
+        }
+        if (date != null) {
+            urlBuilder.addQueryParameter("date", date);
+        }
+        this.url = urlBuilder.build();
+        this.listener = listener;
+        this.client = client;
+        this.scheduler = scheduler;
+        this.logger = logger;
+    }
+    
+    public void start() {
+        closed = false;
+        connect();
+    }
+    
+    public void close() {
+        closed = true;
+        scheduler.cancel(reconnect);
+        Call call = currentCall;
+        if (call != null) {
+            call.cancel();
+        }
+    }
+    
+    private void connect() {
+        if (closed) {
+            return;
+        }
+        
+        Request.Builder request = new Request.Builder()
+                .url(url)
+                .header("Accept", "text/event-stream");
+        if (lastEventId != null) {
+            request.header("Last-Event-ID", lastEventId);
+        }
+        
+        Call call = client.newCall(request.build());
+        currentCall = call;
+        call.enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, Response response) {
+                try {
+                    if (response.isSuccessful() && response.body() != null) {
+                        reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+                        readEvents(response.body().source());
+                    } else {
+                        logger.warn("Event stream rejected: " + response.code());
+                    }
+                } catch (IOException e) {
+                    if (!closed) {
+                        logger.warn("Event stream interrupted: " + e.getMessage());
+                    }
+                } finally {
+                    response.close();
+                    scheduleReconnect(call);
+                }
+            }
+            
+            @Override
+            public void onFailure(Call call, IOException e) {
+                if (!closed) {
+                    logger.warn("Event stream connection failed: " + e.getMessage());
+                }
+                scheduleReconnect(call);
+            }
+        });
+    }
+    
+    private void readEvents(BufferedSource source) throws IOException {
+        String id = null;
+        String type = "message";
+        StringBuilder data = new StringBuilder();
+        
+        String line;
+        while (!closed && (line = source.readUtf8Line()) != null) {
+            if (line.isEmpty()) {
+                // Blank line terminates the event
+                if (data.length() > 0 || "reset".equals(type)) {
+                    dispatch(id, type, data.toString());
+                }
+                id = null;
+                type = "message";
+                data.setLength(0);
+                continue;
+            }
+            
+            if (line.startsWith(":")) {
+                // Keep-alive comment
+                continue;
+            }
+            
+            int colon = line.indexOf(':');
+            String field = colon >= 0 ? line.substring(0, colon) : line;
+            String value = colon >= 0 ? line.substring(colon + 1) : "";
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+            
+            if ("id".equals(field)) {
+                id = value;
+            } else if ("event".equals(field)) {
+                type = value;
+            } else if ("data".equals(field)) {
+                if (data.length() > 0) {
+                    data.append('\n');
+                }
+                data.append(value);
+            }
+        }
+    }
+    
+    private void dispatch(String id, final String type, String data) {
+        if (id != null) {
+            lastEventId = id;
+        }
+        
+        if ("reset".equals(type)) {
+            scheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!closed) {
+                        listener.onReset();
+                    }
+                }
+            });
+            return;
+        }
+        
+        // Replays after a reconnect can repeat events we already delivered
+        if (id != null && seenEventIds.put(id, Boolean.TRUE) != null) {
+            return;
+        }
+        
+        final Map<String, Object> payload;
+        try {
+            payload = gson.fromJson(data, DATA_TYPE);
+        } catch (RuntimeException e) {
+            logger.warn("Ignoring malformed event " + id + ": " + e.getMessage());
+            return;
+        }
+        
+        scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!closed) {
+                    listener.onEvent(type, payload);
+                }
+            }
+        });
+    }
+    
+    private void scheduleReconnect(Call finishedCall) {
+        // A call cancelled by close() may finish after start() opened a new one
+        if (closed || finishedCall != currentCall) {
+            return;
+        }
+        long delay = reconnectDelayMs;
+        reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+        scheduler.postDelayed(reconnect, delay);
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.attendancesystem;
+
+import java.util.Map;
+
+/**
+ * Immutable attendance record for one student on one date, as returned by
+ * {@code api/attendance_report}.
+ */
+public final class AttendanceMark {
+    
+    private final String studentId;
+    private final String studentName;
+    private final String classId;
+    private final String date;
+    private final boolean present;
+    // Change log sequence number of the write that set the mark, its version; 0 if unknown
+    private final long seq;
+    
+    public AttendanceMark(String studentId, String studentName, String classId, String date, boolean present,
+                          long seq) {
+        this.studentId = studentId;
+        this.studentName = studentName;
+        this.classId = classId;
+        this.date = date;
+        this.present = present;
+        this.seq = seq;
+    }
+    
+    public static AttendanceMark fromMap(Map<String, Object> record) {
+        Object status = record.get("status");
+        Object seq = record.get("seq");
+        return new AttendanceMark(
+                (String) record.get("student_id"),
+                (String) record.get("student_name"),
+                (String) record.get("class_id"),
+                (String) record.get("date"),
+                status instanceof Boolean && (Boolean) status,
+                seq instanceof Number ? ((Number) seq).longValue() : 0
+        );
+    }
+    
+    public String getStudentId() {
+        return studentId;
+    }
+    
+    public String getStudentName() {
+        return studentName;
+    }
+    
+    public String getClassId() {
+        return classId;
+    }
+    
+    public String getDate() {
+        return date;
+    }
+    
+    public boolean isPresent() {
+        return present;
+    }
+    
+    public long getSeq() {
+        return seq;
+    }
+}
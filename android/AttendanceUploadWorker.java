@@ -0,0 +1,394 @@
+package com.example.attendancesystem;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import retrofit2.Response;
+
+/**
+ * Uploads the pending takes of one class and date, then closes its session if the
+ * teacher tapped Done.
+ *
+ * Work is unique per class and date and appended, so takes queued while an upload runs
+ * are picked up by the same run or the one after it, and never by two at once. Each
+ * take's job ID is saved as soon as the server accepts the photo, so a retried run
+ * polls that job rather than uploading the photo again. The outcome is posted as a
+ * notification and in the output data, which {@link AttendanceActivity} observes.
+ */
+public class AttendanceUploadWorker extends Worker {
+    
+    public static final String KEY_CLASS_ID = "class_id";
+    public static final String KEY_DATE = "date";
+    public static final String KEY_PRESENT_COUNT = "present_count";
+    public static final String KEY_PHOTO_COUNT = "photo_count";
+    public static final String KEY_CLOSED = "closed";
+    public static final String KEY_ERROR = "error";
+    
+    private static final String TAG = "AttendanceUploadWorker";
+    private static final String WORK_NAME_PREFIX = "attendance-upload-";
+    private static final String CHANNEL_ID = "attendance_uploads";
+    // How long the server may hold each job poll open; must stay below the client read timeout
+    private static final int JOB_POLL_WAIT_SECONDS = 25;
+    // Runs retried before giving up; backoff doubles from BACKOFF_SECONDS, so this
+    // covers a few hours of the server being unreachable
+    static final int MAX_ATTEMPTS = 10;
+    private static final long BACKOFF_SECONDS = 30;
+    
+    private final ApiService apiService;
+    private final PendingTakeStore store;
+    
+    public AttendanceUploadWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        this(context, params, RetrofitClient.getApiService(), PendingTakeStore.getInstance(context));
+    }
+    
+    AttendanceUploadWorker(Context context, WorkerParameters params, ApiService apiService, PendingTakeStore store) {
+        super(context, params);
+        this.apiService = apiService;
+        this.store = store;
+    }
+    
+    /**
+     * Schedules an upload of the pending takes for a class and date.
+     */
+    public static void enqueue(Context context, String classId, String date) {
+        Data input = new Data.Builder()
+                .putString(KEY_CLASS_ID, classId)
+                .putString(KEY_DATE, date)
+                .build();
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(AttendanceUploadWorker.class)
+                .setInputData(input)
+                .setConstraints(constraints)
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, BACKOFF_SECONDS, TimeUnit.SECONDS)
+                .build();
+        
+        // Appending runs one upload at a time per class; a run queued behind another
+        // finds nothing left and finishes at once. A failed chain is replaced.
+        WorkManager.getInstance(context)
+                .enqueueUniqueWork(workName(classId, date), ExistingWorkPolicy.APPEND_OR_REPLACE, request);
+    }
+    
+    public static String workName(String classId, String date) {
+        return WORK_NAME_PREFIX + PendingTakeStore.key(classId, date);
+    }
+    
+    @NonNull
+    @Override
+    public Result doWork() {
+        String classId = getInputData().getString(KEY_CLASS_ID);
+        String date = getInputData().getString(KEY_DATE);
+        Outcome outcome = new Outcome();
+        
+        try {
+            while (true) {
+                PendingTakeStore.Upload upload = store.getUpload(classId, date);
+                if (upload == null) {
+                    break;
+                }
+                outcome.className = upload.className;
+                
+                List<PendingTakeStore.Take> takes = store.getTakes(upload);
+                if (!takes.isEmpty()) {
+                    uploadTake(upload, takes.get(0), outcome);
+                } else if (upload.closeRequested) {
+                    closeSession(upload, outcome);
+                } else {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Upload for class " + classId + " on " + date + " interrupted: " + e.getMessage());
+            if (getRunAttemptCount() + 1 < MAX_ATTEMPTS) {
+                return Result.retry();
+            }
+            outcome.error = "Could not reach the server. " + store.countTakes(classId, date)
+                    + " photo(s) are saved and will be sent with the next one you take.";
+            notifyOutcome(classId, date, outcome);
+            return Result.failure(outcome.toData());
+        }
+        
+        notifyOutcome(classId, date, outcome);
+        return Result.success(outcome.toData());
+    }
+    
+    private void uploadTake(PendingTakeStore.Upload upload, PendingTakeStore.Take take, Outcome outcome)
+            throws IOException {
+        if (upload.sessionId == null) {
+            openSession(upload);
+        }
+        
+        if (take.jobId == null) {
+            Map<String, Object> job = submitJob(upload, take);
+            if (job == null) {
+                // The session was closed from another device; the next pass opens a new one
+                store.setSessionId(upload, null);
+                return;
+            }
+            take.jobId = (String) job.get("job_id");
+            store.saveTake(upload, take);
+        }
+        
+        Map<String, Object> job = pollJob(take.jobId);
+        if (job == null) {
+            // The server forgot the job, e.g. it restarted; send the photo again, under a
+            // new key, or the server could answer with the job it forgot
+            take.jobId = null;
+            take.idempotencyKey = UUID.randomUUID().toString();
+            store.saveTake(upload, take);
+            return;
+        }
+        
+        if ("failed".equals(job.get("status"))) {
+            // Retrying would fail the same way; drop the photo rather than block the rest
+            Log.e(TAG, "Recognition failed for " + take.name + ": " + job.get("error"));
+            outcome.error = "A photo could not be processed: " + job.get("error");
+        } else {
+            outcome.applyJob(job);
+            recordMetrics(job, take);
+        }
+        store.completeTake(upload, take);
+    }
+    
+    private void openSession(PendingTakeStore.Upload upload) throws IOException {
+        // Opens a session, or joins the one another device already has open
+        Map<String, Object> sessionData = new HashMap<>();
+        sessionData.put("class_id", upload.classId);
+        sessionData.put("date", upload.date);
+        
+        Map<String, Object> body = checkBody(apiService.openAttendanceSession(sessionData).execute());
+        Map<String, Object> session = (Map<String, Object>) body.get("session");
+        store.setSessionId(upload, (String) session.get("session_id"));
+    }
+    
+    /**
+     * Returns the queued job, or null if the session is no longer open. An earlier
+     * attempt of this take still being accepted under the same key is answered with a
+     * 503 and Retry-After instead; {@link RetryAfterInterceptor} waits that out, and
+     * past it {@link #checkBody} leaves the take to WorkManager's backoff with the
+     * session kept.
+     */
+    private Map<String, Object> submitJob(PendingTakeStore.Upload upload, PendingTakeStore.Take take)
+            throws IOException {
+        Map<String, Object> requestData = new HashMap<>();
+        requestData.put("class_id", upload.classId);
+        requestData.put("date", upload.date);
+        requestData.put("session_id", upload.sessionId);
+        // A clip is sent the same way as a photo, under its own name
+        requestData.put(take.clip ? "clip" : "photo", RetrofitClient.encodePhoto(store.readPhoto(take)));
+        requestData.put("face_locations", take.faceLocations);
+        // Match thresholds are calibrated per camera as well as per class
+        requestData.put("camera_id", take.cameraId);
+        
+        Response<Map<String, Object>> response = apiService.submitAttendanceJob(take.idempotencyKey, requestData).execute();
+        if (response.code() == 404 || response.code() == 409) {
+            // Only a closed or forgotten session; the server never answers a retry with 409
+            return null;
+        }
+        return (Map<String, Object>) checkBody(response).get("job");
+    }
+    
+    /**
+     * Long-polls a job until it completes or fails. Returns null if the job is unknown.
+     */
+    private Map<String, Object> pollJob(String jobId) throws IOException {
+        while (true) {
+            if (isStopped()) {
+                // WorkManager runs the work again later, and the saved job ID is polled then
+                throw new IOException("Stopped by the system");
+            }
+            
+            Response<Map<String, Object>> response = apiService.getAttendanceJob(jobId, JOB_POLL_WAIT_SECONDS).execute();
+            if (response.code() == 404) {
+                return null;
+            }
+            
+            Map<String, Object> job = (Map<String, Object>) checkBody(response).get("job");
+            String status = (String) job.get("status");
+            if ("completed".equals(status) || "failed".equals(status)) {
+                return job;
+            }
+            // Still queued or running; the server held the request as long as it could
+        }
+    }
+    
+    private void closeSession(PendingTakeStore.Upload upload, Outcome outcome) throws IOException {
+        if (upload.sessionId != null) {
+            Response<Map<String, Object>> response = apiService.closeAttendanceSession(upload.sessionId).execute();
+            if (response.code() == 404) {
+                // Expired or lost in a server restart; the marks already written stand,
+                // but absences must be marked by hand
+                outcome.error = "The attendance session expired before it was closed; mark absences manually.";
+            } else {
+                Map<String, Object> body = checkBody(response);
+                outcome.applyClose(body);
+            }
+        }
+        
+        outcome.closed = true;
+        if (!store.removeUploadIfIdle(upload)) {
+            // Another photo came in; it starts a new session on the next pass
+            store.setSessionId(upload, null);
+        }
+    }
+    
+    /**
+     * Returns the body of a successful response. Anything else, including a 503 while
+     * the recognition queue is full, throws so the run is retried with backoff.
+     */
+    private Map<String, Object> checkBody(Response<Map<String, Object>> response) throws IOException {
+        Map<String, Object> body = response.body();
+        if (!response.isSuccessful() || body == null || !Boolean.TRUE.equals(body.get("success"))) {
+            throw new IOException("HTTP " + response.code() + " " + response.message());
+        }
+        return body;
+    }
+    
+    private void recordMetrics(Map<String, Object> job, PendingTakeStore.Take take) {
+        Object processingMs = job.get("processing_ms");
+        if (processingMs instanceof Number) {
+            PipelineMetrics.recordNanos(PipelineMetrics.Stage.SERVER,
+                    (long) (((Number) processingMs).doubleValue() * 1000000L));
+        }
+        // Capture to result, including time spent waiting for a connection
+        PipelineMetrics.recordNanos(PipelineMetrics.Stage.TOTAL,
+                TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - take.takenAt));
+        if (PipelineMetrics.isEnabled()) {
+            Log.i(TAG, "Capture pipeline latency:\n" + PipelineMetrics.summary());
+        }
+    }
+    
+    private void notifyOutcome(String classId, String date, Outcome outcome) {
+        if (outcome.photoCount == 0 && !outcome.closed && outcome.error == null) {
+            // A run queued behind another that found nothing left to do
+            return;
+        }
+        
+        Context context = getApplicationContext();
+        NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID, "Attendance uploads",
+                    NotificationManager.IMPORTANCE_DEFAULT));
+        }
+        
+        String title = (outcome.className != null ? outcome.className : "Attendance") + " · " + date;
+        String text = outcome.describe();
+        
+        Intent intent = new Intent(context, AttendanceActivity.class)
+                .putExtra(AttendanceActivity.EXTRA_CLASS_ID, classId)
+                .putExtra(AttendanceActivity.EXTRA_DATE, date)
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(context, workName(classId, date).hashCode(), intent,
+                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+        
+        Notification notification = new Notification.Builder(context, CHANNEL_ID)
+                .setSmallIcon(outcome.error != null ? android.R.drawable.stat_notify_error
+                        : android.R.drawable.stat_sys_upload_done)
+                .setContentTitle(title)
+                .setContentText(text)
+                .setStyle(new Notification.BigTextStyle().bigText(text))
+                .setContentIntent(contentIntent)
+                .setAutoCancel(true)
+                .build();
+        // One notification per class and date, replaced as uploads finish
+        manager.notify(workName(classId, date).hashCode(), notification);
+    }
+    
+    /**
+     * What a run achieved, for the notification and the work's output data.
+     */
+    private static final class Outcome {
+        String className;
+        int photoCount;
+        int presentCount = -1;
+        int absentCount = -1;
+        boolean recaptureSuggested;
+        boolean closed;
+        String error;
+        
+        void applyJob(Map<String, Object> job) {
+            photoCount++;
+            Map<String, Object> session = (Map<String, Object>) job.get("session");
+            if (session != null && session.get("present_count") instanceof Number) {
+                presentCount = ((Number) session.get("present_count")).intValue();
+            }
+            // Null when the server does not calibrate; then always offer another photo
+            recaptureSuggested = !Boolean.FALSE.equals(job.get("recapture_suggested"));
+        }
+        
+        void applyClose(Map<String, Object> body) {
+            List<Map<String, Object>> attendance = (List<Map<String, Object>>) body.get("attendance");
+            if (attendance == null) {
+                return;
+            }
+            presentCount = 0;
+            absentCount = 0;
+            for (Map<String, Object> record : attendance) {
+                if (Boolean.TRUE.equals(record.get("status"))) {
+                    presentCount++;
+                } else {
+                    absentCount++;
+                }
+            }
+        }
+        
+        String describe() {
+            StringBuilder text = new StringBuilder();
+            if (closed && absentCount >= 0) {
+                text.append("Attendance complete: ").append(presentCount).append(" present, ")
+                        .append(absentCount).append(" absent.");
+            } else if (closed) {
+                text.append("Attendance complete.");
+            } else if (photoCount > 0) {
+                text.append(photoCount).append(photoCount == 1 ? " photo" : " photos").append(" processed");
+                if (presentCount >= 0) {
+                    text.append(", ").append(presentCount).append(" present so far");
+                }
+                text.append(".");
+                if (recaptureSuggested) {
+                    text.append(" Some faces may be students who were missed; take another photo to catch them.");
+                }
+            }
+            if (error != null) {
+                text.append(text.length() > 0 ? " " : "").append(error);
+            }
+            return text.toString();
+        }
+        
+        Data toData() {
+            Data.Builder data = new Data.Builder()
+                    .putInt(KEY_PRESENT_COUNT, presentCount)
+                    .putInt(KEY_PHOTO_COUNT, photoCount)
+                    .putBoolean(KEY_CLOSED, closed);
+            if (error != null) {
+                data.putString(KEY_ERROR, error);
+            }
+            return data.build();
+        }
+    }
+}
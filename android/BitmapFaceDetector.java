@@ -0,0 +1,68 @@
+package com.example.attendancesystem;
+
+import android.graphics.Bitmap;
+import android.graphics.PointF;
+import android.media.FaceDetector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * {@link TiledFaceDetector.RegionDetector} backed by the platform's {@link FaceDetector}.
+ */
+public class BitmapFaceDetector implements TiledFaceDetector.RegionDetector<Bitmap> {
+    
+    // Large enough for a 12MP photo to keep faces at the back of the room detectable
+    static final int TILE_SIZE = 1024;
+    // Larger than the biggest face expected in a whole-class photo
+    static final int TILE_OVERLAP = 256;
+    private static final int MAX_FACES_PER_TILE = 32;
+    // FaceDetector reports confidence in [0, 1]; below 0.3 is mostly noise
+    private static final float MIN_CONFIDENCE = 0.3f;
+    
+    /**
+     * Tiled detector for full-resolution camera photos, running on the common pool.
+     */
+    public static TiledFaceDetector<Bitmap> tiled() {
+        return new TiledFaceDetector<>(new BitmapFaceDetector(), TILE_SIZE, TILE_OVERLAP, ForkJoinPool.commonPool());
+    }
+    
+    @Override
+    public List<FaceBox> detect(Bitmap image, int left, int top, int width, int height) {
+        // FaceDetector needs an RGB_565 bitmap of even width
+        width &= ~1;
+        Bitmap region = Bitmap.createBitmap(image, left, top, width, height);
+        Bitmap rgb565 = region.copy(Bitmap.Config.RGB_565, false);
+        if (region != image) {
+            region.recycle();
+        }
+        
+        FaceDetector.Face[] faces = new FaceDetector.Face[MAX_FACES_PER_TILE];
+        int count = new FaceDetector(width, height, MAX_FACES_PER_TILE).findFaces(rgb565, faces);
+        rgb565.recycle();
+        
+        List<FaceBox> boxes = new ArrayList<>(count);
+        PointF midPoint = new PointF();
+        for (int i = 0; i < count; i++) {
+            FaceDetector.Face face = faces[i];
+            if (face.confidence() < MIN_CONFIDENCE) {
+                continue;
+            }
+            
+            // The detector finds eyes; a face is roughly two eye-distances wide,
+            // centred a little below the eye line
+            face.getMidPoint(midPoint);
+            float eyes = face.eyesDistance();
+            int centerX = left + Math.round(midPoint.x);
+            int centerY = top + Math.round(midPoint.y + eyes * 0.25f);
+            int halfWidth = Math.round(eyes);
+            int halfHeight = Math.round(eyes * 1.25f);
+            // A face at the edge of the photo reaches past it; the server crops by the box
+            boxes.add(new FaceBox(Math.max(0, centerX - halfWidth), Math.max(0, centerY - halfHeight),
+                    Math.min(image.getWidth(), centerX + halfWidth), Math.min(image.getHeight(), centerY + halfHeight),
+                    face.confidence()));
+        }
+        return boxes;
+    }
+}
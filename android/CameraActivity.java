@@ -5,68 +5,107 @@ import android.content.DialogInterface;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.os.Bundle;
-import android.util.Base64;
 import android.util.Log;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CompoundButton;
 import android.widget.ProgressBar;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
+import android.widget.ToggleButton;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.camera.core.AspectRatio;
 import androidx.camera.core.CameraSelector;
 import androidx.camera.core.ImageCapture;
 import androidx.camera.core.ImageCaptureException;
 import androidx.camera.core.ImageProxy;
 import androidx.camera.core.Preview;
 import androidx.camera.lifecycle.ProcessCameraProvider;
+import androidx.camera.video.FileOutputOptions;
+import androidx.camera.video.Quality;
+import androidx.camera.video.QualitySelector;
+import androidx.camera.video.Recorder;
+import androidx.camera.video.Recording;
+import androidx.camera.video.VideoCapture;
+import androidx.camera.video.VideoRecordEvent;
 import androidx.camera.view.PreviewView;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.core.util.Consumer;
+import androidx.lifecycle.Observer;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-
-import retrofit2.Call;
-import retrofit2.Callback;
-import retrofit2.Response;
+import java.util.concurrent.TimeUnit;
 
 public class CameraActivity extends AppCompatActivity {
     
     private static final String TAG = "CameraActivity";
     private static final int REQUEST_CODE_PERMISSIONS = 101;
     private static final String[] REQUIRED_PERMISSIONS = new String[]{Manifest.permission.CAMERA};
+    private static final String METRICS_FILE_NAME = "pipeline_metrics.json";
+    // A class starting this soon is preselected when none is in session
+    private static final long CURRENT_CLASS_LEAD_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    // Long enough for students looking down to look up; the server samples the clip
+    // and stops at the frame by which it has recognized everyone
+    private static final long CLIP_MILLIS = TimeUnit.SECONDS.toMillis(4);
     
     private PreviewView previewView;
+    private Preview preview;
     private ImageCapture imageCapture;
+    private VideoCapture<Recorder> videoCapture;
+    private Recording recording;
+    private ProcessCameraProvider cameraProvider;
+    private boolean cameraBound;
     private Spinner classSpinner;
     private Button captureButton;
+    private ToggleButton captureModeToggle;
     private ProgressBar progressBar;
     private TextView statusText;
+    private TextView debugOverlay;
     
-    private ApiService apiService;
     private final Executor executor = Executors.newSingleThreadExecutor();
-    private List<ClassItem> classes = new ArrayList<>();
+    private List<ClassInfo> classes = new ArrayList<>();
+    private boolean classesFailed;
+    private final TiledFaceDetector<Bitmap> faceDetector = BitmapFaceDetector.tiled();
+    private long takeStartNanos;
+    private StartupTrace startupTrace;
+    
+    private final RosterCache.Listener rosterListener = new RosterCache.Listener() {
+        @Override
+        public void onClassesChanged() {
+            loadClasses();
+        }
+        
+        @Override
+        public void onStudentsChanged() {
+        }
+    };
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        startupTrace = new StartupTrace();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_camera);
         
@@ -74,36 +113,89 @@ public class CameraActivity extends AppCompatActivity {
         previewView = findViewById(R.id.preview_view);
         classSpinner = findViewById(R.id.class_spinner);
         captureButton = findViewById(R.id.capture_button);
+        captureModeToggle = findViewById(R.id.capture_mode_toggle);
         progressBar = findViewById(R.id.progress_bar);
         statusText = findViewById(R.id.status_text);
+        debugOverlay = findViewById(R.id.debug_overlay);
+        debugOverlay.setVisibility(PipelineMetrics.isEnabled() ? View.VISIBLE : View.GONE);
         
-        // Initialize API service
-        apiService = RetrofitClient.getApiService();
-        
-        // Set up camera
-        if (allPermissionsGranted()) {
-            startCamera();
-        } else {
+        // Set up camera. MainActivity has usually started the provider already; the
+        // permission prompt, if any, runs alongside it
+        buildUseCases();
+        previewView.getPreviewStreamState().observe(this, new Observer<PreviewView.StreamState>() {
+            @Override
+            public void onChanged(PreviewView.StreamState state) {
+                if (state == PreviewView.StreamState.STREAMING) {
+                    markStartup(StartupTrace.Milestone.FIRST_FRAME);
+                }
+            }
+        });
+        startCamera();
+        if (!allPermissionsGranted()) {
             ActivityCompat.requestPermissions(this, REQUIRED_PERMISSIONS, REQUEST_CODE_PERMISSIONS);
         }
         
         // Load classes for spinner
+        RosterCache.getInstance().addListener(rosterListener);
         loadClasses();
         
         // Set up capture button click listener
         captureButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                if (classesFailed) {
+                    // Try again rather than leave the button dead
+                    loadClasses();
+                    return;
+                }
                 if (classes.isEmpty()) {
                     Toast.makeText(CameraActivity.this, "No classes available. Please add classes first.", Toast.LENGTH_SHORT).show();
                     return;
                 }
                 
-                capturePhoto();
+                if (captureModeToggle.isChecked()) {
+                    captureClip();
+                } else {
+                    capturePhoto();
+                }
+            }
+        });
+        
+        // Photo and clip modes bind different use cases, so switching rebinds the camera
+        captureModeToggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton button, boolean checked) {
+                if (cameraProvider != null && allPermissionsGranted()) {
+                    bindCamera();
+                }
             }
         });
     }
     
+    /**
+     * Configures the preview and capture use cases before the camera is up. Both use
+     * the sensor's 4:3 aspect ratio, so the preview shows the whole photo and capture
+     * keeps the sensor's full resolution for small faces. Clips are recorded at 720p
+     * without sound: faces at the back of the room are smaller than in a photo, but a
+     * 4-second clip stays a few megabytes to upload.
+     */
+    private void buildUseCases() {
+        preview = new Preview.Builder()
+                .setTargetAspectRatio(AspectRatio.RATIO_4_3)
+                .build();
+        preview.setSurfaceProvider(previewView.getSurfaceProvider());
+        
+        imageCapture = new ImageCapture.Builder()
+                .setCaptureMode(ImageCapture.CAPTURE_MODE_MINIMIZE_LATENCY)
+                .setTargetAspectRatio(AspectRatio.RATIO_4_3)
+                .build();
+        
+        Recorder recorder = new Recorder.Builder()
+                .setQualitySelector(QualitySelector.from(Quality.HD))
+                .build();
+        videoCapture = VideoCapture.withOutput(recorder);
+    }
+    
     private void startCamera() {
         final ListenableFuture<ProcessCameraProvider> cameraProviderFuture = ProcessCameraProvider.getInstance(this);
         
@@ -111,28 +203,11 @@ public class CameraActivity extends AppCompatActivity {
             @Override
             public void run() {
                 try {
-                    ProcessCameraProvider cameraProvider = cameraProviderFuture.get();
-                    
-                    // Set up the preview use case
-                    Preview preview = new Preview.Builder().build();
-                    preview.setSurfaceProvider(previewView.getSurfaceProvider());
-                    
-                    // Set up the capture use case
-                    imageCapture = new ImageCapture.Builder()
-                            .setCaptureMode(ImageCapture.CAPTURE_MODE_MINIMIZE_LATENCY)
-                            .build();
-                    
-                    // Choose the back camera
-                    CameraSelector cameraSelector = new CameraSelector.Builder()
-                            .requireLensFacing(CameraSelector.LENS_FACING_BACK)
-                            .build();
-                    
-                    // Unbind any bound use cases before rebinding
-                    cameraProvider.unbindAll();
-                    
-                    // Bind use cases to camera
-                    cameraProvider.bindToLifecycle(CameraActivity.this, cameraSelector, preview, imageCapture);
-                    
+                    cameraProvider = cameraProviderFuture.get();
+                    markStartup(StartupTrace.Milestone.CAMERA_PROVIDER);
+                    if (allPermissionsGranted()) {
+                        bindCamera();
+                    }
                 } catch (ExecutionException | InterruptedException e) {
                     Log.e(TAG, "Error starting camera: " + e.getMessage());
                 }
@@ -140,20 +215,64 @@ public class CameraActivity extends AppCompatActivity {
         }, ContextCompat.getMainExecutor(this));
     }
     
+    private void bindCamera() {
+        // Choose the back camera
+        CameraSelector cameraSelector = new CameraSelector.Builder()
+                .requireLensFacing(CameraSelector.LENS_FACING_BACK)
+                .build();
+        
+        // Unbind any bound use cases before rebinding
+        cameraProvider.unbindAll();
+        
+        // Bind use cases to camera; only the current mode's, as not every camera can
+        // stream preview, photos and video at once
+        if (captureModeToggle.isChecked()) {
+            cameraProvider.bindToLifecycle(CameraActivity.this, cameraSelector, preview, videoCapture);
+        } else {
+            cameraProvider.bindToLifecycle(CameraActivity.this, cameraSelector, preview, imageCapture);
+        }
+        cameraBound = true;
+        markStartup(StartupTrace.Milestone.CAMERA_BOUND);
+    }
+    
+    private void markStartup(StartupTrace.Milestone milestone) {
+        if (startupTrace.mark(milestone)) {
+            reportFullyDrawn();
+            if (PipelineMetrics.isEnabled()) {
+                debugOverlay.setText(PipelineMetrics.summary());
+            }
+        }
+    }
+    
     private void capturePhoto() {
-        if (imageCapture == null) {
+        if (!cameraBound) {
+            statusText.setText("The camera is still starting.");
             return;
         }
         
-        // Show progress
+        // Read the selection now; the teacher may change it while the photo is processed
+        final ClassInfo selectedClass = (ClassInfo) classSpinner.getSelectedItem();
+        if (selectedClass == null) {
+            statusText.setText("Error: No class selected.");
+            return;
+        }
+        final String currentDate = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault()).format(new Date());
+        
+        // Only the shutter and local processing block the button; the upload runs in
+        // the background
         progressBar.setVisibility(View.VISIBLE);
         statusText.setText("Taking photo...");
         captureButton.setEnabled(false);
         
+        takeStartNanos = PipelineMetrics.start();
+        final long captureStart = takeStartNanos;
+        
         // Create the image capture listener
         imageCapture.takePicture(executor, new ImageCapture.OnImageCapturedCallback() {
             @Override
             public void onCaptureSuccess(@NonNull ImageProxy image) {
+                PipelineMetrics.stop(PipelineMetrics.Stage.CAPTURE, captureStart);
+                
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
@@ -165,176 +284,310 @@ public class CameraActivity extends AppCompatActivity {
                 ByteBuffer buffer = image.getPlanes()[0].getBuffer();
                 byte[] bytes = new byte[buffer.capacity()];
                 buffer.get(bytes);
+                PipelineMetrics.add(PipelineMetrics.Counter.CAPTURE_BYTES, bytes.length);
+                PipelineMetrics.allocated(bytes.length);
+                long stageStart = PipelineMetrics.start();
                 Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+                PipelineMetrics.stop(PipelineMetrics.Stage.DECODE, stageStart);
+                PipelineMetrics.add(PipelineMetrics.Counter.BITMAP_BYTES, bitmap.getAllocationByteCount());
+                PipelineMetrics.allocated(bitmap.getAllocationByteCount());
                 
-                // Convert bitmap to base64
+                // Find faces at full resolution so the server gets boxes for small faces too
+                stageStart = PipelineMetrics.start();
+                List<FaceBox> faces = faceDetector.detect(bitmap, bitmap.getWidth(), bitmap.getHeight());
+                PipelineMetrics.stop(PipelineMetrics.Stage.DETECT, stageStart);
+                List<List<Integer>> faceLocations = new ArrayList<>(faces.size());
+                for (FaceBox face : faces) {
+                    faceLocations.add(face.toLocation());
+                }
+                
+                stageStart = PipelineMetrics.start();
                 ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
                 bitmap.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
-                String base64Image = Base64.encodeToString(outputStream.toByteArray(), Base64.DEFAULT);
+                byte[] jpegBytes = outputStream.toByteArray();
+                PipelineMetrics.stop(PipelineMetrics.Stage.JPEG_ENCODE, stageStart);
+                PipelineMetrics.add(PipelineMetrics.Counter.JPEG_BYTES, jpegBytes.length);
+                // The stream's buffer and the copy toByteArray returns
+                PipelineMetrics.allocated(2L * jpegBytes.length);
                 
                 // Close the image
                 image.close();
                 
-                // Get selected class
-                ClassItem selectedClass = (ClassItem) classSpinner.getSelectedItem();
-                
-                if (selectedClass == null) {
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            progressBar.setVisibility(View.GONE);
-                            captureButton.setEnabled(true);
-                            statusText.setText("Error: No class selected.");
-                        }
-                    });
-                    return;
-                }
-                
-                // Prepare request data
-                String currentDate = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault()).format(new Date());
-                Map<String, Object> requestData = new HashMap<>();
-                requestData.put("class_id", selectedClass.getId());
-                requestData.put("date", currentDate);
-                requestData.put("photo", base64Image);
+                // Persist the take before handing it to the uploader, so it survives
+                // the app being killed or the network being down
+                final String error = saveTake(selectedClass, currentDate, jpegBytes, faceLocations);
+                PipelineMetrics.stop(PipelineMetrics.Stage.TOTAL, takeStartNanos);
                 
-                // Send image to server for recognition
-                apiService.takeAttendance(requestData).enqueue(new Callback<Map<String, Object>>() {
+                runOnUiThread(new Runnable() {
                     @Override
-                    public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
+                    public void run() {
                         progressBar.setVisibility(View.GONE);
                         captureButton.setEnabled(true);
+                        publishMetrics();
                         
-                        if (response.isSuccessful() && response.body() != null) {
-                            Map<String, Object> responseData = response.body();
-                            boolean success = (boolean) responseData.get("success");
-                            
-                            if (success) {
-                                // Get the attendance results
-                                ArrayList<Map<String, Object>> recognized = (ArrayList<Map<String, Object>>) responseData.get("recognized_students");
-                                ArrayList<Map<String, Object>> unrecognized = (ArrayList<Map<String, Object>>) responseData.get("unrecognized_faces");
-                                
-                                // Show the summary
-                                showAttendanceSummary(recognized, unrecognized);
-                            } else {
-                                String error = (String) responseData.get("error");
-                                statusText.setText("Error: " + error);
-                            }
+                        if (error != null) {
+                            statusText.setText(error);
                         } else {
-                            statusText.setText("Error: " + response.message());
+                            showTakeSaved(selectedClass, currentDate, "Photo");
                         }
                     }
-                    
+                });
+            }
+            
+            @Override
+            public void onError(@NonNull ImageCaptureException exception) {
+                runOnUiThread(new Runnable() {
                     @Override
-                    public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+                    public void run() {
                         progressBar.setVisibility(View.GONE);
                         captureButton.setEnabled(true);
-                        statusText.setText("Error: " + t.getMessage());
+                        statusText.setText("Error taking photo: " + exception.getMessage());
                     }
                 });
             }
-            
+        });
+    }
+    
+    /**
+     * Records a clip of CLIP_MILLIS and saves it as a take. The clip is not processed
+     * on the device; the server samples its frames.
+     */
+    private void captureClip() {
+        if (!cameraBound) {
+            statusText.setText("The camera is still starting.");
+            return;
+        }
+        
+        final ClassInfo selectedClass = (ClassInfo) classSpinner.getSelectedItem();
+        if (selectedClass == null) {
+            statusText.setText("Error: No class selected.");
+            return;
+        }
+        final String currentDate = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault()).format(new Date());
+        
+        progressBar.setVisibility(View.VISIBLE);
+        statusText.setText("Recording... hold the phone still.");
+        captureButton.setEnabled(false);
+        captureModeToggle.setEnabled(false);
+        
+        // Recorded to the cache, then moved into the pending takes once finished
+        final File clipFile = new File(getCacheDir(), "clip-" + UUID.randomUUID() + ".mp4");
+        FileOutputOptions options = new FileOutputOptions.Builder(clipFile)
+                .setDurationLimitMillis(CLIP_MILLIS)
+                .build();
+        recording = videoCapture.getOutput()
+                .prepareRecording(this, options)
+                .start(ContextCompat.getMainExecutor(this), new Consumer<VideoRecordEvent>() {
+                    @Override
+                    public void accept(VideoRecordEvent event) {
+                        if (!(event instanceof VideoRecordEvent.Finalize)) {
+                            return;
+                        }
+                        recording = null;
+                        if (isDestroyed()) {
+                            // Stopped by leaving the screen; the clip is cut short
+                            clipFile.delete();
+                            return;
+                        }
+                        
+                        // Reaching the duration limit is how every clip ends
+                        VideoRecordEvent.Finalize finalized = (VideoRecordEvent.Finalize) event;
+                        if (finalized.hasError()
+                                && finalized.getError() != VideoRecordEvent.Finalize.ERROR_DURATION_LIMIT_REACHED) {
+                            clipFile.delete();
+                            progressBar.setVisibility(View.GONE);
+                            captureButton.setEnabled(true);
+                            captureModeToggle.setEnabled(true);
+                            statusText.setText("Error recording clip: " + finalized.getCause());
+                            return;
+                        }
+                        saveClip(selectedClass, currentDate, clipFile);
+                    }
+                });
+    }
+    
+    private void saveClip(final ClassInfo classInfo, final String date, final File clipFile) {
+        statusText.setText("Saving clip...");
+        executor.execute(new Runnable() {
             @Override
-            public void onError(@NonNull ImageCaptureException exception) {
+            public void run() {
+                String saveError = null;
+                try {
+                    PendingTakeStore.getInstance(CameraActivity.this).addClip(classInfo.getId(), classInfo.getName(),
+                            date, clipFile, Build.MANUFACTURER + " " + Build.MODEL, UUID.randomUUID().toString());
+                    AttendanceUploadWorker.enqueue(CameraActivity.this, classInfo.getId(), date);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error saving clip: " + e.getMessage());
+                    clipFile.delete();
+                    saveError = "Error saving clip: " + e.getMessage();
+                }
+                
+                final String error = saveError;
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
                         progressBar.setVisibility(View.GONE);
                         captureButton.setEnabled(true);
-                        statusText.setText("Error taking photo: " + exception.getMessage());
+                        captureModeToggle.setEnabled(true);
+                        if (error != null) {
+                            statusText.setText(error);
+                        } else {
+                            showTakeSaved(classInfo, date, "Clip");
+                        }
                     }
                 });
             }
         });
     }
     
+    /**
+     * Saves a take and schedules its upload. Returns an error message, or null.
+     */
+    private String saveTake(ClassInfo classInfo, String date, byte[] jpegBytes, List<List<Integer>> faceLocations) {
+        try {
+            // Match thresholds are calibrated per camera as well as per class, and each
+            // capture gets its own key, however many times its upload is retried
+            PendingTakeStore.getInstance(this).addTake(classInfo.getId(), classInfo.getName(), date, jpegBytes,
+                    faceLocations, Build.MANUFACTURER + " " + Build.MODEL, UUID.randomUUID().toString());
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving photo: " + e.getMessage());
+            return "Error saving photo: " + e.getMessage();
+        }
+        
+        AttendanceUploadWorker.enqueue(this, classInfo.getId(), date);
+        return null;
+    }
+    
+    private void publishMetrics() {
+        if (!PipelineMetrics.isEnabled()) {
+            return;
+        }
+        
+        String summary = PipelineMetrics.summary();
+        debugOverlay.setText(summary);
+        Log.i(TAG, "Capture pipeline latency:\n" + summary);
+        
+        final File metricsFile = new File(getFilesDir(), METRICS_FILE_NAME);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PipelineMetrics.writeJson(metricsFile);
+                } catch (IOException e) {
+                    Log.w(TAG, "Error writing pipeline metrics: " + e.getMessage());
+                }
+            }
+        });
+    }
+    
     private void loadClasses() {
         progressBar.setVisibility(View.VISIBLE);
         statusText.setText("Loading classes...");
+        classesFailed = false;
         
-        apiService.getClasses().enqueue(new Callback<Map<String, Object>>() {
+        RosterCache.getInstance().getClasses(new RosterCache.LoadCallback<List<ClassInfo>>() {
             @Override
-            public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
+            public void onLoaded(List<ClassInfo> data) {
                 progressBar.setVisibility(View.GONE);
+                // Keep the teacher's choice when the list is reloaded
+                ClassInfo selected = (ClassInfo) classSpinner.getSelectedItem();
+                classes = data;
                 
-                if (response.isSuccessful() && response.body() != null) {
-                    Map<String, Object> responseData = response.body();
-                    boolean success = (boolean) responseData.get("success");
+                if (classes.isEmpty()) {
+                    statusText.setText("No classes found. Please add classes first.");
+                } else {
+                    statusText.setText("Ready to take attendance.");
                     
-                    if (success) {
-                        classes.clear();
-                        ArrayList<Map<String, Object>> classesData = (ArrayList<Map<String, Object>>) responseData.get("classes");
-                        
-                        for (Map<String, Object> classData : classesData) {
-                            String id = (String) classData.get("id");
-                            String name = (String) classData.get("name");
-                            classes.add(new ClassItem(id, name));
-                        }
-                        
-                        if (classes.isEmpty()) {
-                            statusText.setText("No classes found. Please add classes first.");
-                        } else {
-                            statusText.setText("Ready to take attendance.");
-                            
-                            // Set up spinner adapter
-                            ArrayAdapter<ClassItem> adapter = new ArrayAdapter<>(
-                                    CameraActivity.this,
-                                    android.R.layout.simple_spinner_item,
-                                    classes
-                            );
-                            adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-                            classSpinner.setAdapter(adapter);
-                        }
-                    } else {
-                        String error = (String) responseData.get("error");
-                        statusText.setText("Error: " + error);
+                    // Set up spinner adapter
+                    ArrayAdapter<ClassInfo> adapter = new ArrayAdapter<>(
+                            CameraActivity.this,
+                            android.R.layout.simple_spinner_item,
+                            classes
+                    );
+                    adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+                    classSpinner.setAdapter(adapter);
+                    
+                    // Start on the class in session, or about to be
+                    ClassInfo current = selected != null ? RosterCache.getInstance().findClass(selected.getId()) : null;
+                    if (current == null || !classes.contains(current)) {
+                        current = Timetable.currentClass(classes, System.currentTimeMillis(),
+                                TimeZone.getDefault(), CURRENT_CLASS_LEAD_MILLIS);
                     }
-                } else {
-                    statusText.setText("Error: " + response.message());
+                    if (current != null) {
+                        classSpinner.setSelection(classes.indexOf(current));
+                    }
+                    markStartup(StartupTrace.Milestone.CLASSES);
+                    PrefetchWorker.schedule(CameraActivity.this, classes);
                 }
             }
             
             @Override
-            public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+            public void onError(String message) {
                 progressBar.setVisibility(View.GONE);
-                statusText.setText("Error loading classes: " + t.getMessage());
+                classesFailed = true;
+                statusText.setText("Error loading classes: " + message + ". Tap the button to try again.");
             }
         });
     }
     
-    private void showAttendanceSummary(ArrayList<Map<String, Object>> recognized, ArrayList<Map<String, Object>> unrecognized) {
-        StringBuilder message = new StringBuilder();
+    /**
+     * @param kind what was taken, "Photo" or "Clip"
+     */
+    private void showTakeSaved(final ClassInfo classInfo, final String date, String kind) {
+        int pending = PendingTakeStore.getInstance(this).countTakes(classInfo.getId(), date);
+        statusText.setText(pending == 1 ? "1 take waiting to upload." : pending + " takes waiting to upload.");
         
-        message.append("Attendance Summary:\n\n");
-        message.append("✅ Recognized Students: ").append(recognized.size()).append("\n");
-        for (Map<String, Object> student : recognized) {
-            message.append("  - ").append(student.get("name"))
-                   .append(" (Confidence: ").append(String.format("%.2f", (double) student.get("confidence")))
-                   .append(")\n");
-        }
-        
-        message.append("\n❓ Unrecognized Faces: ").append(unrecognized.size()).append("\n");
+        String message = "The " + kind.toLowerCase(Locale.US) + " is saved and uploads in the background; a "
+                + "notification shows who was recognized, and whether another take would help.\n\n"
+                + "Take another photo or clip to catch anyone missed. Students not seen in any take are marked "
+                + "absent when you tap Done, once every take is uploaded.";
         
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        builder.setTitle("Attendance Complete")
-                .setMessage(message.toString())
+        builder.setTitle(kind + " Saved")
+                .setMessage(message)
                 .setPositiveButton("Done", new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
                         dialog.dismiss();
-                        finish();  // Return to main activity
+                        requestClose(classInfo, date);
                     }
                 })
                 .setNegativeButton("Take Another", new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
                         dialog.dismiss();
-                        statusText.setText("Ready to take attendance.");
                     }
                 })
                 .setCancelable(false)
                 .show();
     }
     
+    private void requestClose(final ClassInfo classInfo, final String date) {
+        final PendingTakeStore store = PendingTakeStore.getInstance(this);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store.requestClose(classInfo.getId(), classInfo.getName(), date);
+                    AttendanceUploadWorker.enqueue(CameraActivity.this, classInfo.getId(), date);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error saving close request: " + e.getMessage());
+                }
+            }
+        });
+        finish();  // Return to main activity
+    }
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        RosterCache.getInstance().removeListener(rosterListener);
+        if (recording != null) {
+            // Leaving mid-clip discards it
+            recording.stop();
+        }
+    }
+    
     private boolean allPermissionsGranted() {
         for (String permission : REQUIRED_PERMISSIONS) {
             if (ContextCompat.checkSelfPermission(this, permission) != PackageManager.PERMISSION_GRANTED) {
@@ -350,35 +603,14 @@ public class CameraActivity extends AppCompatActivity {
         
         if (requestCode == REQUEST_CODE_PERMISSIONS) {
             if (allPermissionsGranted()) {
-                startCamera();
+                // Otherwise the provider binds the camera once it is ready
+                if (cameraProvider != null) {
+                    bindCamera();
+                }
             } else {
                 Toast.makeText(this, "Permissions not granted by the user.", Toast.LENGTH_SHORT).show();
                 finish();
             }
         }
     }
-    
-    // Class item for spinner
-    private static class ClassItem {
-        private String id;
-        private String name;
-        
-        public ClassItem(String id, String name) {
-            this.id = id;
-            this.name = name;
-        }
-        
-        public String getId() {
-            return id;
-        }
-        
-        public String getName() {
-            return name;
-        }
-        
-        @Override
-        public String toString() {
-            return name;
-        }
-    }
 }
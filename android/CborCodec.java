@@ -0,0 +1,271 @@
+package com.example.attendancesystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CBOR (RFC 8949) encoding of the {@code Map<String, Object>} trees {@link ApiService}
+ * sends and receives.
+ *
+ * Decoded values have the shapes Gson gives for the same JSON, so callers need not know
+ * which format a response came in: maps, lists, strings, booleans, null, and every
+ * number as a Double. Byte strings decode to {@code byte[]}. Indefinite lengths are not
+ * supported; the server never sends them.
+ */
+public final class CborCodec {
+    
+    private static final int UINT = 0;
+    private static final int NEGINT = 1;
+    private static final int BYTES = 2;
+    private static final int TEXT = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final int SIMPLE = 7;
+    
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int UNDEFINED = 0xf7;
+    private static final int FLOAT16 = 0xf9;
+    private static final int FLOAT32 = 0xfa;
+    private static final int FLOAT64 = 0xfb;
+    
+    private static final int MAX_DEPTH = 256;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private CborCodec() {
+    }
+    
+    public static byte[] encode(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        encode(value, out, 0);
+        return out.toByteArray();
+    }
+    
+    public static Object decode(byte[] data) throws IOException {
+        Decoder decoder = new Decoder(data);
+        try {
+            Object value = decoder.read(0);
+            if (decoder.offset != data.length) {
+                throw new IOException("Invalid CBOR: " + (data.length - decoder.offset) + " bytes after the value");
+            }
+            return value;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid CBOR: truncated");
+        }
+    }
+    
+    private static void encode(Object value, ByteArrayOutputStream out, int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Value nested too deeply to encode");
+        }
+        
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof String) {
+            byte[] bytes = ((String) value).getBytes(UTF_8);
+            writeHead(TEXT, bytes.length, out);
+            out.write(bytes, 0, bytes.length);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            long number = ((Number) value).longValue();
+            if (number >= 0) {
+                writeHead(UINT, number, out);
+            } else {
+                writeHead(NEGINT, -1 - number, out);
+            }
+        } else if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            float single = (float) number;
+            // Single precision when that loses nothing, as for small integral values
+            if (single == number || Double.isNaN(number)) {
+                out.write(FLOAT32);
+                writeBits(Float.floatToIntBits(single), 4, out);
+            } else {
+                out.write(FLOAT64);
+                writeBits(Double.doubleToLongBits(number), 8, out);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            writeHead(MAP, map.size(), out);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                encode(entry.getKey(), out, depth + 1);
+                encode(entry.getValue(), out, depth + 1);
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> items = (Collection<?>) value;
+            writeHead(ARRAY, items.size(), out);
+            for (Object item : items) {
+                encode(item, out, depth + 1);
+            }
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            writeHead(BYTES, bytes.length, out);
+            out.write(bytes, 0, bytes.length);
+        } else if (value instanceof Object[]) {
+            Object[] items = (Object[]) value;
+            writeHead(ARRAY, items.length, out);
+            for (Object item : items) {
+                encode(item, out, depth + 1);
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot encode " + value.getClass().getName() + " as CBOR");
+        }
+    }
+    
+    private static void writeHead(int major, long length, ByteArrayOutputStream out) {
+        int type = major << 5;
+        if (length < 24) {
+            out.write(type | (int) length);
+        } else if (length < 0x100) {
+            out.write(type | 24);
+            writeBits(length, 1, out);
+        } else if (length < 0x10000) {
+            out.write(type | 25);
+            writeBits(length, 2, out);
+        } else if (length < 0x100000000L) {
+            out.write(type | 26);
+            writeBits(length, 4, out);
+        } else {
+            out.write(type | 27);
+            writeBits(length, 8, out);
+        }
+    }
+    
+    private static void writeBits(long bits, int size, ByteArrayOutputStream out) {
+        for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift));
+        }
+    }
+    
+    private static final class Decoder {
+        
+        private final byte[] data;
+        private int offset;
+        
+        Decoder(byte[] data) {
+            this.data = data;
+        }
+        
+        Object read(int depth) throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw new IOException("Invalid CBOR: nested too deeply");
+            }
+            
+            int initial = data[offset++] & 0xff;
+            int major = initial >>> 5;
+            int info = initial & 0x1f;
+            
+            if (major == SIMPLE) {
+                switch (initial) {
+                    case FALSE:
+                        return Boolean.FALSE;
+                    case TRUE:
+                        return Boolean.TRUE;
+                    case NULL:
+                    case UNDEFINED:
+                        return null;
+                    case FLOAT16:
+                        return (double) halfToFloat((int) readBits(2));
+                    case FLOAT32:
+                        return (double) Float.intBitsToFloat((int) readBits(4));
+                    case FLOAT64:
+                        return Double.longBitsToDouble(readBits(8));
+                    default:
+                        throw new IOException(String.format("Invalid CBOR: unsupported simple value 0x%02x", initial));
+                }
+            }
+            
+            long argument;
+            if (info < 24) {
+                argument = info;
+            } else if (info <= 27) {
+                argument = readBits(1 << (info - 24));
+            } else {
+                throw new IOException("Invalid CBOR: unsupported length encoding " + info);
+            }
+            
+            switch (major) {
+                case UINT:
+                    // Unsigned values past Long.MAX_VALUE wrap; the API sends none
+                    return argument >= 0 ? (double) argument : (double) (argument >>> 1) * 2.0;
+                case NEGINT:
+                    return -1.0 - argument;
+                case BYTES:
+                case TEXT: {
+                    int length = checkLength(argument);
+                    int start = offset;
+                    offset += length;
+                    if (major == BYTES) {
+                        byte[] bytes = new byte[length];
+                        System.arraycopy(data, start, bytes, 0, length);
+                        return bytes;
+                    }
+                    return new String(data, start, length, UTF_8);
+                }
+                case ARRAY: {
+                    int count = checkLength(argument);
+                    List<Object> items = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        items.add(read(depth + 1));
+                    }
+                    return items;
+                }
+                case MAP: {
+                    int count = checkLength(argument);
+                    // Insertion order, as Gson's LinkedTreeMap keeps it
+                    Map<String, Object> map = new LinkedHashMap<>(count * 4 / 3 + 1);
+                    for (int i = 0; i < count; i++) {
+                        Object key = read(depth + 1);
+                        map.put(key instanceof String ? (String) key : String.valueOf(key), read(depth + 1));
+                    }
+                    return map;
+                }
+                default:
+                    // TAG: annotates the item after it; the API uses none, so keep the item
+                    return read(depth + 1);
+            }
+        }
+        
+        /**
+         * Checks a string length or item count against the bytes left, so a corrupt
+         * header can't trigger a huge allocation; every item takes at least one byte.
+         */
+        private int checkLength(long argument) throws IOException {
+            if (argument < 0 || argument > data.length - offset) {
+                throw new IOException("Invalid CBOR: length " + argument + " runs past the end of the data");
+            }
+            return (int) argument;
+        }
+        
+        private long readBits(int size) {
+            long bits = 0;
+            for (int i = 0; i < size; i++) {
+                bits = bits << 8 | (data[offset++] & 0xff);
+            }
+            return bits;
+        }
+    }
+    
+    private static float halfToFloat(int half) {
+        int sign = (half >>> 15) & 1;
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        float magnitude;
+        if (exponent == 0) {
+            magnitude = mantissa * (float) Math.pow(2, -24);
+        } else if (exponent == 31) {
+            magnitude = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+        } else {
+            magnitude = (1 + mantissa / 1024f) * (float) Math.pow(2, exponent - 15);
+        }
+        return sign == 0 ? magnitude : -magnitude;
+    }
+}
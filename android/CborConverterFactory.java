@@ -0,0 +1,81 @@
+package com.example.attendancesystem;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Map;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+
+/**
+ * Converts {@code Map<String, Object>} bodies to and from CBOR, falling back to a JSON
+ * converter for other types and for responses the server sent as JSON.
+ *
+ * Responses are decoded by their Content-Type, so the app keeps working against a
+ * server that ignores {@code Accept: application/cbor}. Request bodies are only sent
+ * as CBOR when {@code encodeRequests} is set, as older servers can't read them.
+ */
+public class CborConverterFactory extends Converter.Factory {
+    
+    public static final MediaType MEDIA_TYPE = MediaType.get("application/cbor");
+    
+    private final Converter.Factory jsonFactory;
+    private final boolean encodeRequests;
+    
+    private CborConverterFactory(Converter.Factory jsonFactory, boolean encodeRequests) {
+        this.jsonFactory = jsonFactory;
+        this.encodeRequests = encodeRequests;
+    }
+    
+    public static CborConverterFactory create(Converter.Factory jsonFactory, boolean encodeRequests) {
+        return new CborConverterFactory(jsonFactory, encodeRequests);
+    }
+    
+    @Override
+    public Converter<?, RequestBody> requestBodyConverter(Type type, Annotation[] parameterAnnotations,
+                                                          Annotation[] methodAnnotations, Retrofit retrofit) {
+        if (!encodeRequests || !isMap(type)) {
+            return jsonFactory.requestBodyConverter(type, parameterAnnotations, methodAnnotations, retrofit);
+        }
+        return new Converter<Object, RequestBody>() {
+            @Override
+            public RequestBody convert(Object value) {
+                return RequestBody.create(MEDIA_TYPE, CborCodec.encode(value));
+            }
+        };
+    }
+    
+    @Override
+    public Converter<ResponseBody, ?> responseBodyConverter(Type type, Annotation[] annotations, Retrofit retrofit) {
+        final Converter<ResponseBody, ?> jsonConverter = jsonFactory.responseBodyConverter(type, annotations, retrofit);
+        if (!isMap(type)) {
+            return jsonConverter;
+        }
+        return new Converter<ResponseBody, Object>() {
+            @Override
+            public Object convert(ResponseBody value) throws IOException {
+                MediaType contentType = value.contentType();
+                if (contentType == null || !MEDIA_TYPE.subtype().equals(contentType.subtype())) {
+                    return jsonConverter.convert(value);
+                }
+                try {
+                    return CborCodec.decode(value.bytes());
+                } finally {
+                    value.close();
+                }
+            }
+        };
+    }
+    
+    private static boolean isMap(Type type) {
+        if (type instanceof ParameterizedType) {
+            type = ((ParameterizedType) type).getRawType();
+        }
+        return type == Map.class;
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.attendancesystem;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Immutable view of a class as returned by {@code api/classes}.
+ * {@link #toString()} returns the name so instances can back a spinner directly.
+ */
+public final class ClassInfo {
+    
+    private final String id;
+    private final String name;
+    private final Timetable timetable;
+    
+    public ClassInfo(String id, String name) {
+        this(id, name, Timetable.EMPTY);
+    }
+    
+    public ClassInfo(String id, String name, Timetable timetable) {
+        this.id = id;
+        this.name = name;
+        this.timetable = timetable;
+    }
+    
+    public static ClassInfo fromMap(Map<String, Object> classData) {
+        return new ClassInfo((String) classData.get("id"), (String) classData.get("name"),
+                Timetable.fromList((List<?>) classData.get("timetable")));
+    }
+    
+    public String getId() {
+        return id;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public Timetable getTimetable() {
+        return timetable;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ClassInfo)) {
+            return false;
+        }
+        ClassInfo other = (ClassInfo) o;
+        // Fields come straight from the response and may be missing
+        return Objects.equals(id, other.id) && Objects.equals(name, other.name)
+                && Objects.equals(timetable, other.timetable);
+    }
+    
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, name, timetable);
+    }
+    
+    @Override
+    public String toString() {
+        return name;
+    }
+}
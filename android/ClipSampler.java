@@ -0,0 +1,320 @@
+package com.example.attendancesystem;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Recognizes the students in a short attendance clip without recognizing every frame.
+ *
+ * A single photo misses students who happen to be looking down, so teachers take three.
+ * A clip of a few seconds gives them time to look up, but consecutive frames of a class
+ * are nearly the same picture, and identifying every face of every frame costs 30 times
+ * a photo per second of video. The sampler steps through the clip instead, at an
+ * interval that halves while faces not yet recognized move or appear, when a new pose
+ * may be recognizable, and doubles while they are still. Faces are followed from one
+ * sampled frame to the next by box overlap: a face once recognized is not identified
+ * again, and one that was not is tried again only after it moved. Sampling stops at the
+ * first frame by which every enrolled student was recognized, or at the end of the clip.
+ *
+ * Kept free of Android classes so it can be benchmarked on the JVM
+ * ({@code benchmarks/ClipSamplingBenchmark.java}); the server runs the same policy on
+ * uploaded clips ({@code clip_sampler.py}).
+ *
+ * @param <F> the frame type
+ */
+public final class ClipSampler<F> {
+    
+    /**
+     * Decoded frames of a clip; only the frames sampled are asked for.
+     */
+    public interface Clip<F> {
+        int frameCount();
+        
+        long timestampMillis(int index);
+        
+        F frame(int index);
+    }
+    
+    /**
+     * Finds the faces in a frame.
+     */
+    public interface FaceFinder<F> {
+        List<FaceBox> detect(F frame);
+    }
+    
+    /**
+     * Matches one face against the enrolled students; the expensive step.
+     */
+    public interface FaceIdentifier<F> {
+        /**
+         * @return the face's best match, or null if it resembles no one
+         */
+        Match identify(F frame, FaceBox face);
+    }
+    
+    public static final class Match {
+        
+        private final String studentId;
+        private final float confidence;
+        
+        public Match(String studentId, float confidence) {
+            this.studentId = studentId;
+            this.confidence = confidence;
+        }
+        
+        public String getStudentId() {
+            return studentId;
+        }
+        
+        public float getConfidence() {
+            return confidence;
+        }
+    }
+    
+    public static final class Result {
+        
+        private final Map<String, Match> recognized;
+        private final int framesSampled;
+        private final int identifications;
+        private final boolean complete;
+        private final long endMillis;
+        
+        Result(Map<String, Match> recognized, int framesSampled, int identifications, boolean complete,
+               long endMillis) {
+            this.recognized = Collections.unmodifiableMap(recognized);
+            this.framesSampled = framesSampled;
+            this.identifications = identifications;
+            this.complete = complete;
+            this.endMillis = endMillis;
+        }
+        
+        /**
+         * Best match of each student recognized, by student ID.
+         */
+        public Map<String, Match> getRecognized() {
+            return recognized;
+        }
+        
+        public int getFramesSampled() {
+            return framesSampled;
+        }
+        
+        /**
+         * Faces passed to the identifier, across every sampled frame.
+         */
+        public int getIdentifications() {
+            return identifications;
+        }
+        
+        /**
+         * Whether every enrolled student was recognized, which ended sampling early.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+        
+        /**
+         * Timestamp of the last frame sampled.
+         */
+        public long getEndMillis() {
+            return endMillis;
+        }
+    }
+    
+    // Sampling interval bounds; the first frame is always sampled
+    static final long MIN_INTERVAL_MILLIS = 100;
+    static final long INITIAL_INTERVAL_MILLIS = 400;
+    static final long MAX_INTERVAL_MILLIS = 800;
+    // Speed of an unrecognized face, in face widths per second, above which sampling
+    // speeds up and below which it slows down
+    static final float FAST_MOTION = 0.5f;
+    static final float SLOW_MOTION = 0.1f;
+    // An unrecognized face is identified again once it moved this many face widths, or
+    // after this long regardless
+    static final float REIDENTIFY_MOTION = 0.1f;
+    static final long REIDENTIFY_MILLIS = 1000;
+    // Intersection over union at which a box continues a face of the previous sample
+    static final float TRACK_OVERLAP = 0.3f;
+    // A face unseen in this many samples in a row has left the frame
+    static final int MAX_MISSED_SAMPLES = 3;
+    
+    private final FaceFinder<F> finder;
+    private final FaceIdentifier<F> identifier;
+    private final float threshold;
+    
+    /**
+     * @param threshold confidence at which a match recognizes a student
+     */
+    public ClipSampler(FaceFinder<F> finder, FaceIdentifier<F> identifier, float threshold) {
+        this.finder = finder;
+        this.identifier = identifier;
+        this.threshold = threshold;
+    }
+    
+    /**
+     * Recognizes the enrolled students in a clip.
+     *
+     * @param enrolled IDs of the students who may appear; matches to anyone else are ignored
+     */
+    public Result recognize(Clip<F> clip, Collection<String> enrolled) {
+        Set<String> expected = new HashSet<>(enrolled);
+        Map<String, Match> recognized = new HashMap<>();
+        List<Track> tracks = new ArrayList<>();
+        long interval = INITIAL_INTERVAL_MILLIS;
+        int framesSampled = 0;
+        int identifications = 0;
+        long previousMillis = 0;
+        long endMillis = 0;
+        
+        int index = 0;
+        while (index < clip.frameCount()) {
+            long millis = clip.timestampMillis(index);
+            F frame = clip.frame(index);
+            framesSampled++;
+            endMillis = millis;
+            
+            float motion = follow(tracks, finder.detect(frame), framesSampled == 1 ? 0 : millis - previousMillis);
+            
+            for (Track track : tracks) {
+                if (track.studentId != null || track.missed > 0 || !track.shouldIdentify(millis)) {
+                    continue;
+                }
+                Match match = identifier.identify(frame, track.box);
+                identifications++;
+                track.identified(millis);
+                if (match == null || match.confidence < threshold || !expected.contains(match.studentId)) {
+                    continue;
+                }
+                track.studentId = match.studentId;
+                Match best = recognized.get(match.studentId);
+                if (best == null || match.confidence > best.confidence) {
+                    recognized.put(match.studentId, match);
+                }
+            }
+            
+            if (recognized.keySet().containsAll(expected)) {
+                return new Result(recognized, framesSampled, identifications, true, endMillis);
+            }
+            
+            if (motion > FAST_MOTION) {
+                interval = Math.max(interval / 2, MIN_INTERVAL_MILLIS);
+            } else if (motion < SLOW_MOTION) {
+                interval = Math.min(interval * 2, MAX_INTERVAL_MILLIS);
+            }
+            previousMillis = millis;
+            
+            int next = index + 1;
+            while (next < clip.frameCount() && clip.timestampMillis(next) < millis + interval) {
+                next++;
+            }
+            index = next;
+        }
+        return new Result(recognized, framesSampled, identifications, false, endMillis);
+    }
+    
+    /**
+     * Continues the tracks with the boxes of a new sample, greedily by overlap, and
+     * starts a track for each box left over.
+     *
+     * @return the fastest speed of an unrecognized face since the previous sample, in
+     *         face widths per second; a face that just appeared counts as fast
+     */
+    private static float follow(List<Track> tracks, List<FaceBox> boxes, long elapsedMillis) {
+        List<FaceBox> unmatched = new ArrayList<>(boxes);
+        List<Track> waiting = new ArrayList<>(tracks);
+        float motion = 0;
+        
+        while (!waiting.isEmpty() && !unmatched.isEmpty()) {
+            Track bestTrack = null;
+            FaceBox bestBox = null;
+            float bestOverlap = TRACK_OVERLAP;
+            for (Track track : waiting) {
+                for (FaceBox box : unmatched) {
+                    float overlap = intersectionOverUnion(track.box, box);
+                    if (overlap >= bestOverlap) {
+                        bestOverlap = overlap;
+                        bestTrack = track;
+                        bestBox = box;
+                    }
+                }
+            }
+            if (bestTrack == null) {
+                break;
+            }
+            
+            if (bestTrack.studentId == null && elapsedMillis > 0) {
+                motion = Math.max(motion, displacement(bestTrack.box, bestBox) * 1000f / elapsedMillis);
+            }
+            bestTrack.box = bestBox;
+            bestTrack.missed = 0;
+            waiting.remove(bestTrack);
+            unmatched.remove(bestBox);
+        }
+        
+        for (Track track : waiting) {
+            track.missed++;
+        }
+        for (int i = tracks.size() - 1; i >= 0; i--) {
+            if (tracks.get(i).missed > MAX_MISSED_SAMPLES) {
+                tracks.remove(i);
+            }
+        }
+        for (FaceBox box : unmatched) {
+            tracks.add(new Track(box));
+            if (elapsedMillis > 0) {
+                motion = Float.POSITIVE_INFINITY;
+            }
+        }
+        return motion;
+    }
+    
+    static float intersectionOverUnion(FaceBox a, FaceBox b) {
+        long intersection = a.intersectionArea(b);
+        long union = a.area() + b.area() - intersection;
+        return union == 0 ? 0 : (float) intersection / union;
+    }
+    
+    /**
+     * Distance between the centres of two boxes, in widths of the first.
+     */
+    static float displacement(FaceBox from, FaceBox to) {
+        float dx = (to.getLeft() + to.getRight() - from.getLeft() - from.getRight()) / 2f;
+        float dy = (to.getTop() + to.getBottom() - from.getTop() - from.getBottom()) / 2f;
+        int width = Math.max(1, from.getRight() - from.getLeft());
+        return (float) Math.sqrt(dx * dx + dy * dy) / width;
+    }
+    
+    /**
+     * One face followed across samples.
+     */
+    private static final class Track {
+        FaceBox box;
+        int missed;
+        // Set once the face is recognized; it is not identified again
+        String studentId;
+        // Where and when the face was last identified without being recognized
+        FaceBox identifiedBox;
+        long identifiedMillis;
+        
+        Track(FaceBox box) {
+            this.box = box;
+        }
+        
+        boolean shouldIdentify(long millis) {
+            return identifiedBox == null
+                    || displacement(identifiedBox, box) >= REIDENTIFY_MOTION
+                    || millis - identifiedMillis >= REIDENTIFY_MILLIS;
+        }
+        
+        void identified(long millis) {
+            identifiedBox = box;
+            identifiedMillis = millis;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.attendancesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A detected face in full-image pixel coordinates.
+ */
+public final class FaceBox {
+    
+    private final int left;
+    private final int top;
+    private final int right;
+    private final int bottom;
+    private final float confidence;
+    
+    public FaceBox(int left, int top, int right, int bottom, float confidence) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        this.confidence = confidence;
+    }
+    
+    public int getLeft() {
+        return left;
+    }
+    
+    public int getTop() {
+        return top;
+    }
+    
+    public int getRight() {
+        return right;
+    }
+    
+    public int getBottom() {
+        return bottom;
+    }
+    
+    public float getConfidence() {
+        return confidence;
+    }
+    
+    public long area() {
+        return (long) Math.max(0, right - left) * Math.max(0, bottom - top);
+    }
+    
+    public long intersectionArea(FaceBox other) {
+        int width = Math.min(right, other.right) - Math.max(left, other.left);
+        int height = Math.min(bottom, other.bottom) - Math.max(top, other.top);
+        return width <= 0 || height <= 0 ? 0 : (long) width * height;
+    }
+    
+    /**
+     * The box in the server's {@code location} format: [top, right, bottom, left].
+     */
+    public List<Integer> toLocation() {
+        List<Integer> location = new ArrayList<>(4);
+        location.add(top);
+        location.add(right);
+        location.add(bottom);
+        location.add(left);
+        return location;
+    }
+    
+    @Override
+    public String toString() {
+        return "FaceBox[" + left + "," + top + " - " + right + "," + bottom + " @ " + confidence + "]";
+    }
+}
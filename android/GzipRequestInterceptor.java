@@ -0,0 +1,51 @@
+package com.example.attendancesystem;
+
+import java.io.IOException;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Gzips JSON request bodies, chiefly Base64 photos, which compress back to about the
+ * size of the JPEG. CBOR bodies are left alone: photos go in them as raw JPEG bytes,
+ * which don't compress, and everything else CBOR carries is small.
+ *
+ * The body is compressed into memory first so the request keeps a Content-Length;
+ * the server rejects bodies that expand past its limit.
+ */
+public class GzipRequestInterceptor implements Interceptor {
+    
+    // Smaller bodies fit in a packet or two either way
+    private static final long MIN_COMPRESS_BYTES = 1024;
+    
+    @Override
+    public okhttp3.Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        RequestBody body = request.body();
+        if (body == null || request.header("Content-Encoding") != null || !isJson(body.contentType())
+                || body.contentLength() < MIN_COMPRESS_BYTES) {
+            return chain.proceed(request);
+        }
+        
+        Buffer compressed = new Buffer();
+        BufferedSink sink = Okio.buffer(new GzipSink(compressed));
+        body.writeTo(sink);
+        sink.close();
+        
+        Request compressedRequest = request.newBuilder()
+                .header("Content-Encoding", "gzip")
+                .method(request.method(), RequestBody.create(body.contentType(), compressed.readByteString()))
+                .build();
+        return chain.proceed(compressedRequest);
+    }
+    
+    private static boolean isJson(MediaType contentType) {
+        return contentType != null && "json".equals(contentType.subtype());
+    }
+}
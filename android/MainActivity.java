@@ -10,6 +10,7 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.camera.lifecycle.ProcessCameraProvider;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
@@ -30,6 +31,12 @@ public class MainActivity extends AppCompatActivity {
         btnViewStudents = findViewById(R.id.btn_view_students);
         btnViewAttendanceReports = findViewById(R.id.btn_view_attendance);
         
+        // Start the camera provider and load the class list while the teacher is on
+        // this screen, so the camera screen opens ready to capture. The provider is
+        // a process-wide singleton; CameraActivity picks up the same instance.
+        ProcessCameraProvider.getInstance(getApplicationContext());
+        RosterCache.getInstance().preloadClasses();
+        
         // Set click listeners
         btnTakeAttendance.setOnClickListener(new View.OnClickListener() {
             @Override
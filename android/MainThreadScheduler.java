@@ -0,0 +1,28 @@
+package com.example.attendancesystem;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Runs an {@link AttendanceEventStream}'s listener callbacks and reconnects on the main
+ * thread.
+ */
+public class MainThreadScheduler implements AttendanceEventStream.Scheduler {
+    
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    
+    @Override
+    public void post(Runnable task) {
+        mainHandler.post(task);
+    }
+    
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+        mainHandler.postDelayed(task, delayMs);
+    }
+    
+    @Override
+    public void cancel(Runnable task) {
+        mainHandler.removeCallbacks(task);
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.attendancesystem;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+import okhttp3.Request;
+
+/**
+ * OkHttp listener that feeds DNS, connect, upload and time-to-first-byte timings
+ * into {@link PipelineMetrics}.
+ */
+public class MetricsEventListener extends EventListener {
+    
+    /**
+     * Creates a listener per call while metrics are enabled. Streaming and long-poll
+     * calls are skipped because their time-to-first-byte is server hold time, not latency.
+     */
+    public static final EventListener.Factory FACTORY = new EventListener.Factory() {
+        @Override
+        public EventListener create(Call call) {
+            if (!PipelineMetrics.isEnabled()) {
+                return EventListener.NONE;
+            }
+            String path = call.request().url().encodedPath();
+            if (path.startsWith("/api/events")
+                    || ("GET".equals(call.request().method()) && path.startsWith("/api/attendance_jobs/"))) {
+                return EventListener.NONE;
+            }
+            return new MetricsEventListener();
+        }
+    };
+    
+    private long dnsStart;
+    private long connectStart;
+    private long requestStart;
+    private long requestEnd;
+    
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        dnsStart = PipelineMetrics.start();
+    }
+    
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        PipelineMetrics.stop(PipelineMetrics.Stage.DNS, dnsStart);
+    }
+    
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        connectStart = PipelineMetrics.start();
+    }
+    
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        PipelineMetrics.stop(PipelineMetrics.Stage.CONNECT, connectStart);
+    }
+    
+    @Override
+    public void requestHeadersStart(Call call) {
+        requestStart = PipelineMetrics.start();
+        requestEnd = 0L;
+    }
+    
+    @Override
+    public void requestHeadersEnd(Call call, Request request) {
+        // Body-less requests (GET) are fully sent once the headers are
+        requestEnd = PipelineMetrics.start();
+    }
+    
+    @Override
+    public void requestBodyEnd(Call call, long byteCount) {
+        PipelineMetrics.stop(PipelineMetrics.Stage.UPLOAD, requestStart);
+        PipelineMetrics.add(PipelineMetrics.Counter.REQUEST_BYTES, byteCount);
+        requestEnd = PipelineMetrics.start();
+    }
+    
+    @Override
+    public void responseHeadersStart(Call call) {
+        PipelineMetrics.stop(PipelineMetrics.Stage.TTFB, requestEnd);
+    }
+    
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        PipelineMetrics.add(PipelineMetrics.Counter.RESPONSE_BYTES, byteCount);
+    }
+}
@@ -0,0 +1,356 @@
+package com.example.attendancesystem;
+
+import android.content.Context;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Classroom photos waiting to be uploaded, kept on disk until the server has them.
+ *
+ * Takes are grouped into one upload per class and date, so every photo the teacher takes
+ * of a class joins the same attendance session however many uploads it takes to send
+ * them. Each upload is a directory holding an {@code upload.json} with the session state
+ * and, per take, the JPEG (or the MP4 of a clip) and a JSON file with its face boxes.
+ * Files are written to a temporary name and renamed, so a crash leaves either the old or
+ * the new version.
+ *
+ * {@link CameraActivity} adds takes and {@link AttendanceUploadWorker} drains them; all
+ * methods may be called from any thread.
+ */
+public class PendingTakeStore {
+    
+    static final class Upload {
+        @SerializedName("class_id")
+        String classId;
+        @SerializedName("class_name")
+        String className;
+        String date;
+        // Session the takes join once one is open; null until then
+        @SerializedName("session_id")
+        String sessionId;
+        // The teacher tapped Done; close the session once every take is uploaded
+        @SerializedName("close_requested")
+        boolean closeRequested;
+        // Takes uploaded so far, across every run of the worker
+        @SerializedName("uploaded_count")
+        int uploadedCount;
+        
+        transient File directory;
+    }
+    
+    static final class Take {
+        @SerializedName("face_locations")
+        List<List<Integer>> faceLocations;
+        @SerializedName("camera_id")
+        String cameraId;
+        @SerializedName("taken_at")
+        long takenAt;
+        // Recognition job the photo was submitted as, so a retry polls it instead of
+        // uploading the photo again
+        @SerializedName("job_id")
+        String jobId;
+        // Sent with the upload, so a retry after a timeout gets the job the server
+        // already queued instead of running recognition twice
+        @SerializedName("idempotency_key")
+        String idempotencyKey;
+        // A short video clip rather than a photo; the server finds its faces itself
+        boolean clip;
+        
+        transient String name;
+        transient File photo;
+    }
+    
+    private static final String ROOT_DIR = "pending_takes";
+    private static final String UPLOAD_FILE = "upload.json";
+    private static final String TAKE_PREFIX = "take-";
+    private static final String PHOTO_SUFFIX = ".jpg";
+    private static final String CLIP_SUFFIX = ".mp4";
+    private static final String META_SUFFIX = ".json";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private static PendingTakeStore instance;
+    
+    // The activity and several workers share the files; one lock keeps each
+    // read-modify-write of an upload whole
+    private static final Object lock = new Object();
+    
+    private final File root;
+    private final Gson gson = new Gson();
+    
+    PendingTakeStore(File root) {
+        this.root = root;
+    }
+    
+    public static synchronized PendingTakeStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new PendingTakeStore(new File(context.getApplicationContext().getFilesDir(), ROOT_DIR));
+        }
+        return instance;
+    }
+    
+    /**
+     * Key naming the upload for a class and date; also used as the unique work name.
+     */
+    public static String key(String classId, String date) {
+        return (classId + "_" + date).replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+    
+    /**
+     * Persists a take; once this returns the photo survives the app being killed.
+     */
+    public void addTake(String classId, String className, String date, byte[] jpegBytes,
+                        List<List<Integer>> faceLocations, String cameraId, String idempotencyKey)
+            throws IOException {
+        synchronized (lock) {
+            // A take after Done, before the session is closed, still joins it
+            Upload upload = loadOrCreate(classId, className, date);
+            writeJson(new File(upload.directory, UPLOAD_FILE), upload);
+            
+            long takenAt = System.currentTimeMillis();
+            String name = String.format(Locale.US, "%s%013d-%04d", TAKE_PREFIX, takenAt, upload.directory.list().length);
+            writeBytes(new File(upload.directory, name + PHOTO_SUFFIX), jpegBytes);
+            
+            Take take = new Take();
+            take.faceLocations = faceLocations;
+            take.cameraId = cameraId;
+            take.takenAt = takenAt;
+            take.idempotencyKey = idempotencyKey;
+            writeJson(new File(upload.directory, name + META_SUFFIX), take);
+        }
+    }
+    
+    /**
+     * Persists a recorded clip by moving it into the store; once this returns the clip
+     * survives the app being killed. The file must be on the same volume as the store,
+     * such as the app's cache directory.
+     */
+    public void addClip(String classId, String className, String date, File clipFile, String cameraId,
+                        String idempotencyKey) throws IOException {
+        synchronized (lock) {
+            Upload upload = loadOrCreate(classId, className, date);
+            writeJson(new File(upload.directory, UPLOAD_FILE), upload);
+            
+            long takenAt = System.currentTimeMillis();
+            String name = String.format(Locale.US, "%s%013d-%04d", TAKE_PREFIX, takenAt, upload.directory.list().length);
+            if (!clipFile.renameTo(new File(upload.directory, name + CLIP_SUFFIX))) {
+                throw new IOException("Cannot move " + clipFile);
+            }
+            
+            Take take = new Take();
+            take.cameraId = cameraId;
+            take.takenAt = takenAt;
+            take.idempotencyKey = idempotencyKey;
+            take.clip = true;
+            writeJson(new File(upload.directory, name + META_SUFFIX), take);
+        }
+    }
+    
+    /**
+     * Asks for the class's session to be closed once its pending takes are uploaded.
+     */
+    public void requestClose(String classId, String className, String date) throws IOException {
+        synchronized (lock) {
+            Upload upload = loadOrCreate(classId, className, date);
+            upload.closeRequested = true;
+            writeJson(new File(upload.directory, UPLOAD_FILE), upload);
+        }
+    }
+    
+    /**
+     * Returns the upload for a class and date, or null if nothing is pending for it.
+     */
+    public Upload getUpload(String classId, String date) {
+        synchronized (lock) {
+            File directory = new File(root, key(classId, date));
+            Upload upload = readJson(new File(directory, UPLOAD_FILE), Upload.class);
+            if (upload != null) {
+                upload.directory = directory;
+            }
+            return upload;
+        }
+    }
+    
+    /**
+     * Records the session the upload's takes join; null once it is closed.
+     */
+    public void setSessionId(Upload upload, String sessionId) throws IOException {
+        synchronized (lock) {
+            // Re-read so a Done tapped since the worker loaded the upload is kept
+            Upload current = readJson(new File(upload.directory, UPLOAD_FILE), Upload.class);
+            if (current != null) {
+                upload.closeRequested = current.closeRequested;
+                upload.uploadedCount = current.uploadedCount;
+            }
+            upload.sessionId = sessionId;
+            writeJson(new File(upload.directory, UPLOAD_FILE), upload);
+        }
+    }
+    
+    /**
+     * Removes an uploaded take and counts it towards the upload's total.
+     */
+    public void completeTake(Upload upload, Take take) throws IOException {
+        synchronized (lock) {
+            Upload current = readJson(new File(upload.directory, UPLOAD_FILE), Upload.class);
+            if (current != null) {
+                upload.closeRequested = current.closeRequested;
+                upload.sessionId = current.sessionId;
+            }
+            upload.uploadedCount++;
+            writeJson(new File(upload.directory, UPLOAD_FILE), upload);
+            
+            // Metadata first: a photo without it is ignored until the upload is removed
+            new File(upload.directory, take.name + META_SUFFIX).delete();
+            take.photo.delete();
+        }
+    }
+    
+    /**
+     * Returns the upload's takes, oldest first.
+     */
+    public List<Take> getTakes(Upload upload) {
+        synchronized (lock) {
+            List<Take> takes = new ArrayList<>();
+            String[] names = upload.directory.list();
+            if (names == null) {
+                return takes;
+            }
+            
+            Arrays.sort(names);
+            for (String fileName : names) {
+                if (!fileName.startsWith(TAKE_PREFIX) || !fileName.endsWith(META_SUFFIX)) {
+                    continue;
+                }
+                String name = fileName.substring(0, fileName.length() - META_SUFFIX.length());
+                Take take = readJson(new File(upload.directory, fileName), Take.class);
+                if (take == null) {
+                    continue;
+                }
+                File photo = new File(upload.directory, name + (take.clip ? CLIP_SUFFIX : PHOTO_SUFFIX));
+                if (!photo.isFile()) {
+                    continue;
+                }
+                take.name = name;
+                take.photo = photo;
+                takes.add(take);
+            }
+            return takes;
+        }
+    }
+    
+    public void saveTake(Upload upload, Take take) throws IOException {
+        synchronized (lock) {
+            writeJson(new File(upload.directory, take.name + META_SUFFIX), take);
+        }
+    }
+    
+    /**
+     * Deletes the upload once its session is closed, unless a take arrived meanwhile.
+     *
+     * @return whether the upload was removed
+     */
+    public boolean removeUploadIfIdle(Upload upload) {
+        synchronized (lock) {
+            if (!getTakes(upload).isEmpty()) {
+                return false;
+            }
+            
+            File[] files = upload.directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            upload.directory.delete();
+            return true;
+        }
+    }
+    
+    public int countTakes(String classId, String date) {
+        Upload upload = getUpload(classId, date);
+        return upload == null ? 0 : getTakes(upload).size();
+    }
+    
+    public byte[] readPhoto(Take take) throws IOException {
+        byte[] bytes = new byte[(int) take.photo.length()];
+        FileInputStream in = new FileInputStream(take.photo);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = in.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    throw new IOException("Pending photo truncated: " + take.photo);
+                }
+                offset += read;
+            }
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+    
+    private Upload loadOrCreate(String classId, String className, String date) throws IOException {
+        File directory = new File(root, key(classId, date));
+        Upload upload = readJson(new File(directory, UPLOAD_FILE), Upload.class);
+        if (upload == null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            upload = new Upload();
+            upload.classId = classId;
+            upload.className = className;
+            upload.date = date;
+        }
+        upload.directory = directory;
+        return upload;
+    }
+    
+    private <T> T readJson(File file, Class<T> type) {
+        if (!file.isFile()) {
+            return null;
+        }
+        
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8);
+            try {
+                return gson.fromJson(reader, type);
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            // Renames are atomic, so this is a file damaged some other way; skip it
+            return null;
+        }
+    }
+    
+    private void writeJson(File file, Object value) throws IOException {
+        writeBytes(file, gson.toJson(value).getBytes(UTF_8));
+    }
+    
+    private static void writeBytes(File file, byte[] bytes) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(bytes);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot write " + file);
+        }
+    }
+}
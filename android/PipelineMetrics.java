@@ -0,0 +1,204 @@
+package com.example.attendancesystem;
+
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-stage latency histograms and byte counters for the capture-to-result pipeline,
+ * and the camera screen's startup milestones ({@link StartupTrace}).
+ *
+ * ALLOCATED_BYTES sums the buffers a take allocates on the way to the upload: the
+ * capture copy, the decoded bitmap, the JPEG and its Base64 string. It is counted where
+ * each buffer is made rather than sampled from the heap, so it is exact for those
+ * buffers and misses the small objects around them.
+ *
+ * Disabled until {@link #setEnabled(boolean)}, which the application calls in debug
+ * builds. While disabled {@link #start()} returns 0 and {@link #stop(Stage, long)}
+ * ignores it, so instrumented code pays one volatile read. Plain Java, so the recording
+ * path can be benchmarked on the JVM.
+ */
+public final class PipelineMetrics {
+    
+    public enum Stage {
+        CAPTURE,
+        DECODE,
+        DETECT,
+        JPEG_ENCODE,
+        BASE64,
+        SERIALIZE,
+        DNS,
+        CONNECT,
+        UPLOAD,
+        TTFB,
+        SERVER,
+        RESPONSE_PARSE,
+        TOTAL,
+        CAMERA_PROVIDER,
+        CAMERA_BIND,
+        FIRST_FRAME,
+        CLASSES_READY,
+        CAPTURE_READY
+    }
+    
+    public enum Counter {
+        CAPTURE_BYTES,
+        BITMAP_BYTES,
+        JPEG_BYTES,
+        BASE64_CHARS,
+        ALLOCATED_BYTES,
+        REQUEST_BYTES,
+        RESPONSE_BYTES,
+        PREFETCHES,
+        CACHED_LOADS,
+        NETWORK_LOADS
+    }
+    
+    private static final Stage[] STAGES = Stage.values();
+    private static final Counter[] COUNTERS = Counter.values();
+    
+    private static final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+    private static final AtomicLong[] counters = new AtomicLong[COUNTERS.length];
+    
+    static {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new AtomicLong();
+        }
+    }
+    
+    private static volatile boolean enabled;
+    
+    private PipelineMetrics() {
+    }
+    
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+    
+    /**
+     * Returns a start timestamp to pass to {@link #stop(Stage, long)}, or 0 when disabled.
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+    
+    public static void stop(Stage stage, long startNanos) {
+        if (startNanos != 0L && enabled) {
+            histograms[stage.ordinal()].record(System.nanoTime() - startNanos);
+        }
+    }
+    
+    public static void recordNanos(Stage stage, long nanos) {
+        if (enabled) {
+            histograms[stage.ordinal()].record(nanos);
+        }
+    }
+    
+    public static void add(Counter counter, long amount) {
+        if (enabled) {
+            counters[counter.ordinal()].addAndGet(amount);
+        }
+    }
+    
+    /**
+     * Counts a buffer of {@code bytes} the pipeline allocated towards ALLOCATED_BYTES.
+     */
+    public static void allocated(long bytes) {
+        add(Counter.ALLOCATED_BYTES, bytes);
+    }
+    
+    public static void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (AtomicLong counter : counters) {
+            counter.set(0);
+        }
+    }
+    
+    /**
+     * Returns one line per recorded stage (count, p50, p99, max in ms), for logcat
+     * and the debug overlay.
+     */
+    public static String summary() {
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : STAGES) {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            builder.append(String.format(Locale.US, "%-14s n=%-4d p50=%7.1f p99=%7.1f max=%7.1f ms%n",
+                    stage.name(),
+                    histogram.getCount(),
+                    toMillis(histogram.getValueAtPercentile(50)),
+                    toMillis(histogram.getValueAtPercentile(99)),
+                    toMillis(histogram.getMax())));
+        }
+        for (Counter counter : COUNTERS) {
+            long value = counters[counter.ordinal()].get();
+            if (value != 0) {
+                builder.append(String.format(Locale.US, "%-14s %d%n", counter.name(), value));
+            }
+        }
+        return builder.toString();
+    }
+    
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> stages = new LinkedHashMap<>();
+        for (Stage stage : STAGES) {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("count", histogram.getCount());
+            stats.put("mean_ms", toMillis(histogram.getMean()));
+            stats.put("p50_ms", toMillis(histogram.getValueAtPercentile(50)));
+            stats.put("p90_ms", toMillis(histogram.getValueAtPercentile(90)));
+            stats.put("p99_ms", toMillis(histogram.getValueAtPercentile(99)));
+            stats.put("max_ms", toMillis(histogram.getMax()));
+            stages.put(stage.name().toLowerCase(Locale.US), stats);
+        }
+        
+        Map<String, Object> counterValues = new LinkedHashMap<>();
+        for (Counter counter : COUNTERS) {
+            counterValues.put(counter.name().toLowerCase(Locale.US), counters[counter.ordinal()].get());
+        }
+        
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("timestamp", System.currentTimeMillis());
+        snapshot.put("stages", stages);
+        snapshot.put("counters", counterValues);
+        return snapshot;
+    }
+    
+    public static void writeJson(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+        try {
+            new GsonBuilder().setPrettyPrinting().create().toJson(snapshot(), writer);
+        } finally {
+            writer.close();
+        }
+    }
+    
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
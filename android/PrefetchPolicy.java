@@ -0,0 +1,47 @@
+package com.example.attendancesystem;
+
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When to prefetch for a class session: in the quiet stretch before it starts, rather
+ * than at the bell, when every teacher's app loads the same data at once.
+ *
+ * Kept free of Android classes so the schedule can be replayed on a simulated clock
+ * ({@code loadtest/PrefetchSimulation.java}).
+ */
+public final class PrefetchPolicy {
+    
+    // Prefetching for a session may start this long before it
+    public static final long LEAD_MILLIS = TimeUnit.MINUTES.toMillis(45);
+    // ... and is skipped closer to its start than this, where it would join the rush
+    public static final long QUIET_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    
+    private PrefetchPolicy() {
+    }
+    
+    /**
+     * Returns the session to prefetch for next: the first to start after
+     * {@code afterMillis} that is still far enough off, or null if no class has a
+     * timetable.
+     */
+    public static Timetable.Session target(List<ClassInfo> classes, long nowMillis, long afterMillis, TimeZone zone) {
+        return Timetable.nextSession(classes, Math.max(afterMillis, nowMillis + QUIET_MILLIS), zone);
+    }
+    
+    /**
+     * Returns how long to wait before prefetching for the session.
+     */
+    public static long delayMillis(Timetable.Session session, long nowMillis) {
+        return Math.max(0, session.getStartMillis() - LEAD_MILLIS - nowMillis);
+    }
+    
+    /**
+     * Returns whether a prefetch for the session may run now.
+     */
+    public static boolean isDue(Timetable.Session session, long nowMillis) {
+        long untilStart = session.getStartMillis() - nowMillis;
+        return untilStart >= QUIET_MILLIS && untilStart <= LEAD_MILLIS;
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.attendancesystem;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import retrofit2.Response;
+
+/**
+ * Loads what the next class session needs into the HTTP disk cache before it starts:
+ * the class list, the roster and the day's attendance report. At the bell the app then
+ * revalidates them with a 304 instead of downloading them while the whole school is
+ * online.
+ *
+ * Runs on an unmetered network with the battery not low, in the window
+ * {@link PrefetchPolicy} sets before the session, and schedules the prefetch for the
+ * session after it. Recognition runs on the server, so there are no face encodings to
+ * fetch, and the app doesn't show student photos.
+ */
+public class PrefetchWorker extends Worker {
+    
+    private static final String TAG = "PrefetchWorker";
+    private static final String WORK_NAME = "session-prefetch";
+    private static final String KEY_SESSION_START = "session_start";
+    
+    private final ApiService apiService;
+    
+    public PrefetchWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        this(context, params, RetrofitClient.getApiService());
+    }
+    
+    PrefetchWorker(Context context, WorkerParameters params, ApiService apiService) {
+        super(context, params);
+        this.apiService = apiService;
+    }
+    
+    /**
+     * Schedules the prefetch for the next session of the classes, unless one is
+     * already scheduled.
+     */
+    public static void schedule(Context context, List<ClassInfo> classes) {
+        enqueue(context, classes, 0, ExistingWorkPolicy.KEEP);
+    }
+    
+    /**
+     * Counts a load as served from the disk cache, fresh or after a 304, or from the
+     * network, for the prefetch hit rate in {@link PipelineMetrics}.
+     */
+    public static void recordLoad(Response<?> response) {
+        boolean cached = response.raw().cacheResponse() != null;
+        PipelineMetrics.add(cached ? PipelineMetrics.Counter.CACHED_LOADS : PipelineMetrics.Counter.NETWORK_LOADS, 1);
+    }
+    
+    private static void enqueue(Context context, List<ClassInfo> classes, long afterMillis, ExistingWorkPolicy policy) {
+        long now = System.currentTimeMillis();
+        Timetable.Session session = PrefetchPolicy.target(classes, now, afterMillis, TimeZone.getDefault());
+        if (session == null) {
+            return;
+        }
+        
+        Data input = new Data.Builder()
+                .putLong(KEY_SESSION_START, session.getStartMillis())
+                .build();
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.UNMETERED)
+                .setRequiresBatteryNotLow(true)
+                .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(PrefetchWorker.class)
+                .setInputData(input)
+                .setConstraints(constraints)
+                .setInitialDelay(PrefetchPolicy.delayMillis(session, now), TimeUnit.MILLISECONDS)
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, policy, request);
+    }
+    
+    @NonNull
+    @Override
+    public Result doWork() {
+        long now = System.currentTimeMillis();
+        long sessionStart = getInputData().getLong(KEY_SESSION_START, 0);
+        
+        if (sessionStart - now < PrefetchPolicy.QUIET_MILLIS) {
+            // No unmetered network until the rush; skip this session rather than join it
+            Log.i(TAG, "Skipped prefetch for the session at " + new Date(sessionStart));
+            List<ClassInfo> cached = RosterCache.getInstance().peekClasses();
+            if (cached != null) {
+                reschedule(cached, sessionStart);
+            }
+            return Result.success();
+        }
+        
+        try {
+            List<ClassInfo> classes = fetchClasses();
+            if (classes == null) {
+                return Result.success();
+            }
+            
+            // The timetable may have changed since this run was scheduled
+            Timetable.Session session = PrefetchPolicy.target(classes, now, sessionStart - 1, TimeZone.getDefault());
+            if (session == null) {
+                return Result.success();
+            }
+            if (!PrefetchPolicy.isDue(session, now)) {
+                reschedule(classes, now);
+                return Result.success();
+            }
+            
+            apiService.getStudents().execute();
+            String date = new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date(session.getStartMillis()));
+            apiService.getAttendanceReport(null, session.getClassInfo().getId(), date).execute();
+            PipelineMetrics.add(PipelineMetrics.Counter.PREFETCHES, 1);
+            Log.i(TAG, "Prefetched " + session.getClassInfo().getName() + " for " + new Date(session.getStartMillis()));
+            
+            reschedule(classes, session.getStartMillis());
+            return Result.success();
+        } catch (IOException e) {
+            Log.w(TAG, "Prefetch interrupted: " + e.getMessage());
+            return Result.retry();
+        }
+    }
+    
+    /**
+     * Queues the next prefetch behind this run, which is still the unique work's
+     * current one.
+     */
+    private void reschedule(List<ClassInfo> classes, long afterMillis) {
+        enqueue(getApplicationContext(), classes, afterMillis, ExistingWorkPolicy.APPEND_OR_REPLACE);
+    }
+    
+    private List<ClassInfo> fetchClasses() throws IOException {
+        Response<Map<String, Object>> response = apiService.getClasses().execute();
+        if (!response.isSuccessful() || response.body() == null || !(boolean) response.body().get("success")) {
+            return null;
+        }
+        
+        List<ClassInfo> classes = new ArrayList<>();
+        for (Map<String, Object> classData : (List<Map<String, Object>>) response.body().get("classes")) {
+            classes.add(ClassInfo.fromMap(classData));
+        }
+        return classes;
+    }
+}
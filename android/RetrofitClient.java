@@ -1,34 +1,107 @@
 package com.example.attendancesystem;
 
+import android.content.Context;
+import android.util.Base64;
+
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
+import okhttp3.Cache;
+import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
+import okhttp3.Request;
 import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
 
 public class RetrofitClient {
     
     private static final String BASE_URL = "http://10.0.2.2:5000/"; // Use 10.0.2.2 for Android emulator to connect to localhost
+    // Exchange CBOR instead of JSON. Responses fall back to JSON by Content-Type, but
+    // CBOR request bodies need a server that reads them
+    private static final boolean COMPACT_WIRE_FORMAT = true;
+    private static final String ACCEPT = "application/cbor, application/json;q=0.9";
+    // School this app belongs to; the shard router sends its requests to the node holding it
+    private static final String SCHOOL_ID = "default";
+    // On-disk HTTP cache for attendance reports; past days' reports are reused without
+    // a request, and the rest are revalidated with their ETag
+    private static final String HTTP_CACHE_DIR = "http";
+    private static final long HTTP_CACHE_BYTES = 10L * 1024 * 1024;
+    private static File cacheDir = null;
+    private static OkHttpClient okHttpClient = null;
     private static Retrofit retrofit = null;
     
-    public static Retrofit getClient() {
-        if (retrofit == null) {
+    /**
+     * Gives the client a disk cache under the app's cache directory. Call it before the
+     * first request; a client built without it doesn't cache.
+     */
+    public static synchronized void init(Context context) {
+        cacheDir = new File(context.getApplicationContext().getCacheDir(), HTTP_CACHE_DIR);
+    }
+    
+    public static synchronized OkHttpClient getHttpClient() {
+        if (okHttpClient == null) {
             // Create OkHttpClient with increased timeout
-            OkHttpClient okHttpClient = new OkHttpClient.Builder()
+            OkHttpClient.Builder builder = new OkHttpClient.Builder()
                     .connectTimeout(60, TimeUnit.SECONDS)
                     .readTimeout(60, TimeUnit.SECONDS)
                     .writeTimeout(60, TimeUnit.SECONDS)
-                    .build();
-            
+                    .eventListenerFactory(MetricsEventListener.FACTORY)
+                    .addInterceptor(new Interceptor() {
+                        @Override
+                        public okhttp3.Response intercept(Chain chain) throws IOException {
+                            Request request = chain.request();
+                            Request.Builder builder = request.newBuilder().header("X-School-ID", SCHOOL_ID);
+                            if (COMPACT_WIRE_FORMAT && request.header("Accept") == null) {
+                                builder.header("Accept", ACCEPT);
+                            }
+                            return chain.proceed(builder.build());
+                        }
+                    })
+                    .addInterceptor(new RetryAfterInterceptor())
+                    .addInterceptor(new GzipRequestInterceptor());
+            if (cacheDir != null) {
+                builder.cache(new Cache(cacheDir, HTTP_CACHE_BYTES));
+            }
+            okHttpClient = builder.build();
+        }
+        return okHttpClient;
+    }
+    
+    public static String getBaseUrl() {
+        return BASE_URL;
+    }
+    
+    public static synchronized Retrofit getClient() {
+        if (retrofit == null) {
             retrofit = new Retrofit.Builder()
                     .baseUrl(BASE_URL)
-                    .client(okHttpClient)
-                    .addConverterFactory(GsonConverterFactory.create())
+                    .client(getHttpClient())
+                    .addConverterFactory(new TimingConverterFactory(
+                            CborConverterFactory.create(GsonConverterFactory.create(), COMPACT_WIRE_FORMAT)))
                     .build();
         }
         return retrofit;
     }
     
+    /**
+     * Returns a photo as the request field the wire format carries it in: raw bytes in
+     * CBOR, Base64 text in JSON.
+     */
+    public static Object encodePhoto(byte[] jpegBytes) {
+        if (COMPACT_WIRE_FORMAT) {
+            return jpegBytes;
+        }
+        
+        long start = PipelineMetrics.start();
+        String base64Image = Base64.encodeToString(jpegBytes, Base64.DEFAULT);
+        PipelineMetrics.stop(PipelineMetrics.Stage.BASE64, start);
+        PipelineMetrics.add(PipelineMetrics.Counter.BASE64_CHARS, base64Image.length());
+        // Two bytes per char in a Java string
+        PipelineMetrics.allocated(2L * base64Image.length());
+        return base64Image;
+    }
+    
     public static ApiService getApiService() {
         return getClient().create(ApiService.class);
     }
@@ -0,0 +1,70 @@
+package com.example.attendancesystem;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+
+/**
+ * Retries requests the server shed under load (503 or 429). A shed request was never
+ * processed, so it is safe to send again, but only after the Retry-After the server
+ * asked for plus a random share of an exponential backoff: clients turned away in
+ * the same moment then come back spread out instead of all at once.
+ *
+ * Waits longer than {@link #MAX_WAIT_MILLIS} are left to the caller, which gets the
+ * 503; the upload worker hands those to WorkManager's own backoff.
+ */
+public class RetryAfterInterceptor implements Interceptor {
+    
+    private static final int MAX_RETRIES = 3;
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_WAIT_MILLIS = 15000;
+    
+    @Override
+    public okhttp3.Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        okhttp3.Response response = chain.proceed(request);
+        
+        for (int attempt = 0; attempt < MAX_RETRIES && isShed(response); attempt++) {
+            if (request.body() != null && request.body().isOneShot()) {
+                break;
+            }
+            long waitMillis = backoffMillis(response.header("Retry-After"), attempt);
+            if (waitMillis > MAX_WAIT_MILLIS) {
+                break;
+            }
+            
+            response.close();
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while backing off");
+            }
+            response = chain.proceed(request);
+        }
+        return response;
+    }
+    
+    private static boolean isShed(okhttp3.Response response) {
+        return response.code() == 503 || response.code() == 429;
+    }
+    
+    /**
+     * The server's Retry-After, in seconds, plus full jitter over a backoff that doubles
+     * with each attempt.
+     */
+    static long backoffMillis(String retryAfter, int attempt) {
+        long floorMillis = 0;
+        if (retryAfter != null) {
+            try {
+                floorMillis = Math.max(0, Long.parseLong(retryAfter.trim())) * 1000;
+            } catch (NumberFormatException e) {
+                // An HTTP date; the backoff alone will do
+            }
+        }
+        return floorMillis + ThreadLocalRandom.current().nextLong((BASE_BACKOFF_MILLIS << attempt) + 1);
+    }
+}
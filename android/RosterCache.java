@@ -0,0 +1,375 @@
+package com.example.attendancesystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * Process-wide cache of the class list and student roster.
+ *
+ * Each snapshot is an unmodifiable, id-indexed map that is replaced wholesale on reload,
+ * so readers never see a partially built roster. Concurrent loads are coalesced onto a
+ * single request. Mutating calls ({@code addStudent}, {@code deleteStudent},
+ * {@code addClass}) must be followed by the matching {@code invalidate*} method, which
+ * drops the snapshot and notifies registered listeners so open screens can reload.
+ * The class list is first served from the HTTP disk cache, so screens open without
+ * waiting for the network; listeners are notified if the server's copy differs.
+ */
+public class RosterCache {
+    
+    public interface LoadCallback<T> {
+        void onLoaded(T data);
+        
+        void onError(String message);
+    }
+    
+    public interface Listener {
+        void onClassesChanged();
+        
+        void onStudentsChanged();
+    }
+    
+    private static RosterCache instance;
+    
+    private final ApiService apiService;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    
+    private Map<String, ClassInfo> classesById;
+    private List<ClassInfo> classList;
+    private List<LoadCallback<List<ClassInfo>>> pendingClassCallbacks;
+    private int classGeneration;
+    
+    private Map<String, Student> studentsById;
+    private List<Student> studentList;
+    private List<LoadCallback<List<Student>>> pendingStudentCallbacks;
+    private int studentGeneration;
+    
+    RosterCache(ApiService apiService) {
+        this.apiService = apiService;
+    }
+    
+    public static synchronized RosterCache getInstance() {
+        if (instance == null) {
+            instance = new RosterCache(RetrofitClient.getApiService());
+        }
+        return instance;
+    }
+    
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Returns the cached class for {@code classId}, or null if it is unknown or the
+     * class list has not been loaded yet.
+     */
+    public synchronized ClassInfo findClass(String classId) {
+        return classesById == null || classId == null ? null : classesById.get(classId);
+    }
+    
+    /**
+     * Returns the cached student for {@code studentId}, or null if it is unknown or the
+     * roster has not been loaded yet.
+     */
+    public synchronized Student findStudent(String studentId) {
+        return studentsById == null || studentId == null ? null : studentsById.get(studentId);
+    }
+    
+    /**
+     * Returns the cached class list, or null if it has not been loaded yet.
+     */
+    public synchronized List<ClassInfo> peekClasses() {
+        return classList;
+    }
+    
+    /**
+     * Returns the cached student list, or null if it has not been loaded yet.
+     */
+    public synchronized List<Student> peekStudents() {
+        return studentList;
+    }
+    
+    public void getClasses(LoadCallback<List<ClassInfo>> callback) {
+        List<ClassInfo> cached;
+        final int generation;
+        synchronized (this) {
+            generation = classGeneration;
+            cached = classList;
+            if (cached == null) {
+                if (pendingClassCallbacks != null) {
+                    // A request is already in flight; piggyback on it
+                    pendingClassCallbacks.add(callback);
+                    return;
+                }
+                pendingClassCallbacks = new ArrayList<>();
+                pendingClassCallbacks.add(callback);
+            }
+        }
+        
+        if (cached != null) {
+            callback.onLoaded(cached);
+            return;
+        }
+        
+        // Answer at once from the HTTP disk cache if it has the list, however stale,
+        // and refresh it from the server behind
+        apiService.getCachedClasses().enqueue(new Callback<Map<String, Object>>() {
+            @Override
+            public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
+                Map<String, ClassInfo> byId = parseClasses(response);
+                if (byId != null) {
+                    publishClasses(generation, byId);
+                }
+                fetchClasses(generation, byId != null);
+            }
+            
+            @Override
+            public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+                fetchClasses(generation, false);
+            }
+        });
+    }
+    
+    /**
+     * Preloads the class list, e.g. while the main screen is shown, so the camera
+     * screen finds it cached.
+     */
+    public void preloadClasses() {
+        getClasses(new LoadCallback<List<ClassInfo>>() {
+            @Override
+            public void onLoaded(List<ClassInfo> data) {
+            }
+            
+            @Override
+            public void onError(String message) {
+            }
+        });
+    }
+    
+    /**
+     * Loads the class list from the server. With {@code refresh}, callbacks already
+     * have a cached copy; a changed list replaces it and listeners are notified, and
+     * a failure keeps it.
+     */
+    private void fetchClasses(final int generation, final boolean refresh) {
+        apiService.getClasses().enqueue(new Callback<Map<String, Object>>() {
+            @Override
+            public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
+                PrefetchWorker.recordLoad(response);
+                Map<String, ClassInfo> byId = parseClasses(response);
+                if (byId == null) {
+                    if (!refresh) {
+                        failClasses(response.body() != null ? (String) response.body().get("error") : response.message());
+                    }
+                } else if (refresh) {
+                    refreshClasses(generation, byId);
+                } else {
+                    publishClasses(generation, byId);
+                }
+            }
+            
+            @Override
+            public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+                if (!refresh) {
+                    failClasses(t.getMessage());
+                }
+            }
+        });
+    }
+    
+    private void publishClasses(int generation, Map<String, ClassInfo> byId) {
+        List<LoadCallback<List<ClassInfo>>> callbacks;
+        List<ClassInfo> loaded;
+        synchronized (this) {
+            loaded = Collections.unmodifiableList(new ArrayList<>(byId.values()));
+            // Don't resurrect a snapshot that was invalidated while in flight
+            if (generation == classGeneration) {
+                classesById = Collections.unmodifiableMap(byId);
+                classList = loaded;
+            }
+            callbacks = takePendingClassCallbacks();
+        }
+        for (LoadCallback<List<ClassInfo>> pending : callbacks) {
+            pending.onLoaded(loaded);
+        }
+    }
+    
+    private void refreshClasses(int generation, Map<String, ClassInfo> byId) {
+        boolean changed;
+        synchronized (this) {
+            List<ClassInfo> loaded = Collections.unmodifiableList(new ArrayList<>(byId.values()));
+            // An invalidation since has notified listeners already
+            changed = generation == classGeneration && !loaded.equals(classList);
+            if (changed) {
+                classesById = Collections.unmodifiableMap(byId);
+                classList = loaded;
+            }
+        }
+        if (changed) {
+            for (Listener listener : listeners) {
+                listener.onClassesChanged();
+            }
+        }
+    }
+    
+    /**
+     * Returns the classes in a response by id, or null if it has none.
+     */
+    private static Map<String, ClassInfo> parseClasses(Response<Map<String, Object>> response) {
+        Map<String, Object> responseData = response.body();
+        if (!response.isSuccessful() || responseData == null || !(boolean) responseData.get("success")) {
+            return null;
+        }
+        
+        List<Map<String, Object>> classesData = (List<Map<String, Object>>) responseData.get("classes");
+        Map<String, ClassInfo> byId = new LinkedHashMap<>(capacityFor(classesData.size()));
+        for (Map<String, Object> classData : classesData) {
+            ClassInfo classInfo = ClassInfo.fromMap(classData);
+            byId.put(classInfo.getId(), classInfo);
+        }
+        return byId;
+    }
+    
+    public void getStudents(LoadCallback<List<Student>> callback) {
+        List<Student> cached;
+        final int generation;
+        synchronized (this) {
+            generation = studentGeneration;
+            cached = studentList;
+            if (cached == null) {
+                if (pendingStudentCallbacks != null) {
+                    // A request is already in flight; piggyback on it
+                    pendingStudentCallbacks.add(callback);
+                    return;
+                }
+                pendingStudentCallbacks = new ArrayList<>();
+                pendingStudentCallbacks.add(callback);
+            }
+        }
+        
+        if (cached != null) {
+            callback.onLoaded(cached);
+            return;
+        }
+        
+        apiService.getStudents().enqueue(new Callback<Map<String, Object>>() {
+            @Override
+            public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
+                PrefetchWorker.recordLoad(response);
+                if (response.isSuccessful() && response.body() != null) {
+                    Map<String, Object> responseData = response.body();
+                    boolean success = (boolean) responseData.get("success");
+                    
+                    if (success) {
+                        List<Map<String, Object>> studentsData = (List<Map<String, Object>>) responseData.get("students");
+                        Map<String, Student> byId = new LinkedHashMap<>(capacityFor(studentsData.size()));
+                        for (Map<String, Object> studentData : studentsData) {
+                            Student student = Student.fromMap(studentData);
+                            byId.put(student.getStudentId(), student);
+                        }
+                        
+                        List<LoadCallback<List<Student>>> callbacks;
+                        List<Student> loaded;
+                        synchronized (RosterCache.this) {
+                            loaded = Collections.unmodifiableList(new ArrayList<>(byId.values()));
+                            // Don't resurrect a snapshot that was invalidated while in flight
+                            if (generation == studentGeneration) {
+                                studentsById = Collections.unmodifiableMap(byId);
+                                studentList = loaded;
+                            }
+                            callbacks = takePendingStudentCallbacks();
+                        }
+                        for (LoadCallback<List<Student>> pending : callbacks) {
+                            pending.onLoaded(loaded);
+                        }
+                    } else {
+                        failStudents((String) responseData.get("error"));
+                    }
+                } else {
+                    failStudents(response.message());
+                }
+            }
+            
+            @Override
+            public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+                failStudents(t.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Drops the cached class list (e.g. after {@code addClass}) and notifies listeners.
+     */
+    public void invalidateClasses() {
+        synchronized (this) {
+            classesById = null;
+            classList = null;
+            classGeneration++;
+        }
+        for (Listener listener : listeners) {
+            listener.onClassesChanged();
+        }
+    }
+    
+    /**
+     * Drops the cached roster (e.g. after {@code addStudent} or {@code deleteStudent})
+     * and notifies listeners.
+     */
+    public void invalidateStudents() {
+        synchronized (this) {
+            studentsById = null;
+            studentList = null;
+            studentGeneration++;
+        }
+        for (Listener listener : listeners) {
+            listener.onStudentsChanged();
+        }
+    }
+    
+    private void failClasses(String message) {
+        List<LoadCallback<List<ClassInfo>>> callbacks;
+        synchronized (this) {
+            callbacks = takePendingClassCallbacks();
+        }
+        for (LoadCallback<List<ClassInfo>> pending : callbacks) {
+            pending.onError(message);
+        }
+    }
+    
+    private void failStudents(String message) {
+        List<LoadCallback<List<Student>>> callbacks;
+        synchronized (this) {
+            callbacks = takePendingStudentCallbacks();
+        }
+        for (LoadCallback<List<Student>> pending : callbacks) {
+            pending.onError(message);
+        }
+    }
+    
+    private List<LoadCallback<List<ClassInfo>>> takePendingClassCallbacks() {
+        List<LoadCallback<List<ClassInfo>>> callbacks = pendingClassCallbacks;
+        pendingClassCallbacks = null;
+        return callbacks != null ? callbacks : Collections.<LoadCallback<List<ClassInfo>>>emptyList();
+    }
+    
+    private List<LoadCallback<List<Student>>> takePendingStudentCallbacks() {
+        List<LoadCallback<List<Student>>> callbacks = pendingStudentCallbacks;
+        pendingStudentCallbacks = null;
+        return callbacks != null ? callbacks : Collections.<LoadCallback<List<Student>>>emptyList();
+    }
+    
+    private static int capacityFor(int size) {
+        return Math.max(16, (int) (size / 0.75f) + 1);
+    }
+}
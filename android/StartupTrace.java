@@ -0,0 +1,71 @@
+package com.example.attendancesystem;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Startup milestones of one opening of the camera screen, timed from its
+ * {@code onCreate}. Capture is ready once the camera is bound and the class list is
+ * shown, whichever comes last.
+ *
+ * Each milestone is recorded once, in {@link PipelineMetrics} and as a logcat line
+ * whether or not metrics are enabled, which
+ * {@code benchmarks/camera_startup_benchmark.py} reads. Used from the main thread.
+ */
+final class StartupTrace {
+    
+    enum Milestone {
+        CAMERA_PROVIDER(PipelineMetrics.Stage.CAMERA_PROVIDER),
+        CAMERA_BOUND(PipelineMetrics.Stage.CAMERA_BIND),
+        FIRST_FRAME(PipelineMetrics.Stage.FIRST_FRAME),
+        CLASSES(PipelineMetrics.Stage.CLASSES_READY),
+        CAPTURE_READY(PipelineMetrics.Stage.CAPTURE_READY);
+        
+        final PipelineMetrics.Stage stage;
+        
+        Milestone(PipelineMetrics.Stage stage) {
+            this.stage = stage;
+        }
+    }
+    
+    private static final String TAG = "StartupTrace";
+    
+    private final long startNanos = System.nanoTime();
+    // Nanoseconds from the start to each milestone, -1 until it is reached
+    private final long[] elapsed = new long[Milestone.values().length];
+    
+    StartupTrace() {
+        Arrays.fill(elapsed, -1);
+    }
+    
+    /**
+     * Records a milestone the first time it is reached. Returns true if that made
+     * capture ready.
+     */
+    boolean mark(Milestone milestone) {
+        if (!record(milestone)) {
+            return false;
+        }
+        if (reached(Milestone.CAMERA_BOUND) && reached(Milestone.CLASSES)) {
+            return record(Milestone.CAPTURE_READY);
+        }
+        return false;
+    }
+    
+    boolean reached(Milestone milestone) {
+        return elapsed[milestone.ordinal()] >= 0;
+    }
+    
+    private boolean record(Milestone milestone) {
+        if (reached(milestone)) {
+            return false;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        elapsed[milestone.ordinal()] = nanos;
+        PipelineMetrics.recordNanos(milestone.stage, nanos);
+        Log.i(TAG, String.format(Locale.US, "%s %.1f ms", milestone.name().toLowerCase(Locale.US), nanos / 1e6));
+        return true;
+    }
+}
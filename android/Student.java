@@ -0,0 +1,51 @@
+package com.example.attendancesystem;
+
+import java.util.Map;
+
+/**
+ * Immutable view of a student as returned by {@code api/students}.
+ */
+public final class Student {
+    
+    private final String studentId;
+    private final String name;
+    private final String classId;
+    private final String photoPath;
+    
+    public Student(String studentId, String name, String classId, String photoPath) {
+        this.studentId = studentId;
+        this.name = name;
+        this.classId = classId;
+        this.photoPath = photoPath;
+    }
+    
+    public static Student fromMap(Map<String, Object> studentData) {
+        return new Student(
+                (String) studentData.get("student_id"),
+                (String) studentData.get("name"),
+                (String) studentData.get("class_id"),
+                (String) studentData.get("photo_path")
+        );
+    }
+    
+    public String getStudentId() {
+        return studentId;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public String getClassId() {
+        return classId;
+    }
+    
+    public String getPhotoPath() {
+        return photoPath;
+    }
+    
+    @Override
+    public String toString() {
+        return name;
+    }
+}
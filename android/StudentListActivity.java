@@ -7,7 +7,6 @@ import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.text.InputType;
-import android.util.Base64;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
@@ -44,8 +43,21 @@ public class StudentListActivity extends AppCompatActivity {
     private TextView statusText;
     
     private ApiService apiService;
-    private List<ClassItem> classes = new ArrayList<>();
-    private List<Map<String, Object>> students = new ArrayList<>();
+    private RosterCache rosterCache;
+    private List<ClassInfo> classes = new ArrayList<>();
+    private List<Student> students = new ArrayList<>();
+    
+    private final RosterCache.Listener rosterListener = new RosterCache.Listener() {
+        @Override
+        public void onClassesChanged() {
+            loadClasses();
+        }
+        
+        @Override
+        public void onStudentsChanged() {
+            loadStudents();
+        }
+    };
     
     // New student fields
     private String newStudentName;
@@ -66,6 +78,8 @@ public class StudentListActivity extends AppCompatActivity {
         
         // Initialize API service
         apiService = RetrofitClient.getApiService();
+        rosterCache = RosterCache.getInstance();
+        rosterCache.addListener(rosterListener);
         
         // Set up add student button
         addStudentButton.setOnClickListener(new View.OnClickListener() {
@@ -93,33 +107,22 @@ public class StudentListActivity extends AppCompatActivity {
     private void loadClasses() {
         progressBar.setVisibility(View.VISIBLE);
         
-        apiService.getClasses().enqueue(new Callback<Map<String, Object>>() {
+        rosterCache.getClasses(new RosterCache.LoadCallback<List<ClassInfo>>() {
             @Override
-            public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
-                if (response.isSuccessful() && response.body() != null) {
-                    Map<String, Object> responseData = response.body();
-                    boolean success = (boolean) responseData.get("success");
-                    
-                    if (success) {
-                        classes.clear();
-                        ArrayList<Map<String, Object>> classesData = (ArrayList<Map<String, Object>>) responseData.get("classes");
-                        
-                        for (Map<String, Object> classData : classesData) {
-                            String id = (String) classData.get("id");
-                            String name = (String) classData.get("name");
-                            classes.add(new ClassItem(id, name));
-                        }
-                    }
-                }
-                
-                // Continue with loading students
+            public void onLoaded(List<ClassInfo> data) {
+                classes = data;
                 progressBar.setVisibility(View.GONE);
+                
+                // Class names may have arrived after the students
+                if (!students.isEmpty()) {
+                    displayStudents();
+                }
             }
             
             @Override
-            public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+            public void onError(String message) {
                 progressBar.setVisibility(View.GONE);
-                Toast.makeText(StudentListActivity.this, "Error loading classes: " + t.getMessage(), Toast.LENGTH_SHORT).show();
+                Toast.makeText(StudentListActivity.this, "Error loading classes: " + message, Toast.LENGTH_SHORT).show();
             }
         });
     }
@@ -128,37 +131,25 @@ public class StudentListActivity extends AppCompatActivity {
         progressBar.setVisibility(View.VISIBLE);
         statusText.setText("Loading students...");
         
-        apiService.getStudents().enqueue(new Callback<Map<String, Object>>() {
+        rosterCache.getStudents(new RosterCache.LoadCallback<List<Student>>() {
             @Override
-            public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
+            public void onLoaded(List<Student> data) {
                 progressBar.setVisibility(View.GONE);
+                students = data;
                 
-                if (response.isSuccessful() && response.body() != null) {
-                    Map<String, Object> responseData = response.body();
-                    boolean success = (boolean) responseData.get("success");
-                    
-                    if (success) {
-                        students = (ArrayList<Map<String, Object>>) responseData.get("students");
-                        
-                        if (students.isEmpty()) {
-                            statusText.setText("No students found. Add students using the button below.");
-                        } else {
-                            statusText.setText("");
-                            displayStudents();
-                        }
-                    } else {
-                        String error = (String) responseData.get("error");
-                        statusText.setText("Error: " + error);
-                    }
+                if (students.isEmpty()) {
+                    statusText.setText("No students found. Add students using the button below.");
+                    studentListView.setAdapter(null);
                 } else {
-                    statusText.setText("Error: " + response.message());
+                    statusText.setText("");
+                    displayStudents();
                 }
             }
             
             @Override
-            public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+            public void onError(String message) {
                 progressBar.setVisibility(View.GONE);
-                statusText.setText("Error loading students: " + t.getMessage());
+                statusText.setText("Error loading students: " + message);
             }
         });
     }
@@ -167,23 +158,11 @@ public class StudentListActivity extends AppCompatActivity {
         // Prepare data for the list adapter
         List<Map<String, String>> data = new ArrayList<>();
         
-        for (Map<String, Object> student : students) {
+        for (Student student : students) {
             Map<String, String> item = new HashMap<>();
-            String name = (String) student.get("name");
-            String studentId = (String) student.get("student_id");
-            String classId = (String) student.get("class_id");
             
-            // Find class name
-            String className = "Unknown Class";
-            for (ClassItem classItem : classes) {
-                if (classItem.getId().equals(classId)) {
-                    className = classItem.getName();
-                    break;
-                }
-            }
-            
-            item.put("name", name);
-            item.put("details", "ID: " + studentId + " | Class: " + className);
+            item.put("name", student.getName());
+            item.put("details", "ID: " + student.getStudentId() + " | Class: " + findClassName(student.getClassId()));
             
             data.add(item);
         }
@@ -207,7 +186,7 @@ public class StudentListActivity extends AppCompatActivity {
         }
         
         // Create class spinner adapter
-        ArrayAdapter<ClassItem> classAdapter = new ArrayAdapter<>(
+        ArrayAdapter<ClassInfo> classAdapter = new ArrayAdapter<>(
                 this,
                 android.R.layout.simple_spinner_item,
                 classes
@@ -241,7 +220,7 @@ public class StudentListActivity extends AppCompatActivity {
                 // Save inputs for use after photo capture
                 newStudentName = nameInput.getText().toString().trim();
                 newStudentId = idInput.getText().toString().trim();
-                ClassItem selectedClass = (ClassItem) classSpinner.getSelectedItem();
+                ClassInfo selectedClass = (ClassInfo) classSpinner.getSelectedItem();
                 
                 if (newStudentName.isEmpty() || newStudentId.isEmpty() || selectedClass == null) {
                     Toast.makeText(StudentListActivity.this, "All fields are required", Toast.LENGTH_SHORT).show();
@@ -298,17 +277,16 @@ public class StudentListActivity extends AppCompatActivity {
         progressBar.setVisibility(View.VISIBLE);
         statusText.setText("Adding student...");
         
-        // Convert photo to base64
+        // Encode the photo for the wire format in use
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         newStudentPhoto.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
-        String base64Image = Base64.encodeToString(outputStream.toByteArray(), Base64.DEFAULT);
         
         // Prepare request data
         Map<String, Object> requestData = new HashMap<>();
         requestData.put("name", newStudentName);
         requestData.put("student_id", newStudentId);
         requestData.put("class_id", newStudentClassId);
-        requestData.put("photo", base64Image);
+        requestData.put("photo", RetrofitClient.encodePhoto(outputStream.toByteArray()));
         
         // Send the request
         apiService.addStudent(requestData).enqueue(new Callback<Map<String, Object>>() {
@@ -329,8 +307,8 @@ public class StudentListActivity extends AppCompatActivity {
                         newStudentClassId = null;
                         newStudentPhoto = null;
                         
-                        // Reload students
-                        loadStudents();
+                        // Drop the cached roster; the listener reloads the list
+                        rosterCache.invalidateStudents();
                     } else {
                         String error = (String) responseData.get("error");
                         statusText.setText("Error: " + error);
@@ -350,19 +328,10 @@ public class StudentListActivity extends AppCompatActivity {
     
     private void showStudentDetails(int position) {
         // Get the selected student
-        Map<String, Object> student = students.get(position);
-        String name = (String) student.get("name");
-        String studentId = (String) student.get("student_id");
-        String classId = (String) student.get("class_id");
-        
-        // Find class name
-        String className = "Unknown Class";
-        for (ClassItem classItem : classes) {
-            if (classItem.getId().equals(classId)) {
-                className = classItem.getName();
-                break;
-            }
-        }
+        Student student = students.get(position);
+        String name = student.getName();
+        String studentId = student.getStudentId();
+        String className = findClassName(student.getClassId());
         
         // Build the details message
         StringBuilder details = new StringBuilder();
@@ -431,8 +400,8 @@ public class StudentListActivity extends AppCompatActivity {
                     if (success) {
                         Toast.makeText(StudentListActivity.this, "Student deleted successfully", Toast.LENGTH_SHORT).show();
                         
-                        // Reload students
-                        loadStudents();
+                        // Drop the cached roster; the listener reloads the list
+                        rosterCache.invalidateStudents();
                     } else {
                         String error = (String) responseData.get("error");
                         statusText.setText("Error: " + error);
@@ -450,27 +419,14 @@ public class StudentListActivity extends AppCompatActivity {
         });
     }
     
-    // Class item for spinner
-    private static class ClassItem {
-        private String id;
-        private String name;
-        
-        public ClassItem(String id, String name) {
-            this.id = id;
-            this.name = name;
-        }
-        
-        public String getId() {
-            return id;
-        }
-        
-        public String getName() {
-            return name;
-        }
-        
-        @Override
-        public String toString() {
-            return name;
-        }
+    private String findClassName(String classId) {
+        ClassInfo classInfo = rosterCache.findClass(classId);
+        return classInfo != null ? classInfo.getName() : "Unknown Class";
+    }
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        rosterCache.removeListener(rosterListener);
     }
 }
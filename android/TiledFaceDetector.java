@@ -0,0 +1,161 @@
+package com.example.attendancesystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Runs a face detector over overlapping tiles of a large image in parallel and merges
+ * the results.
+ *
+ * Detectors either need the image downscaled, which loses the small faces at the back
+ * of a classroom, or get slow on a full-resolution photo. Tiles are detected at full
+ * resolution on a fork-join pool instead. Tiles overlap by at least the largest expected
+ * face, so every face lies wholly inside some tile; the same face found in two tiles,
+ * or cut off at a tile border, is then removed by non-maximum suppression.
+ *
+ * @param <I> the image type the detector reads
+ */
+public final class TiledFaceDetector<I> {
+    
+    /**
+     * Detects faces within one region of an image.
+     */
+    public interface RegionDetector<I> {
+        /**
+         * @return faces found in the region, in full-image coordinates
+         */
+        List<FaceBox> detect(I image, int left, int top, int width, int height);
+    }
+    
+    // A box more than half covered by a more confident one is the same face
+    static final float DEFAULT_OVERLAP_THRESHOLD = 0.5f;
+    
+    private static final Comparator<FaceBox> BY_CONFIDENCE = new Comparator<FaceBox>() {
+        @Override
+        public int compare(FaceBox a, FaceBox b) {
+            return Float.compare(b.getConfidence(), a.getConfidence());
+        }
+    };
+    
+    private final RegionDetector<I> detector;
+    private final int tileSize;
+    private final int overlap;
+    private final ForkJoinPool pool;
+    
+    /**
+     * @param tileSize edge length of the square tiles, in pixels
+     * @param overlap pixels shared by neighbouring tiles; at least the largest face size
+     */
+    public TiledFaceDetector(RegionDetector<I> detector, int tileSize, int overlap, ForkJoinPool pool) {
+        if (overlap < 0 || overlap >= tileSize) {
+            throw new IllegalArgumentException("Overlap must be in [0, tileSize)");
+        }
+        this.detector = detector;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.pool = pool;
+    }
+    
+    public List<FaceBox> detect(I image, int width, int height) {
+        List<int[]> tiles = tiles(width, height, tileSize, overlap);
+        if (tiles.size() == 1) {
+            return suppress(detector.detect(image, 0, 0, width, height), DEFAULT_OVERLAP_THRESHOLD);
+        }
+        List<FaceBox> detections = pool.invoke(new TileTask(image, tiles, 0, tiles.size()));
+        return suppress(detections, DEFAULT_OVERLAP_THRESHOLD);
+    }
+    
+    /**
+     * Splits an image into tiles of {@code tileSize} overlapping by at least {@code overlap};
+     * the last tile on each axis is shifted back to end at the image border.
+     *
+     * @return {left, top, width, height} of each tile
+     */
+    static List<int[]> tiles(int width, int height, int tileSize, int overlap) {
+        List<int[]> tiles = new ArrayList<>();
+        for (int top : offsets(height, tileSize, overlap)) {
+            for (int left : offsets(width, tileSize, overlap)) {
+                tiles.add(new int[]{left, top, Math.min(tileSize, width - left), Math.min(tileSize, height - top)});
+            }
+        }
+        return tiles;
+    }
+    
+    private static List<Integer> offsets(int length, int tileSize, int overlap) {
+        List<Integer> offsets = new ArrayList<>();
+        if (length <= tileSize) {
+            offsets.add(0);
+            return offsets;
+        }
+        int step = tileSize - overlap;
+        int offset = 0;
+        while (offset + tileSize < length) {
+            offsets.add(offset);
+            offset += step;
+        }
+        offsets.add(length - tileSize);
+        return offsets;
+    }
+    
+    /**
+     * Greedy non-maximum suppression: keeps the most confident box and drops any box
+     * whose overlap with a kept one, relative to the smaller of the two, exceeds the
+     * threshold. Measuring against the smaller box (rather than IoU) also removes the
+     * partial detection of a face that was cut off at a tile border.
+     */
+    static List<FaceBox> suppress(List<FaceBox> boxes, float threshold) {
+        List<FaceBox> sorted = new ArrayList<>(boxes);
+        Collections.sort(sorted, BY_CONFIDENCE);
+        
+        List<FaceBox> kept = new ArrayList<>();
+        for (FaceBox box : sorted) {
+            boolean duplicate = false;
+            for (FaceBox keptBox : kept) {
+                long smaller = Math.min(box.area(), keptBox.area());
+                if (smaller == 0 || box.intersectionArea(keptBox) > threshold * smaller) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                kept.add(box);
+            }
+        }
+        return kept;
+    }
+    
+    private final class TileTask extends RecursiveTask<List<FaceBox>> {
+        private static final long serialVersionUID = 1L;
+        
+        private final I image;
+        private final List<int[]> tiles;
+        private final int from;
+        private final int to;
+        
+        TileTask(I image, List<int[]> tiles, int from, int to) {
+            this.image = image;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected List<FaceBox> compute() {
+            if (to - from == 1) {
+                int[] tile = tiles.get(from);
+                return detector.detect(image, tile[0], tile[1], tile[2], tile[3]);
+            }
+            
+            int middle = (from + to) >>> 1;
+            TileTask second = new TileTask(image, tiles, middle, to);
+            second.fork();
+            List<FaceBox> detections = new ArrayList<>(new TileTask(image, tiles, from, middle).compute());
+            detections.addAll(second.join());
+            return detections;
+        }
+    }
+}
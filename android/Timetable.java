@@ -0,0 +1,182 @@
+package com.example.attendancesystem;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Immutable weekly timetable of a class as returned by {@code api/classes}: sessions by
+ * ISO day of week (1 = Monday) with start and end times in the school's local time.
+ */
+public final class Timetable {
+    
+    public static final Timetable EMPTY = new Timetable(new int[0], new int[0], new int[0]);
+    
+    /**
+     * One occurrence of a class's session.
+     */
+    public static final class Session {
+        
+        private final ClassInfo classInfo;
+        private final long startMillis;
+        private final long endMillis;
+        
+        Session(ClassInfo classInfo, long startMillis, long endMillis) {
+            this.classInfo = classInfo;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+        
+        public ClassInfo getClassInfo() {
+            return classInfo;
+        }
+        
+        public long getStartMillis() {
+            return startMillis;
+        }
+        
+        public long getEndMillis() {
+            return endMillis;
+        }
+    }
+    
+    // Parallel arrays, sorted by day and start; times in minutes since midnight
+    private final int[] days;
+    private final int[] starts;
+    private final int[] ends;
+    
+    private Timetable(int[] days, int[] starts, int[] ends) {
+        this.days = days;
+        this.starts = starts;
+        this.ends = ends;
+    }
+    
+    /**
+     * Parses the {@code timetable} list of a class; the server sends it sorted.
+     */
+    public static Timetable fromList(List<?> sessions) {
+        if (sessions == null || sessions.isEmpty()) {
+            return EMPTY;
+        }
+        int[] days = new int[sessions.size()];
+        int[] starts = new int[sessions.size()];
+        int[] ends = new int[sessions.size()];
+        for (int i = 0; i < sessions.size(); i++) {
+            Map<?, ?> session = (Map<?, ?>) sessions.get(i);
+            // Gson reads numbers as doubles, CBOR as longs
+            days[i] = ((Number) session.get("day")).intValue();
+            starts[i] = minutes((String) session.get("start"));
+            ends[i] = minutes((String) session.get("end"));
+        }
+        return new Timetable(days, starts, ends);
+    }
+    
+    public boolean isEmpty() {
+        return days.length == 0;
+    }
+    
+    /**
+     * Returns the first session of any of the classes that starts after
+     * {@code afterMillis}, or null if none has a timetable.
+     */
+    public static Session nextSession(List<ClassInfo> classes, long afterMillis, TimeZone zone) {
+        Session next = null;
+        for (ClassInfo classInfo : classes) {
+            Session session = classInfo.getTimetable().find(classInfo, afterMillis, zone, true);
+            if (session != null && (next == null || session.startMillis < next.startMillis)) {
+                next = session;
+            }
+        }
+        return next;
+    }
+    
+    /**
+     * Returns the class in session at {@code nowMillis}, or else the one starting
+     * soonest within {@code leadMillis}, or null if there is none.
+     */
+    public static ClassInfo currentClass(List<ClassInfo> classes, long nowMillis, TimeZone zone, long leadMillis) {
+        Session inProgress = null;
+        Session upcoming = null;
+        for (ClassInfo classInfo : classes) {
+            Session session = classInfo.getTimetable().find(classInfo, nowMillis, zone, false);
+            if (session == null) {
+                continue;
+            }
+            if (session.startMillis <= nowMillis) {
+                // Of overlapping sessions, the one started last
+                if (inProgress == null || session.startMillis > inProgress.startMillis) {
+                    inProgress = session;
+                }
+            } else if (session.startMillis - nowMillis <= leadMillis
+                    && (upcoming == null || session.startMillis < upcoming.startMillis)) {
+                upcoming = session;
+            }
+        }
+        Session current = inProgress != null ? inProgress : upcoming;
+        return current != null ? current.classInfo : null;
+    }
+    
+    /**
+     * Returns the first session that starts after {@code millis}, or with
+     * {@code startAfter} false the first that ends after it, in progress or not.
+     */
+    private Session find(ClassInfo classInfo, long millis, TimeZone zone, boolean startAfter) {
+        if (isEmpty()) {
+            return null;
+        }
+        Calendar day = Calendar.getInstance(zone);
+        day.setTimeInMillis(millis);
+        // A week and a day covers every slot, including today's again next week
+        for (int offset = 0; offset <= 7; offset++) {
+            int isoDay = (day.get(Calendar.DAY_OF_WEEK) + 5) % 7 + 1;
+            for (int i = 0; i < days.length; i++) {
+                if (days[i] != isoDay) {
+                    continue;
+                }
+                long start = at(day, starts[i]);
+                long end = at(day, ends[i]);
+                if (startAfter ? start > millis : end > millis) {
+                    return new Session(classInfo, start, end);
+                }
+            }
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the time on the calendar's day at {@code minutes} past midnight, local time.
+     */
+    private static long at(Calendar day, int minutes) {
+        Calendar time = (Calendar) day.clone();
+        time.set(Calendar.HOUR_OF_DAY, minutes / 60);
+        time.set(Calendar.MINUTE, minutes % 60);
+        time.set(Calendar.SECOND, 0);
+        time.set(Calendar.MILLISECOND, 0);
+        return time.getTimeInMillis();
+    }
+    
+    private static int minutes(String time) {
+        int colon = time.indexOf(':');
+        return Integer.parseInt(time.substring(0, colon)) * 60 + Integer.parseInt(time.substring(colon + 1));
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Timetable)) {
+            return false;
+        }
+        Timetable other = (Timetable) o;
+        return Arrays.equals(days, other.days) && Arrays.equals(starts, other.starts) && Arrays.equals(ends, other.ends);
+    }
+    
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Arrays.hashCode(days) + Arrays.hashCode(starts)) + Arrays.hashCode(ends);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.attendancesystem;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+
+/**
+ * Wraps another converter factory to record request serialization and response
+ * parsing time in {@link PipelineMetrics}.
+ */
+public class TimingConverterFactory extends Converter.Factory {
+    
+    private final Converter.Factory delegate;
+    
+    public TimingConverterFactory(Converter.Factory delegate) {
+        this.delegate = delegate;
+    }
+    
+    @Override
+    public Converter<?, RequestBody> requestBodyConverter(Type type, Annotation[] parameterAnnotations,
+                                                          Annotation[] methodAnnotations, Retrofit retrofit) {
+        final Converter<Object, RequestBody> converter = (Converter<Object, RequestBody>)
+                delegate.requestBodyConverter(type, parameterAnnotations, methodAnnotations, retrofit);
+        if (converter == null) {
+            return null;
+        }
+        return new Converter<Object, RequestBody>() {
+            @Override
+            public RequestBody convert(Object value) throws IOException {
+                long start = PipelineMetrics.start();
+                try {
+                    return converter.convert(value);
+                } finally {
+                    PipelineMetrics.stop(PipelineMetrics.Stage.SERIALIZE, start);
+                }
+            }
+        };
+    }
+    
+    @Override
+    public Converter<ResponseBody, ?> responseBodyConverter(Type type, Annotation[] annotations, Retrofit retrofit) {
+        final Converter<ResponseBody, ?> converter = delegate.responseBodyConverter(type, annotations, retrofit);
+        if (converter == null) {
+            return null;
+        }
+        return new Converter<ResponseBody, Object>() {
+            @Override
+            public Object convert(ResponseBody value) throws IOException {
+                long start = PipelineMetrics.start();
+                try {
+                    return converter.convert(value);
+                } finally {
+                    PipelineMetrics.stop(PipelineMetrics.Stage.RESPONSE_PARSE, start);
+                }
+            }
+        };
+    }
+}
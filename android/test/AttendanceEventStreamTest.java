@@ -0,0 +1,216 @@
+package com.example.attendancesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reconnection and at-least-once delivery of {@link AttendanceEventStream} against
+ * {@link SseStandInServer}.
+ */
+public class AttendanceEventStreamTest {
+    
+    private static final long TIMEOUT_SECONDS = 5;
+    
+    /**
+     * Runs callbacks at once on the reader thread and holds the reconnect until the
+     * test runs it, recording each delay asked for.
+     */
+    private static final class ManualScheduler implements AttendanceEventStream.Scheduler {
+        
+        final BlockingQueue<Long> delays = new LinkedBlockingQueue<>();
+        private Runnable pending;
+        
+        @Override
+        public void post(Runnable task) {
+            task.run();
+        }
+        
+        @Override
+        public synchronized void postDelayed(Runnable task, long delayMs) {
+            pending = task;
+            delays.add(delayMs);
+        }
+        
+        @Override
+        public synchronized void cancel(Runnable task) {
+            if (pending == task) {
+                pending = null;
+            }
+        }
+        
+        synchronized Runnable pending() {
+            return pending;
+        }
+        
+        /** Waits for the next reconnect to be scheduled and returns its delay. */
+        long awaitReconnect() throws InterruptedException {
+            Long delay = delays.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertTrue("no reconnect scheduled", delay != null);
+            return delay;
+        }
+        
+        void reconnect() {
+            Runnable task;
+            synchronized (this) {
+                task = pending;
+                pending = null;
+            }
+            task.run();
+        }
+    }
+    
+    private final SseStandInServer standIn = new SseStandInServer();
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> warnings = new LinkedBlockingQueue<>();
+    private MockWebServer server;
+    private AttendanceEventStream stream;
+    
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.setDispatcher(standIn);
+        server.start();
+        stream = new AttendanceEventStream(new OkHttpClient(), server.url("/"), "class1", "2024-09-02",
+                new AttendanceEventStream.Listener() {
+                    @Override
+                    public void onEvent(String type, Map<String, Object> data) {
+                        received.add(type + " " + data.get("student_id"));
+                    }
+                    
+                    @Override
+                    public void onReset() {
+                        received.add("reset");
+                    }
+                }, scheduler, new AttendanceEventStream.Logger() {
+                    @Override
+                    public void warn(String message) {
+                        warnings.add(message);
+                    }
+                });
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        stream.close();
+        server.shutdown();
+    }
+    
+    @Test
+    public void resumesFromLastEventIdAfterDisconnect() throws Exception {
+        standIn.perConnection(2);
+        String second = null;
+        for (int i = 1; i <= 3; i++) {
+            String id = standIn.publish("attendance_marked", "{\"student_id\": \"S" + i + "\"}");
+            if (i == 2) {
+                second = id;
+            }
+        }
+        
+        stream.start();
+        assertEquals("attendance_marked S1", next());
+        assertEquals("attendance_marked S2", next());
+        assertEquals(1000, scheduler.awaitReconnect());
+        
+        RecordedRequest first = server.takeRequest();
+        assertEquals("/api/events?class_id=class1&date=2024-09-02", first.getPath());
+        assertEquals("text/event-stream", first.getHeader("Accept"));
+        assertNull(first.getHeader("Last-Event-ID"));
+        
+        scheduler.reconnect();
+        assertEquals("attendance_marked S3", next());
+        scheduler.awaitReconnect();
+        assertEquals(second, server.takeRequest().getHeader("Last-Event-ID"));
+    }
+    
+    @Test
+    public void dropsEventsDeliveredAgainAfterReconnect() throws Exception {
+        standIn.publish("attendance_marked", "{\"student_id\": \"S1\"}");
+        standIn.publish("attendance_marked", "{\"student_id\": \"S2\"}");
+        stream.start();
+        assertEquals("attendance_marked S1", next());
+        assertEquals("attendance_marked S2", next());
+        scheduler.awaitReconnect();
+        
+        // The replay repeats both events already delivered before the new ones
+        standIn.redeliver(2);
+        standIn.publish("attendance_marked", "{\"student_id\": \"S3\"}");
+        standIn.publish("job_progress", "{\"student_id\": \"S4\"}");
+        scheduler.reconnect();
+        assertEquals("attendance_marked S3", next());
+        assertEquals("job_progress S4", next());
+        scheduler.awaitReconnect();
+        assertNull(received.poll());
+    }
+    
+    @Test
+    public void resetsWhenTheServerLostItsHistory() throws Exception {
+        standIn.publish("attendance_marked", "{\"student_id\": \"S1\"}");
+        stream.start();
+        assertEquals("attendance_marked S1", next());
+        scheduler.awaitReconnect();
+        
+        standIn.restart();
+        String current = standIn.publish("attendance_marked", "{\"student_id\": \"S2\"}");
+        scheduler.reconnect();
+        assertEquals("reset", next());
+        scheduler.awaitReconnect();
+        
+        // Resumes from the reset's id in the new history; what came before it is
+        // left to the listener's reload
+        scheduler.reconnect();
+        scheduler.awaitReconnect();
+        server.takeRequest();
+        server.takeRequest();
+        assertEquals(current, server.takeRequest().getHeader("Last-Event-ID"));
+        assertNull(received.poll());
+    }
+    
+    @Test
+    public void backsOffWhileTheServerFailsAndResetsOnConnect() throws Exception {
+        standIn.fail(3);
+        stream.start();
+        assertEquals(1000, scheduler.awaitReconnect());
+        assertEquals("Event stream rejected: 503", warnings.poll());
+        scheduler.reconnect();
+        assertEquals(2000, scheduler.awaitReconnect());
+        scheduler.reconnect();
+        assertEquals(4000, scheduler.awaitReconnect());
+        
+        standIn.publish("attendance_marked", "{\"student_id\": \"S1\"}");
+        scheduler.reconnect();
+        assertEquals("attendance_marked S1", next());
+        assertEquals(1000, scheduler.awaitReconnect());
+    }
+    
+    @Test
+    public void closeCancelsThePendingReconnect() throws Exception {
+        standIn.fail(1);
+        stream.start();
+        scheduler.awaitReconnect();
+        
+        stream.close();
+        assertNull(scheduler.pending());
+        assertEquals(1, server.getRequestCount());
+    }
+    
+    private String next() throws InterruptedException {
+        String event = received.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue("no event delivered", event != null);
+        return event;
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.attendancesystem;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.work.Configuration;
+import androidx.work.Data;
+import androidx.work.ListenableWorker;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+import androidx.work.WorkerFactory;
+import androidx.work.WorkerParameters;
+import androidx.work.testing.SynchronousExecutor;
+import androidx.work.testing.TestListenableWorkerBuilder;
+import androidx.work.testing.WorkManagerTestInitHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Retries, backoff limits and the network constraint of {@link AttendanceUploadWorker},
+ * run by WorkManager's test harness against a MockWebServer standing in for the
+ * session and job endpoints.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AttendanceUploadWorkerTest {
+    
+    private static final String CLASS_ID = "1";
+    private static final String DATE = "2024-09-02";
+    
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    
+    private final MockWebServer server = new MockWebServer();
+    private final AtomicInteger submits = new AtomicInteger();
+    // Requests answered with 503 before the server recovers; spent as they come in
+    private final AtomicInteger outage = new AtomicInteger();
+    // Job polls answered with 503 after the photo was accepted
+    private final AtomicInteger pollOutage = new AtomicInteger();
+    // Submissions answered as duplicates of one the server is still accepting
+    private final AtomicInteger inProgress = new AtomicInteger();
+    
+    private Context context;
+    private PendingTakeStore store;
+    private WorkerFactory workerFactory;
+    
+    @Before
+    public void setUp() throws Exception {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String path = request.getPath();
+                if (outage.decrementAndGet() >= 0) {
+                    return new MockResponse().setResponseCode(503);
+                }
+                if (path.startsWith("/api/attendance_sessions")) {
+                    return json("{\"success\": true, \"session\": {\"session_id\": \"s1\"}}");
+                }
+                if ("POST".equals(request.getMethod()) && path.startsWith("/api/attendance_jobs")) {
+                    if (inProgress.decrementAndGet() >= 0) {
+                        return json("{\"success\": false, \"error\": \"A request with key key-1 is still in"
+                                + " progress\", \"in_progress\": true}")
+                                .setResponseCode(503)
+                                .setHeader("Retry-After", "5");
+                    }
+                    submits.incrementAndGet();
+                    return json("{\"success\": true, \"job\": {\"job_id\": \"j1\", \"status\": \"pending\"}}");
+                }
+                if (path.startsWith("/api/attendance_jobs/j1")) {
+                    if (pollOutage.decrementAndGet() >= 0) {
+                        return new MockResponse().setResponseCode(503);
+                    }
+                    return json("{\"success\": true, \"job\": {\"job_id\": \"j1\", \"status\": \"completed\","
+                            + " \"recapture_suggested\": false, \"session\": {\"present_count\": 3}}}");
+                }
+                return new MockResponse().setResponseCode(404);
+            }
+        });
+        server.start();
+        
+        context = ApplicationProvider.getApplicationContext();
+        store = new PendingTakeStore(folder.newFolder("pending_takes"));
+        final ApiService apiService = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .addConverterFactory(GsonConverterFactory.create())
+                .build()
+                .create(ApiService.class);
+        workerFactory = new WorkerFactory() {
+            @Override
+            public ListenableWorker createWorker(Context appContext, String workerClassName,
+                                                 WorkerParameters workerParameters) {
+                return new AttendanceUploadWorker(appContext, workerParameters, apiService, store);
+            }
+        };
+        
+        store.addTake(CLASS_ID, "Grade 1", DATE, new byte[] {1, 2, 3}, Collections.<List<Integer>>emptyList(),
+                "camera", "key-1");
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+    
+    private static MockResponse json(String body) {
+        return new MockResponse().setHeader("Content-Type", "application/json").setBody(body);
+    }
+    
+    private ListenableWorker.Result run(int attempt) {
+        Data input = new Data.Builder()
+                .putString(AttendanceUploadWorker.KEY_CLASS_ID, CLASS_ID)
+                .putString(AttendanceUploadWorker.KEY_DATE, DATE)
+                .build();
+        AttendanceUploadWorker worker = TestListenableWorkerBuilder.from(context, AttendanceUploadWorker.class)
+                .setInputData(input)
+                .setRunAttemptCount(attempt)
+                .setWorkerFactory(workerFactory)
+                .build();
+        return worker.doWork();
+    }
+    
+    @Test
+    public void retriesWhileTheServerIsUnreachable() {
+        outage.set(Integer.MAX_VALUE);
+        
+        assertEquals(ListenableWorker.Result.retry(), run(0));
+        assertEquals(ListenableWorker.Result.retry(), run(AttendanceUploadWorker.MAX_ATTEMPTS - 2));
+        assertEquals(1, store.countTakes(CLASS_ID, DATE));
+    }
+    
+    @Test
+    public void givesUpAfterTheLastAttemptAndKeepsThePhoto() {
+        outage.set(Integer.MAX_VALUE);
+        
+        ListenableWorker.Result result = run(AttendanceUploadWorker.MAX_ATTEMPTS - 1);
+        assertEquals(ListenableWorker.Result.failure(result.getOutputData()), result);
+        assertTrue(result.getOutputData().getString(AttendanceUploadWorker.KEY_ERROR).contains("1 photo(s)"));
+        assertEquals(1, store.countTakes(CLASS_ID, DATE));
+    }
+    
+    @Test
+    public void retriedRunPollsTheAcceptedJobInsteadOfUploadingAgain() {
+        pollOutage.set(1);
+        
+        assertEquals(ListenableWorker.Result.retry(), run(0));
+        ListenableWorker.Result result = run(1);
+        
+        assertEquals(1, submits.get());
+        assertEquals(1, result.getOutputData().getInt(AttendanceUploadWorker.KEY_PHOTO_COUNT, 0));
+        assertEquals(3, result.getOutputData().getInt(AttendanceUploadWorker.KEY_PRESENT_COUNT, -1));
+        assertEquals(0, store.countTakes(CLASS_ID, DATE));
+    }
+    
+    @Test
+    public void duplicateStillInProgressKeepsTheSession() {
+        inProgress.set(1);
+        
+        assertEquals(ListenableWorker.Result.retry(), run(0));
+        assertEquals("s1", store.getUpload(CLASS_ID, DATE).sessionId);
+        assertEquals(1, store.countTakes(CLASS_ID, DATE));
+        
+        ListenableWorker.Result result = run(1);
+        assertEquals(1, submits.get());
+        assertEquals(1, result.getOutputData().getInt(AttendanceUploadWorker.KEY_PHOTO_COUNT, 0));
+        assertEquals(0, store.countTakes(CLASS_ID, DATE));
+    }
+    
+    @Test
+    public void waitsForANetworkConnection() throws Exception {
+        WorkManagerTestInitHelper.initializeTestWorkManager(context, new Configuration.Builder()
+                .setExecutor(new SynchronousExecutor())
+                .setWorkerFactory(workerFactory)
+                .build());
+        
+        AttendanceUploadWorker.enqueue(context, CLASS_ID, DATE);
+        String workName = AttendanceUploadWorker.workName(CLASS_ID, DATE);
+        WorkInfo work = WorkManager.getInstance(context).getWorkInfosForUniqueWork(workName).get().get(0);
+        assertEquals(WorkInfo.State.ENQUEUED, work.getState());
+        assertEquals(0, server.getRequestCount());
+        
+        WorkManagerTestInitHelper.getTestDriver(context).setAllConstraintsMet(work.getId());
+        work = WorkManager.getInstance(context).getWorkInfosForUniqueWork(workName).get().get(0);
+        assertEquals(WorkInfo.State.SUCCEEDED, work.getState());
+        assertEquals(1, submits.get());
+        assertEquals(0, store.countTakes(CLASS_ID, DATE));
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.attendancesystem;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClassInfoTest {
+    
+    @Test
+    public void equalsToleratesMissingFields() {
+        ClassInfo unnamed = new ClassInfo("1", null);
+        
+        assertEquals(unnamed, new ClassInfo("1", null));
+        assertEquals(unnamed.hashCode(), new ClassInfo("1", null).hashCode());
+        assertFalse(unnamed.equals(new ClassInfo("1", "Grade 1")));
+        assertFalse(new ClassInfo("1", "Grade 1").equals(unnamed));
+        assertFalse(new ClassInfo(null, "Grade 1").equals(new ClassInfo("1", "Grade 1")));
+    }
+    
+    @Test
+    public void fromMapReadsTheTimetable() {
+        Map<String, Object> session = new HashMap<>();
+        session.put("day", 1.0);
+        session.put("start", "08:30");
+        session.put("end", "09:15");
+        Map<String, Object> classData = new HashMap<>();
+        classData.put("id", "1");
+        classData.put("name", "Grade 1");
+        classData.put("timetable", Collections.singletonList(session));
+        
+        ClassInfo classInfo = ClassInfo.fromMap(classData);
+        assertFalse(classInfo.getTimetable().isEmpty());
+        assertEquals(classInfo, ClassInfo.fromMap(classData));
+        assertFalse(classInfo.equals(new ClassInfo("1", "Grade 1")));
+        
+        classData.remove("timetable");
+        assertTrue(ClassInfo.fromMap(classData).getTimetable().isEmpty());
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.attendancesystem;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The prefetch window and the spinner's preselection around two back-to-back Monday
+ * sessions, on the clock {@code PrefetchSimulation} uses.
+ */
+public class PrefetchPolicyTest {
+    
+    private static final TimeZone ZONE = TimeZone.getTimeZone("UTC");
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long LEAD_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    
+    private final ClassInfo first = classInfo("1", "08:00", "08:50");
+    private final ClassInfo second = classInfo("2", "09:00", "09:50");
+    private final List<ClassInfo> classes = Arrays.asList(first, second);
+    
+    private static ClassInfo classInfo(String id, String start, String end) {
+        Map<String, Object> session = new HashMap<>();
+        session.put("day", 1);
+        session.put("start", start);
+        session.put("end", end);
+        List<Map<String, Object>> timetable = new ArrayList<>();
+        timetable.add(session);
+        Map<String, Object> classData = new HashMap<>();
+        classData.put("id", id);
+        classData.put("name", "Grade " + id);
+        classData.put("timetable", timetable);
+        return ClassInfo.fromMap(classData);
+    }
+    
+    /**
+     * Monday 7 September 2026 at the given time, UTC.
+     */
+    private static long monday(int hour, int minute) {
+        Calendar calendar = Calendar.getInstance(ZONE, Locale.US);
+        calendar.clear();
+        calendar.set(2026, Calendar.SEPTEMBER, 7, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+    
+    @Test
+    public void prefetchRunsBetweenTheLeadAndTheQuietStretch() {
+        Timetable.Session session = PrefetchPolicy.target(classes, monday(7, 0), 0, ZONE);
+        assertEquals(first, session.getClassInfo());
+        assertEquals(15 * MINUTE, PrefetchPolicy.delayMillis(session, monday(7, 0)));
+        assertEquals(0, PrefetchPolicy.delayMillis(session, monday(7, 30)));
+        
+        assertFalse(PrefetchPolicy.isDue(session, monday(7, 14)));
+        assertTrue(PrefetchPolicy.isDue(session, monday(7, 15)));
+        assertTrue(PrefetchPolicy.isDue(session, monday(7, 55)));
+        assertFalse(PrefetchPolicy.isDue(session, monday(7, 56)));
+    }
+    
+    @Test
+    public void sessionTooCloseIsLeftForTheNext() {
+        assertEquals(second, PrefetchPolicy.target(classes, monday(7, 56), 0, ZONE).getClassInfo());
+        // After a prefetch, the next target is the session after the one just served
+        assertEquals(second, PrefetchPolicy.target(classes, monday(7, 20), monday(8, 0), ZONE).getClassInfo());
+    }
+    
+    @Test
+    public void nextSessionWrapsIntoNextWeek() {
+        Timetable.Session session = Timetable.nextSession(classes, monday(10, 0), ZONE);
+        assertEquals(first, session.getClassInfo());
+        assertEquals(monday(8, 0) + TimeUnit.DAYS.toMillis(7), session.getStartMillis());
+        assertNull(Timetable.nextSession(Arrays.asList(new ClassInfo("3", "Grade 3")), monday(10, 0), ZONE));
+    }
+    
+    @Test
+    public void spinnerPreselectsTheClassInSessionOrAboutToStart() {
+        assertNull(Timetable.currentClass(classes, monday(7, 49), ZONE, LEAD_MILLIS));
+        assertEquals(first, Timetable.currentClass(classes, monday(7, 50), ZONE, LEAD_MILLIS));
+        assertEquals(first, Timetable.currentClass(classes, monday(8, 30), ZONE, LEAD_MILLIS));
+        assertEquals(second, Timetable.currentClass(classes, monday(8, 55), ZONE, LEAD_MILLIS));
+        assertNull(Timetable.currentClass(classes, monday(10, 0), ZONE, LEAD_MILLIS));
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.attendancesystem;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@code loadtest/PrefetchSimulation} over a few weeks of a small school and
+ * checks what it measures at the bell.
+ */
+public class PrefetchSimulationTest {
+    
+    private static PrefetchSimulation simulation() {
+        PrefetchSimulation simulation = new PrefetchSimulation();
+        simulation.teachers = 40;
+        simulation.weeks = 2;
+        return simulation;
+    }
+    
+    @Test
+    public void prefetchingRaisesTheHitRateAtTheBell() {
+        PrefetchSimulation.Results results = simulation().run();
+        
+        assertTrue(results.opens > 0);
+        assertTrue(results.prefetches > 0);
+        assertTrue(results.hitRateWith() > results.hitRateWithout() + 0.1);
+        assertTrue(results.bellBytesWith < results.bellBytesWithout);
+        assertEquals(0, results.outsideWindow);
+    }
+    
+    @Test
+    public void everyOpenIsRevalidatedWhenNothingStandsInTheWay() {
+        PrefetchSimulation simulation = simulation();
+        simulation.homeWifi = 1;
+        simulation.schoolWifi = 1;
+        simulation.lowBattery = 0;
+        simulation.openRate = 1;
+        simulation.rosterChangesPerDay = 0;
+        PrefetchSimulation.Results results = simulation.run();
+        
+        assertEquals(results.sessions, results.opens);
+        assertEquals(results.opens, results.hitsWith);
+        // Without prefetching, each device's first open downloads the roster
+        assertEquals(results.opens - results.teachers, results.hitsWithout);
+        assertEquals(0, results.skipped);
+        assertEquals(0, results.wasted);
+    }
+    
+    @Test
+    public void noPrefetchRunsWithoutAnUnmeteredNetwork() {
+        PrefetchSimulation simulation = simulation();
+        simulation.homeWifi = 0;
+        simulation.schoolWifi = 0;
+        PrefetchSimulation.Results results = simulation.run();
+        
+        assertEquals(0, results.prefetches);
+        assertEquals(0, results.prefetchBytes);
+        assertEquals(results.hitsWithout, results.hitsWith);
+    }
+    
+    @Test
+    public void spinnerPreselectsTheSessionsClass() {
+        // Teachers open the camera screen within 8 minutes of the bell, inside the 10 minute lead
+        assertEquals(1.0, simulation().run().preselectedRate(), 0);
+    }
+}
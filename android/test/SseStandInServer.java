@@ -0,0 +1,79 @@
+package com.example.attendancesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Stands in for the server's {@code api/events} stream on a MockWebServer.
+ *
+ * Event ids are {@code <boot>:<seq>} as the EventBus makes them. A connection replays
+ * the history after its {@code Last-Event-ID} (all of it for a new client, standing in
+ * for events published while it is connected) and then ends, as a dropped connection
+ * does. An id from another boot gets a single {@code reset} event. {@link #redeliver}
+ * replays that many events before the client's id again, as at-least-once delivery may.
+ */
+final class SseStandInServer extends Dispatcher {
+    
+    private final List<String> history = new ArrayList<>();
+    private String bootId = "boot1";
+    private int seq;
+    private int redeliver;
+    private int perConnection = Integer.MAX_VALUE;
+    private int failures;
+    
+    synchronized String publish(String type, String json) {
+        seq++;
+        String id = bootId + ":" + seq;
+        history.add("id: " + id + "\nevent: " + type + "\ndata: " + json + "\n\n");
+        return id;
+    }
+    
+    /** Loses the history, as a server restart does. */
+    synchronized void restart() {
+        bootId = bootId + "'";
+        seq = 0;
+        history.clear();
+    }
+    
+    synchronized void redeliver(int events) {
+        redeliver = events;
+    }
+    
+    /** Ends each connection after this many events. */
+    synchronized void perConnection(int events) {
+        perConnection = events;
+    }
+    
+    /** Answers the next requests with 503. */
+    synchronized void fail(int requests) {
+        failures = requests;
+    }
+    
+    @Override
+    public synchronized MockResponse dispatch(RecordedRequest request) {
+        String lastEventId = request.getHeader("Last-Event-ID");
+        if (failures > 0) {
+            failures--;
+            return new MockResponse().setResponseCode(503);
+        }
+        
+        StringBuilder body = new StringBuilder(": keep-alive\n\n");
+        if (lastEventId != null && !lastEventId.startsWith(bootId + ":")) {
+            body.append("id: ").append(bootId).append(':').append(seq).append("\nevent: reset\ndata: {}\n\n");
+        } else {
+            int after = lastEventId != null ? Integer.parseInt(lastEventId.substring(bootId.length() + 1)) : 0;
+            int from = Math.max(0, after - redeliver);
+            int to = history.size() - after > perConnection ? after + perConnection : history.size();
+            for (int i = from; i < to; i++) {
+                body.append(history.get(i));
+            }
+        }
+        return new MockResponse()
+                .setHeader("Content-Type", "text/event-stream")
+                .setBody(body.toString());
+    }
+}
@@ -1,14 +1,38 @@
 #!/usr/bin/env python3
 # Attendance System - Flask API Backend
 import os
+import hmac
+import atexit
+import hashlib
 import logging
 import base64
-from flask import Flask, request, jsonify, render_template, send_from_directory
+import uuid
+import functools
+from datetime import datetime
+from flask import Flask, Response, request, jsonify, render_template, send_from_directory, stream_with_context, abort
+from werkzeug.wsgi import wrap_file
 from flask_cors import CORS
-from models import init_db, Student, Attendance, Class
+from models import init_db, Student, Class, DEFAULT_SCHOOL, parse_timetable
 from face_recognition_service import FaceRecognitionService
 from attendance_service import AttendanceService
-from utils import save_uploaded_image, decode_base64_image
+from attendance_store import ConflictError
+from attendance_log import AttendanceLog, CursorError
+from recognition_job_service import RecognitionJobService, QueueFullError
+from session_service import AttendanceSessionService
+from event_service import EventBus
+from photo_store import PhotoStore, PhotoNotFoundError, PHOTO_PREFIX
+from photo_retention import PhotoRetentionService
+from calibration_service import CalibrationService
+from report_service import AttendanceReportService, digest
+from shard_service import SchoolShardService, SchoolBusyError
+from shard_ring import SCHOOL_HEADER, CLUSTER_TOKEN_HEADER
+from wire_format import WireJSONProvider, WireRequest, RequestDecompressionMiddleware, compress_response
+from wire_format import dumps as cbor_dumps, CBOR_MIMETYPE, wants_cbor
+from admission_control import AdmissionController, AdmissionMiddleware
+from idempotency import (IdempotencyCache, IdempotencyConflictError, IdempotencyInProgressError, IDEMPOTENCY_HEADER,
+                         REPLAYED_HEADER, MAX_KEY_LENGTH, IN_PROGRESS_RETRY_AFTER)
+from utils import save_uploaded_image, decode_base64_data
+from clip_sampler import ClipFrames, ClipError
 
 # Configure logging
 logging.basicConfig(level=logging.INFO)
@@ -18,16 +42,177 @@ logger = logging.getLogger(__name__)
 app = Flask(__name__)
 CORS(app)  # Enable CORS for all routes
 
+# JSON by default; CBOR for clients that ask for it, and compressed request bodies
+app.json = WireJSONProvider(app)
+app.request_class = WireRequest
+app.wsgi_app = RequestDecompressionMiddleware(app.wsgi_app)
+
+# Admit requests by priority and shed the rest with 503 under overload; it can be
+# turned off to compare, e.g. under the load test
+admission_controller = None
+if os.environ.get('ATTENDANCE_ADMISSION_CONTROL', 'on') != 'off':
+    admission_controller = AdmissionController()
+    app.wsgi_app = AdmissionMiddleware(app.wsgi_app, admission_controller)
+
 # Initialize database
 init_db()
 
+# Longest a classroom photo may expect to wait for recognition before new ones are
+# turned away with 503, so teachers get results in bounded time and retry the rest
+MAX_JOB_QUEUE_SECONDS = 20
+
 # Initialize services
-face_recognition_service = FaceRecognitionService()
-attendance_service = AttendanceService(face_recognition_service)
+event_bus = EventBus()
+photo_store = PhotoStore()
+# Recognize with the mock. OnnxEngine (recognition_engine.py) is experimental and
+# stays out of the server until it has been run against real models
+face_recognition_service = FaceRecognitionService(photo_store=photo_store)
+# Keep encodings computed since the last periodic save
+atexit.register(face_recognition_service.gallery.save)
+photo_retention_service = PhotoRetentionService(photo_store)
+photo_retention_service.start()
+calibration_service = CalibrationService()
+report_service = AttendanceReportService()
+attendance_log = AttendanceLog()
+atexit.register(attendance_log.close)
+attendance_service = AttendanceService(face_recognition_service, event_bus=event_bus,
+                                       photo_retention=photo_retention_service, calibration=calibration_service,
+                                       reports=report_service, change_log=attendance_log, photo_store=photo_store)
+attendance_session_service = AttendanceSessionService(attendance_service)
+attendance_session_service.start()
+recognition_job_service = RecognitionJobService(attendance_service, max_wait=MAX_JOB_QUEUE_SECONDS,
+                                                event_bus=event_bus, session_service=attendance_session_service,
+                                                admission=admission_controller, photo_store=photo_store)
+shard_service = SchoolShardService(photo_store, face_recognition_service, attendance_service=attendance_service,
+                                   calibration=calibration_service, photo_retention=photo_retention_service,
+                                   job_service=recognition_job_service, session_service=attendance_session_service,
+                                   reports=report_service)
+idempotency_cache = IdempotencyCache()
+
+# Longest a client may block on GET /api/attendance_jobs/<job_id>
+MAX_JOB_WAIT_SECONDS = 30
+
+# Changes returned by one GET /api/attendance_changes when the client doesn't say, and at most
+DEFAULT_CHANGES_LIMIT = 1000
+MAX_CHANGES_LIMIT = 10000
+# Longest a client may block on GET /api/attendance_changes waiting for a change
+MAX_CHANGES_WAIT_SECONDS = 30
+
+# Interval between keep-alive comments on idle event streams
+EVENT_HEARTBEAT_SECONDS = 15
+
+# Stored photos are named by their content, so clients may cache them indefinitely
+PHOTO_CACHE_SECONDS = 365 * 24 * 3600
+
+# Reports of days before today with no session open or photo being recognized are
+# final: clients may reuse them this long without asking. A correction made on
+# another device shows there once it expires; the device making it refetches at once
+FINAL_REPORT_CACHE_SECONDS = 24 * 3600
+
+# Shared secret of the /internal endpoints the shard router uses to move schools
+# between nodes; they are disabled when it is unset
+CLUSTER_TOKEN = os.environ.get('ATTENDANCE_CLUSTER_TOKEN')
+
+# Attendance clips wait here until recognized, then are deleted
+CLIP_DIR = os.path.join('uploads', 'classroom_clips')
 
 # Create necessary directories if they don't exist
 os.makedirs('uploads/student_photos', exist_ok=True)
 os.makedirs('uploads/classroom_photos', exist_ok=True)
+os.makedirs(CLIP_DIR, exist_ok=True)
+
+@app.after_request
+def compress(response):
+    """Gzip JSON and CBOR responses for clients that accept it"""
+    return compress_response(response, request.accept_encodings)
+
+def current_school():
+    """School of the current request, as named by the client"""
+    return request.headers.get(SCHOOL_HEADER) or request.args.get('school_id') or DEFAULT_SCHOOL
+
+def require_cluster_token():
+    """Hide the /internal endpoints from anyone but the shard router"""
+    token = request.headers.get(CLUSTER_TOKEN_HEADER, '')
+    if not CLUSTER_TOKEN or not hmac.compare_digest(token.encode('utf-8'), CLUSTER_TOKEN.encode('utf-8')):
+        abort(404)
+
+def report_is_final(class_id, date):
+    """Whether a class's attendance on a date is done being taken"""
+    return (date < datetime.now().strftime('%Y-%m-%d')
+            and not attendance_session_service.is_open(class_id, date)
+            and not recognition_job_service.has_active(class_id, date))
+
+def cacheable_response(payload, payload_digest, max_age=0):
+    """
+    Answer with a payload, or 304 if the client's copy is current
+    
+    The ETag is strong, so it names the exact bytes: the payload's digest plus the
+    wire format and compression it was sent in. A copy in another encoding of the
+    same payload is as good, so any of them gets a 304.
+    
+    Args:
+        payload (dict): The response body
+        payload_digest (str): Digest of what the body holds
+        max_age (int): Seconds the client may reuse the response without asking
+                       (default: it revalidates every time)
+    """
+    etag = f"{payload_digest}-{'cbor' if wants_cbor() else 'json'}"
+    
+    cached = next((tag for tag in (etag + '-gzip', etag) if request.if_none_match.contains(tag)), None)
+    if cached is not None:
+        response = Response(status=304)
+        response.set_etag(cached)
+        response.vary.update(['Accept', 'Accept-Encoding'])
+    else:
+        response = compress_response(jsonify(payload), request.accept_encodings)
+        response.set_etag(etag + '-gzip' if response.content_encoding == 'gzip' else etag)
+        response.vary.add('Accept')
+    
+    # max-age=0 rather than no-cache: clients revalidate every time just the same,
+    # but may still show their copy while the server can't be reached
+    response.cache_control.private = True
+    response.cache_control.max_age = max_age
+    return response
+
+def idempotent(view):
+    """
+    Run a submission once per Idempotency-Key
+    
+    A retry gets the first response, replayed, and a retry while the first is still
+    running waits a few seconds for it. One still waiting then gets a 503 with
+    Retry-After and in_progress set: it was not run, so it is safe to send again, and
+    409 keeps meaning a closed session or a changed record. Only successful responses
+    are kept, so a retry after an error or a 503 runs again.
+    """
+    @functools.wraps(view)
+    def wrapper(*args, **kwargs):
+        key = request.headers.get(IDEMPOTENCY_HEADER)
+        if not key:
+            return view(*args, **kwargs)
+        if len(key) > MAX_KEY_LENGTH:
+            return jsonify({"success": False, "error": f"{IDEMPOTENCY_HEADER} is too long"}), 400
+        
+        def compute():
+            response = app.make_response(view(*args, **kwargs))
+            headers = [(name, value) for name, value in response.headers if name != 'Content-Length']
+            return response.status_code, headers, response.get_data()
+        
+        scope = f"{current_school()} {request.method} {request.path}"
+        fingerprint = hashlib.sha256(request.get_data()).hexdigest()
+        try:
+            (status, headers, body), replayed = idempotency_cache.run(scope, key, fingerprint, compute,
+                                                                      lambda result: 200 <= result[0] < 300)
+        except IdempotencyConflictError as e:
+            return jsonify({"success": False, "error": str(e)}), 422
+        except IdempotencyInProgressError as e:
+            return (jsonify({"success": False, "error": str(e), "in_progress": True}), 503,
+                    {'Retry-After': str(IN_PROGRESS_RETRY_AFTER)})
+        
+        response = Response(body, status=status, headers=headers)
+        if replayed:
+            response.headers[REPLAYED_HEADER] = 'true'
+        return response
+    return wrapper
 
 @app.route('/')
 def index():
@@ -38,8 +223,9 @@ def index():
 def get_students():
     """Get all students"""
     try:
-        students = Student.get_all()
-        return jsonify({"success": True, "students": students})
+        students = Student.get_by_school(current_school())
+        # Revalidated with the ETag, so a roster prefetched before class costs a 304
+        return cacheable_response({"success": True, "students": students}, digest(students))
     except Exception as e:
         logger.error(f"Error fetching students: {str(e)}")
         return jsonify({"success": False, "error": str(e)}), 500
@@ -58,13 +244,20 @@ def add_student():
             return jsonify({"success": False, "error": "Missing required fields"}), 400
         
         # Save the base64 image
-        photo_path = decode_base64_image(photo_base64, f"uploads/student_photos/{student_id}.jpg")
+        photo_path = photo_store.put(decode_base64_data(photo_base64))
         
         # Add student to database
-        student = Student.create(name=name, student_id=student_id, class_id=class_id, photo_path=photo_path)
+        try:
+            student = Student.create(name=name, student_id=student_id, class_id=class_id, photo_path=photo_path,
+                                     school_id=current_school())
+        except ValueError:
+            photo_store.delete(photo_path)
+            raise
         
-        # Update face recognition model
-        face_recognition_service.update_student_encodings()
+        # Encode the new face in the background
+        face_recognition_service.add_student(student)
+        # Reports name students, and may hold records of an earlier student with this ID
+        report_service.changed_all()
         
         return jsonify({"success": True, "student": student})
     except Exception as e:
@@ -75,10 +268,14 @@ def add_student():
 def delete_student(student_id):
     """Delete a student"""
     try:
+        student = Student.get(student_id)
         success = Student.delete(student_id)
         if success:
-            # Update face recognition model
-            face_recognition_service.update_student_encodings()
+            # Forget the student's face
+            face_recognition_service.remove_student(student_id)
+            report_service.changed_all()
+            if photo_store.owns(student['photo_path']):
+                photo_store.delete(student['photo_path'])
             return jsonify({"success": True})
         return jsonify({"success": False, "error": "Student not found"}), 404
     except Exception as e:
@@ -89,8 +286,8 @@ def delete_student(student_id):
 def get_classes():
     """Get all classes"""
     try:
-        classes = Class.get_all()
-        return jsonify({"success": True, "classes": classes})
+        classes = Class.get_by_school(current_school())
+        return cacheable_response({"success": True, "classes": classes}, digest(classes))
     except Exception as e:
         logger.error(f"Error fetching classes: {str(e)}")
         return jsonify({"success": False, "error": str(e)}), 500
@@ -105,13 +302,38 @@ def add_class():
         if not name:
             return jsonify({"success": False, "error": "Missing class name"}), 400
         
-        class_obj = Class.create(name=name)
+        try:
+            timetable = parse_timetable(data.get('timetable', []))
+        except ValueError as e:
+            return jsonify({"success": False, "error": str(e)}), 400
+        
+        class_obj = Class.create(name=name, school_id=current_school(), timetable=timetable)
         return jsonify({"success": True, "class": class_obj})
     except Exception as e:
         logger.error(f"Error adding class: {str(e)}")
         return jsonify({"success": False, "error": str(e)}), 500
 
+@app.route('/api/classes/<class_id>/timetable', methods=['PUT'])
+def set_class_timetable(class_id):
+    """Replace a class's weekly timetable"""
+    try:
+        data = request.json
+        
+        try:
+            timetable = parse_timetable(data.get('timetable'))
+        except ValueError as e:
+            return jsonify({"success": False, "error": str(e)}), 400
+        
+        class_obj = Class.update(class_id, {'timetable': timetable})
+        if class_obj is None:
+            return jsonify({"success": False, "error": "Class not found"}), 404
+        return jsonify({"success": True, "class": class_obj})
+    except Exception as e:
+        logger.error(f"Error setting class timetable: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 500
+
 @app.route('/api/take_attendance', methods=['POST'])
+@idempotent
 def take_attendance():
     """Process classroom photo and mark attendance"""
     try:
@@ -119,48 +341,251 @@ def take_attendance():
         class_id = data.get('class_id')
         photo_base64 = data.get('photo')
         date = data.get('date')
+        face_locations = data.get('face_locations')
+        camera_id = data.get('camera_id')
         
         if not all([class_id, photo_base64, date]):
             return jsonify({"success": False, "error": "Missing required fields"}), 400
         
-        # Save the classroom photo
-        photo_path = decode_base64_image(photo_base64, f"uploads/classroom_photos/class_{class_id}_{date.replace('-', '_')}.jpg")
+        # Save the classroom photo; retention keeps its own reference to every take, and
+        # a resubmitted photo is stored once
+        photo_path = photo_store.put(decode_base64_data(photo_base64))
         
         # Process attendance
-        attendance_results = attendance_service.process_attendance(class_id, photo_path, date)
+        try:
+            attendance_results = attendance_service.process_attendance(class_id, photo_path, date, face_locations,
+                                                                       camera_id)
+        finally:
+            photo_store.delete(photo_path)
         
         return jsonify({
             "success": True, 
             "attendance": attendance_results['attendance'],
             "recognized_students": attendance_results['recognized_students'],
-            "unrecognized_faces": attendance_results['unrecognized_faces']
+            "unrecognized_faces": attendance_results['unrecognized_faces'],
+            "expected_missed": attendance_results['expected_missed'],
+            "recapture_suggested": attendance_results['recapture_suggested']
         })
     except Exception as e:
         logger.error(f"Error processing attendance: {str(e)}")
         return jsonify({"success": False, "error": str(e)}), 500
 
+@app.route('/api/attendance_jobs', methods=['POST'])
+@idempotent
+def submit_attendance_job():
+    """
+    Queue a classroom photo for recognition and return a job ID immediately
+    
+    A short video clip may be sent as 'clip' instead of 'photo'; its frames are
+    sampled until every student of the class is recognized or the clip ends.
+    """
+    try:
+        data = request.json
+        class_id = data.get('class_id')
+        photo_base64 = data.get('photo')
+        clip_base64 = data.get('clip')
+        date = data.get('date')
+        # Queued fairly per school; the school is the router's, never the body's
+        school_id = current_school()
+        session_id = data.get('session_id')
+        face_locations = data.get('face_locations')
+        camera_id = data.get('camera_id')
+        
+        if not all([class_id, photo_base64 or clip_base64, date]):
+            return jsonify({"success": False, "error": "Missing required fields"}), 400
+        
+        if session_id:
+            # The session decides the class and date
+            session = attendance_session_service.get(session_id)
+            if session is None:
+                return jsonify({"success": False, "error": "Session not found"}), 404
+            if session['status'] != 'open':
+                return jsonify({"success": False, "error": "Session is closed"}), 409
+            class_id = session['class_id']
+            date = session['date']
+        
+        if clip_base64:
+            # Save the clip, and turn it away now if it can't be decoded
+            photo_path = os.path.join(CLIP_DIR, f"{uuid.uuid4().hex}.mp4")
+            with open(photo_path, 'wb') as f:
+                f.write(decode_base64_data(clip_base64))
+            try:
+                ClipFrames(photo_path).close()
+            except ClipError:
+                os.remove(photo_path)
+                raise
+        else:
+            # Save the classroom photo
+            photo_path = photo_store.put(decode_base64_data(photo_base64))
+        
+        # The job releases the photo or clip when it's done, or right away if turned away
+        job = recognition_job_service.submit(class_id, photo_path, date, school_id=school_id, session_id=session_id,
+                                             face_locations=face_locations, camera_id=camera_id,
+                                             clip=bool(clip_base64))
+        return jsonify({"success": True, "job": job}), 202
+    except ClipError as e:
+        logger.warning(f"Rejected attendance clip: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 400
+    except QueueFullError as e:
+        logger.warning(f"Rejected attendance job: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 503, {'Retry-After': str(e.retry_after)}
+    except Exception as e:
+        logger.error(f"Error submitting attendance job: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 500
+
+@app.route('/api/attendance_jobs/<job_id>', methods=['GET'])
+def get_attendance_job(job_id):
+    """Get the status of a recognition job, optionally long-polling until it finishes"""
+    try:
+        wait = min(max(request.args.get('wait', 0, type=float), 0), MAX_JOB_WAIT_SECONDS)
+        
+        job = recognition_job_service.get(job_id, wait=wait)
+        if job is None:
+            return jsonify({"success": False, "error": "Job not found"}), 404
+        
+        return jsonify({"success": True, "job": job})
+    except Exception as e:
+        logger.error(f"Error fetching attendance job: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 500
+
+@app.route('/api/attendance_sessions', methods=['POST'])
+def open_attendance_session():
+    """
+    Open a multi-photo attendance session, or join the one already open for the class and date
+    
+    Photos are added by submitting attendance jobs with the session's ID.
+    """
+    try:
+        data = request.json
+        class_id = data.get('class_id')
+        date = data.get('date')
+        
+        if not all([class_id, date]):
+            return jsonify({"success": False, "error": "Missing required fields"}), 400
+        
+        session = attendance_session_service.open_session(class_id, date)
+        return jsonify({"success": True, "session": session})
+    except Exception as e:
+        logger.error(f"Error opening attendance session: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 500
+
+@app.route('/api/attendance_sessions/<session_id>', methods=['GET'])
+def get_attendance_session(session_id):
+    """Get the merged results of an attendance session so far"""
+    try:
+        session = attendance_session_service.get(session_id)
+        if session is None:
+            return jsonify({"success": False, "error": "Session not found"}), 404
+        
+        return jsonify({"success": True, "session": session})
+    except Exception as e:
+        logger.error(f"Error fetching attendance session: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 500
+
+@app.route('/api/attendance_sessions/<session_id>/close', methods=['POST'])
+def close_attendance_session(session_id):
+    """Close a session and mark everyone not seen in any of its photos absent"""
+    try:
+        results = attendance_session_service.close_session(session_id)
+        return jsonify({"success": True, **results})
+    except KeyError:
+        return jsonify({"success": False, "error": "Session not found"}), 404
+    except Exception as e:
+        logger.error(f"Error closing attendance session: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 500
+
+@app.route('/api/events', methods=['GET'])
+def stream_events():
+    """Stream the school's recognition progress and attendance marks as Server-Sent Events"""
+    school_id = current_school()
+    class_id = request.args.get('class_id')
+    date = request.args.get('date')
+    last_event_id = request.headers.get('Last-Event-ID') or request.args.get('last_event_id')
+    
+    subscription, replay = event_bus.subscribe(last_event_id)
+    
+    def matches(event):
+        data = event['data']
+        return (data.get('school_id') == school_id and
+                (not class_id or data.get('class_id') == class_id) and
+                (not date or data.get('date') == date))
+    
+    def generate():
+        try:
+            yield "retry: 3000\n\n"
+            for event in replay:
+                if event['type'] == 'reset' or matches(event):
+                    yield EventBus.format_sse(event)
+            while not subscription.closed:
+                event = subscription.next_event(EVENT_HEARTBEAT_SECONDS)
+                if event is None:
+                    yield ": keep-alive\n\n"
+                elif matches(event):
+                    yield EventBus.format_sse(event)
+        finally:
+            event_bus.unsubscribe(subscription)
+    
+    return Response(stream_with_context(generate()), mimetype='text/event-stream',
+                    headers={'Cache-Control': 'no-cache', 'X-Accel-Buffering': 'no'})
+
+@app.route('/api/attendance_changes', methods=['GET'])
+def get_attendance_changes():
+    """
+    Read the school's attendance changes after a cursor, oldest first, optionally
+    long-polling until there is one
+    
+    Consumers keep the cursor of each response and pass it to the next. Without one
+    they start from the beginning of the log; a cursor from another node's log, such
+    as one the school has moved away from, is answered with 410 and means starting over.
+    """
+    try:
+        after = attendance_log.parse_cursor(request.args.get('cursor'))
+        limit = min(max(request.args.get('limit', DEFAULT_CHANGES_LIMIT, type=int), 1), MAX_CHANGES_LIMIT)
+        wait = min(max(request.args.get('wait', 0, type=float), 0), MAX_CHANGES_WAIT_SECONDS)
+        school_id = current_school()
+        
+        changes, scanned = attendance_log.read(after, limit, predicate=lambda e: e['school_id'] == school_id,
+                                               wait=wait)
+        return jsonify({
+            "success": True,
+            "changes": changes,
+            "cursor": attendance_log.cursor(scanned),
+            "more": scanned < attendance_log.last_seq
+        })
+    except CursorError as e:
+        return jsonify({"success": False, "error": str(e)}), 410
+    except Exception as e:
+        logger.error(f"Error reading attendance changes: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 500
+
 @app.route('/api/manual_attendance', methods=['POST'])
+@idempotent
 def manual_attendance():
-    """Manually mark attendance for a student"""
+    """
+    Manually mark attendance for a student
+    
+    With expected_seq, the seq of the record the teacher saw (0 if none), the mark is
+    refused with 409 and the current record if someone else changed it since.
+    """
     try:
         data = request.json
         student_id = data.get('student_id')
         class_id = data.get('class_id')
         date = data.get('date')
         status = data.get('status', True)  # Default to present
+        expected_seq = data.get('expected_seq')
         
         if not all([student_id, class_id, date]):
             return jsonify({"success": False, "error": "Missing required fields"}), 400
+        if expected_seq is not None and (not isinstance(expected_seq, int) or isinstance(expected_seq, bool)):
+            return jsonify({"success": False, "error": "expected_seq must be an integer"}), 400
         
         # Update attendance record
-        attendance = Attendance.update_or_create(
-            student_id=student_id,
-            class_id=class_id,
-            date=date,
-            status=status
-        )
+        attendance = attendance_service.manual_attendance(student_id, class_id, date, status, expected_seq)
         
         return jsonify({"success": True, "attendance": attendance})
+    except ConflictError as e:
+        return jsonify({"success": False, "error": str(e), "conflict": True, "attendance": e.record}), 409
     except Exception as e:
         logger.error(f"Error marking manual attendance: {str(e)}")
         return jsonify({"success": False, "error": str(e)}), 500
@@ -175,19 +600,13 @@ def get_attendance_report():
         if not all([class_id, date]):
             return jsonify({"success": False, "error": "Missing required fields"}), 400
         
-        attendance_records = Attendance.get_by_class_and_date(class_id, date)
-        
-        # Fetch student details for each attendance record
-        detailed_records = []
-        for record in attendance_records:
-            student = Student.get(record['student_id'])
-            if student:
-                detailed_records.append({
-                    **record,
-                    'student_name': student['name']
-                })
+        # Check finality before building, so a report marked final is at least as
+        # new as the last write the check saw
+        final = report_is_final(class_id, date)
+        detailed_records, report_digest = report_service.class_report(class_id, date)
         
-        return jsonify({"success": True, "attendance_records": detailed_records})
+        return cacheable_response({"success": True, "attendance_records": detailed_records}, report_digest,
+                                  FINAL_REPORT_CACHE_SECONDS if final else 0)
     except Exception as e:
         logger.error(f"Error fetching attendance report: {str(e)}")
         return jsonify({"success": False, "error": str(e)}), 500
@@ -201,17 +620,119 @@ def get_student_attendance_report():
         if not student_id:
             return jsonify({"success": False, "error": "Missing student ID"}), 400
         
-        attendance_records = Attendance.get_by_student(student_id)
+        # Any day's records may change, so clients always revalidate
+        attendance_records, report_digest = report_service.student_report(student_id)
         
-        return jsonify({"success": True, "attendance_records": attendance_records})
+        return cacheable_response({"success": True, "attendance_records": attendance_records}, report_digest)
     except Exception as e:
         logger.error(f"Error fetching student attendance report: {str(e)}")
         return jsonify({"success": False, "error": str(e)}), 500
 
 @app.route('/uploads/<path:filename>')
 def uploaded_file(filename):
-    """Serve uploaded files"""
+    """Serve photos saved as loose files before the photo store"""
     return send_from_directory('uploads', filename)
 
+@app.route(f'/{PHOTO_PREFIX}<name>')
+def stored_photo(name):
+    """Serve a photo from the photo store"""
+    try:
+        reader = photo_store.open(PHOTO_PREFIX + name)
+    except PhotoNotFoundError:
+        abort(404)
+    
+    # The reader exposes the segment file positioned at the photo, so servers with
+    # sendfile support stream it without copying it through Python
+    response = Response(wrap_file(request.environ, reader), mimetype='image/jpeg', direct_passthrough=True)
+    response.content_length = reader.length
+    response.set_etag(name)
+    response.cache_control.public = True
+    response.cache_control.max_age = PHOTO_CACHE_SECONDS
+    response.cache_control.immutable = True
+    return response.make_conditional(request)
+
+@app.route('/internal/schools', methods=['GET'])
+def list_shard_schools():
+    """List the schools this node holds"""
+    require_cluster_token()
+    try:
+        return jsonify({"success": True, "schools": shard_service.list_schools()})
+    except Exception as e:
+        logger.error(f"Error listing schools: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 500
+
+@app.route('/internal/schools/<school_id>/export', methods=['GET'])
+def export_shard_school(school_id):
+    """Export a school's records to move it to another node"""
+    require_cluster_token()
+    try:
+        bundle = shard_service.export_school(school_id)
+        # Always CBOR: face encodings are large, and the router reads nothing else
+        return Response(cbor_dumps(bundle), mimetype=CBOR_MIMETYPE)
+    except SchoolBusyError as e:
+        return jsonify({"success": False, "error": str(e)}), 409
+    except Exception as e:
+        logger.error(f"Error exporting school {school_id}: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 500
+
+@app.route(f'/internal/{PHOTO_PREFIX}<name>', methods=['PUT'])
+def stage_shard_photo(name):
+    """Store a photo of a school moving to this node"""
+    require_cluster_token()
+    try:
+        shard_service.stage_photo(PHOTO_PREFIX + name, request.get_data())
+        return jsonify({"success": True})
+    except ValueError as e:
+        return jsonify({"success": False, "error": str(e)}), 400
+    except Exception as e:
+        logger.error(f"Error storing photo {name}: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 500
+
+@app.route('/internal/cold/<key>', methods=['GET'])
+def read_shard_cold_object(key):
+    """Read a cold original of a school moving to another node"""
+    require_cluster_token()
+    try:
+        return Response(shard_service.read_cold_object(key), mimetype='image/jpeg')
+    except FileNotFoundError:
+        abort(404)
+
+@app.route('/internal/cold/<key>', methods=['PUT'])
+def stage_shard_cold_object(key):
+    """Store a cold original of a school moving to this node"""
+    require_cluster_token()
+    try:
+        shard_service.stage_cold_object(key, request.get_data())
+        return jsonify({"success": True})
+    except Exception as e:
+        logger.error(f"Error storing cold original {key}: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 500
+
+@app.route('/internal/schools/<school_id>/import', methods=['POST'])
+def import_shard_school(school_id):
+    """Take over a school exported from another node, once its photos are stored"""
+    require_cluster_token()
+    try:
+        data = request.json
+        results = shard_service.import_school(school_id, data['bundle'], data.get('staged_paths', []))
+        return jsonify({"success": True, **results})
+    except ValueError as e:
+        logger.warning(f"Rejected import of school {school_id}: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 409
+    except Exception as e:
+        logger.error(f"Error importing school {school_id}: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 500
+
+@app.route('/internal/schools/<school_id>', methods=['DELETE'])
+def delete_shard_school(school_id):
+    """Drop a school that has moved to another node"""
+    require_cluster_token()
+    try:
+        results = shard_service.delete_school(school_id)
+        return jsonify({"success": True, **results})
+    except Exception as e:
+        logger.error(f"Error deleting school {school_id}: {str(e)}")
+        return jsonify({"success": False, "error": str(e)}), 500
+
 if __name__ == '__main__':
     app.run(host='0.0.0.0', port=5000, debug=True)
@@ -0,0 +1,367 @@
+#!/usr/bin/env python3
+# Append-only log of attendance changes for the Attendance System
+#
+# Every change to an attendance record is appended here before the record is written:
+# a student's first mark for a class and date, a correction to the other status, or
+# a deletion, with when it happened and what made it. The records in attendance.json
+# are a projection of the log. Each carries the sequence number of the event that
+# last wrote it, so a restart replays whatever the file missed. Consumers such as
+# analytics jobs tail the log from a cursor instead of copying the whole file.
+#
+#   segments/segment-NNNNNNNNNNNN.log   events from sequence number N on, each an
+#                                       EVENT_HEADER_FORMAT header and a JSON body
+#   log_id                              names this log; cursors name the log they came from
+import os
+import json
+import uuid
+import zlib
+import time
+import struct
+import bisect
+import logging
+import threading
+
+logger = logging.getLogger(__name__)
+
+LOG_DIR = os.path.join('data', 'attendance_log')
+
+# Event types
+MARK = 'mark'
+CORRECTION = 'correction'
+DELETION = 'deletion'
+
+# Event sources: photo recognition (absences included), a teacher's manual mark, and
+# records arriving or leaving with their school, or found when the log was started
+RECOGNITION = 'recognition'
+MANUAL = 'manual'
+MIGRATION = 'migration'
+
+# seq, body length, CRC32 of the body
+EVENT_HEADER_FORMAT = '<QII'
+EVENT_HEADER_SIZE = struct.calcsize(EVENT_HEADER_FORMAT)
+
+# A segment is sealed and a new one started once it reaches this size
+SEGMENT_SIZE = 64 * 1024 * 1024
+# The offset of every Nth event of a segment is kept in memory, so a read from a
+# cursor scans at most this many events before reaching it
+INDEX_INTERVAL = 256
+# Bytes read from a segment at a time
+READ_CHUNK = 1024 * 1024
+# Most events a read looks at, matching or not, so a filtered read of a long log
+# returns in bounded time; its cursor moves past the events it skipped
+MAX_SCAN_EVENTS = 100000
+
+class CursorError(ValueError):
+    """Raised when a cursor is malformed or was issued by another log"""
+    pass
+
+class _Segment:
+    __slots__ = ('first_seq', 'count', 'size', 'offsets', 'file')
+    
+    def __init__(self, first_seq, file):
+        self.first_seq = first_seq
+        self.count = 0
+        self.size = 0
+        self.offsets = []
+        self.file = file
+
+class AttendanceLog:
+    def __init__(self, root=LOG_DIR, segment_size=SEGMENT_SIZE):
+        """
+        Open the log, scanning its segments, and truncate a torn write at its end
+        
+        Args:
+            root (str): Directory holding the segments
+            segment_size (int): Size at which the active segment is sealed
+        """
+        self.root = root
+        self.segment_size = segment_size
+        self._segments_dir = os.path.join(root, 'segments')
+        os.makedirs(self._segments_dir, exist_ok=True)
+        
+        id_path = os.path.join(root, 'log_id')
+        if not os.path.exists(id_path):
+            with open(id_path, 'w') as f:
+                f.write(uuid.uuid4().hex[:12])
+        with open(id_path, 'r') as f:
+            self.log_id = f.read().strip()
+        
+        self._lock = threading.Lock()
+        # Readers waiting for events are woken by append()
+        self._appended = threading.Condition(self._lock)
+        self._segments = []
+        self._next_seq = 1
+        
+        self._load()
+        
+        if not self._segments:
+            self._segments.append(self._open_segment(1))
+        self._active_file = open(self._segment_path(self._segments[-1].first_seq), 'ab', buffering=0)
+    
+    @property
+    def last_seq(self):
+        """Sequence number of the last event, 0 if there is none"""
+        with self._lock:
+            return self._next_seq - 1
+    
+    def append(self, events):
+        """
+        Append events in one write
+        
+        Args:
+            events (list): Event dicts without a sequence number
+        
+        Returns:
+            list: The events as stored, each with its 'seq'
+        """
+        stored = []
+        with self._lock:
+            pending = bytearray()
+            for event in events:
+                event = {'seq': self._next_seq, **event}
+                body = json.dumps(event, separators=(',', ':')).encode('utf-8')
+                
+                segment = self._segments[-1]
+                if segment.count > 0 and segment.size + len(pending) + EVENT_HEADER_SIZE + len(body) > self.segment_size:
+                    self._write(pending)
+                    pending = bytearray()
+                    self._roll()
+                    segment = self._segments[-1]
+                
+                if segment.count % INDEX_INTERVAL == 0:
+                    segment.offsets.append(segment.size + len(pending))
+                pending += struct.pack(EVENT_HEADER_FORMAT, event['seq'], len(body), zlib.crc32(body)) + body
+                segment.count += 1
+                self._next_seq += 1
+                stored.append(event)
+            
+            self._write(pending)
+            self._appended.notify_all()
+        return stored
+    
+    def read(self, after=0, limit=1000, predicate=None, wait=0):
+        """
+        Read events after a sequence number, oldest first
+        
+        Args:
+            after (int): Sequence number of the last event already seen
+            limit (int): Most events to return
+            predicate (callable): Returns whether to include an event, e.g. one school's
+            wait (float): Seconds to wait for a matching event if there is none yet
+        
+        Returns:
+            tuple: The events, and the sequence number to read after next time; it
+                   passes events the predicate skipped
+        """
+        deadline = time.monotonic() + wait
+        while True:
+            events, scanned = self._read(after, limit, predicate)
+            remaining = deadline - time.monotonic()
+            if events or remaining <= 0:
+                return events, scanned
+            after = scanned
+            with self._lock:
+                if self._next_seq - 1 <= after:
+                    self._appended.wait(remaining)
+    
+    def replay(self, after=0):
+        """
+        Iterate over every event after a sequence number, oldest first
+        
+        Yields:
+            dict: Each event
+        """
+        while True:
+            events, scanned = self._read(after, MAX_SCAN_EVENTS, None)
+            if not events:
+                return
+            yield from events
+            after = scanned
+    
+    def cursor(self, seq):
+        """Opaque cursor to resume reading after a sequence number"""
+        return f"{self.log_id}-{seq}"
+    
+    def parse_cursor(self, cursor):
+        """
+        Get the sequence number a cursor resumes after; no cursor starts at the beginning
+        
+        Raises:
+            CursorError: If the cursor is malformed or came from another log, e.g. one
+                         on the node a school moved away from
+        """
+        if not cursor:
+            return 0
+        log_id, _, seq = cursor.rpartition('-')
+        if log_id != self.log_id:
+            raise CursorError("Cursor is from another change log; read again without one")
+        try:
+            return int(seq)
+        except ValueError:
+            raise CursorError(f"Invalid cursor {cursor}")
+    
+    def stats(self):
+        """
+        Get the log's size
+        
+        Returns:
+            dict: Events, segments and bytes
+        """
+        with self._lock:
+            return {
+                'events': self._next_seq - 1,
+                'segments': len(self._segments),
+                'bytes': sum(segment.size for segment in self._segments)
+            }
+    
+    def close(self):
+        """Close the log's files"""
+        with self._lock:
+            self._active_file.close()
+            for segment in self._segments:
+                segment.file.close()
+    
+    def _read(self, after, limit, predicate):
+        with self._lock:
+            last_seq = self._next_seq - 1
+            if after >= last_seq:
+                return [], after
+            # Sealed segments don't change, and the active one only grows; events
+            # appended after this point are left for the next read
+            first_seqs = [segment.first_seq for segment in self._segments]
+            start = max(bisect.bisect_right(first_seqs, after + 1) - 1, 0)
+            segments = [(segment, segment.size) for segment in self._segments[start:]]
+        
+        events = []
+        scanned = after
+        for segment, end in segments:
+            index = max(after + 1 - segment.first_seq, 0) // INDEX_INTERVAL
+            if index >= len(segment.offsets):
+                continue
+            for seq, body in self._scan(segment, segment.offsets[index], end):
+                if seq <= after:
+                    continue
+                scanned = seq
+                event = json.loads(body)
+                if predicate is None or predicate(event):
+                    events.append(event)
+                    if len(events) >= limit:
+                        return events, scanned
+                if scanned - after >= MAX_SCAN_EVENTS or scanned >= last_seq:
+                    return events, scanned
+        return events, scanned
+    
+    @staticmethod
+    def _scan(segment, offset, end):
+        """Yield (seq, body) of a segment's events from a byte offset up to end"""
+        buffer = b''
+        at = 0
+        position = offset
+        while True:
+            if len(buffer) - at >= EVENT_HEADER_SIZE:
+                seq, length, _ = struct.unpack_from(EVENT_HEADER_FORMAT, buffer, at)
+                if len(buffer) - at >= EVENT_HEADER_SIZE + length:
+                    yield seq, buffer[at + EVENT_HEADER_SIZE:at + EVENT_HEADER_SIZE + length]
+                    at += EVENT_HEADER_SIZE + length
+                    continue
+            if position >= end:
+                return
+            chunk = os.pread(segment.file.fileno(), min(READ_CHUNK, end - position), position)
+            position += len(chunk)
+            buffer = buffer[at:] + chunk
+            at = 0
+    
+    def _write(self, data):
+        """Append bytes to the active segment. Caller holds the lock."""
+        if data:
+            self._active_file.write(data)
+            self._segments[-1].size += len(data)
+    
+    def _roll(self):
+        """Seal the active segment and start the next. Caller holds the lock."""
+        self._active_file.close()
+        self._segments.append(self._open_segment(self._next_seq))
+        self._active_file = open(self._segment_path(self._next_seq), 'ab', buffering=0)
+    
+    def _open_segment(self, first_seq):
+        path = self._segment_path(first_seq)
+        open(path, 'ab').close()
+        return _Segment(first_seq, open(path, 'rb', buffering=0))
+    
+    def _load(self):
+        """Scan the segments, checking every event, and truncate a torn write at the end"""
+        numbers = sorted(int(name[8:20]) for name in os.listdir(self._segments_dir)
+                         if name.startswith('segment-') and name.endswith('.log'))
+        for first_seq in numbers:
+            path = self._segment_path(first_seq)
+            with open(path, 'rb') as f:
+                data = f.read()
+            
+            segment = _Segment(first_seq, None)
+            valid = 0
+            while valid + EVENT_HEADER_SIZE <= len(data):
+                seq, length, checksum = struct.unpack_from(EVENT_HEADER_FORMAT, data, valid)
+                body = data[valid + EVENT_HEADER_SIZE:valid + EVENT_HEADER_SIZE + length]
+                if seq != first_seq + segment.count or len(body) < length or zlib.crc32(body) != checksum:
+                    break
+                if segment.count % INDEX_INTERVAL == 0:
+                    segment.offsets.append(valid)
+                segment.count += 1
+                valid += EVENT_HEADER_SIZE + length
+            
+            if valid < len(data):
+                # A torn write from a crash; the events after it never completed
+                logger.warning(f"Truncating attendance log segment {path} at byte {valid} of {len(data)}")
+                with open(path, 'r+b') as f:
+                    f.truncate(valid)
+            segment.size = valid
+            segment.file = open(path, 'rb', buffering=0)
+            self._segments.append(segment)
+            self._next_seq = first_seq + segment.count
+            if valid < len(data):
+                # Anything in later segments followed the torn write
+                for later in numbers[numbers.index(first_seq) + 1:]:
+                    os.remove(self._segment_path(later))
+                break
+        
+        logger.info(f"Loaded attendance log {self.root}: {self._next_seq - 1} events in {len(self._segments)} segments")
+    
+    def _segment_path(self, first_seq):
+        return os.path.join(self._segments_dir, f"segment-{first_seq:012d}.log")
+
+def apply_events(records, events):
+    """
+    Apply events to attendance records, as the projection in attendance.json does
+    
+    Args:
+        records (list): Attendance records; not modified
+        events (list): Events in log order
+    
+    Returns:
+        list: The records after the events, new ones last
+    """
+    by_key = {(r['student_id'], r['class_id'], r['date']): r for r in records}
+    for event in events:
+        key = (event['student_id'], event['class_id'], event['date'])
+        if event['type'] == DELETION:
+            by_key.pop(key, None)
+            continue
+        
+        record = by_key.get(key)
+        if record is None:
+            record = {
+                # Random rather than a timestamp, so records written in the same
+                # second keep distinct IDs
+                'id': uuid.uuid4().hex,
+                'student_id': event['student_id'],
+                'class_id': event['class_id'],
+                'date': event['date'],
+                'status': event['status'],
+                'created_at': event['at']
+            }
+        else:
+            record = {**record, 'status': event['status'], 'updated_at': event['at']}
+        if event.get('seq') is not None:
+            record['seq'] = event['seq']
+        by_key[key] = record
+    return list(by_key.values())
@@ -1,24 +1,51 @@
 #!/usr/bin/env python3
 # Attendance Service for the Attendance System
+import os
 import logging
+import contextlib
 from datetime import datetime
-from models import Student, Attendance
+from models import Student, Class, Attendance, DEFAULT_SCHOOL
+from face_recognition_service import MATCH_THRESHOLD
+from attendance_log import apply_events, MARK, CORRECTION, DELETION, RECOGNITION, MANUAL, MIGRATION
+from clip_sampler import ClipFrames, sample_clip
+from attendance_store import AttendanceStore, ConflictError, DEFAULT_STRIPES
 
 logger = logging.getLogger(__name__)
 
 class AttendanceService:
-    def __init__(self, face_recognition_service):
+    def __init__(self, face_recognition_service, event_bus=None, photo_retention=None, calibration=None,
+                 reports=None, change_log=None, photo_store=None, stripes=DEFAULT_STRIPES):
         """Initialize the attendance service"""
         self.face_recognition_service = face_recognition_service
+        self.event_bus = event_bus
+        # Every change is appended here before the records are written, which makes
+        # them its projection (attendance_log.AttendanceLog)
+        self.change_log = change_log
+        # Told of every write, so cached reports of the class and date are rebuilt
+        self.reports = reports
+        # Sets match thresholds per class and camera, and learns from manual marks
+        self.calibration = calibration
+        # Records each classroom photo so it can be downsampled once attendance is final
+        self.photo_retention = photo_retention
+        # Keeps the last frame sampled from each clip, which stands in for its photo
+        self.photo_store = photo_store
+        if change_log is not None:
+            self._catch_up()
+        # The records, in memory; writes to a class and date hold its stripe, so
+        # concurrent workers don't lose each other's updates but other classes go on
+        self._store = AttendanceStore(change_log, stripes)
     
-    def process_attendance(self, class_id, image_path, date=None):
+    def process_attendance(self, class_id, image_path, date=None, face_locations=None, camera_id=None, clip=False):
         """
         Process attendance from a classroom photo
         
         Args:
             class_id (str): The ID of the class
-            image_path (str): Path to the classroom photo
+            image_path (str): Path to the classroom photo, or to the clip if clip is set
             date (str): Date for the attendance record (default: today)
+            face_locations (list): Face boxes already detected by the client, if any
+            camera_id (str): The device that took the photo, if known
+            clip (bool): Whether image_path is a short video clip rather than a photo
         
         Returns:
             dict: Dictionary with attendance results
@@ -29,49 +56,27 @@ class AttendanceService:
         logger.info(f"Processing attendance for class {class_id} on {date}")
         
         # Get all students in the class
-        class_students = Student.get_by_class(class_id)
-        student_ids = [s['student_id'] for s in class_students]
+        school_id = Class.school_of(class_id)
+        school_students = Student.get_by_school(school_id)
+        student_names = {s['student_id']: s['name'] for s in school_students if s['class_id'] == class_id}
         
-        # Recognize faces in the image
-        recognition_results = self.face_recognition_service.recognize_faces(image_path)
+        # Recognize faces in the image, against the students of the class's school
+        recognition_results = self._recognize(class_id, camera_id, image_path, face_locations, school_students,
+                                              student_names, clip)
         recognized_students = recognition_results['recognized_students']
         unrecognized_faces = recognition_results['unrecognized_faces']
         
-        # Record attendance for recognized students
-        attendance_records = []
-        present_student_ids = set()
-        
-        for student in recognized_students:
-            student_id = student['student_id']
-            if student_id in student_ids:
-                # Create attendance record (present)
-                try:
-                    attendance_record = Attendance.update_or_create(
-                        student_id=student_id,
-                        class_id=class_id,
-                        date=date,
-                        status=True  # Present
-                    )
-                    attendance_records.append(attendance_record)
-                    present_student_ids.add(student_id)
-                    logger.info(f"Marked student {student_id} as present")
-                except Exception as e:
-                    logger.error(f"Error marking attendance for student {student_id}: {str(e)}")
-        
-        # Mark absent for students not recognized in the photo
-        for student_id in student_ids:
-            if student_id not in present_student_ids:
-                try:
-                    attendance_record = Attendance.update_or_create(
-                        student_id=student_id,
-                        class_id=class_id,
-                        date=date,
-                        status=False  # Absent
-                    )
-                    attendance_records.append(attendance_record)
-                    logger.info(f"Marked student {student_id} as absent")
-                except Exception as e:
-                    logger.error(f"Error marking absence for student {student_id}: {str(e)}")
+        try:
+            with self._store.hold(class_id, date):
+                attendance_records = self._record_attendance(class_id, date, school_id, student_names,
+                                                             recognized_students)
+            
+            recapture = self._observe(class_id, camera_id, date, student_names, recognized_students,
+                                      unrecognized_faces, {s['student_id'] for s in recognized_students})
+            
+            self._track_photo(class_id, date, image_path, recognition_results)
+        finally:
+            self._release_frame(recognition_results)
         
         logger.info(f"Processed attendance for {len(attendance_records)} students")
         
@@ -79,10 +84,363 @@ class AttendanceService:
             "attendance": attendance_records,
             "recognized_students": recognized_students,
             "unrecognized_faces": unrecognized_faces,
-            "processed_image_path": recognition_results.get('processed_image_path')
+            "processed_image_path": recognition_results.get('processed_image_path'),
+            "clip": recognition_results.get('clip'),
+            **recapture
+        }
+    
+    def _recognize(self, class_id, camera_id, image_path, face_locations, school_students, student_names, clip):
+        """Recognize the faces of a photo or clip against the students of the class's school"""
+        threshold = self._threshold(class_id, camera_id)
+        candidate_ids = [s['student_id'] for s in school_students]
+        if not clip:
+            return self.face_recognition_service.recognize_faces(image_path, face_locations, threshold,
+                                                                 candidate_ids=candidate_ids)
+        
+        def identify(frame_path, boxes):
+            results = self.face_recognition_service.recognize_faces(frame_path, boxes, threshold,
+                                                                    candidate_ids=candidate_ids)
+            matches = [None] * len(boxes)
+            for student in results['recognized_students']:
+                matches[student['face_index']] = (student['student_id'], student['confidence'])
+            for face in results['unrecognized_faces']:
+                if face.get('candidate_student_id') is not None:
+                    matches[face['face_index']] = (face['candidate_student_id'], face['confidence'])
+            return matches
+        
+        # The clip itself is not kept; its last sampled frame is, as the take's photo
+        frames = ClipFrames(image_path)
+        try:
+            sampled = sample_clip(frames, self.face_recognition_service.detect_faces, identify, student_names.keys(),
+                                  threshold)
+            photo_path = None
+            if self.photo_store is not None:
+                with open(sampled['last_frame'], 'rb') as f:
+                    photo_path = self.photo_store.put(f.read())
+        finally:
+            frames.close()
+            os.remove(image_path)
+        
+        logger.info(f"Sampled {sampled['frames_sampled']} of {sampled['frame_count']} frames of clip for class "
+                    f"{class_id}: {len(sampled['recognized'])} of {len(student_names)} recognized")
+        
+        recognized_students = [{
+            'face_index': i,
+            'student_id': student_id,
+            'name': student_names[student_id],
+            'confidence': match['confidence'],
+            'location': match['location'],
+            'frame_ms': match['frame_ms']
+        } for i, (student_id, match) in enumerate(sampled['recognized'].items())]
+        unrecognized_faces = [{
+            'face_index': len(recognized_students) + i,
+            'location': face['location'],
+            'confidence': face['match'][1],
+            'candidate_student_id': face['match'][0]
+        } for i, face in enumerate(sampled['unrecognized'])]
+        
+        return {
+            'recognized_students': recognized_students,
+            'unrecognized_faces': unrecognized_faces,
+            'photo_path': photo_path,
+            # Faces as they were in the kept frame, for retention's crops
+            'photo_faces': sampled['last_frame_faces'],
+            'clip': {
+                'frames_sampled': sampled['frames_sampled'],
+                'frame_count': sampled['frame_count'],
+                'identifications': sampled['identifications'],
+                'complete': sampled['complete'],
+                'end_ms': sampled['last_frame_ms']
+            }
+        }
+    
+    def _track_photo(self, class_id, date, image_path, recognition_results, session_id=None):
+        """Have retention keep the take's photo; for a clip, the frame kept in its place"""
+        if self.photo_retention is None:
+            return
+        if 'clip' not in recognition_results:
+            self.photo_retention.track(class_id, date, image_path, recognition_results['recognized_students'],
+                                       recognition_results['unrecognized_faces'], session_id=session_id)
+        elif recognition_results['photo_path'] is not None:
+            faces = recognition_results['photo_faces']
+            self.photo_retention.track(class_id, date, recognition_results['photo_path'],
+                                       [f for f in faces if f['student_id'] is not None],
+                                       [f for f in faces if f['student_id'] is None], session_id=session_id)
+    
+    def _release_frame(self, recognition_results):
+        """Drop the reference a clip's kept frame was stored with; retention holds its own"""
+        if recognition_results.get('photo_path') is not None:
+            self.photo_store.delete(recognition_results['photo_path'])
+    
+    @contextlib.contextmanager
+    def hold_writes(self):
+        """Hold off every write of attendance records while they are rewritten elsewhere"""
+        with self._store.hold_all():
+            try:
+                yield
+            finally:
+                self._store.load()
+    
+    def log_school_records(self, school_id, removed, added):
+        """
+        Log a school's attendance records leaving or arriving as it moves between
+        nodes; call it holding hold_writes(), once the records were rewritten
+        
+        Args:
+            school_id (str): The school
+            removed (list): The school's records deleted here
+            added (list): Records imported; their sequence numbers are from the log
+                          of the node they came from, and are replaced
+        """
+        if self.change_log is None:
+            return
+        events = self.change_log.append([self._migration_event(DELETION, r, school_id) for r in removed] +
+                                        [self._migration_event(MARK, r, school_id) for r in added])
+        if added:
+            stamped = {(e['student_id'], e['class_id'], e['date']): e['seq'] for e in events if e['type'] == MARK}
+            records = []
+            for record in Attendance.get_all():
+                key = (record['student_id'], record['class_id'], record['date'])
+                records.append({**record, 'seq': stamped[key]} if key in stamped else record)
+            Attendance.save_all(records)
+        logger.info(f"Logged {len(removed)} attendance records leaving and {len(added)} arriving "
+                    f"with school {school_id}")
+    
+    def _catch_up(self):
+        """
+        Bring the records in line with the change log at startup: apply the events
+        written before a crash kept them from the records, or log the records already
+        there when the log is new
+        """
+        records = Attendance.get_all()
+        
+        if self.change_log.last_seq == 0:
+            if records:
+                school_of = {c['id']: c.get('school_id', DEFAULT_SCHOOL) for c in Class.get_all()}
+                events = self.change_log.append([
+                    self._migration_event(MARK, r, school_of.get(r['class_id'], DEFAULT_SCHOOL)) for r in records])
+                Attendance.save_all([{**record, 'seq': event['seq']} for record, event in zip(records, events)])
+                logger.info(f"Logged {len(events)} existing attendance records")
+            return
+        
+        # Records carry the event that last wrote them; deletions leave nothing
+        # behind, so those after it are applied again, which changes nothing
+        applied = max((r.get('seq', 0) for r in records), default=0)
+        missed = list(self.change_log.replay(applied))
+        if missed:
+            Attendance.save_all(apply_events(records, missed))
+            logger.info(f"Applied {len(missed)} logged attendance changes missing from the records")
+    
+    @staticmethod
+    def _migration_event(event_type, record, school_id):
+        event = {
+            'type': event_type,
+            'at': datetime.now().isoformat(),
+            'source': MIGRATION,
+            'school_id': school_id,
+            'class_id': record['class_id'],
+            'date': record['date'],
+            'student_id': record['student_id'],
+            'status': record['status']
+        }
+        if event_type == DELETION:
+            event['previous_status'] = record['status']
+        return event
+    
+    def _write(self, class_id, date, school_id, statuses, source, expected_seqs=None):
+        """
+        Write students' attendance for a class and date in one pass. Caller holds the
+        class and date's stripe.
+        
+        Changes are appended to the change log, then applied to the records: a
+        student's first mark, or a correction to the other status. Writing the
+        status a record already has changes nothing.
+        
+        Args:
+            statuses (dict): student_id -> True for present, False for absent
+            source (str): What made the changes, e.g. attendance_log.RECOGNITION
+            expected_seqs (dict): student_id -> the seq the client last saw of the
+                                  student's record, 0 for none; omitted students are
+                                  written whatever their record is
+        
+        Returns:
+            list: The students' records, in the order of statuses
+        
+        Raises:
+            ConflictError: If a record's seq is not the expected one and its status
+                           is not the one being written; nothing is written then
+        """
+        if not statuses:
+            return []
+        
+        current = self._store.records(class_id, date)
+        
+        for student_id, expected_seq in (expected_seqs or {}).items():
+            record = current.get(student_id)
+            if (record.get('seq', 0) if record else 0) != expected_seq and \
+                    (record is None or record['status'] != statuses[student_id]):
+                raise ConflictError(f"Attendance of {student_id} on {date} changed since version {expected_seq}",
+                                    record)
+        
+        now = datetime.now().isoformat()
+        events = []
+        for student_id, status in statuses.items():
+            record = current.get(student_id)
+            if record is not None and record['status'] == status:
+                continue
+            event = {
+                'type': MARK if record is None else CORRECTION,
+                'at': now,
+                'source': source,
+                'school_id': school_id,
+                'class_id': class_id,
+                'date': date,
+                'student_id': student_id,
+                'status': status
+            }
+            if record is not None:
+                event['previous_status'] = record['status']
+            events.append(event)
+        
+        if events:
+            self._store.commit(events)
+            self._changed(class_id, date)
+            current = self._store.records(class_id, date)
+        
+        return [current[student_id] for student_id in statuses]
+    
+    def _changed(self, class_id, date):
+        """Invalidate cached reports of a class and date after its records were written"""
+        if self.reports is not None:
+            self.reports.changed(class_id, date)
+    
+    def _threshold(self, class_id, camera_id):
+        """Match threshold for a class and camera"""
+        if self.calibration is None:
+            return MATCH_THRESHOLD
+        return self.calibration.threshold(class_id, camera_id)
+    
+    def _observe(self, class_id, camera_id, date, student_names, recognized_students, unrecognized_faces,
+                 present_student_ids):
+        """Add calibrated probabilities to a photo's faces and estimate the students it missed"""
+        if self.calibration is None:
+            return {"expected_missed": None, "recapture_suggested": None}
+        return self.calibration.observe(class_id, camera_id, date, student_names, recognized_students,
+                                        unrecognized_faces, present_student_ids)
+    
+    def _record_attendance(self, class_id, date, school_id, student_names, recognized_students):
+        """Write present/absent records for one processed photo"""
+        present_student_ids = set()
+        attendance_records = self._mark_present(class_id, date, school_id, student_names, recognized_students,
+                                                present_student_ids)
+        attendance_records.extend(self._mark_absent(class_id, date, school_id, student_names, present_student_ids))
+        return attendance_records
+    
+    def _mark_present(self, class_id, date, school_id, student_names, recognized_students, present_student_ids):
+        """Mark recognized students of the class present, adding them to present_student_ids"""
+        statuses = {s['student_id']: True for s in recognized_students
+                    if s['student_id'] in student_names and s['student_id'] not in present_student_ids}
+        
+        attendance_records = self._write(class_id, date, school_id, statuses, RECOGNITION)
+        for attendance_record in attendance_records:
+            present_student_ids.add(attendance_record['student_id'])
+            self._publish_mark(attendance_record, school_id, student_names[attendance_record['student_id']],
+                               'recognition')
+        logger.info(f"Marked {len(attendance_records)} students as present")
+        
+        return attendance_records
+    
+    def _mark_absent(self, class_id, date, school_id, student_names, present_student_ids):
+        """Mark every student of the class not in present_student_ids absent"""
+        statuses = {student_id: False for student_id in student_names if student_id not in present_student_ids}
+        
+        attendance_records = self._write(class_id, date, school_id, statuses, RECOGNITION)
+        for attendance_record in attendance_records:
+            self._publish_mark(attendance_record, school_id, student_names[attendance_record['student_id']],
+                               'recognition')
+        logger.info(f"Marked {len(attendance_records)} students as absent")
+        
+        return attendance_records
+    
+    def recognize_and_mark_present(self, class_id, image_path, date, present_student_ids, face_locations=None,
+                                   session_id=None, camera_id=None, clip=False):
+        """
+        Recognize faces in one photo of a multi-photo session and mark newly seen
+        students present, without marking anyone absent
+        
+        Args:
+            class_id (str): The ID of the class
+            image_path (str): Path to the classroom photo
+            date (str): Date for the attendance record
+            present_student_ids (set): Students already marked present in the session;
+                                       updated in place
+            face_locations (list): Face boxes already detected by the client, if any
+            session_id (str): The session the photo belongs to
+            camera_id (str): The device that took the photo, if known
+            clip (bool): Whether image_path is a short video clip rather than a photo
+        
+        Returns:
+            dict: Dictionary with the photo's recognition results and new records
+        """
+        school_id = Class.school_of(class_id)
+        school_students = Student.get_by_school(school_id)
+        student_names = {s['student_id']: s['name'] for s in school_students if s['class_id'] == class_id}
+        
+        recognition_results = self._recognize(class_id, camera_id, image_path, face_locations, school_students,
+                                              student_names, clip)
+        recognized_students = [s for s in recognition_results['recognized_students'] if s['student_id'] in student_names]
+        
+        try:
+            with self._store.hold(class_id, date):
+                attendance_records = self._mark_present(class_id, date, school_id, student_names,
+                                                        recognized_students, present_student_ids)
+            
+            recapture = self._observe(class_id, camera_id, date, student_names, recognized_students,
+                                      recognition_results['unrecognized_faces'], present_student_ids)
+            
+            self._track_photo(class_id, date, image_path, recognition_results, session_id=session_id)
+        finally:
+            self._release_frame(recognition_results)
+        
+        return {
+            "attendance": attendance_records,
+            "recognized_students": recognized_students,
+            "unrecognized_faces": recognition_results['unrecognized_faces'],
+            "clip": recognition_results.get('clip'),
+            **recapture
         }
     
-    def manual_attendance(self, student_id, class_id, date, status):
+    def finalize_absences(self, class_id, date, present_student_ids, session_id=None):
+        """
+        Mark every student of the class who was not seen in a session absent
+        
+        Students with a present record are left present: a photo still being merged when
+        the session closed may have marked them after present_student_ids was taken.
+        
+        Args:
+            class_id (str): The ID of the class
+            date (str): Date for the attendance record
+            present_student_ids (set): Students seen in any photo of the session
+            session_id (str): The session being closed, whose photos become final
+        
+        Returns:
+            list: The class's attendance records for the date
+        """
+        class_students = Student.get_by_class(class_id)
+        student_names = {s['student_id']: s['name'] for s in class_students}
+        school_id = Class.school_of(class_id)
+        
+        with self._store.hold(class_id, date):
+            already_present = {student_id for student_id, record in self._store.records(class_id, date).items()
+                               if record['status']}
+            self._mark_absent(class_id, date, school_id, student_names, set(present_student_ids) | already_present)
+            attendance_records = list(self._store.records(class_id, date).values())
+        
+        if self.photo_retention is not None and session_id is not None:
+            self.photo_retention.finalize_session(session_id)
+        return attendance_records
+    
+    def manual_attendance(self, student_id, class_id, date, status, expected_seq=None):
         """
         Manually mark attendance for a student
         
@@ -91,20 +449,47 @@ class AttendanceService:
             class_id (str): The ID of the class
             date (str): Date for the attendance record
             status (bool): True for present, False for absent
+            expected_seq (int): The seq of the record the teacher saw, 0 if there was
+                                none; None to write whatever the record is now
         
         Returns:
             dict: The attendance record
+        
+        Raises:
+            ConflictError: If the record changed since expected_seq to the other status
         """
         logger.info(f"Manually marking student {student_id} as {'present' if status else 'absent'}")
         
         try:
-            attendance_record = Attendance.update_or_create(
-                student_id=student_id,
-                class_id=class_id,
-                date=date,
-                status=status
-            )
+            school_id = Class.school_of(class_id)
+            with self._store.hold(class_id, date):
+                attendance_record = self._write(class_id, date, school_id, {student_id: status}, MANUAL,
+                                                None if expected_seq is None else {student_id: expected_seq})[0]
+            if self.calibration is not None:
+                self.calibration.correct(class_id, date, student_id, status)
+            student = Student.get(student_id)
+            self._publish_mark(attendance_record, school_id, student['name'] if student else None, 'manual')
             return attendance_record
+        except ConflictError as e:
+            logger.info(f"Manual mark rejected: {str(e)}")
+            raise
         except Exception as e:
             logger.error(f"Error manually marking attendance: {str(e)}")
             raise
+    
+    def _publish_mark(self, record, school_id, student_name, source):
+        """Push an attendance mark to event stream subscribers"""
+        if self.event_bus is None:
+            return
+        self.event_bus.publish('mark', {
+            # Subscribers only see their own school's marks
+            'school_id': school_id,
+            'class_id': record['class_id'],
+            'date': record['date'],
+            'student_id': record['student_id'],
+            'student_name': student_name,
+            'status': record['status'],
+            # The record's version, for a client to send back with a correction
+            'seq': record.get('seq'),
+            'source': source
+        })
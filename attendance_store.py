@@ -0,0 +1,170 @@
+#!/usr/bin/env python3
+# Attendance record store for the Attendance System
+#
+# attendance.json is a projection of the change log (attendance_log.py). Every write
+# used to hold one lock while it loaded the whole file, applied its marks and dumped the
+# file again, so one teacher's photo held up every other class of the school. The store
+# keeps the projection in memory instead, partitioned by class and date:
+#
+# - A write locks only its partition's stripe while it reads the current records and
+#   appends its events; writes to other classes and dates run alongside it.
+# - A record's seq, the log event that last wrote it, is its version. A write may
+#   require the version the client last saw, and fails with ConflictError if another
+#   write got there first, rather than silently overwriting it.
+# - The file is rewritten once for all the writes committed while the previous rewrite
+#   ran (group commit), before any of them returns, so readers of the file see every
+#   acknowledged write. A crash before the rewrite loses nothing: the records are caught
+#   up from the log at startup.
+import logging
+import threading
+import contextlib
+from models import Attendance
+from attendance_log import apply_events
+
+logger = logging.getLogger(__name__)
+
+# Locks partitions hash to; more stripes make two busy classes sharing one rarer
+DEFAULT_STRIPES = 64
+
+class ConflictError(Exception):
+    """Raised when a record changed since the version a write expected"""
+    def __init__(self, message, record=None):
+        super().__init__(message)
+        # The record as it is now, or None if there is none
+        self.record = record
+
+class StripedLock:
+    def __init__(self, stripes=DEFAULT_STRIPES):
+        """
+        A fixed set of locks that keys hash to, so unrelated keys rarely wait on each
+        other without a lock per key
+        
+        Args:
+            stripes (int): Number of locks
+        """
+        self._locks = [threading.Lock() for _ in range(max(1, stripes))]
+    
+    def __len__(self):
+        return len(self._locks)
+    
+    def lock_for(self, key):
+        """The lock a key hashes to"""
+        return self._locks[hash(key) % len(self._locks)]
+    
+    @contextlib.contextmanager
+    def hold_all(self):
+        """Hold every stripe, taken in order so two callers can't deadlock"""
+        with contextlib.ExitStack() as stack:
+            for lock in self._locks:
+                stack.enter_context(lock)
+            yield
+
+class AttendanceStore:
+    def __init__(self, change_log=None, stripes=DEFAULT_STRIPES):
+        """
+        Load the attendance records into memory
+        
+        Args:
+            change_log (AttendanceLog): Log events are appended to before they are
+                                        applied; without one, sequence numbers are
+                                        assigned here
+            stripes (int): Partition locks; 1 serializes every write
+        """
+        self.change_log = change_log
+        self._stripes = StripedLock(stripes)
+        # Serializes appending to the log with applying the events, so a snapshot
+        # holds every event up to the last one appended, and the highest seq in the
+        # file is where catching up starts
+        self._commit_lock = threading.Lock()
+        # (class_id, date) -> {student_id: record}; partitions are replaced, never
+        # modified, so a snapshot can be written out without holding the commit lock
+        self._partitions = {}
+        self._version = 0
+        self._flush_lock = threading.Lock()
+        self._flushed_version = 0
+        self._commits = 0
+        self._flushes = 0
+        self._next_seq = 1
+        self.load()
+    
+    def load(self):
+        """(Re)read the records from attendance.json, e.g. after it was rewritten elsewhere"""
+        partitions = {}
+        for record in Attendance.get_all():
+            partitions.setdefault((record['class_id'], record['date']), {})[record['student_id']] = record
+        with self._commit_lock:
+            self._partitions = partitions
+            self._next_seq = max((r.get('seq', 0) for p in partitions.values() for r in p.values()), default=0) + 1
+            self._version += 1
+            self._flushed_version = self._version
+    
+    def hold(self, class_id, date):
+        """Lock held while reading and writing the records of a class and date"""
+        return self._stripes.lock_for((class_id, date))
+    
+    def hold_all(self):
+        """Hold every stripe, e.g. to rewrite the file elsewhere; every commit is in it by then"""
+        return self._stripes.hold_all()
+    
+    def records(self, class_id, date):
+        """
+        Get the records of a class and date. Caller holds the stripe.
+        
+        Returns:
+            dict: student_id -> record
+        """
+        return self._partitions.get((class_id, date), {})
+    
+    def commit(self, events):
+        """
+        Append events to the log and apply them, returning once they are in the file.
+        Caller holds the stripes of the events' classes and dates.
+        
+        Returns:
+            list: The events as stored, each with its 'seq'
+        """
+        with self._commit_lock:
+            if self.change_log is not None:
+                events = self.change_log.append(events)
+            else:
+                events = [{'seq': self._next_seq + i, **event} for i, event in enumerate(events)]
+                self._next_seq += len(events)
+            
+            touched = {}
+            for event in events:
+                touched.setdefault((event['class_id'], event['date']), []).append(event)
+            for key, partition_events in touched.items():
+                records = apply_events(list(self._partitions.get(key, {}).values()), partition_events)
+                self._partitions[key] = {r['student_id']: r for r in records}
+            
+            self._version += 1
+            self._commits += 1
+            version = self._version
+        
+        self._flush(version)
+        return events
+    
+    def _flush(self, version):
+        """
+        Write the records to attendance.json unless a rewrite since the given version
+        already did; a writer that waited for another's rewrite usually finds its own
+        commit in it
+        """
+        with self._flush_lock:
+            if self._flushed_version >= version:
+                return
+            with self._commit_lock:
+                partitions = list(self._partitions.values())
+                version = self._version
+            if self._flushed_version >= version:
+                return
+            Attendance.save_all([record for partition in partitions for record in partition.values()])
+            self._flushed_version = version
+            self._flushes += 1
+    
+    def stats(self):
+        """
+        Returns:
+            dict: Commits made and file rewrites they took
+        """
+        return {'stripes': len(self._stripes), 'commits': self._commits, 'flushes': self._flushes}
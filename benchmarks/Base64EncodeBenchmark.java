@@ -0,0 +1,63 @@
+package com.example.attendancesystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base64 encoding of photo uploads as done in {@code CameraActivity.capturePhoto()} and
+ * {@code StudentListActivity.addStudent()}.
+ *
+ * android.util.Base64 is not available on the JVM; the MIME encoder produces the same
+ * 76-column wrapped output as {@code Base64.DEFAULT}, and the basic encoder matches
+ * {@code Base64.NO_WRAP}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64EncodeBenchmark {
+    
+    // Enrollment thumbnail, typical classroom JPEG, full 12MP JPEG at quality 90
+    @Param({"10", "1500", "4000"})
+    int photoKb;
+    
+    private byte[] jpeg;
+    private Base64.Encoder wrapped;
+    private Base64.Encoder unwrapped;
+    
+    @Setup
+    public void setUp() {
+        jpeg = BenchmarkData.jpegBytes(photoKb * 1024, 1);
+        wrapped = Base64.getMimeEncoder();
+        unwrapped = Base64.getEncoder();
+    }
+    
+    @Benchmark
+    public String encodeWrapped() {
+        return wrapped.encodeToString(jpeg);
+    }
+    
+    @Benchmark
+    public String encodeUnwrapped() {
+        return unwrapped.encodeToString(jpeg);
+    }
+    
+    @Benchmark
+    public byte[] encodeUnwrappedBytes() {
+        return unwrapped.encode(jpeg);
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.attendancesystem;
+
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic datasets shaped like the Flask API's responses.
+ */
+final class BenchmarkData {
+    
+    static final int STUDENTS_PER_CLASS = 30;
+    private static final String DATE = "2024-09-02";
+    private static final String[] FIRST_NAMES = {
+            "Aarav", "Priya", "Rohan", "Ananya", "Vikram", "Meera", "Arjun", "Diya", "Kabir", "Isha"
+    };
+    private static final String[] LAST_NAMES = {
+            "Sharma", "Patel", "Reddy", "Iyer", "Gupta", "Nair", "Singh", "Das", "Khan", "Joshi"
+    };
+    
+    private BenchmarkData() {
+    }
+    
+    static List<Map<String, Object>> classes(int studentCount) {
+        int classCount = Math.max(1, studentCount / STUDENTS_PER_CLASS);
+        List<Map<String, Object>> classes = new ArrayList<>(classCount);
+        for (int i = 0; i < classCount; i++) {
+            Map<String, Object> classData = new LinkedHashMap<>();
+            classData.put("id", String.valueOf(1700000000 + i));
+            classData.put("name", "Grade " + (i % 12 + 1) + " Section " + (char) ('A' + i / 12 % 26));
+            classData.put("created_at", "2024-08-01T09:00:00.000000");
+            classes.add(classData);
+        }
+        return classes;
+    }
+    
+    static List<Map<String, Object>> students(int studentCount, long seed) {
+        Random random = new Random(seed);
+        int classCount = Math.max(1, studentCount / STUDENTS_PER_CLASS);
+        List<Map<String, Object>> students = new ArrayList<>(studentCount);
+        for (int i = 0; i < studentCount; i++) {
+            String studentId = "S" + (100000 + i);
+            Map<String, Object> student = new LinkedHashMap<>();
+            student.put("id", i + 1);
+            student.put("name", FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+            student.put("student_id", studentId);
+            student.put("class_id", String.valueOf(1700000000 + random.nextInt(classCount)));
+            student.put("photo_path", "uploads/student_photos/" + studentId + ".jpg");
+            student.put("created_at", "2024-08-01T09:00:00.000000");
+            students.add(student);
+        }
+        return students;
+    }
+    
+    static List<Map<String, Object>> attendanceRecords(int studentCount, long seed) {
+        Random random = new Random(seed);
+        List<Map<String, Object>> records = new ArrayList<>(studentCount);
+        for (Map<String, Object> student : students(studentCount, seed)) {
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("id", String.valueOf(1725260000 + records.size()));
+            record.put("student_id", student.get("student_id"));
+            record.put("class_id", student.get("class_id"));
+            record.put("date", DATE);
+            record.put("status", random.nextInt(10) < 9);
+            record.put("created_at", DATE + "T08:05:12.123456");
+            record.put("student_name", student.get("name"));
+            records.add(record);
+        }
+        return records;
+    }
+    
+    /**
+     * Every attendance record of one class over a term of school days, as the daily
+     * reports return them.
+     */
+    static List<Map<String, Object>> termAttendanceRecords(int classSize, int days, long seed) {
+        Random random = new Random(seed);
+        List<Map<String, Object>> students = students(classSize, seed);
+        List<Map<String, Object>> records = new ArrayList<>(classSize * days);
+        for (int day = 0; day < days; day++) {
+            String date = String.format("2024-%02d-%02d", 9 + day / 20, 1 + day % 20);
+            for (Map<String, Object> student : students) {
+                Map<String, Object> record = new LinkedHashMap<>();
+                record.put("id", String.valueOf(1725260000 + records.size()));
+                record.put("student_id", student.get("student_id"));
+                record.put("class_id", "1700000000");
+                record.put("date", date);
+                record.put("status", random.nextInt(10) < 9);
+                record.put("created_at", String.format("%sT08:%02d:%02d.%06d", date, random.nextInt(30),
+                        random.nextInt(60), random.nextInt(1000000)));
+                record.put("student_name", student.get("name"));
+                records.add(record);
+            }
+        }
+        return records;
+    }
+    
+    static String studentsResponseJson(int studentCount, long seed) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("students", students(studentCount, seed));
+        return new Gson().toJson(response);
+    }
+    
+    static String attendanceReportJson(int studentCount, long seed) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("attendance_records", attendanceRecords(studentCount, seed));
+        return new Gson().toJson(response);
+    }
+    
+    /**
+     * Random bytes stand in for JPEG data: Base64 cost depends only on length, and
+     * compressed image data is close to incompressible anyway.
+     */
+    static byte[] jpegBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        bytes[0] = (byte) 0xFF;
+        bytes[1] = (byte) 0xD8;
+        return bytes;
+    }
+}
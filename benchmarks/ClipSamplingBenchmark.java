@@ -0,0 +1,96 @@
+package com.example.attendancesystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recognizing a synthetic 4-second, 30 fps clip of a class of 30: detecting and
+ * identifying every face of every frame versus {@link ClipSampler}.
+ *
+ * {@code moving} makes a third of the class sway, which makes the sampler sample more
+ * often; {@code absent} enrolled students who are not in the clip keep it from stopping
+ * early, so the clip is sampled to the end. Frames are decoded up front; only
+ * recognition is timed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ClipSamplingBenchmark {
+    
+    private static final int STUDENTS = 30;
+    private static final double SECONDS = 4;
+    // The server's default match threshold
+    private static final float THRESHOLD = 0.6f;
+    
+    @Param({"false", "true"})
+    boolean moving;
+    
+    @Param({"0", "2"})
+    int absent;
+    
+    private SyntheticClip clip;
+    private ClipSampler<SyntheticClip.Frame> sampler;
+    
+    @Setup
+    public void setUp() {
+        clip = new SyntheticClip(STUDENTS, absent, moving, SECONDS, 1);
+        sampler = new ClipSampler<>(SyntheticClip.FINDER, SyntheticClip.IDENTIFIER, THRESHOLD);
+        
+        // Sampling must recognize everyone recognizing every frame does
+        ClipSampler.Result all = everyFrame();
+        ClipSampler.Result sampled = sampled();
+        if (!sampled.getRecognized().keySet().equals(all.getRecognized().keySet())) {
+            throw new IllegalStateException("Sampling recognized " + sampled.getRecognized().size()
+                    + " students, every frame " + all.getRecognized().size());
+        }
+        System.out.println("\nEvery frame: " + all.getFramesSampled() + " frames, " + all.getIdentifications()
+                + " identifications; sampled: " + sampled.getFramesSampled() + " frames, "
+                + sampled.getIdentifications() + " identifications, stopped at " + sampled.getEndMillis()
+                + " ms; " + sampled.getRecognized().size() + " of " + clip.enrolled.size() + " recognized");
+    }
+    
+    @Benchmark
+    public ClipSampler.Result everyFrame() {
+        Map<String, ClipSampler.Match> recognized = new HashMap<>();
+        int identifications = 0;
+        for (int index = 0; index < clip.frameCount(); index++) {
+            SyntheticClip.Frame frame = clip.frame(index);
+            List<FaceBox> faces = SyntheticClip.FINDER.detect(frame);
+            for (FaceBox face : faces) {
+                ClipSampler.Match match = SyntheticClip.IDENTIFIER.identify(frame, face);
+                identifications++;
+                if (match != null && match.getConfidence() >= THRESHOLD) {
+                    ClipSampler.Match best = recognized.get(match.getStudentId());
+                    if (best == null || match.getConfidence() > best.getConfidence()) {
+                        recognized.put(match.getStudentId(), match);
+                    }
+                }
+            }
+        }
+        boolean complete = recognized.keySet().containsAll(clip.enrolled);
+        return new ClipSampler.Result(recognized, clip.frameCount(), identifications, complete,
+                clip.timestampMillis(clip.frameCount() - 1));
+    }
+    
+    @Benchmark
+    public ClipSampler.Result sampled() {
+        return sampler.recognize(clip, clip.enrolled);
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.attendancesystem;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gson decoding of {@code getStudents} and {@code getAttendanceReport} payloads into the
+ * {@code Map<String, Object>} shape {@link ApiService} declares, the same way
+ * GsonConverterFactory does, plus the conversion into the domain types. The conversions
+ * decode each payload's list with its own type token, as the rest of the payload is
+ * only the success flag.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonDecodeBenchmark {
+    
+    @Param({"100", "1000", "10000"})
+    int students;
+    
+    private TypeAdapter<Map<String, Object>> adapter;
+    private TypeAdapter<List<Map<String, Object>>> listAdapter;
+    private String studentsJson;
+    private String reportJson;
+    
+    @Setup
+    public void setUp() {
+        Gson gson = new Gson();
+        adapter = gson.getAdapter(new TypeToken<Map<String, Object>>() {});
+        listAdapter = gson.getAdapter(new TypeToken<List<Map<String, Object>>>() {});
+        studentsJson = BenchmarkData.studentsResponseJson(students, 1);
+        reportJson = BenchmarkData.attendanceReportJson(students, 1);
+    }
+    
+    @Benchmark
+    public Map<String, Object> decodeStudents() throws IOException {
+        return adapter.read(new JsonReader(new StringReader(studentsJson)));
+    }
+    
+    @Benchmark
+    public List<Student> decodeStudentsToDomain() throws IOException {
+        List<Map<String, Object>> studentsData = readList(studentsJson, "students");
+        List<Student> result = new ArrayList<>(studentsData.size());
+        for (Map<String, Object> studentData : studentsData) {
+            result.add(Student.fromMap(studentData));
+        }
+        return result;
+    }
+    
+    @Benchmark
+    public Map<String, Object> decodeAttendanceReport() throws IOException {
+        return adapter.read(new JsonReader(new StringReader(reportJson)));
+    }
+    
+    @Benchmark
+    public List<AttendanceMark> decodeAttendanceReportToDomain() throws IOException {
+        List<Map<String, Object>> recordsData = readList(reportJson, "attendance_records");
+        List<AttendanceMark> result = new ArrayList<>(recordsData.size());
+        for (Map<String, Object> record : recordsData) {
+            result.add(AttendanceMark.fromMap(record));
+        }
+        return result;
+    }
+    
+    /**
+     * Reads the list under {@code name} of a response object, skipping its other fields.
+     */
+    private List<Map<String, Object>> readList(String json, String name) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        List<Map<String, Object>> list = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (name.equals(reader.nextName())) {
+                list = listAdapter.read(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return list;
+    }
+}
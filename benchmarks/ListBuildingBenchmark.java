@@ -0,0 +1,127 @@
+package com.example.attendancesystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapter row building in {@code StudentListActivity.displayStudents()} and
+ * {@code AttendanceActivity.displayAttendanceRecords()}.
+ *
+ * {@link #studentRowsLinearScan()} keeps the per-student scan over the class list that
+ * predates {@link RosterCache} as a baseline for the indexed lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBuildingBenchmark {
+    
+    @Param({"100", "1000", "10000"})
+    int students;
+    
+    private List<ClassInfo> classList;
+    private Map<String, ClassInfo> classesById;
+    private List<Student> studentList;
+    private List<AttendanceMark> records;
+    
+    @Setup
+    public void setUp() {
+        classList = new ArrayList<>();
+        classesById = new LinkedHashMap<>();
+        for (Map<String, Object> classData : BenchmarkData.classes(students)) {
+            ClassInfo classInfo = ClassInfo.fromMap(classData);
+            classList.add(classInfo);
+            classesById.put(classInfo.getId(), classInfo);
+        }
+        
+        studentList = new ArrayList<>();
+        for (Map<String, Object> studentData : BenchmarkData.students(students, 1)) {
+            studentList.add(Student.fromMap(studentData));
+        }
+        
+        records = new ArrayList<>();
+        for (Map<String, Object> record : BenchmarkData.attendanceRecords(students, 1)) {
+            records.add(AttendanceMark.fromMap(record));
+        }
+    }
+    
+    @Benchmark
+    public List<Map<String, String>> studentRowsLinearScan() {
+        List<Map<String, String>> data = new ArrayList<>();
+        for (Student student : studentList) {
+            Map<String, String> item = new HashMap<>();
+            
+            String className = "Unknown Class";
+            for (ClassInfo classInfo : classList) {
+                if (classInfo.getId().equals(student.getClassId())) {
+                    className = classInfo.getName();
+                    break;
+                }
+            }
+            
+            item.put("name", student.getName());
+            item.put("details", "ID: " + student.getStudentId() + " | Class: " + className);
+            data.add(item);
+        }
+        return data;
+    }
+    
+    @Benchmark
+    public List<Map<String, String>> studentRowsIndexed() {
+        List<Map<String, String>> data = new ArrayList<>();
+        for (Student student : studentList) {
+            Map<String, String> item = new HashMap<>();
+            
+            ClassInfo classInfo = classesById.get(student.getClassId());
+            String className = classInfo != null ? classInfo.getName() : "Unknown Class";
+            
+            item.put("name", student.getName());
+            item.put("details", "ID: " + student.getStudentId() + " | Class: " + className);
+            data.add(item);
+        }
+        return data;
+    }
+    
+    @Benchmark
+    public int attendanceRows() {
+        List<Map<String, String>> data = new ArrayList<>();
+        int presentCount = 0;
+        int absentCount = 0;
+        
+        for (AttendanceMark record : records) {
+            Map<String, String> item = new HashMap<>();
+            boolean status = record.isPresent();
+            
+            item.put("name", record.getStudentName());
+            item.put("id", "ID: " + record.getStudentId());
+            item.put("status", status ? "Present" : "Absent");
+            
+            if (status) {
+                presentCount++;
+            } else {
+                absentCount++;
+            }
+            data.add(item);
+        }
+        
+        return data.size() + presentCount * 31 + absentCount;
+    }
+}
@@ -0,0 +1,279 @@
+package com.example.attendancesystem;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup latency and footprint of the roster the app holds, against the structures
+ * {@link RosterCache} replaced.
+ *
+ * Before the cache, the camera, attendance and student list screens each loaded their
+ * own list of {@code ClassItem} copies, the student list kept the Gson maps of
+ * {@code getStudents} as decoded, and lookups by id scanned those lists. The cache holds
+ * one snapshot of {@link ClassInfo} and {@link Student} indexed by id; {@link Snapshot}
+ * builds and reads it the way {@code RosterCache} does, without the Retrofit plumbing.
+ *
+ * Run {@link #main} for the retained heap of each structure:
+ * {@code java com.example.attendancesystem.RosterCacheBenchmark 5000}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RosterCacheBenchmark {
+    
+    // Screens that each held a copy of the class list before the cache
+    private static final int SCREENS = 3;
+    
+    // Copies of each structure held at once when measuring footprint
+    private static final int FOOTPRINT_COPIES = 20;
+    
+    // Ids looked up in turn, so lookups are spread over the roster
+    private static final int LOOKUPS = 1024;
+    
+    @Param({"1000", "5000"})
+    int students;
+    
+    private static List<Object> held;
+    
+    private PreviousRoster previous;
+    private Snapshot snapshot;
+    private String[] classIds;
+    private String[] studentIds;
+    private int next;
+    
+    /**
+     * Class list entry as each screen kept it before {@link ClassInfo}.
+     */
+    private static final class ClassItem {
+        
+        private final String id;
+        private final String name;
+        
+        ClassItem(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+    
+    /**
+     * The roster as the screens held it: a class list per screen and the decoded
+     * student maps, searched by scanning.
+     */
+    private static final class PreviousRoster {
+        
+        private final List<List<ClassItem>> classLists = new ArrayList<>();
+        private final List<Map<String, Object>> students;
+        
+        PreviousRoster(Map<String, Object> classesResponse, Map<String, Object> studentsResponse) {
+            for (int screen = 0; screen < SCREENS; screen++) {
+                List<ClassItem> classes = new ArrayList<>();
+                for (Map<String, Object> classData : listOf(classesResponse, "classes")) {
+                    classes.add(new ClassItem((String) classData.get("id"), (String) classData.get("name")));
+                }
+                classLists.add(classes);
+            }
+            students = listOf(studentsResponse, "students");
+        }
+        
+        String className(String classId) {
+            for (ClassItem classItem : classLists.get(0)) {
+                if (classItem.id.equals(classId)) {
+                    return classItem.name;
+                }
+            }
+            return null;
+        }
+        
+        Map<String, Object> student(String studentId) {
+            for (Map<String, Object> student : students) {
+                if (studentId.equals(student.get("student_id"))) {
+                    return student;
+                }
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * The snapshot {@code RosterCache} publishes: unmodifiable maps by id and the lists
+     * in server order, read under the cache's lock.
+     */
+    private static final class Snapshot {
+        
+        private final Map<String, ClassInfo> classesById;
+        private final List<ClassInfo> classList;
+        private final Map<String, Student> studentsById;
+        private final List<Student> studentList;
+        
+        Snapshot(Map<String, Object> classesResponse, Map<String, Object> studentsResponse) {
+            List<Map<String, Object>> classesData = listOf(classesResponse, "classes");
+            Map<String, ClassInfo> classes = new LinkedHashMap<>(capacityFor(classesData.size()));
+            for (Map<String, Object> classData : classesData) {
+                ClassInfo classInfo = ClassInfo.fromMap(classData);
+                classes.put(classInfo.getId(), classInfo);
+            }
+            classesById = Collections.unmodifiableMap(classes);
+            classList = Collections.unmodifiableList(new ArrayList<>(classes.values()));
+            
+            List<Map<String, Object>> studentsData = listOf(studentsResponse, "students");
+            Map<String, Student> byId = new LinkedHashMap<>(capacityFor(studentsData.size()));
+            for (Map<String, Object> studentData : studentsData) {
+                Student student = Student.fromMap(studentData);
+                byId.put(student.getStudentId(), student);
+            }
+            studentsById = Collections.unmodifiableMap(byId);
+            studentList = Collections.unmodifiableList(new ArrayList<>(byId.values()));
+        }
+        
+        synchronized ClassInfo findClass(String classId) {
+            return classesById.get(classId);
+        }
+        
+        synchronized Student findStudent(String studentId) {
+            return studentsById.get(studentId);
+        }
+        
+        private static int capacityFor(int size) {
+            return Math.max(16, (int) (size / 0.75f) + 1);
+        }
+    }
+    
+    @Setup
+    public void setUp() throws IOException {
+        Responses responses = new Responses(students);
+        previous = new PreviousRoster(responses.classes(), responses.students());
+        snapshot = new Snapshot(responses.classes(), responses.students());
+        
+        Random random = new Random(1);
+        classIds = new String[LOOKUPS];
+        studentIds = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            classIds[i] = snapshot.classList.get(random.nextInt(snapshot.classList.size())).getId();
+            studentIds[i] = snapshot.studentList.get(random.nextInt(snapshot.studentList.size())).getStudentId();
+        }
+    }
+    
+    @Benchmark
+    public String classNameLinearScan() {
+        return previous.className(classIds[nextLookup()]);
+    }
+    
+    @Benchmark
+    public String classNameIndexed() {
+        ClassInfo classInfo = snapshot.findClass(classIds[nextLookup()]);
+        return classInfo != null ? classInfo.getName() : null;
+    }
+    
+    @Benchmark
+    public Object studentLinearScan() {
+        return previous.student(studentIds[nextLookup()]);
+    }
+    
+    @Benchmark
+    public Object studentIndexed() {
+        return snapshot.findStudent(studentIds[nextLookup()]);
+    }
+    
+    private int nextLookup() {
+        next = (next + 1) & (LOOKUPS - 1);
+        return next;
+    }
+    
+    /**
+     * Prints the heap each structure retains for a roster, measured over
+     * {@value #FOOTPRINT_COPIES} copies built from separately decoded responses.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int students = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        Responses responses = new Responses(students);
+        
+        // Static, so the copies stay reachable while the heap is measured
+        held = new ArrayList<>();
+        long before = usedHeap();
+        for (int i = 0; i < FOOTPRINT_COPIES; i++) {
+            held.add(new PreviousRoster(responses.classes(), responses.students()));
+        }
+        long previousBytes = (usedHeap() - before) / FOOTPRINT_COPIES;
+        held.clear();
+        
+        before = usedHeap();
+        for (int i = 0; i < FOOTPRINT_COPIES; i++) {
+            held.add(new Snapshot(responses.classes(), responses.students()));
+        }
+        long snapshotBytes = (usedHeap() - before) / FOOTPRINT_COPIES;
+        
+        System.out.println(students + " students, " + BenchmarkData.classes(students).size() + " classes");
+        System.out.printf("  per-screen lists and decoded maps: %8d KB%n", previousBytes / 1024);
+        System.out.printf("  RosterCache snapshot:              %8d KB%n", snapshotBytes / 1024);
+    }
+    
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> listOf(Map<String, Object> response, String key) {
+        return (List<Map<String, Object>>) response.get(key);
+    }
+    
+    /**
+     * The {@code getClasses} and {@code getStudents} responses, decoded afresh on each
+     * call the way GsonConverterFactory does, so copies share no strings.
+     */
+    private static final class Responses {
+        
+        private final TypeAdapter<Map<String, Object>> adapter =
+                new Gson().getAdapter(new TypeToken<Map<String, Object>>() {});
+        private final String classesJson;
+        private final String studentsJson;
+        
+        Responses(int students) {
+            Map<String, Object> classesResponse = new HashMap<>();
+            classesResponse.put("success", true);
+            classesResponse.put("classes", BenchmarkData.classes(students));
+            classesJson = new Gson().toJson(classesResponse);
+            studentsJson = BenchmarkData.studentsResponseJson(students, 1);
+        }
+        
+        Map<String, Object> classes() throws IOException {
+            return adapter.read(new JsonReader(new StringReader(classesJson)));
+        }
+        
+        Map<String, Object> students() throws IOException {
+            return adapter.read(new JsonReader(new StringReader(studentsJson)));
+        }
+    }
+}
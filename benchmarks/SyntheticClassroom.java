@@ -0,0 +1,147 @@
+package com.example.attendancesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic grayscale classroom photo and a detector for it.
+ *
+ * {@code android.media.FaceDetector} is not available on the JVM. The stand-in detector
+ * has the property that matters for tiling: its cost grows with the pixel area it scans,
+ * at several window scales, so whole-image and tiled runs do comparable work per pixel.
+ * Faces are bright discs from 24 to 160 pixels across on a noisy background, so the
+ * detections can be checked against where the faces were drawn.
+ */
+final class SyntheticClassroom {
+    
+    static final int MIN_FACE = 24;
+    static final int MAX_FACE = 160;
+    private static final int[] WINDOW_SIZES = {24, 40, 64, 100, 160};
+    private static final int SCORE_THRESHOLD = 60;
+    private static final int FACE_LUMA = 200;
+    private static final int DOWN_LUMA = 120;
+    
+    final int width;
+    final int height;
+    final byte[] luma;
+    final List<FaceBox> faces = new ArrayList<>();
+    
+    SyntheticClassroom(int width, int height, int faceCount, long seed) {
+        this.width = width;
+        this.height = height;
+        this.luma = new byte[width * height];
+        
+        Random random = new Random(seed);
+        fillBackground(random);
+        
+        // Rows of students: faces get smaller towards the back (top) of the photo
+        int attempts = 0;
+        while (faces.size() < faceCount && attempts++ < faceCount * 50) {
+            int y = random.nextInt(height - MAX_FACE);
+            int size = MIN_FACE + (MAX_FACE - MIN_FACE) * y / height;
+            int x = random.nextInt(width - size);
+            FaceBox face = new FaceBox(x, y, x + size, y + size, 1f);
+            
+            boolean clear = true;
+            for (FaceBox other : faces) {
+                FaceBox padded = new FaceBox(other.getLeft() - size, other.getTop() - size,
+                        other.getRight() + size, other.getBottom() + size, 1f);
+                if (padded.intersectionArea(face) > 0) {
+                    clear = false;
+                    break;
+                }
+            }
+            if (clear) {
+                drawDisc(x, y, size, FACE_LUMA);
+                faces.add(face);
+            }
+        }
+    }
+    
+    /**
+     * An empty classroom; faces are added with {@link #drawFace}.
+     */
+    SyntheticClassroom(int width, int height, long seed) {
+        this.width = width;
+        this.height = height;
+        this.luma = new byte[width * height];
+        fillBackground(new Random(seed));
+    }
+    
+    private void fillBackground(Random random) {
+        for (int i = 0; i < luma.length; i++) {
+            luma[i] = (byte) (60 + random.nextInt(40));
+        }
+    }
+    
+    /**
+     * Draws a face; a face turned down, showing the top of the head, is too dim for the
+     * detector and is not added to {@link #faces}.
+     */
+    void drawFace(FaceBox face, boolean down) {
+        drawDisc(face.getLeft(), face.getTop(), face.getRight() - face.getLeft(), down ? DOWN_LUMA : FACE_LUMA);
+        if (!down) {
+            faces.add(face);
+        }
+    }
+    
+    private void drawDisc(int left, int top, int size, int value) {
+        double radius = size / 2.0;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                double dx = x + 0.5 - radius;
+                double dy = y + 0.5 - radius;
+                if (dx * dx + dy * dy <= radius * radius) {
+                    luma[(top + y) * width + left + x] = (byte) value;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Multi-scale window detector: a window is a face when it is much brighter than the
+     * ring of pixels around it.
+     */
+    static final TiledFaceDetector.RegionDetector<SyntheticClassroom> DETECTOR =
+            new TiledFaceDetector.RegionDetector<SyntheticClassroom>() {
+        @Override
+        public List<FaceBox> detect(SyntheticClassroom image, int left, int top, int width, int height) {
+            // Summed-area table over the region, one row and column of padding
+            int stride = width + 1;
+            long[] sums = new long[stride * (height + 1)];
+            for (int y = 0; y < height; y++) {
+                long rowSum = 0;
+                int source = (top + y) * image.width + left;
+                for (int x = 0; x < width; x++) {
+                    rowSum += image.luma[source + x] & 0xFF;
+                    sums[(y + 1) * stride + x + 1] = sums[y * stride + x + 1] + rowSum;
+                }
+            }
+            
+            List<FaceBox> boxes = new ArrayList<>();
+            for (int size : WINDOW_SIZES) {
+                int ring = size / 4;
+                int step = Math.max(2, size / 8);
+                for (int y = ring; y + size + ring <= height; y += step) {
+                    for (int x = ring; x + size + ring <= width; x += step) {
+                        long inner = sum(sums, stride, x, y, size, size);
+                        long outer = sum(sums, stride, x - ring, y - ring, size + 2 * ring, size + 2 * ring) - inner;
+                        long innerArea = (long) size * size;
+                        long outerArea = (long) (size + 2 * ring) * (size + 2 * ring) - innerArea;
+                        long score = inner / innerArea - outer / outerArea;
+                        if (score > SCORE_THRESHOLD) {
+                            boxes.add(new FaceBox(left + x, top + y, left + x + size, top + y + size, score / 255f));
+                        }
+                    }
+                }
+            }
+            return boxes;
+        }
+    };
+    
+    private static long sum(long[] sums, int stride, int x, int y, int width, int height) {
+        return sums[(y + height) * stride + x + width] - sums[y * stride + x + width]
+                - sums[(y + height) * stride + x] + sums[y * stride + x];
+    }
+}
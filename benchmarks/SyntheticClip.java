@@ -0,0 +1,203 @@
+package com.example.attendancesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic attendance clip: a class filmed for a few seconds, with a detector and an
+ * identifier for its frames.
+ *
+ * Students sit in rows and are drawn as {@link SyntheticClassroom} faces. Some look down
+ * at the start, too dim to detect, and look up at a random moment; some are turned away,
+ * detectable but not recognizable, until they turn to the camera. With {@code moving}
+ * a third of the class sways from side to side and is turned away for part of each
+ * sway. The identifier does the work of a face embedding, a projection of the face's
+ * pixels, and takes the identity from where the faces were drawn, so results can be
+ * checked against the class.
+ */
+final class SyntheticClip implements ClipSampler.Clip<SyntheticClip.Frame> {
+    
+    static final int WIDTH = 1280;
+    static final int HEIGHT = 720;
+    static final int FRAMES_PER_SECOND = 30;
+    // Confidence of a face turned to the camera, and of one turned away
+    static final float FACING_CONFIDENCE = 0.85f;
+    static final float TURNED_CONFIDENCE = 0.45f;
+    private static final int COLUMNS = 6;
+    // Faces are resampled to a square of this size and projected to EMBEDDING_SIZE values
+    private static final int EMBEDDING_INPUT = 64;
+    private static final int EMBEDDING_SIZE = 128;
+    private static final float[][] PROJECTION = new float[EMBEDDING_SIZE][EMBEDDING_INPUT * EMBEDDING_INPUT];
+    
+    static {
+        Random random = new Random(7);
+        for (float[] row : PROJECTION) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (float) random.nextGaussian();
+            }
+        }
+    }
+    
+    /**
+     * A decoded frame and where each visible student was drawn in it.
+     */
+    static final class Frame {
+        final SyntheticClassroom image;
+        final List<FaceBox> faces = new ArrayList<>();
+        final List<String> studentIds = new ArrayList<>();
+        final List<Boolean> facing = new ArrayList<>();
+        
+        Frame(SyntheticClassroom image) {
+            this.image = image;
+        }
+    }
+    
+    private static final class Pupil {
+        String studentId;
+        int left;
+        int top;
+        int size;
+        // Seconds until the student looks up, and until they turn to the camera
+        double downUntil;
+        double turnedUntil;
+        // Sway amplitude in pixels (0 for a still student), period and phase
+        double sway;
+        double period;
+        double phase;
+    }
+    
+    private final Frame[] frames;
+    final List<String> enrolled = new ArrayList<>();
+    
+    /**
+     * @param students students in the clip
+     * @param absent enrolled students who are not in it, so sampling can't stop early
+     * @param moving whether a third of the class sways
+     */
+    SyntheticClip(int students, int absent, boolean moving, double seconds, long seed) {
+        Random random = new Random(seed);
+        List<Pupil> pupils = new ArrayList<>();
+        int rows = (students + COLUMNS - 1) / COLUMNS;
+        for (int i = 0; i < students; i++) {
+            int row = i / COLUMNS;
+            Pupil pupil = new Pupil();
+            pupil.studentId = "student-" + i;
+            // Faces get larger towards the front (bottom) of the room
+            pupil.size = 40 + 24 * row / Math.max(1, rows - 1);
+            pupil.left = 60 + (i % COLUMNS) * (WIDTH - 120) / COLUMNS + random.nextInt(40);
+            pupil.top = 40 + row * (HEIGHT - 120) / rows + random.nextInt(20);
+            double behaviour = random.nextDouble();
+            if (behaviour < 0.2) {
+                pupil.downUntil = 0.3 + random.nextDouble() * (seconds - 1);
+            } else if (behaviour < 0.3) {
+                pupil.turnedUntil = 0.5 + random.nextDouble() * (seconds - 1);
+            }
+            if (moving && i % 3 == 0) {
+                pupil.sway = 15 + random.nextInt(15);
+                pupil.period = 1.5 + random.nextDouble() * 1.5;
+                pupil.phase = random.nextDouble() * 2 * Math.PI;
+            }
+            pupils.add(pupil);
+            enrolled.add(pupil.studentId);
+        }
+        for (int i = 0; i < absent; i++) {
+            enrolled.add("absent-" + i);
+        }
+        
+        frames = new Frame[(int) Math.round(seconds * FRAMES_PER_SECOND)];
+        for (int index = 0; index < frames.length; index++) {
+            double time = (double) index / FRAMES_PER_SECOND;
+            // Hand shake moves the whole picture by a pixel or two
+            int shakeX = random.nextInt(3) - 1;
+            int shakeY = random.nextInt(3) - 1;
+            Frame frame = new Frame(new SyntheticClassroom(WIDTH, HEIGHT, seed + index));
+            for (Pupil pupil : pupils) {
+                double angle = pupil.sway == 0 ? 0 : 2 * Math.PI * time / pupil.period + pupil.phase;
+                int left = pupil.left + shakeX + (int) Math.round(pupil.sway * Math.sin(angle));
+                FaceBox face = new FaceBox(left, pupil.top + shakeY, left + pupil.size,
+                        pupil.top + shakeY + pupil.size, 1f);
+                boolean down = time < pupil.downUntil;
+                frame.image.drawFace(face, down);
+                if (!down) {
+                    frame.faces.add(face);
+                    frame.studentIds.add(pupil.studentId);
+                    // A swaying student faces away through part of each sway
+                    frame.facing.add(time >= pupil.turnedUntil && (pupil.sway == 0 || Math.cos(angle) > -0.3));
+                }
+            }
+            frames[index] = frame;
+        }
+    }
+    
+    @Override
+    public int frameCount() {
+        return frames.length;
+    }
+    
+    @Override
+    public long timestampMillis(int index) {
+        return index * 1000L / FRAMES_PER_SECOND;
+    }
+    
+    @Override
+    public Frame frame(int index) {
+        return frames[index];
+    }
+    
+    static final ClipSampler.FaceFinder<Frame> FINDER = new ClipSampler.FaceFinder<Frame>() {
+        @Override
+        public List<FaceBox> detect(Frame frame) {
+            List<FaceBox> detections = SyntheticClassroom.DETECTOR.detect(frame.image, 0, 0, WIDTH, HEIGHT);
+            return TiledFaceDetector.suppress(detections, TiledFaceDetector.DEFAULT_OVERLAP_THRESHOLD);
+        }
+    };
+    
+    static final ClipSampler.FaceIdentifier<Frame> IDENTIFIER = new ClipSampler.FaceIdentifier<Frame>() {
+        @Override
+        public ClipSampler.Match identify(Frame frame, FaceBox face) {
+            float[] embedding = embed(frame.image, face);
+            
+            // The student drawn where the face was found
+            int best = -1;
+            long bestOverlap = 0;
+            for (int i = 0; i < frame.faces.size(); i++) {
+                long overlap = frame.faces.get(i).intersectionArea(face);
+                if (overlap > bestOverlap) {
+                    bestOverlap = overlap;
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                return null;
+            }
+            float confidence = frame.facing.get(best) ? FACING_CONFIDENCE : TURNED_CONFIDENCE;
+            // Keeps the embedding from being optimized away without changing the outcome
+            return new ClipSampler.Match(frame.studentIds.get(best), confidence + embedding[0] * 1e-9f);
+        }
+    };
+    
+    private static float[] embed(SyntheticClassroom image, FaceBox face) {
+        float[] pixels = new float[EMBEDDING_INPUT * EMBEDDING_INPUT];
+        int width = Math.max(1, face.getRight() - face.getLeft());
+        int height = Math.max(1, face.getBottom() - face.getTop());
+        for (int y = 0; y < EMBEDDING_INPUT; y++) {
+            int sourceY = Math.min(image.height - 1, Math.max(0, face.getTop() + y * height / EMBEDDING_INPUT));
+            for (int x = 0; x < EMBEDDING_INPUT; x++) {
+                int sourceX = Math.min(image.width - 1, Math.max(0, face.getLeft() + x * width / EMBEDDING_INPUT));
+                pixels[y * EMBEDDING_INPUT + x] = (image.luma[sourceY * image.width + sourceX] & 0xFF) / 255f;
+            }
+        }
+        
+        float[] embedding = new float[EMBEDDING_SIZE];
+        for (int i = 0; i < EMBEDDING_SIZE; i++) {
+            float[] row = PROJECTION[i];
+            float sum = 0;
+            for (int j = 0; j < pixels.length; j++) {
+                sum += row[j] * pixels[j];
+            }
+            embedding[i] = sum;
+        }
+        return embedding;
+    }
+}
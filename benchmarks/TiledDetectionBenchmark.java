@@ -0,0 +1,80 @@
+package com.example.attendancesystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Face detection on a synthetic 12MP (4000x3000) classroom photo: the whole image on
+ * one thread versus {@link TiledFaceDetector} with the production tile size and overlap
+ * on a fork-join pool of {@code threads} workers.
+ *
+ * {@code threads=1} isolates the cost of tiling itself (overlapping pixels are scanned
+ * twice, plus the merge) from the parallel speedup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TiledDetectionBenchmark {
+    
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+    private static final int FACES = 40;
+    // Same as BitmapFaceDetector, which needs android.graphics on the classpath
+    private static final int TILE_SIZE = 1024;
+    private static final int TILE_OVERLAP = 256;
+    
+    @Param({"1", "2", "4", "8"})
+    int threads;
+    
+    private SyntheticClassroom image;
+    private ForkJoinPool pool;
+    private TiledFaceDetector<SyntheticClassroom> tiled;
+    
+    @Setup
+    public void setUp() {
+        image = new SyntheticClassroom(WIDTH, HEIGHT, FACES, 1);
+        pool = new ForkJoinPool(threads);
+        tiled = new TiledFaceDetector<>(SyntheticClassroom.DETECTOR, TILE_SIZE, TILE_OVERLAP, pool);
+        
+        // Both paths must find every face exactly once for the timings to mean anything
+        int whole = wholeImage().size();
+        int tiles = tiledImage().size();
+        if (whole != image.faces.size() || tiles != image.faces.size()) {
+            throw new IllegalStateException("Detected " + whole + " faces whole and " + tiles
+                    + " tiled, expected " + image.faces.size());
+        }
+    }
+    
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+    
+    @Benchmark
+    public List<FaceBox> wholeImage() {
+        List<FaceBox> detections = SyntheticClassroom.DETECTOR.detect(image, 0, 0, WIDTH, HEIGHT);
+        return TiledFaceDetector.suppress(detections, TiledFaceDetector.DEFAULT_OVERLAP_THRESHOLD);
+    }
+    
+    @Benchmark
+    public List<FaceBox> tiledImage() {
+        return tiled.detect(image, WIDTH, HEIGHT);
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.attendancesystem;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Client-side decoding of a school's roster and a term of a class's attendance
+ * records, as JSON (Gson) and as CBOR ({@link CborCodec}), plain and gzipped as OkHttp
+ * receives them. Payload sizes are printed at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    @Param({"2000"})
+    int students;
+    
+    @Param({"90"})
+    int days;
+    
+    private TypeAdapter<Map<String, Object>> adapter;
+    private Map<String, Object> roster;
+    private byte[] rosterJson;
+    private byte[] rosterCbor;
+    private byte[] rosterJsonGzip;
+    private byte[] rosterCborGzip;
+    private byte[] termJson;
+    private byte[] termCbor;
+    
+    @Setup
+    public void setUp() throws IOException {
+        adapter = new Gson().getAdapter(new TypeToken<Map<String, Object>>() {});
+        
+        roster = new HashMap<>();
+        roster.put("success", true);
+        roster.put("students", BenchmarkData.students(students, 1));
+        Map<String, Object> term = new HashMap<>();
+        term.put("success", true);
+        term.put("attendance_records", BenchmarkData.termAttendanceRecords(BenchmarkData.STUDENTS_PER_CLASS, days, 1));
+        
+        rosterJson = new Gson().toJson(roster).getBytes(UTF_8);
+        rosterCbor = CborCodec.encode(roster);
+        rosterJsonGzip = gzip(rosterJson);
+        rosterCborGzip = gzip(rosterCbor);
+        termJson = new Gson().toJson(term).getBytes(UTF_8);
+        termCbor = CborCodec.encode(term);
+        
+        System.out.printf("%nroster: json %d B (gzip %d B), cbor %d B (gzip %d B)%n",
+                rosterJson.length, rosterJsonGzip.length, rosterCbor.length, rosterCborGzip.length);
+        System.out.printf("term: json %d B (gzip %d B), cbor %d B (gzip %d B)%n",
+                termJson.length, gzip(termJson).length, termCbor.length, gzip(termCbor).length);
+    }
+    
+    @Benchmark
+    public Map<String, Object> decodeRosterJson() throws IOException {
+        return adapter.read(new JsonReader(new InputStreamReader(new ByteArrayInputStream(rosterJson), UTF_8)));
+    }
+    
+    @Benchmark
+    public Object decodeRosterCbor() throws IOException {
+        return CborCodec.decode(rosterCbor);
+    }
+    
+    @Benchmark
+    public Map<String, Object> decodeRosterJsonGzip() throws IOException {
+        return adapter.read(new JsonReader(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(rosterJsonGzip)), UTF_8)));
+    }
+    
+    @Benchmark
+    public Object decodeRosterCborGzip() throws IOException {
+        return CborCodec.decode(gunzip(rosterCborGzip));
+    }
+    
+    @Benchmark
+    public Map<String, Object> decodeTermJson() throws IOException {
+        return adapter.read(new JsonReader(new InputStreamReader(new ByteArrayInputStream(termJson), UTF_8)));
+    }
+    
+    @Benchmark
+    public Object decodeTermCbor() throws IOException {
+        return CborCodec.decode(termCbor);
+    }
+    
+    @Benchmark
+    public byte[] encodeRosterJson() {
+        return new Gson().toJson(roster).getBytes(UTF_8);
+    }
+    
+    @Benchmark
+    public byte[] encodeRosterCbor() {
+        return CborCodec.encode(roster);
+    }
+    
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+    
+    private static byte[] gunzip(byte[] data) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,212 @@
+#!/usr/bin/env python3
+# Attendance log benchmark
+#
+# Append throughput of the attendance change log one event at a time (a manual mark)
+# and in batches (one photo's marks), the latency of reading from a random cursor
+# with and without a school filter, how soon a consumer long-polling the log sees an
+# event while it is being appended to, and how long reopening the log and rebuilding
+# the records from it take. Runs in a scratch directory; nothing under data/ is
+# touched.
+#
+#   python benchmarks/attendance_log_benchmark.py --events 2000000 --batch 30
+import os
+import sys
+import time
+import random
+import shutil
+import logging
+import argparse
+import tempfile
+import threading
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..'))
+
+from attendance_log import AttendanceLog, apply_events, MARK, CORRECTION, RECOGNITION, MANUAL
+
+def percentile(samples, p):
+    ordered = sorted(samples)
+    return ordered[min(len(ordered) - 1, int(len(ordered) * p / 100))]
+
+def latencies(name, samples):
+    print(f"  {name:<28} p50={percentile(samples, 50) * 1e3:8.3f}ms p99={percentile(samples, 99) * 1e3:8.3f}ms "
+          f"max={max(samples) * 1e3:8.3f}ms")
+
+class Workload:
+    """Photos of classes of --class-size students, day after day, with some corrections"""
+    
+    def __init__(self, schools, classes, class_size, correction_rate, seed=1):
+        self.schools = schools
+        self.classes = classes
+        self.class_size = class_size
+        self.correction_rate = correction_rate
+        self.rng = random.Random(seed)
+        self.day = 0
+        self.class_index = 0
+        self.status = {}
+        self.pending = []
+    
+    def take(self, count):
+        """The next count events, cutting photos across appends as needed"""
+        while len(self.pending) < count:
+            if self.rng.random() < self.correction_rate:
+                self.pending.append(self.correction())
+            else:
+                self.pending.extend(self.photo())
+        events, self.pending = self.pending[:count], self.pending[count:]
+        return events
+    
+    def photo(self):
+        """Events of one processed photo: every student of the next class marked"""
+        class_index = self.class_index
+        date = f"day-{self.day:05d}"
+        self.class_index += 1
+        if self.class_index == self.classes:
+            self.class_index = 0
+            self.day += 1
+        return [self._event(class_index, student, date, self.rng.random() < 0.9, RECOGNITION)
+                for student in range(self.class_size)]
+    
+    def correction(self):
+        """A teacher flipping one mark of the current day"""
+        class_index = self.rng.randrange(self.classes)
+        student = self.rng.randrange(self.class_size)
+        return self._event(class_index, student, f"day-{self.day:05d}", self.rng.random() < 0.5, MANUAL)
+    
+    def _event(self, class_index, student, date, status, source):
+        key = (f"student-{class_index}-{student}", f"class-{class_index}", date)
+        previous = self.status.get(key)
+        self.status[key] = status
+        event = {
+            'type': MARK if previous is None else CORRECTION,
+            'at': '2026-01-01T08:00:00',
+            'source': source,
+            'school_id': f"school-{class_index % self.schools}",
+            'class_id': key[1],
+            'date': date,
+            'student_id': key[0],
+            'status': status
+        }
+        if previous is not None:
+            event['previous_status'] = previous
+        return event
+
+def append_batches(log, workload, count, batch):
+    """Append count events in batches of up to batch; returns seconds spent in append()"""
+    elapsed = 0
+    appended = 0
+    while appended < count:
+        events = workload.take(min(batch, count - appended))
+        start = time.perf_counter()
+        log.append(events)
+        elapsed += time.perf_counter() - start
+        appended += len(events)
+    return elapsed
+
+def main():
+    parser = argparse.ArgumentParser(description="Attendance log benchmark")
+    parser.add_argument('--events', type=int, default=2000000, help="Events appended in all")
+    parser.add_argument('--single', type=int, default=100000, help="Of those, events appended one at a time")
+    parser.add_argument('--batch', type=int, default=30, help="Events per append for the rest, e.g. a class's marks")
+    parser.add_argument('--schools', type=int, default=20, help="Schools the classes belong to")
+    parser.add_argument('--classes', type=int, default=200, help="Classes photographed each day")
+    parser.add_argument('--class-size', type=int, default=30, help="Students per class")
+    parser.add_argument('--corrections', type=float, default=0.05, help="Share of appends that are manual corrections")
+    parser.add_argument('--reads', type=int, default=2000, help="Random cursor reads timed")
+    parser.add_argument('--tail-seconds', type=float, default=10, help="Seconds a consumer tails the log under writes")
+    parser.add_argument('--tail-rate', type=int, default=2000, help="Events per second appended while tailing")
+    parser.add_argument('--segment-mb', type=int, default=64, help="Segment size in MB")
+    args = parser.parse_args()
+    
+    logging.disable(logging.INFO)
+    workdir = tempfile.mkdtemp(prefix='attendance-log-benchmark-')
+    
+    try:
+        log = AttendanceLog(workdir, segment_size=args.segment_mb * 1024 * 1024)
+        workload = Workload(args.schools, args.classes, args.class_size, args.corrections)
+        
+        single = min(args.single, args.events)
+        print(f"Appending {args.events} events")
+        elapsed = append_batches(log, workload, single, 1)
+        print(f"  {'one per append':<28} {single / elapsed:12.0f} events/s")
+        elapsed = append_batches(log, workload, args.events - single, args.batch)
+        print(f"  {f'{args.batch} per append':<28} {(args.events - single) / elapsed:12.0f} events/s")
+        stats = log.stats()
+        print(f"  {stats['events']} events, {stats['segments']} segments, {stats['bytes'] / 1e6:.1f}MB")
+        
+        print(f"\nReading 100 events from {args.reads} random cursors")
+        rng = random.Random(2)
+        last_seq = log.last_seq
+        plain = []
+        filtered = []
+        for _ in range(args.reads):
+            after = rng.randrange(last_seq)
+            start = time.perf_counter()
+            log.read(after, 100)
+            plain.append(time.perf_counter() - start)
+            
+            school_id = f"school-{rng.randrange(args.schools)}"
+            start = time.perf_counter()
+            log.read(after, 100, predicate=lambda e: e['school_id'] == school_id)
+            filtered.append(time.perf_counter() - start)
+        latencies('all schools', plain)
+        latencies('one school', filtered)
+        
+        print(f"\nTailing the log for {args.tail_seconds:g}s while appending {args.tail_rate} events/s "
+              f"in batches of {args.batch}")
+        # Appends are timed by sequence number, so the consumer can tell how long each
+        # event took to reach it
+        appended_at = {}
+        seen = []
+        stop = threading.Event()
+        
+        def consume():
+            after = log.last_seq
+            while not stop.is_set():
+                events, after = log.read(after, 10000, wait=0.5)
+                now = time.perf_counter()
+                seen.extend(now - appended_at[event['seq']] for event in events)
+        
+        consumer = threading.Thread(target=consume)
+        consumer.start()
+        interval = args.batch / args.tail_rate
+        deadline = time.perf_counter() + args.tail_seconds
+        next_append = time.perf_counter()
+        while next_append < deadline:
+            time.sleep(max(next_append - time.perf_counter(), 0))
+            events = workload.take(args.batch)
+            # Recorded under the same clock before the append, so a consumer woken by
+            # it always finds its times
+            start = time.perf_counter()
+            for seq in range(log.last_seq + 1, log.last_seq + 1 + len(events)):
+                appended_at[seq] = start
+            log.append(events)
+            next_append += interval
+        time.sleep(0.5)
+        stop.set()
+        consumer.join()
+        print(f"  {len(seen)} of {len(appended_at)} events seen")
+        latencies('append to consumer', seen)
+        
+        log.close()
+        start = time.perf_counter()
+        log = AttendanceLog(workdir, segment_size=args.segment_mb * 1024 * 1024)
+        print(f"\nReopened the log in {time.perf_counter() - start:.2f}s")
+        
+        start = time.perf_counter()
+        records = apply_events([], log.replay())
+        elapsed = time.perf_counter() - start
+        # Events generated but never appended
+        for event in reversed(workload.pending):
+            if event['type'] == MARK:
+                del workload.status[(event['student_id'], event['class_id'], event['date'])]
+            else:
+                workload.status[(event['student_id'], event['class_id'], event['date'])] = event['previous_status']
+        wrong = sum(1 for r in records if workload.status.get((r['student_id'], r['class_id'], r['date'])) != r['status'])
+        print(f"Rebuilt {len(records)} records from the log in {elapsed:.2f}s; "
+              f"{len(workload.status) - len(records) + wrong} differ from what was written")
+        log.close()
+    finally:
+        shutil.rmtree(workdir, ignore_errors=True)
+
+if __name__ == '__main__':
+    main()
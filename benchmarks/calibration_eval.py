@@ -0,0 +1,166 @@
+#!/usr/bin/env python3
+# Offline evaluation of recognition thresholds
+#
+# Replays a recognition log (data/recognition_log.jsonl) photo by photo and compares
+# the fixed MATCH_THRESHOLD with the calibrated per-class and per-camera thresholds,
+# each calibrated decision made only from events logged before the photo. Reports
+# precision and recall of present marks, and how often a photo leaves a present
+# student unmatched, which is when a teacher has to take another photo or fix the
+# mark by hand.
+#
+# Ground truth is the teacher's correction where there is one, otherwise the logged
+# decision. --synthetic generates a log with known truth instead, from classes and
+# cameras whose scores are shifted by lighting and optics:
+#
+#   python benchmarks/calibration_eval.py --log data/recognition_log.jsonl
+#   python benchmarks/calibration_eval.py --synthetic --classes 40 --days 60
+import os
+import sys
+import json
+import random
+import logging
+import argparse
+from itertools import groupby
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..'))
+
+from calibration_service import Calibrator, RECAPTURE_EXPECTED_MISSED
+from face_recognition_service import MATCH_THRESHOLD
+
+def synthetic_log(classes, days, students, correction_rate, seed):
+    """Events as CalibrationService logs them, plus each face's true identity"""
+    rng = random.Random(seed)
+    cameras = {'phone-a': 0.0, 'phone-b': -0.08, 'tablet': 0.05}
+    events = []
+    time = 0
+    for day in range(days):
+        date = f"day-{day:03d}"
+        for class_index in range(classes):
+            class_id = f"class-{class_index}"
+            class_shift = random.Random(f"{seed}/{class_id}").gauss(0, 0.08)
+            camera_id = rng.choice(list(cameras))
+            shift = class_shift + cameras[camera_id]
+            photo_id = f"{class_id}/{date}"
+            errors = []
+            for student in range(students):
+                student_id = f"{class_id}-s{student}"
+                genuine = rng.random() < 0.8
+                mean = 0.72 if genuine else 0.42
+                score = round(min(1.0, max(0.0, rng.gauss(mean + shift, 0.07))), 2)
+                recognized = score >= MATCH_THRESHOLD
+                time += 1
+                events.append({'type': 'face', 'time': time, 'photo_id': photo_id, 'class_id': class_id,
+                               'camera_id': camera_id, 'date': date, 'student_id': student_id, 'score': score,
+                               'recognized': recognized, 'genuine': genuine})
+                if recognized != genuine and rng.random() < correction_rate:
+                    errors.append((student_id, genuine))
+            for student_id, status in errors:
+                time += 1
+                events.append({'type': 'correction', 'time': time, 'class_id': class_id, 'date': date,
+                               'student_id': student_id, 'status': status})
+    return events
+
+def read_log(path):
+    events = []
+    with open(path, 'r') as f:
+        for line in f:
+            try:
+                events.append(json.loads(line))
+            except ValueError:
+                pass
+    return events
+
+def ground_truth(events):
+    """True identity of each face event, by index into events"""
+    corrections = {}
+    for event in events:
+        if event['type'] == 'correction':
+            corrections[(event['class_id'], event['date'], event['student_id'])] = event['status']
+    
+    faces = [(i, event) for i, event in enumerate(events) if event['type'] == 'face']
+    truth = {}
+    best = {}
+    for i, event in faces:
+        if 'genuine' in event:
+            truth[i] = event['genuine']
+            continue
+        key = (event['class_id'], event['date'], event['student_id'])
+        status = corrections.get(key)
+        truth[i] = event['recognized'] if status is None else False
+        if status and (key not in best or event['score'] > events[best[key]]['score']):
+            best[key] = i
+    for i in best.values():
+        truth[i] = True
+    return truth
+
+class Tally:
+    def __init__(self):
+        self.tp = self.fp = self.fn = self.photos = self.recaptures = self.suggested = 0
+    
+    def add_photo(self, decisions, suggested=False):
+        self.photos += 1
+        missed = False
+        for accepted, genuine in decisions:
+            if accepted and genuine:
+                self.tp += 1
+            elif accepted:
+                self.fp += 1
+            elif genuine:
+                self.fn += 1
+                missed = True
+        self.recaptures += missed
+        self.suggested += suggested
+    
+    def report(self, name):
+        precision = self.tp / (self.tp + self.fp) if self.tp + self.fp else 0
+        recall = self.tp / (self.tp + self.fn) if self.tp + self.fn else 0
+        print(f"  {name:<22} precision {precision:6.3f}  recall {recall:6.3f}  "
+              f"false presents {self.fp:6d}  false absents {self.fn:6d}  "
+              f"photos missing someone {self.recaptures / self.photos:6.1%}  "
+              f"re-capture suggested {self.suggested / self.photos:6.1%}")
+
+def main():
+    parser = argparse.ArgumentParser(description="Offline evaluation of recognition thresholds")
+    parser.add_argument('--log', default=os.path.join('data', 'recognition_log.jsonl'), help="Recognition log to replay")
+    parser.add_argument('--synthetic', action='store_true', help="Replay a generated log instead")
+    parser.add_argument('--classes', type=int, default=40, help="Synthetic classes")
+    parser.add_argument('--days', type=int, default=60, help="Synthetic days of photos per class")
+    parser.add_argument('--students', type=int, default=30, help="Synthetic faces per photo")
+    parser.add_argument('--correction-rate', type=float, default=0.8, help="Synthetic share of errors teachers fix")
+    parser.add_argument('--seed', type=int, default=1)
+    args = parser.parse_args()
+    
+    logging.disable(logging.INFO)
+    if args.synthetic:
+        events = synthetic_log(args.classes, args.days, args.students, args.correction_rate, args.seed)
+    else:
+        events = read_log(args.log)
+    
+    truth = ground_truth(events)
+    calibrator = Calibrator()
+    fixed, calibrated = Tally(), Tally()
+    
+    indexed = list(enumerate(events))
+    # A photo's faces are logged together, and corrections follow them
+    for photo_id, group in groupby(indexed, key=lambda item: item[1].get('photo_id')):
+        group = list(group)
+        if photo_id is not None:
+            first = group[0][1]
+            threshold = calibrator.threshold(first['class_id'], first.get('camera_id'))
+            # The client used to suggest another photo after every take
+            fixed.add_photo([(event['score'] >= MATCH_THRESHOLD, truth[i]) for i, event in group], True)
+            missed = sum(calibrator.probability(event['class_id'], event.get('camera_id'), event['score'])
+                         for _, event in group if event['score'] < threshold)
+            calibrated.add_photo([(event['score'] >= threshold, truth[i]) for i, event in group],
+                                 missed >= RECAPTURE_EXPECTED_MISSED)
+        for _, event in group:
+            calibrator.apply(event)
+    
+    faces = sum(1 for event in events if event['type'] == 'face')
+    corrections = len(events) - faces
+    print(f"Replayed {fixed.photos} photos, {faces} faces, {corrections} corrections")
+    fixed.report(f"fixed {MATCH_THRESHOLD}")
+    calibrated.report("calibrated")
+
+if __name__ == '__main__':
+    main()
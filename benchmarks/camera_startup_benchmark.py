@@ -0,0 +1,111 @@
+#!/usr/bin/env python3
+# Camera screen startup benchmark
+#
+# Opens the app on a device or emulator over adb, waits on the main screen for a
+# while, taps Take Attendance and reads the camera screen's startup milestones
+# (StartupTrace in logcat): camera provider ready, camera bound, first preview frame,
+# class list shown, and capture ready. Every run starts a fresh process. Waiting 0
+# seconds shows the camera screen without the main screen's head start; a few
+# seconds lets it warm the camera provider and the class list first. Needs a debug
+# build installed and adb on the PATH.
+#
+#   python benchmarks/camera_startup_benchmark.py --runs 10 --dwell 0,3
+import re
+import time
+import argparse
+import subprocess
+import xml.etree.ElementTree as ElementTree
+
+MILESTONES = ['camera_provider', 'camera_bound', 'first_frame', 'classes', 'capture_ready']
+
+# Lines logged by StartupTrace, e.g. "I StartupTrace: first_frame 412.3 ms"
+TRACE_LINE = re.compile(r'StartupTrace\s*:\s*(\w+) ([0-9.]+) ms')
+
+# Bounds of a view in a uiautomator dump, e.g. "[0,1200][1080,1344]"
+BOUNDS = re.compile(r'\[(\d+),(\d+)\]\[(\d+),(\d+)\]')
+
+def percentile(samples, p):
+    ordered = sorted(samples)
+    return ordered[min(len(ordered) - 1, int(len(ordered) * p / 100))]
+
+class Device:
+    def __init__(self, serial, package):
+        self.prefix = ['adb'] + (['-s', serial] if serial else [])
+        self.package = package
+    
+    def adb(self, *args):
+        return subprocess.run(self.prefix + list(args), check=True, capture_output=True, text=True).stdout
+    
+    def shell(self, *args):
+        return self.adb('shell', *args)
+    
+    def button_center(self, view_id):
+        """Find a view on screen by its resource id; returns the point to tap"""
+        self.shell('uiautomator', 'dump', '/sdcard/window.xml')
+        root = ElementTree.fromstring(self.shell('cat', '/sdcard/window.xml'))
+        for node in root.iter('node'):
+            if node.get('resource-id') == f"{self.package}:id/{view_id}":
+                left, top, right, bottom = (int(v) for v in BOUNDS.match(node.get('bounds')).groups())
+                return (left + right) // 2, (top + bottom) // 2
+        raise RuntimeError(f"No view {view_id} on screen; is the main screen showing?")
+
+def run_once(device, dwell, tap, timeout, cold_cache):
+    """Start the app, tap Take Attendance after dwell seconds; returns milestone -> ms"""
+    device.shell('am', 'force-stop', device.package)
+    if cold_cache:
+        device.shell('run-as', device.package, 'rm', '-rf', 'cache/http')
+    device.adb('logcat', '-c')
+    device.shell('am', 'start', '-W', '-n', f"{device.package}/.MainActivity")
+    time.sleep(dwell)
+    device.shell('input', 'tap', str(tap[0]), str(tap[1]))
+    
+    milestones = {}
+    deadline = time.monotonic() + timeout
+    while time.monotonic() < deadline:
+        for match in TRACE_LINE.finditer(device.adb('logcat', '-d', '-s', 'StartupTrace:I')):
+            milestones[match.group(1)] = float(match.group(2))
+        if 'capture_ready' in milestones and 'first_frame' in milestones:
+            break
+        time.sleep(0.2)
+    device.shell('input', 'keyevent', 'KEYCODE_BACK')
+    return milestones
+
+def main():
+    parser = argparse.ArgumentParser(description="Camera screen startup benchmark")
+    parser.add_argument('--package', default='com.example.attendancesystem', help="Application id of the app")
+    parser.add_argument('--serial', help="Device to use, if more than one is connected")
+    parser.add_argument('--runs', type=int, default=10, help="Runs per dwell time")
+    parser.add_argument('--dwell', default='0,3', help="Comma-separated seconds on the main screen before the tap")
+    parser.add_argument('--timeout', type=float, default=20, help="Seconds to wait for capture to be ready")
+    parser.add_argument('--cold-cache', action='store_true',
+                        help="Clear the HTTP disk cache before each run, so the class list comes from the server")
+    args = parser.parse_args()
+    
+    device = Device(args.serial, args.package)
+    device.shell('pm', 'grant', args.package, 'android.permission.CAMERA')
+    
+    # Find the button once, outside the timed runs
+    device.shell('am', 'start', '-W', '-n', f"{args.package}/.MainActivity")
+    tap = device.button_center('btn_take_attendance')
+    
+    for dwell in (float(value) for value in args.dwell.split(',')):
+        samples = {milestone: [] for milestone in MILESTONES}
+        missed = 0
+        for _ in range(args.runs):
+            milestones = run_once(device, dwell, tap, args.timeout, args.cold_cache)
+            if 'capture_ready' not in milestones:
+                missed += 1
+            for milestone, millis in milestones.items():
+                if milestone in samples:
+                    samples[milestone].append(millis)
+        
+        print(f"\nDwell {dwell:g}s on the main screen, {args.runs} runs"
+              + (f", {missed} not ready within {args.timeout:g}s" if missed else ""))
+        for milestone in MILESTONES:
+            values = samples[milestone]
+            if values:
+                print(f"  {milestone:<16} p50={percentile(values, 50):8.1f}ms p90={percentile(values, 90):8.1f}ms "
+                      f"max={max(values):8.1f}ms")
+
+if __name__ == '__main__':
+    main()
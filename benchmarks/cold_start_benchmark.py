@@ -0,0 +1,109 @@
+#!/usr/bin/env python3
+# Cold start benchmark for the face gallery
+#
+# Time until the recognition service can answer, with N enrolled students, when
+# starting from: the roster alone (every face re-encoded), a JSON gallery, and the
+# memory-mapped binary snapshot. Runs in a scratch directory; nothing under data/
+# or uploads/ is touched.
+#
+#   python benchmarks/cold_start_benchmark.py --students 50000
+import os
+import sys
+import json
+import time
+import random
+import shutil
+import logging
+import argparse
+import tempfile
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..'))
+
+def main():
+    parser = argparse.ArgumentParser(description="Face gallery cold start benchmark")
+    parser.add_argument('--students', type=int, default=50000, help="Enrolled students")
+    parser.add_argument('--lookups', type=int, default=1000, help="Random lookups timed after startup")
+    args = parser.parse_args()
+    
+    logging.disable(logging.INFO)
+    workdir = tempfile.mkdtemp(prefix='cold-start-benchmark-')
+    os.chdir(workdir)
+    os.makedirs(os.path.join('uploads', 'student_photos'))
+    
+    from models import init_db, Student, STUDENTS_FILE
+    from face_gallery import FaceGallery, GALLERY_FILE
+    from face_recognition_service import FaceRecognitionService
+    from gallery_snapshot import SnapshotEntries, write_snapshot
+    init_db()
+    
+    try:
+        students = []
+        for i in range(args.students):
+            student_id = f"S{i:06d}"
+            photo_path = os.path.join('uploads', 'student_photos', f"{student_id}.jpg")
+            with open(photo_path, 'wb') as f:
+                f.write(os.urandom(256))
+            students.append({'id': i + 1, 'name': f"Student {i}", 'student_id': student_id,
+                             'class_id': str(i // 30), 'photo_path': photo_path})
+        with open(STUDENTS_FILE, 'w') as f:
+            json.dump(students, f)
+        
+        # Starting from the roster: every face is encoded before recognition is complete
+        started = time.perf_counter()
+        entries = {}
+        for student in Student.get_all():
+            entries[student['student_id']] = dict(student,
+                                                  photo_mtime=os.path.getmtime(student['photo_path']),
+                                                  encoding=FaceRecognitionService.compute_encoding(student['photo_path']))
+        rebuild = time.perf_counter() - started
+        
+        json_path = os.path.join('data', 'face_gallery.json')
+        with open(json_path, 'w') as f:
+            json.dump({'version': 1, 'entries': entries}, f)
+        started = time.perf_counter()
+        with open(json_path, 'r') as f:
+            json.load(f)
+        json_load = time.perf_counter() - started
+        
+        started = time.perf_counter()
+        size = write_snapshot(GALLERY_FILE, entries)
+        write = time.perf_counter() - started
+        
+        started = time.perf_counter()
+        snapshot = SnapshotEntries(GALLERY_FILE)
+        snapshot[students[len(students) // 2]['student_id']]
+        mapped = time.perf_counter() - started
+        
+        # The service as app.py builds it: ready once the snapshot is mapped, with the
+        # roster reconciled in the background
+        service_started = time.perf_counter()
+        service = FaceRecognitionService(FaceGallery(FaceRecognitionService.compute_encoding))
+        ready = time.perf_counter() - service_started
+        # A classroom photo: recognition reads a few dozen entries of the gallery
+        face_locations = [[0, 10, 10, 0]] * 40
+        started = time.perf_counter()
+        service.recognize_faces(students[0]['photo_path'], face_locations)
+        first_recognition = time.perf_counter() - started
+        service.wait_until_synced()
+        reconciled = time.perf_counter() - service_started
+        
+        ids = [random.choice(students)['student_id'] for _ in range(args.lookups)]
+        started = time.perf_counter()
+        for student_id in ids:
+            snapshot[student_id]['encoding'][0]
+        lookup = (time.perf_counter() - started) / args.lookups
+        
+        print(f"{args.students} students, snapshot {size / 1e6:.1f} MB (written in {write * 1000:.0f}ms)")
+        print(f"  re-encode from roster     {rebuild * 1000:10.1f}ms")
+        print(f"  load JSON gallery         {json_load * 1000:10.1f}ms")
+        print(f"  map binary snapshot       {mapped * 1000:10.1f}ms")
+        print(f"  service ready             {ready * 1000:10.1f}ms")
+        print(f"  first recognition         {first_recognition * 1000:10.1f}ms")
+        print(f"  roster reconciled         {reconciled * 1000:10.1f}ms (in the background)")
+        print(f"  lookup by student_id      {lookup * 1e6:10.1f}us")
+    finally:
+        os.chdir('/')
+        shutil.rmtree(workdir, ignore_errors=True)
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,116 @@
+#!/usr/bin/env python3
+# Enrollment latency benchmark for the face gallery
+#
+# Compares rebuilding every encoding on each enrollment (the old
+# update_student_encodings() behaviour) with the incremental FaceGallery.
+# Runs in a scratch directory; nothing under data/ or uploads/ is touched.
+#
+#   python benchmarks/enrollment_benchmark.py --students 10000 --encode-ms 0
+import os
+import sys
+import json
+import time
+import shutil
+import logging
+import argparse
+import tempfile
+import statistics
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..'))
+
+def percentile(samples, p):
+    ordered = sorted(samples)
+    return ordered[min(len(ordered) - 1, int(len(ordered) * p / 100))]
+
+def report(name, samples):
+    print(f"{name:<28} n={len(samples):<5} p50={percentile(samples, 50) * 1000:9.2f}ms "
+          f"p99={percentile(samples, 99) * 1000:9.2f}ms max={max(samples) * 1000:9.2f}ms")
+
+def write_photo(student_id):
+    path = os.path.join('uploads', 'student_photos', f"{student_id}.jpg")
+    with open(path, 'wb') as f:
+        f.write(os.urandom(2048))
+    return path
+
+def main():
+    parser = argparse.ArgumentParser(description="Face gallery enrollment latency benchmark")
+    parser.add_argument('--students', type=int, default=10000, help="Students enrolled before measuring")
+    parser.add_argument('--enrollments', type=int, default=200, help="Enrollments measured with the gallery")
+    parser.add_argument('--full-reloads', type=int, default=3, help="Enrollments measured with a full rebuild")
+    parser.add_argument('--encode-ms', type=float, default=0, help="Simulated model cost per encoding")
+    args = parser.parse_args()
+    
+    logging.disable(logging.INFO)
+    workdir = tempfile.mkdtemp(prefix='enrollment-benchmark-')
+    os.chdir(workdir)
+    os.makedirs(os.path.join('uploads', 'student_photos'))
+    
+    from models import init_db, Student, STUDENTS_FILE
+    from face_gallery import FaceGallery
+    from face_recognition_service import FaceRecognitionService
+    init_db()
+    
+    def encoder(photo_path):
+        if args.encode_ms:
+            time.sleep(args.encode_ms / 1000)
+        return FaceRecognitionService.compute_encoding(photo_path)
+    
+    try:
+        # Seed the roster directly; Student.create rewrites the whole file per call
+        students = []
+        for i in range(args.students):
+            student_id = f"S{i:06d}"
+            students.append({'id': i + 1, 'name': f"Student {i}", 'student_id': student_id,
+                             'class_id': str(i // 30), 'photo_path': write_photo(student_id)})
+        with open(STUDENTS_FILE, 'w') as f:
+            json.dump(students, f)
+        
+        gallery = FaceGallery(encoder)
+        started = time.perf_counter()
+        gallery.sync(Student.get_all())
+        gallery.wait_until_idle()
+        gallery.save()
+        print(f"Initial encoding of {args.students} students: {time.perf_counter() - started:.2f}s")
+        
+        started = time.perf_counter()
+        FaceGallery(encoder).load()
+        print(f"Reloading the persisted gallery: {(time.perf_counter() - started) * 1000:.1f}ms")
+        print()
+        
+        roster_write, full_reload = [], []
+        for i in range(args.full_reloads):
+            student_id = f"F{i:06d}"
+            started = time.perf_counter()
+            Student.create(f"Full {i}", student_id, '0', write_photo(student_id))
+            enrolled = time.perf_counter()
+            for student in Student.get_all():
+                encoder(student['photo_path'])
+            roster_write.append(enrolled - started)
+            full_reload.append(time.perf_counter() - enrolled)
+        
+        accepted, visible, reads = [], [], []
+        for i in range(args.enrollments):
+            student_id = f"N{i:06d}"
+            student = Student.create(f"New {i}", student_id, '0', write_photo(student_id))
+            started = time.perf_counter()
+            gallery.add(student)
+            accepted.append(time.perf_counter() - started)
+            # Recognition reads while the encoding is in flight
+            read_started = time.perf_counter()
+            len(gallery.snapshot())
+            reads.append(time.perf_counter() - read_started)
+            gallery.wait_until_idle()
+            visible.append(time.perf_counter() - started)
+        
+        report("roster write (both)", roster_write)
+        report("full rebuild", full_reload)
+        report("gallery: request returns", accepted)
+        report("gallery: face recognizable", visible)
+        report("gallery: snapshot read", reads)
+        print(f"\nSpeedup to recognizable: {statistics.median(full_reload) / statistics.median(visible):.0f}x")
+    finally:
+        os.chdir('/')
+        shutil.rmtree(workdir, ignore_errors=True)
+
+if __name__ == '__main__':
+    main()
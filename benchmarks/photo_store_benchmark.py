@@ -0,0 +1,126 @@
+#!/usr/bin/env python3
+# Photo store benchmark
+#
+# Write and random-read throughput of the segment-based PhotoStore against one file
+# per photo in a single directory (how uploads/ stored photos before), plus the
+# disk space each takes and the cost of compacting after deletes. Runs in a scratch
+# directory; nothing under data/ or uploads/ is touched.
+#
+#   python benchmarks/photo_store_benchmark.py --photos 1000000 --size 2048
+import os
+import sys
+import time
+import random
+import shutil
+import hashlib
+import logging
+import argparse
+import tempfile
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..'))
+
+def disk_usage(path):
+    total = 0
+    for directory, _, names in os.walk(path):
+        for name in names:
+            total += os.stat(os.path.join(directory, name)).st_blocks * 512
+    return total
+
+def report(name, count, nbytes, elapsed):
+    print(f"  {name:<24} {count / elapsed:12.0f} photos/s {nbytes / elapsed / 1e6:10.1f} MB/s")
+
+def main():
+    parser = argparse.ArgumentParser(description="Photo store benchmark")
+    parser.add_argument('--photos', type=int, default=1000000, help="Photos written")
+    parser.add_argument('--size', type=int, default=2048, help="Bytes per photo")
+    parser.add_argument('--reads', type=int, default=100000, help="Random reads timed")
+    parser.add_argument('--duplicates', type=float, default=0.05, help="Fraction of uploads repeating an earlier photo")
+    parser.add_argument('--delete', type=float, default=0.6, help="Fraction of photos deleted before compaction")
+    args = parser.parse_args()
+    
+    logging.disable(logging.INFO)
+    workdir = tempfile.mkdtemp(prefix='photo-store-benchmark-')
+    os.chdir(workdir)
+    
+    from photo_store import PhotoStore
+    
+    # Photos are generated up front so only storage is timed; a photo is a random
+    # prefix plus its index, so uniqueness does not depend on the random source
+    rng = random.Random(1)
+    noise = os.urandom(args.size + 65536)
+    uploads = []
+    for i in range(args.photos):
+        if uploads and rng.random() < args.duplicates:
+            uploads.append(rng.choice(uploads))
+        else:
+            start = rng.randrange(65536)
+            uploads.append(noise[start:start + args.size - 8] + i.to_bytes(8, 'little'))
+    total_bytes = len(uploads) * args.size
+    
+    try:
+        print(f"{args.photos} uploads of {args.size} bytes, {args.duplicates:.0%} duplicates")
+        
+        # One file per photo, named by content as the store is, so duplicates
+        # overwrite rather than add files
+        os.makedirs('loose')
+        started = time.perf_counter()
+        loose_paths = []
+        for data in uploads:
+            path = os.path.join('loose', f"{hashlib.sha256(data).hexdigest()}.jpg")
+            with open(path, 'wb') as f:
+                f.write(data)
+            loose_paths.append(path)
+        loose_write = time.perf_counter() - started
+        
+        store = PhotoStore('store', compact_interval=None)
+        started = time.perf_counter()
+        store_paths = [store.put(data) for data in uploads]
+        store_write = time.perf_counter() - started
+        
+        sample = [rng.randrange(len(uploads)) for _ in range(args.reads)]
+        started = time.perf_counter()
+        for i in sample:
+            with open(loose_paths[i], 'rb') as f:
+                f.read()
+        loose_read = time.perf_counter() - started
+        
+        started = time.perf_counter()
+        for i in sample:
+            store.read(store_paths[i])
+        store_read = time.perf_counter() - started
+        
+        print("write")
+        report("one file per photo", len(uploads), total_bytes, loose_write)
+        report("photo store", len(uploads), total_bytes, store_write)
+        print("random read")
+        report("one file per photo", len(sample), len(sample) * args.size, loose_read)
+        report("photo store", len(sample), len(sample) * args.size, store_read)
+        print("disk usage")
+        print(f"  {'one file per photo':<24} {disk_usage('loose') / 1e6:12.1f} MB in {len(os.listdir('loose'))} files")
+        stats = store.stats()
+        print(f"  {'photo store':<24} {disk_usage('store') / 1e6:12.1f} MB in {stats['segments']} segments "
+              f"({stats['photos']} photos)")
+        
+        # Drop references (the first ones, as retention would) and compact
+        deleted = store_paths[:int(len(store_paths) * args.delete)]
+        started = time.perf_counter()
+        for path in deleted:
+            store.delete(path)
+        delete = time.perf_counter() - started
+        started = time.perf_counter()
+        reclaimed = store.compact()
+        compact = time.perf_counter() - started
+        print("compaction")
+        print(f"  {len(deleted)} deletes in {delete:.2f}s, compaction reclaimed {reclaimed / 1e6:.1f} MB "
+              f"in {compact:.2f}s, {disk_usage('store') / 1e6:.1f} MB left")
+        store.close()
+        
+        started = time.perf_counter()
+        PhotoStore('store', compact_interval=None).close()
+        print(f"reopening the store: {(time.perf_counter() - started) * 1000:.0f}ms")
+    finally:
+        os.chdir('/')
+        shutil.rmtree(workdir, ignore_errors=True)
+
+if __name__ == '__main__':
+    main()
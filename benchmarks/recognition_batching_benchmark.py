@@ -0,0 +1,208 @@
+#!/usr/bin/env python3
+# Recognition micro-batching benchmark
+#
+# Teachers' classroom photos arrive at once and each goes through the recognition
+# engine: detecting its faces, embedding them and matching them to the class. Runs
+# N concurrent clients recognizing photos in a closed loop, with each request running
+# its own inferences (batching off) and with the micro-batcher grouping the photos and
+# faces of concurrent requests (on), and reports photos per second, p50/p99 latency
+# and the mean batch. Every result is checked against the students of its photo, so
+# a batch that handed a request another's faces fails the run.
+#
+# By default the engine is simulated: one inference at a time has the CPU, as ONNX
+# Runtime spreads each over every core, and costs --run-ms plus --detect-ms per photo
+# or --face-ms per face. With --detector-model and --embedder-model it is OnnxEngine
+# on the given classroom photos instead, each photo's faces enrolled as its class.
+# Runs in a scratch directory; nothing under data/ is touched.
+#
+#   python benchmarks/recognition_batching_benchmark.py --concurrency 1,4,16,64 --seconds 10
+#   python benchmarks/recognition_batching_benchmark.py --detector-model version-RFB-320.onnx \
+#       --embedder-model mobilefacenet.onnx --photos classroom1.jpg classroom2.jpg
+import os
+import sys
+import json
+import time
+import math
+import random
+import shutil
+import logging
+import argparse
+import tempfile
+import threading
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..'))
+
+from recognition_engine import RecognitionEngine
+
+# Length of the simulated embeddings; short, as they are matched in pure Python
+SIMULATED_EMBEDDING_SIZE = 32
+
+def percentile(samples, p):
+    ordered = sorted(samples)
+    return ordered[min(len(ordered) - 1, int(len(ordered) * p / 100))]
+
+class SimulatedEngine(RecognitionEngine):
+    """
+    Engine whose inferences take the CPU for a fixed cost per run plus a cost per item.
+    A photo is JSON naming its class and the seats with a face; each seat's face
+    embeds to the same vector every time.
+    """
+    name = 'simulated'
+    
+    def __init__(self, run_ms, detect_ms, face_ms):
+        self.run_ms = run_ms
+        self.detect_ms = detect_ms
+        self.face_ms = face_ms
+        # Held for a whole inference, standing in for the cores it uses
+        self._cpu = threading.Lock()
+    
+    def decode(self, data):
+        return json.loads(data)
+    
+    def size(self, image):
+        # A column of seats, each 100 pixels tall
+        return 200, 100 * (max(image['seats'], default=0) + 1)
+    
+    def detect(self, images):
+        self._infer(self.detect_ms, len(images))
+        return [[[seat * 100, 160, seat * 100 + 60, 100] for seat in image['seats']] for image in images]
+    
+    def embed(self, faces):
+        self._infer(self.face_ms, len(faces))
+        embeddings = []
+        for image, box in faces:
+            rng = random.Random(f"{image['class_id']}/{box[0] // 100}")
+            vector = [rng.gauss(0, 1) for _ in range(SIMULATED_EMBEDDING_SIZE)]
+            norm = math.sqrt(sum(v * v for v in vector))
+            embeddings.append([v / norm for v in vector])
+        return embeddings
+    
+    def _infer(self, item_ms, items):
+        with self._cpu:
+            time.sleep((self.run_ms + item_ms * items) / 1000)
+
+def enroll(engine, photo_paths):
+    """
+    Enroll every face of each photo as a student of the photo's class
+    
+    Returns:
+        list: Gallery entries
+    """
+    entries = []
+    for class_index, photo_path in enumerate(photo_paths):
+        with open(photo_path, 'rb') as f:
+            image = engine.decode(f.read())
+        boxes = engine.detect([image])[0]
+        for face, encoding in enumerate(engine.embed([(image, box) for box in boxes]) if boxes else []):
+            student_id = f"S{class_index:03d}{face:03d}"
+            entries.append({'student_id': student_id, 'name': f"Student {student_id}", 'class_id': str(class_index),
+                            'photo_path': photo_path, 'encoding': encoding})
+    return entries
+
+def run(engine, entries, photo_paths, concurrency, seconds, batching):
+    """Recognize photos from concurrent clients for a while; returns whether every result was right"""
+    from face_recognition_service import FaceRecognitionService
+    
+    service = FaceRecognitionService(engine=engine, batching=batching)
+    service.wait_until_synced()
+    service.gallery.restore(entries)
+    students = {}
+    for entry in entries:
+        students.setdefault(entry['class_id'], set()).add(entry['student_id'])
+    
+    latencies = []
+    faces = [0]
+    wrong = [0]
+    results_lock = threading.Lock()
+    start_barrier = threading.Barrier(concurrency + 1)
+    
+    def client(index):
+        rng = random.Random(index)
+        start_barrier.wait()
+        deadline = time.perf_counter() + seconds
+        while time.perf_counter() < deadline:
+            class_index = rng.randrange(len(photo_paths))
+            class_students = students.get(str(class_index), set())
+            started = time.perf_counter()
+            results = service.recognize_faces(photo_paths[class_index], candidate_ids=class_students)
+            elapsed = time.perf_counter() - started
+            recognized = {student['student_id'] for student in results['recognized_students']}
+            with results_lock:
+                latencies.append(elapsed)
+                faces[0] += len(results['recognized_students']) + len(results['unrecognized_faces'])
+                if recognized != class_students:
+                    wrong[0] += 1
+    
+    threads = [threading.Thread(target=client, args=(i,)) for i in range(concurrency)]
+    for thread in threads:
+        thread.start()
+    start_barrier.wait()
+    started = time.perf_counter()
+    for thread in threads:
+        thread.join()
+    elapsed = time.perf_counter() - started
+    
+    batches = ''
+    if batching:
+        detect = service._detect_batcher.stats()
+        embed = service._embed_batcher.stats()
+        batches = f" batch: {detect['mean_batch']:5.1f} photos, {embed['mean_batch']:5.1f} faces"
+    print(f"{concurrency:>11} {'on' if batching else 'off':<8} {len(latencies) / elapsed:8.1f} photos/s "
+          f"{faces[0] / elapsed:8.0f} faces/s  p50={percentile(latencies, 50) * 1000:8.1f}ms "
+          f"p99={percentile(latencies, 99) * 1000:8.1f}ms{batches}")
+    if wrong[0]:
+        print(f"  FAILED: {wrong[0]} of {len(latencies)} photos recognized the wrong students")
+    return wrong[0] == 0
+
+def main():
+    parser = argparse.ArgumentParser(description="Recognition micro-batching benchmark")
+    parser.add_argument('--concurrency', default='1,4,16,64', help="Comma-separated numbers of concurrent clients")
+    parser.add_argument('--seconds', type=float, default=5, help="Duration of each run")
+    parser.add_argument('--classes', type=int, default=40, help="Simulated classes, one photo each")
+    parser.add_argument('--class-size', type=int, default=25, help="Faces in each simulated photo")
+    parser.add_argument('--run-ms', type=float, default=3, help="Simulated fixed cost of an inference")
+    parser.add_argument('--detect-ms', type=float, default=4, help="Simulated detection cost per photo")
+    parser.add_argument('--face-ms', type=float, default=0.6, help="Simulated embedding cost per face")
+    parser.add_argument('--detector-model', help="UltraFace ONNX model; runs OnnxEngine instead of the simulation")
+    parser.add_argument('--embedder-model', help="ArcFace-style ONNX embedding model")
+    parser.add_argument('--photos', nargs='+', default=[], help="Classroom photos for OnnxEngine")
+    parser.add_argument('--threads', type=int, help="ONNX Runtime threads per inference")
+    args = parser.parse_args()
+    
+    logging.disable(logging.WARNING)
+    photo_paths = [os.path.abspath(path) for path in args.photos]
+    if args.detector_model:
+        from recognition_engine import OnnxEngine
+        engine = OnnxEngine(os.path.abspath(args.detector_model), os.path.abspath(args.embedder_model), args.threads)
+        print(f"OnnxEngine, {len(photo_paths)} photos")
+    else:
+        engine = SimulatedEngine(args.run_ms, args.detect_ms, args.face_ms)
+        print(f"Simulated engine: {args.run_ms}ms per inference + {args.detect_ms}ms per photo, "
+              f"{args.face_ms}ms per face; {args.classes} classes of {args.class_size}")
+    
+    workdir = tempfile.mkdtemp(prefix='recognition-batching-')
+    os.chdir(workdir)
+    try:
+        from models import init_db
+        init_db()
+        if not args.detector_model:
+            for class_index in range(args.classes):
+                photo_path = os.path.join(workdir, f"class-{class_index}.json")
+                with open(photo_path, 'w') as f:
+                    json.dump({'class_id': class_index, 'seats': list(range(args.class_size))}, f)
+                photo_paths.append(photo_path)
+        entries = enroll(engine, photo_paths)
+        print(f"{len(entries)} faces enrolled\n")
+        
+        print(f"{'concurrency':>11} {'batching':<8}")
+        passed = True
+        for concurrency in [int(c) for c in args.concurrency.split(',')]:
+            for batching in (False, True):
+                passed = run(engine, entries, photo_paths, concurrency, args.seconds, batching) and passed
+        sys.exit(0 if passed else 1)
+    finally:
+        os.chdir('/')
+        shutil.rmtree(workdir, ignore_errors=True)
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,181 @@
+#!/usr/bin/env python3
+# Attendance report caching benchmark
+#
+# A teacher pages through a month of a class's attendance reports a few times, e.g.
+# before a parent meeting, correcting one day by hand in between. Compares building
+# every report from the records (as before reports were cached), the server's report
+# cache, and the server cache behind the app's HTTP disk cache, which reuses final
+# reports without a request and revalidates the corrected day with its ETag.
+# Reports hit rates, requests sent and view latency, counting --rtt-ms per request.
+# Runs in a scratch directory; nothing under data/ is touched.
+#
+#   python benchmarks/report_cache_benchmark.py --classes 40 --class-size 30 --days 22
+import os
+import sys
+import json
+import time
+import shutil
+import random
+import hashlib
+import logging
+import argparse
+import tempfile
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..'))
+
+def percentile(samples, p):
+    ordered = sorted(samples)
+    return ordered[min(len(ordered) - 1, int(len(ordered) * p / 100))]
+
+def report(name, samples, requests, hits):
+    print(f"{name:<24} views={len(samples):<4} requests={requests:<4} hit rate={hits / len(samples):6.1%} "
+          f"p50={percentile(samples, 50) * 1000:8.2f}ms p99={percentile(samples, 99) * 1000:8.2f}ms")
+
+def seed(classes, class_size, days, rng):
+    """Write a roster and a month of attendance records; returns the school days"""
+    from models import STUDENTS_FILE, ATTENDANCE_FILE
+    students, records = [], []
+    dates = [f"2026-09-{day + 1:02d}" for day in range(days)]
+    for class_index in range(classes):
+        class_id = str(class_index + 1)
+        for student in range(class_size):
+            student_id = f"S{class_index:03d}{student:03d}"
+            students.append({'id': len(students) + 1, 'name': f"Student {student_id}", 'student_id': student_id,
+                             'class_id': class_id, 'photo_path': ''})
+            for date in dates:
+                records.append({'id': str(len(records)), 'student_id': student_id, 'class_id': class_id,
+                                'date': date, 'status': rng.random() < 0.93, 'created_at': f"{date}T08:05:00"})
+    with open(STUDENTS_FILE, 'w') as f:
+        json.dump(students, f)
+    with open(ATTENDANCE_FILE, 'w') as f:
+        json.dump(records, f, indent=4)
+    return dates
+
+def uncached_report(class_id, date):
+    """The report endpoint before reports were cached"""
+    from models import Student, Attendance
+    detailed_records = []
+    for record in Attendance.get_by_class_and_date(class_id, date):
+        student = Student.get(record['student_id'])
+        if student:
+            detailed_records.append({**record, 'student_name': student['name']})
+    return detailed_records
+
+class DiskCache:
+    """Stand-in for the app's HTTP cache: stored bodies are read back from disk"""
+    def __init__(self, directory):
+        self.directory = directory
+        os.makedirs(directory)
+        # url -> (etag, final)
+        self.entries = {}
+    
+    def path(self, url):
+        return os.path.join(self.directory, hashlib.sha256(url.encode('utf-8')).hexdigest())
+    
+    def read(self, url):
+        with open(self.path(url), 'rb') as f:
+            return json.loads(f.read())
+    
+    def store(self, url, body, etag, final):
+        with open(self.path(url), 'wb') as f:
+            f.write(json.dumps(body).encode('utf-8'))
+        self.entries[url] = (etag, final)
+
+def main():
+    parser = argparse.ArgumentParser(description="Attendance report caching benchmark")
+    parser.add_argument('--classes', type=int, default=40, help="Classes in the school")
+    parser.add_argument('--class-size', type=int, default=30, help="Students per class")
+    parser.add_argument('--days', type=int, default=22, help="School days in the month")
+    parser.add_argument('--passes', type=int, default=3, help="Times the teacher pages through the month")
+    parser.add_argument('--rtt-ms', type=float, default=50, help="Network round trip added to each request")
+    parser.add_argument('--seed', type=int, default=1)
+    args = parser.parse_args()
+    
+    logging.disable(logging.INFO)
+    rng = random.Random(args.seed)
+    workdir = tempfile.mkdtemp(prefix='report-cache-benchmark-')
+    os.chdir(workdir)
+    
+    from models import init_db, Attendance
+    from report_service import AttendanceReportService
+    init_db()
+    rtt = args.rtt_ms / 1000
+    
+    try:
+        dates = seed(args.classes, args.class_size, args.days, rng)
+        class_id = str(rng.randrange(args.classes) + 1)
+        corrected = rng.choice(dates)
+        size = os.path.getsize(os.path.join('data', 'attendance.json'))
+        print(f"{args.classes * args.class_size * args.days} records ({size / 1e6:.1f}MB), "
+              f"class {class_id}, {args.passes} passes over {args.days} days, {corrected} corrected after the first\n")
+        
+        def correct(reports):
+            record = Attendance.get_by_class_and_date(class_id, corrected)[0]
+            Attendance.update_or_create(record['student_id'], class_id, corrected, not record['status'])
+            if reports is not None:
+                reports.changed(class_id, corrected)
+        
+        # Building every report from the records
+        latencies = []
+        for pass_index in range(args.passes):
+            if pass_index == 1:
+                correct(None)
+            for date in dates:
+                started = time.perf_counter()
+                uncached_report(class_id, date)
+                latencies.append(time.perf_counter() - started + rtt)
+        report("no cache", latencies, len(latencies), 0)
+        
+        # Server cache only; every view is a request
+        reports = AttendanceReportService()
+        latencies = []
+        for pass_index in range(args.passes):
+            if pass_index == 1:
+                correct(reports)
+            for date in dates:
+                started = time.perf_counter()
+                reports.class_report(class_id, date)
+                latencies.append(time.perf_counter() - started + rtt)
+        stats = reports.stats()
+        report("server cache", latencies, len(latencies), stats['hits'])
+        
+        # Server cache behind the client's disk cache. Every day is in the past and
+        # final, so only the corrected day, which the correcting device knows is
+        # stale, goes back to the server
+        reports = AttendanceReportService()
+        client = DiskCache(os.path.join(workdir, 'http'))
+        latencies, requests, client_hits, not_modified = [], 0, 0, 0
+        stale = set()
+        for pass_index in range(args.passes):
+            if pass_index == 1:
+                correct(reports)
+                stale.add(corrected)
+            for date in dates:
+                url = f"/api/attendance_report?class_id={class_id}&date={date}"
+                started = time.perf_counter()
+                network = 0
+                entry = client.entries.get(url)
+                if entry is not None and entry[1] and date not in stale:
+                    client.read(url)
+                    client_hits += 1
+                else:
+                    requests += 1
+                    network = rtt
+                    body, digest = reports.class_report(class_id, date)
+                    if entry is not None and entry[0] == digest:
+                        client.read(url)
+                        not_modified += 1
+                    else:
+                        client.store(url, body, digest, True)
+                    stale.discard(date)
+                latencies.append(time.perf_counter() - started + network)
+        stats = reports.stats()
+        report("server + disk cache", latencies, requests, client_hits + not_modified)
+        print(f"{'':<24} {client_hits} served from disk, {not_modified} revalidated (304), "
+              f"{stats['misses']} reports built on the server")
+    finally:
+        os.chdir('/')
+        shutil.rmtree(workdir, ignore_errors=True)
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,147 @@
+#!/usr/bin/env python3
+# Wire format benchmark
+#
+# Payload size and server-side encode/decode time of JSON and CBOR, each plain and
+# compressed, for the API's largest responses: the student roster of a whole school
+# and a term of attendance records for a class (each day's report, concatenated).
+# A classroom photo upload is included to show what Base64 costs against raw bytes.
+#
+#   python benchmarks/wire_format_benchmark.py --students 2000 --class-size 30 --days 90
+#
+# zstd rows appear when the zstandard package is installed.
+import os
+import sys
+import json
+import gzip
+import time
+import base64
+import random
+import logging
+import argparse
+from datetime import datetime, timedelta
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..'))
+
+import wire_format
+from wire_format import GZIP_LEVEL
+
+FIRST_NAMES = ["Aarav", "Priya", "Rohan", "Ananya", "Vikram", "Meera", "Arjun", "Diya", "Kabir", "Isha"]
+LAST_NAMES = ["Sharma", "Patel", "Reddy", "Iyer", "Gupta", "Nair", "Singh", "Das", "Khan", "Joshi"]
+
+def roster(students, class_size, rng):
+    """GET /api/students for a school"""
+    classes = max(1, students // class_size)
+    start = datetime(2024, 8, 1, 9)
+    records = []
+    for i in range(students):
+        student_id = f"S{100000 + i}"
+        records.append({
+            'id': i + 1,
+            'name': f"{rng.choice(FIRST_NAMES)} {rng.choice(LAST_NAMES)}",
+            'student_id': student_id,
+            'class_id': str(1700000000 + rng.randrange(classes)),
+            'photo_path': f"photos/{rng.getrandbits(256):064x}.jpg",
+            'created_at': (start + timedelta(seconds=rng.randrange(86400 * 14))).isoformat()
+        })
+    return {'success': True, 'students': records}
+
+def term_report(class_size, days, rng):
+    """Every attendance record of one class over a term, as the daily reports return them"""
+    class_id = '1700000000'
+    names = [f"{rng.choice(FIRST_NAMES)} {rng.choice(LAST_NAMES)}" for _ in range(class_size)]
+    start = datetime(2024, 9, 2, 8)
+    records = []
+    for day in range(days):
+        date = start + timedelta(days=day + day // 5 * 2)
+        for student in range(class_size):
+            created_at = date + timedelta(minutes=rng.randrange(30), microseconds=rng.randrange(10 ** 6))
+            records.append({
+                'id': str(int(created_at.timestamp())),
+                'student_id': f"S{100000 + student}",
+                'class_id': class_id,
+                'date': date.strftime('%Y-%m-%d'),
+                'status': rng.random() < 0.9,
+                'created_at': created_at.isoformat(),
+                'student_name': names[student]
+            })
+    return {'success': True, 'attendance_records': records}
+
+def photo_upload(photo_bytes, base64_photo):
+    """POST /api/attendance_jobs; JSON carries the photo as Base64, CBOR as bytes"""
+    body = {
+        'class_id': '1700000000',
+        'date': '2024-09-02',
+        'session_id': 'f' * 32,
+        'face_locations': [[120 + i * 40, 180 + i * 40, 160 + i * 40, 140 + i * 40] for i in range(30)],
+        'camera_id': 'Google Pixel 7'
+    }
+    return dict(body, photo=base64_photo), dict(body, photo=photo_bytes)
+
+def best_time(function, repeats):
+    best = float('inf')
+    for _ in range(repeats):
+        started = time.perf_counter()
+        function()
+        best = min(best, time.perf_counter() - started)
+    return best
+
+def formats():
+    """Name, encode and decode functions of each format measured"""
+    def json_dumps(value):
+        return json.dumps(value, separators=(',', ':')).encode('utf-8')
+    
+    plain = [('json', json_dumps, json.loads), ('cbor', wire_format.dumps, wire_format.loads)]
+    result = list(plain)
+    for name, encode, decode in plain:
+        result.append((f"{name}+gzip",
+                       lambda value, encode=encode: gzip.compress(encode(value), compresslevel=GZIP_LEVEL),
+                       lambda data, decode=decode: decode(gzip.decompress(data))))
+        if wire_format.zstandard is not None:
+            compressor = wire_format.zstandard.ZstdCompressor(level=3)
+            decompressor = wire_format.zstandard.ZstdDecompressor()
+            result.append((f"{name}+zstd",
+                           lambda value, encode=encode: compressor.compress(encode(value)),
+                           lambda data, decode=decode: decode(decompressor.decompress(data))))
+    return result
+
+def measure(title, values, repeats):
+    """values: format name prefix -> the payload to encode in that format"""
+    print(title)
+    baseline = None
+    for name, encode, decode in formats():
+        value = values.get(name.split('+')[0])
+        data = encode(value)
+        baseline = baseline or len(data)
+        encode_time = best_time(lambda: encode(value), repeats)
+        decode_time = best_time(lambda: decode(data), repeats)
+        print(f"  {name:<10} {len(data) / 1024:10.1f} KB {len(data) / baseline:7.1%}   "
+              f"encode {encode_time * 1000:8.2f}ms   decode {decode_time * 1000:8.2f}ms")
+
+def main():
+    parser = argparse.ArgumentParser(description="Wire format benchmark")
+    parser.add_argument('--students', type=int, default=2000, help="Students in the roster")
+    parser.add_argument('--class-size', type=int, default=30, help="Students per class")
+    parser.add_argument('--days', type=int, default=90, help="School days in the term")
+    parser.add_argument('--photo-kb', type=int, default=2048, help="Size of the uploaded classroom photo")
+    parser.add_argument('--repeats', type=int, default=20, help="Runs per measurement; the best is reported")
+    args = parser.parse_args()
+    
+    logging.disable(logging.INFO)
+    rng = random.Random(1)
+    codec = 'cbor2' if wire_format.cbor2 is not None else 'built-in codec'
+    print(f"CBOR via {codec}, gzip level {GZIP_LEVEL}; times are the best of {args.repeats} runs")
+    
+    students = roster(args.students, args.class_size, rng)
+    measure(f"roster: {args.students} students", {'json': students, 'cbor': students}, args.repeats)
+    
+    report = term_report(args.class_size, args.days, rng)
+    measure(f"term report: {args.class_size} students x {args.days} days = "
+            f"{len(report['attendance_records'])} records", {'json': report, 'cbor': report}, args.repeats)
+    
+    # Compressed image data stands in for a JPEG: neither compresses further
+    photo = gzip.compress(rng.randbytes(args.photo_kb * 1024), compresslevel=1)[:args.photo_kb * 1024]
+    as_json, as_cbor = photo_upload(photo, base64.b64encode(photo).decode('ascii'))
+    measure(f"photo upload: {args.photo_kb} KB JPEG", {'json': as_json, 'cbor': as_cbor}, max(3, args.repeats // 4))
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,316 @@
+#!/usr/bin/env python3
+# Recognition confidence calibration for the Attendance System
+#
+# Every face matched to a student of the class is logged with its raw score and
+# whether it was accepted; a teacher's manual mark for that student and date later
+# confirms or overturns it. From these labels a logistic (Platt) model per class and
+# camera maps raw scores to the probability that the student is really there, and
+# the acceptance threshold is set where that probability balances the cost of a
+# false present against a false absent.
+#
+# The log (data/recognition_log.jsonl) is the only state: it is replayed on start,
+# and benchmarks/calibration_eval.py replays it offline to evaluate thresholds.
+import os
+import json
+import math
+import time
+import logging
+import threading
+from collections import OrderedDict, deque
+from face_recognition_service import MATCH_THRESHOLD
+
+logger = logging.getLogger(__name__)
+
+RECOGNITION_LOG = os.path.join('data', 'recognition_log.jsonl')
+
+# Labelled faces a class (or camera in a class) needs before its own model is used
+# instead of the broader one
+MIN_OBSERVATIONS = 30
+# Most recent faces each model is fitted on
+MAX_OBSERVATIONS = 2000
+# Student-days whose faces can still be corrected by a manual mark
+MAX_CORRECTABLE = 50000
+# Relative costs of marking an absent student present and a present student absent
+FALSE_PRESENT_COST = 1.0
+FALSE_ABSENT_COST = 1.0
+# Suggest another photo when students not yet marked are expected among the
+# unmatched faces at least this many times
+RECAPTURE_EXPECTED_MISSED = 0.5
+# Slope of the uncalibrated score-to-probability curve centred on MATCH_THRESHOLD
+DEFAULT_SLOPE = 20.0
+# Thresholds are kept within these bounds however skewed the labels are
+MIN_THRESHOLD = 0.3
+MAX_THRESHOLD = 0.95
+
+class Calibrator:
+    def __init__(self, min_observations=MIN_OBSERVATIONS, max_observations=MAX_OBSERVATIONS,
+                 false_present_cost=FALSE_PRESENT_COST, false_absent_cost=FALSE_ABSENT_COST):
+        """
+        Per-class and per-camera calibration state, built from log events
+        
+        Not thread-safe and does no I/O, so the offline evaluation replays a log
+        through exactly the code that serves requests.
+        """
+        self.min_observations = min_observations
+        self.max_observations = max_observations
+        # Accept a face when P(present) >= target, which minimizes the expected cost
+        self.target = false_present_cost / (false_present_cost + false_absent_cost)
+        # Model key -> recent [score, label] pairs; a face is shared by its camera,
+        # class and global models so a correction relabels it in all three
+        self._observations = {}
+        # (class_id, date, student_id) -> faces a manual mark would correct
+        self._correctable = OrderedDict()
+        # Model key -> fitted (slope, intercept), or None if it cannot be fitted yet
+        self._models = {}
+    
+    def apply(self, event):
+        """Apply one log event"""
+        if event['type'] == 'face':
+            self.observe(event['class_id'], event.get('camera_id'), event['date'], event['student_id'],
+                         event['score'], event['recognized'])
+        elif event['type'] == 'correction':
+            self.correct(event['class_id'], event['date'], event['student_id'], event['status'])
+    
+    def observe(self, class_id, camera_id, date, student_id, score, recognized):
+        """Record a face matched to a student, labelled by whether it was accepted"""
+        observation = [score, 1 if recognized else 0]
+        for key in _model_keys(class_id, camera_id):
+            samples = self._observations.get(key)
+            if samples is None:
+                samples = self._observations[key] = deque(maxlen=self.max_observations)
+            samples.append(observation)
+            self._models.pop(key, None)
+        
+        student_day = (class_id, date, student_id)
+        faces = self._correctable.pop(student_day, None) or (class_id, camera_id, [])
+        faces[2].append(observation)
+        self._correctable[student_day] = faces
+        while len(self._correctable) > MAX_CORRECTABLE:
+            self._correctable.popitem(last=False)
+    
+    def correct(self, class_id, date, student_id, status):
+        """
+        Relabel a student's faces for a day from a teacher's manual mark
+        
+        Marked present: the best-scoring face was the student. Marked absent: none
+        of them were.
+        """
+        faces = self._correctable.get((class_id, date, student_id))
+        if faces is None:
+            return
+        _, camera_id, observations = faces
+        if status:
+            max(observations, key=lambda observation: observation[0])[1] = 1
+        else:
+            for observation in observations:
+                observation[1] = 0
+        for key in _model_keys(class_id, camera_id):
+            self._models.pop(key, None)
+    
+    def probability(self, class_id, camera_id, score):
+        """Calibrated probability that a face with this raw score is the student"""
+        slope, intercept = self._model(class_id, camera_id)
+        return _sigmoid(slope * score + intercept)
+    
+    def threshold(self, class_id, camera_id):
+        """Raw score at which a face is accepted for this class and camera"""
+        slope, intercept = self._model(class_id, camera_id)
+        threshold = (_logit(self.target) - intercept) / slope
+        return min(MAX_THRESHOLD, max(MIN_THRESHOLD, threshold))
+    
+    def _model(self, class_id, camera_id):
+        """The most specific model with enough labelled faces of both kinds"""
+        for key in _model_keys(class_id, camera_id):
+            if key not in self._models:
+                self._models[key] = self._fit(self._observations.get(key, ()))
+            if self._models[key] is not None:
+                return self._models[key]
+        return DEFAULT_SLOPE, -DEFAULT_SLOPE * MATCH_THRESHOLD
+    
+    def _fit(self, samples):
+        if len(samples) < self.min_observations:
+            return None
+        return fit_logistic([(score, label) for score, label in samples])
+
+def fit_logistic(samples, iterations=50):
+    """
+    Fit P(label = 1 | score) = sigmoid(slope * score + intercept) by Newton's method,
+    with Platt's smoothed targets so separable data still gives a finite fit
+    
+    Returns:
+        tuple: (slope, intercept), or None if the samples do not support a fit
+    """
+    positives = sum(label for _, label in samples)
+    negatives = len(samples) - positives
+    if positives == 0 or negatives == 0:
+        return None
+    
+    high = (positives + 1) / (positives + 2)
+    low = 1 / (negatives + 2)
+    slope, intercept = 0.0, math.log((positives + 1) / (negatives + 1))
+    
+    for _ in range(iterations):
+        gradient_slope = gradient_intercept = 0.0
+        # A small ridge keeps the Hessian invertible
+        hessian_ss = hessian_ii = 1e-6
+        hessian_si = 0.0
+        for score, label in samples:
+            p = _sigmoid(slope * score + intercept)
+            error = p - (high if label else low)
+            weight = p * (1 - p)
+            gradient_slope += error * score
+            gradient_intercept += error
+            hessian_ss += weight * score * score
+            hessian_si += weight * score
+            hessian_ii += weight
+        determinant = hessian_ss * hessian_ii - hessian_si * hessian_si
+        if determinant <= 0:
+            break
+        step_slope = (hessian_ii * gradient_slope - hessian_si * gradient_intercept) / determinant
+        step_intercept = (hessian_ss * gradient_intercept - hessian_si * gradient_slope) / determinant
+        slope -= step_slope
+        intercept -= step_intercept
+        if abs(step_slope) < 1e-6 and abs(step_intercept) < 1e-6:
+            break
+    
+    # Higher scores must mean more likely; anything else is noise in the labels
+    return (slope, intercept) if slope > 0 else None
+
+class CalibrationService:
+    def __init__(self, path=RECOGNITION_LOG, calibrator=None, clock=time.time):
+        """
+        Initialize the calibration service, replaying the recognition log
+        
+        Args:
+            path (str): Append-only log of matched faces and corrections
+            calibrator (Calibrator): Calibration state (default: Calibrator())
+            clock: Returns the current time, recorded with each event
+        """
+        self.path = path
+        self.calibrator = calibrator or Calibrator()
+        self._clock = clock
+        self._lock = threading.Lock()
+        
+        replayed = 0
+        if os.path.exists(path):
+            with open(path, 'r') as f:
+                for line in f:
+                    try:
+                        self.calibrator.apply(json.loads(line))
+                        replayed += 1
+                    except (ValueError, KeyError):
+                        # A line torn by a crash; later lines are still whole
+                        logger.warning(f"Skipping unreadable line in {path}")
+        logger.info(f"Replayed {replayed} recognition log events")
+        
+        os.makedirs(os.path.dirname(path) or '.', exist_ok=True)
+        self._log = open(path, 'a')
+    
+    def threshold(self, class_id, camera_id=None):
+        """Raw score at which a face is accepted for this class and camera"""
+        with self._lock:
+            return self.calibrator.threshold(class_id, camera_id)
+    
+    def observe(self, class_id, camera_id, date, student_ids, recognized_students, unrecognized_faces,
+                present_student_ids):
+        """
+        Add calibrated probabilities to a photo's faces and log the matches
+        
+        Args:
+            class_id (str): The ID of the class
+            camera_id (str): The device that took the photo, if known
+            date (str): Date of the attendance record
+            student_ids (Iterable): Students of the class; matches to anyone else are
+                                    not logged, as no correction could follow
+            recognized_students (list): Accepted faces; updated in place
+            unrecognized_faces (list): Rejected faces; updated in place
+            present_student_ids (set): Students already marked present for the date
+        
+        Returns:
+            dict: expected_missed, the expected number of students not yet marked
+                  among the rejected faces, and recapture_suggested
+        """
+        now = self._clock()
+        photo_id = f"{class_id}/{date}/{now}"
+        faces = [(face, face['student_id'], True) for face in recognized_students]
+        faces += [(face, face.get('candidate_student_id'), False) for face in unrecognized_faces]
+        
+        missed = {}
+        with self._lock:
+            for face, student_id, recognized in faces:
+                probability = self.calibrator.probability(class_id, camera_id, face['confidence'])
+                face['probability'] = round(probability, 3)
+                if student_id not in student_ids:
+                    continue
+                if not recognized and student_id not in present_student_ids:
+                    missed[student_id] = max(missed.get(student_id, 0), probability)
+                self.calibrator.observe(class_id, camera_id, date, student_id, face['confidence'], recognized)
+                self._write({'type': 'face', 'time': now, 'photo_id': photo_id, 'class_id': class_id,
+                             'camera_id': camera_id, 'date': date, 'student_id': student_id,
+                             'score': face['confidence'], 'recognized': recognized})
+            self._log.flush()
+        
+        expected_missed = sum(missed.values())
+        return {
+            "expected_missed": round(expected_missed, 2),
+            "recapture_suggested": expected_missed >= RECAPTURE_EXPECTED_MISSED
+        }
+    
+    def correct(self, class_id, date, student_id, status):
+        """Learn from a teacher's manual mark"""
+        with self._lock:
+            self.calibrator.correct(class_id, date, student_id, status)
+            self._write({'type': 'correction', 'time': self._clock(), 'class_id': class_id, 'date': date,
+                         'student_id': student_id, 'status': status})
+            self._log.flush()
+    
+    def events(self, class_ids):
+        """
+        Get the logged events of some classes, oldest first
+        
+        Returns:
+            list: Face and correction events
+        """
+        class_ids = set(class_ids)
+        with self._lock:
+            self._log.flush()
+            with open(self.path, 'r') as f:
+                lines = f.readlines()
+        
+        events = []
+        for line in lines:
+            try:
+                event = json.loads(line)
+            except ValueError:
+                continue
+            if event.get('class_id') in class_ids:
+                events.append(event)
+        return events
+    
+    def import_events(self, events):
+        """Append and learn from events logged elsewhere, such as on the node a school moved from"""
+        with self._lock:
+            for event in events:
+                self.calibrator.apply(event)
+                self._write(event)
+            self._log.flush()
+    
+    def _write(self, event):
+        """Append an event to the log. Caller holds the lock."""
+        self._log.write(json.dumps(event) + '\n')
+
+def _model_keys(class_id, camera_id):
+    """Model keys from most to least specific"""
+    keys = [('class', class_id), ('all',)]
+    if camera_id is not None:
+        keys.insert(0, ('camera', class_id, camera_id))
+    return keys
+
+def _sigmoid(x):
+    if x >= 0:
+        return 1 / (1 + math.exp(-x))
+    z = math.exp(x)
+    return z / (1 + z)
+
+def _logit(p):
+    return math.log(p / (1 - p))
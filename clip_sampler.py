@@ -0,0 +1,244 @@
+#!/usr/bin/env python3
+# Frame sampling of attendance clips for the Attendance System
+#
+# A clip of a few seconds catches the students a single photo misses while they look
+# down, but recognizing all of its frames would cost 30 photos a second. The sampler
+# steps through the clip instead, at an interval that halves while faces not yet
+# recognized move or appear and doubles while they are still, follows faces from one
+# sampled frame to the next so a face recognized once is not identified again, and
+# stops once every student of the class has been recognized.
+#
+# The policy and its constants follow android/ClipSampler.java, which is benchmarked
+# against recognizing every frame (benchmarks/ClipSamplingBenchmark.java); keep the
+# two in step. Frames are decoded with ffmpeg, which must be on the PATH.
+import os
+import json
+import math
+import shutil
+import logging
+import tempfile
+import subprocess
+
+logger = logging.getLogger(__name__)
+
+# Sampling interval bounds, in milliseconds; the first frame is always sampled
+MIN_INTERVAL_MS = 100
+INITIAL_INTERVAL_MS = 400
+MAX_INTERVAL_MS = 800
+
+# Speed of an unrecognized face, in face widths per second, above which sampling
+# speeds up and below which it slows down
+FAST_MOTION = 0.5
+SLOW_MOTION = 0.1
+
+# An unrecognized face is identified again once it moved this many face widths, or
+# after this many milliseconds regardless
+REIDENTIFY_MOTION = 0.1
+REIDENTIFY_MS = 1000
+
+# Intersection over union at which a box continues a face of the previous sample
+TRACK_OVERLAP = 0.3
+
+# A face unseen in this many samples in a row has left the frame
+MAX_MISSED_SAMPLES = 3
+
+# Longest clip accepted, in seconds; the app records 4
+MAX_CLIP_SECONDS = 10
+
+class ClipError(ValueError):
+    """Raised when a clip cannot be decoded"""
+    pass
+
+class ClipFrames:
+    def __init__(self, clip_path):
+        """
+        Frames of a video clip, decoded one at a time as they are sampled
+        
+        Args:
+            clip_path (str): Path to the clip
+        
+        Raises:
+            ClipError: If ffprobe can't read the clip, or it is too long
+        """
+        self.clip_path = clip_path
+        self._workdir = tempfile.mkdtemp(prefix='clip-frames-')
+        
+        try:
+            output = subprocess.run(
+                ['ffprobe', '-v', 'error', '-select_streams', 'v:0', '-count_packets',
+                 '-show_entries', 'stream=avg_frame_rate,nb_read_packets', '-of', 'json', clip_path],
+                check=True, capture_output=True, text=True).stdout
+            stream = json.loads(output)['streams'][0]
+            numerator, _, denominator = stream['avg_frame_rate'].partition('/')
+            self.frames_per_second = float(numerator) / float(denominator or 1)
+            self.frame_count = int(stream['nb_read_packets'])
+        except (OSError, subprocess.CalledProcessError, KeyError, IndexError, ValueError, ZeroDivisionError) as e:
+            self.close()
+            raise ClipError(f"Cannot read clip: {e}")
+        
+        if self.frame_count > MAX_CLIP_SECONDS * self.frames_per_second:
+            self.close()
+            raise ClipError(f"Clip is longer than {MAX_CLIP_SECONDS} seconds")
+    
+    def timestamp_ms(self, index):
+        return int(index * 1000 / self.frames_per_second)
+    
+    def frame(self, index):
+        """
+        Decode one frame
+        
+        Returns:
+            str: Path to the frame as a JPEG, valid until close()
+        """
+        frame_path = os.path.join(self._workdir, f"frame-{index:05d}.jpg")
+        # Selecting by frame number decodes from the start, which is exact whatever the
+        # clip's keyframes; a clip is a few seconds long
+        try:
+            subprocess.run(['ffmpeg', '-v', 'error', '-i', self.clip_path, '-vf', f"select=eq(n\\,{index})",
+                            '-frames:v', '1', '-q:v', '2', '-y', frame_path],
+                           check=True, capture_output=True)
+        except (OSError, subprocess.CalledProcessError) as e:
+            raise ClipError(f"Cannot decode frame {index}: {e}")
+        return frame_path
+    
+    def close(self):
+        """Delete the decoded frames"""
+        shutil.rmtree(self._workdir, ignore_errors=True)
+
+def sample_clip(frames, detect, identify, enrolled, threshold):
+    """
+    Recognize the enrolled students in a clip, sampling as few frames as it takes
+    
+    Args:
+        frames: The clip's frames: frame_count, timestamp_ms(index) and frame(index),
+                like ClipFrames
+        detect (callable): frame -> face boxes as [top, right, bottom, left]
+        identify (callable): (frame, boxes) -> each box's best match as
+                             (student_id, confidence), or None if it resembles no one
+        enrolled (Iterable): Students who may appear; matches to anyone else are ignored
+        threshold (float): Confidence at which a match recognizes a student
+    
+    Returns:
+        dict: 'recognized' (student_id -> best match: confidence, location, frame_ms),
+              'unrecognized' (faces never recognized, each with its last best match),
+              'last_frame' (the last frame sampled), 'last_frame_faces' (the faces in it,
+              with the student each was recognized as), 'last_frame_ms', 'frames_sampled',
+              'frame_count', 'identifications' and 'complete' (every enrolled student
+              was recognized, which ended sampling early)
+    """
+    expected = set(enrolled)
+    recognized = {}
+    tracks = []
+    interval = INITIAL_INTERVAL_MS
+    frames_sampled = 0
+    identifications = 0
+    previous_ms = 0
+    frame = None
+    millis = 0
+    complete = False
+    
+    index = 0
+    while index < frames.frame_count:
+        millis = frames.timestamp_ms(index)
+        frame = frames.frame(index)
+        frames_sampled += 1
+        
+        motion = _follow(tracks, detect(frame), 0 if frames_sampled == 1 else millis - previous_ms)
+        
+        pending = [t for t in tracks if t['student_id'] is None and t['missed'] == 0 and _should_identify(t, millis)]
+        if pending:
+            matches = identify(frame, [t['box'] for t in pending])
+            identifications += len(pending)
+            for track, match in zip(pending, matches):
+                track['identified_box'] = track['box']
+                track['identified_ms'] = millis
+                track['match'] = match
+                if match is None or match[1] < threshold or match[0] not in expected:
+                    continue
+                student_id, confidence = match
+                track['student_id'] = student_id
+                best = recognized.get(student_id)
+                if best is None or confidence > best['confidence']:
+                    recognized[student_id] = {'confidence': confidence, 'location': track['box'], 'frame_ms': millis}
+        
+        if expected <= recognized.keys():
+            complete = True
+            break
+        
+        if motion > FAST_MOTION:
+            interval = max(interval // 2, MIN_INTERVAL_MS)
+        elif motion < SLOW_MOTION:
+            interval = min(interval * 2, MAX_INTERVAL_MS)
+        previous_ms = millis
+        
+        index += 1
+        while index < frames.frame_count and frames.timestamp_ms(index) < millis + interval:
+            index += 1
+    
+    unrecognized = [{'location': t['box'], 'match': t['match']} for t in tracks
+                    if t['student_id'] is None and t['match'] is not None]
+    return {
+        'recognized': recognized,
+        'unrecognized': unrecognized,
+        'last_frame': frame,
+        'last_frame_faces': [{'location': t['box'], 'student_id': t['student_id']} for t in tracks if t['missed'] == 0],
+        'last_frame_ms': millis,
+        'frames_sampled': frames_sampled,
+        'frame_count': frames.frame_count,
+        'identifications': identifications,
+        'complete': complete
+    }
+
+def _follow(tracks, boxes, elapsed_ms):
+    """
+    Continue the tracks with the boxes of a new sample, greedily by overlap, and start
+    a track for each box left over
+    
+    Returns:
+        float: Fastest speed of an unrecognized face since the previous sample, in face
+               widths per second; a face that just appeared counts as fast
+    """
+    unmatched = list(boxes)
+    waiting = list(tracks)
+    motion = 0
+    
+    while waiting and unmatched:
+        best = max(((_overlap(track['box'], box), i, j) for i, track in enumerate(waiting)
+                    for j, box in enumerate(unmatched)), default=(0, None, None))
+        if best[0] < TRACK_OVERLAP:
+            break
+        track = waiting.pop(best[1])
+        box = unmatched.pop(best[2])
+        if track['student_id'] is None and elapsed_ms > 0:
+            motion = max(motion, _displacement(track['box'], box) * 1000 / elapsed_ms)
+        track['box'] = box
+        track['missed'] = 0
+    
+    for track in waiting:
+        track['missed'] += 1
+    tracks[:] = [t for t in tracks if t['missed'] <= MAX_MISSED_SAMPLES]
+    for box in unmatched:
+        tracks.append({'box': box, 'missed': 0, 'student_id': None, 'match': None,
+                       'identified_box': None, 'identified_ms': 0})
+        if elapsed_ms > 0:
+            motion = math.inf
+    return motion
+
+def _should_identify(track, millis):
+    return (track['identified_box'] is None
+            or _displacement(track['identified_box'], track['box']) >= REIDENTIFY_MOTION
+            or millis - track['identified_ms'] >= REIDENTIFY_MS)
+
+def _overlap(a, b):
+    """Intersection over union of two [top, right, bottom, left] boxes"""
+    width = min(a[1], b[1]) - max(a[3], b[3])
+    height = min(a[2], b[2]) - max(a[0], b[0])
+    intersection = max(width, 0) * max(height, 0)
+    union = (a[1] - a[3]) * (a[2] - a[0]) + (b[1] - b[3]) * (b[2] - b[0]) - intersection
+    return intersection / union if union > 0 else 0
+
+def _displacement(a, b):
+    """Distance between the centres of two boxes, in widths of the first"""
+    dx = (b[1] + b[3] - a[1] - a[3]) / 2
+    dy = (b[0] + b[2] - a[0] - a[2]) / 2
+    return math.hypot(dx, dy) / max(a[1] - a[3], 1)
@@ -0,0 +1,126 @@
+#!/usr/bin/env python3
+# In-process event bus backing the Server-Sent Events stream
+import json
+import uuid
+import queue
+import logging
+import threading
+from collections import deque
+
+logger = logging.getLogger(__name__)
+
+class Subscription:
+    def __init__(self, buffer_size):
+        """A subscriber's pending events"""
+        self.queue = queue.Queue(maxsize=buffer_size)
+        self.closed = False
+    
+    def next_event(self, timeout):
+        """
+        Wait for the next event
+        
+        Returns:
+            dict: The event, or None if the timeout elapsed or the subscription was closed
+        """
+        if self.closed:
+            return None
+        try:
+            return self.queue.get(timeout=timeout)
+        except queue.Empty:
+            return None
+
+class EventBus:
+    def __init__(self, history_size=2000, subscriber_buffer=500):
+        """
+        Initialize the event bus
+        
+        Args:
+            history_size (int): Recent events kept for replay to reconnecting clients
+            subscriber_buffer (int): Events buffered per subscriber before it is dropped
+        """
+        # Event IDs are "<boot>:<seq>" so a client reconnecting after a server
+        # restart can tell that its Last-Event-ID refers to a lost history
+        self.boot_id = uuid.uuid4().hex[:8]
+        self.subscriber_buffer = subscriber_buffer
+        self._seq = 0
+        self._history = deque(maxlen=history_size)
+        self._subscribers = set()
+        self._lock = threading.Lock()
+    
+    def publish(self, event_type, data):
+        """
+        Publish an event to every subscriber
+        
+        Returns:
+            str: The event ID
+        """
+        with self._lock:
+            self._seq += 1
+            event = {
+                'id': f"{self.boot_id}:{self._seq}",
+                'seq': self._seq,
+                'type': event_type,
+                'data': data
+            }
+            self._history.append(event)
+            subscribers = list(self._subscribers)
+        
+        for subscriber in subscribers:
+            try:
+                subscriber.queue.put_nowait(event)
+            except queue.Full:
+                # A stalled client must not block publishers; it will reconnect
+                # and catch up from history via Last-Event-ID
+                logger.warning("Dropping slow event subscriber")
+                self.unsubscribe(subscriber)
+        
+        return event['id']
+    
+    def subscribe(self, last_event_id=None):
+        """
+        Register a subscriber
+        
+        Args:
+            last_event_id (str): ID of the last event the client saw, if reconnecting
+        
+        Returns:
+            tuple: (Subscription, events to replay). When the requested history is
+                   no longer available the replay is a single 'reset' event telling
+                   the client to reload its state instead.
+        """
+        subscriber = Subscription(self.subscriber_buffer)
+        replay = []
+        
+        with self._lock:
+            if last_event_id:
+                boot_id, _, seq = last_event_id.partition(':')
+                try:
+                    seq = int(seq)
+                except ValueError:
+                    seq = -1
+                
+                oldest = self._history[0]['seq'] if self._history else self._seq + 1
+                if boot_id != self.boot_id or seq < 0 or seq + 1 < oldest:
+                    replay = [{
+                        'id': f"{self.boot_id}:{self._seq}",
+                        'seq': self._seq,
+                        'type': 'reset',
+                        'data': {}
+                    }]
+                else:
+                    replay = [e for e in self._history if e['seq'] > seq]
+            
+            self._subscribers.add(subscriber)
+        
+        return subscriber, replay
+    
+    def unsubscribe(self, subscriber):
+        """Remove a subscriber"""
+        with self._lock:
+            self._subscribers.discard(subscriber)
+        subscriber.closed = True
+    
+    @staticmethod
+    def format_sse(event):
+        """Format an event as a Server-Sent Events frame"""
+        return f"id: {event['id']}\nevent: {event['type']}\ndata: {json.dumps(event['data'])}\n\n"
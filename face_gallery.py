@@ -0,0 +1,266 @@
+#!/usr/bin/env python3
+# Known-faces gallery for the Attendance System
+import os
+import time
+import queue
+import logging
+import threading
+from types import MappingProxyType
+from gallery_snapshot import SnapshotEntries, SnapshotError, write_snapshot
+
+logger = logging.getLogger(__name__)
+
+GALLERY_FILE = os.path.join('data', 'face_gallery.snap')
+# Encodings applied per copy of the gallery; bounds how long a new face waits to be
+# visible while a large sync is in progress
+MAX_BATCH = 64
+# Minimum seconds between writes of the gallery file
+SAVE_INTERVAL = 5
+
+class FaceGallery:
+    def __init__(self, encoder, path=GALLERY_FILE):
+        """
+        Initialize the gallery and start its encoding worker
+        
+        Reads never block on updates: every change builds a new dict and swaps it in,
+        so `snapshot()` always returns a complete, immutable view. Encodings for new
+        photos are computed on a background thread and applied in batches.
+        
+        Args:
+            encoder: Callable computing a face encoding from a photo path
+            path (str): File the gallery is persisted to
+        """
+        self.encoder = encoder
+        self.path = path
+        
+        self._entries = MappingProxyType({})
+        # Bumped on every change to a student, so an encoding finished after the
+        # student was removed or re-enrolled is discarded instead of applied
+        self._versions = {}
+        self._write_lock = threading.Lock()
+        self._save_lock = threading.Lock()
+        self._dirty = False
+        self._pending = 0
+        self._idle = threading.Condition(self._write_lock)
+        
+        self._queue = queue.Queue()
+        self._worker = threading.Thread(target=self._worker_loop, name="face-gallery-encoder", daemon=True)
+        self._worker.start()
+        # Rewriting the whole file per enrollment would cost more than the encoding
+        # itself, so changes are saved periodically instead; encodings lost to a
+        # crash are recomputed by sync() on the next start
+        self._saver = threading.Thread(target=self._saver_loop, name="face-gallery-saver", daemon=True)
+        self._saver.start()
+    
+    def snapshot(self):
+        """
+        Get the current gallery
+        
+        Returns:
+            Mapping: student_id -> entry with name, class_id, photo_path and encoding
+        """
+        return self._entries
+    
+    def load(self):
+        """
+        Load the persisted gallery
+        
+        The snapshot is memory-mapped rather than read, so this returns as soon as the
+        file is verified; entries are decoded on first access.
+        
+        Returns:
+            int: Number of entries loaded
+        """
+        if not os.path.exists(self.path):
+            return 0
+        
+        try:
+            entries = SnapshotEntries(self.path)
+        except (OSError, SnapshotError) as e:
+            logger.warning(f"Ignoring unreadable face gallery {self.path}: {str(e)}")
+            return 0
+        
+        with self._write_lock:
+            self._entries = entries
+        
+        logger.info(f"Loaded {len(self._entries)} face encodings from {self.path}")
+        return len(self._entries)
+    
+    def sync(self, students):
+        """
+        Reconcile the gallery with the roster
+        
+        Entries whose photo is unchanged keep their encoding; only new or changed
+        photos are queued for encoding.
+        
+        Returns:
+            int: Number of students queued for encoding
+        """
+        roster = {s['student_id']: s for s in students}
+        queued = 0
+        
+        with self._write_lock:
+            entries = {student_id: entry for student_id, entry in self._entries.items() if student_id in roster}
+            removed = len(self._entries) - len(entries)
+            
+            for student_id, student in roster.items():
+                entry = entries.get(student_id)
+                if entry is not None and entry['photo_path'] == student['photo_path'] \
+                        and entry['photo_mtime'] == _mtime(student['photo_path']):
+                    entries[student_id] = dict(entry, name=student['name'], class_id=student['class_id'])
+                else:
+                    entries.pop(student_id, None)
+                    self._enqueue(student)
+                    queued += 1
+            
+            self._entries = MappingProxyType(entries)
+            if removed:
+                self._mark_dirty()
+        
+        logger.info(f"Synced face gallery: {len(roster) - queued} reused, {queued} to encode, {removed} removed")
+        return queued
+    
+    def add(self, student):
+        """Queue a newly enrolled or re-photographed student for encoding"""
+        with self._write_lock:
+            self._enqueue(student)
+    
+    def update(self, student):
+        """
+        Apply a change to a student
+        
+        A name or class change is applied immediately; a new photo is re-encoded.
+        """
+        with self._write_lock:
+            entry = self._entries.get(student['student_id'])
+            if entry is None or entry['photo_path'] != student['photo_path']:
+                self._enqueue(student)
+                return
+            
+            entries = dict(self._entries.items())
+            entries[student['student_id']] = dict(entry, name=student['name'], class_id=student['class_id'])
+            self._entries = MappingProxyType(entries)
+            self._mark_dirty()
+    
+    def restore(self, entries):
+        """
+        Add entries encoded elsewhere, such as on the node a school moved from
+        
+        Args:
+            entries (list): Entries as returned by snapshot(), for photos that are
+                            in this node's photo store
+        """
+        with self._write_lock:
+            restored = dict(self._entries.items())
+            for entry in entries:
+                student_id = entry['student_id']
+                self._versions[student_id] = self._versions.get(student_id, 0) + 1
+                restored[student_id] = dict(entry, photo_mtime=_mtime(entry['photo_path']))
+            self._entries = MappingProxyType(restored)
+            self._mark_dirty()
+    
+    def remove(self, student_id):
+        """Remove a student, including any encoding still in progress"""
+        with self._write_lock:
+            self._versions[student_id] = self._versions.get(student_id, 0) + 1
+            if student_id in self._entries:
+                entries = dict(self._entries.items())
+                del entries[student_id]
+                self._entries = MappingProxyType(entries)
+                self._mark_dirty()
+    
+    def wait_until_idle(self, timeout=None):
+        """
+        Wait for queued encodings to be applied
+        
+        Returns:
+            bool: False if the timeout elapsed first
+        """
+        with self._idle:
+            return self._idle.wait_for(lambda: self._pending == 0, timeout)
+    
+    def _enqueue(self, student):
+        """Queue an encoding. Caller holds the write lock."""
+        student_id = student['student_id']
+        version = self._versions.get(student_id, 0) + 1
+        self._versions[student_id] = version
+        self._pending += 1
+        self._queue.put((student, version))
+    
+    def _mark_dirty(self):
+        """Note an unsaved change. Caller holds the write lock."""
+        self._dirty = True
+    
+    def save(self):
+        """Write the gallery now if it has unsaved changes"""
+        with self._save_lock:
+            with self._write_lock:
+                if not self._dirty:
+                    return
+                self._dirty = False
+                snapshot = self._entries
+            
+            try:
+                self._save(snapshot)
+            except OSError as e:
+                logger.error(f"Error saving face gallery: {str(e)}")
+                with self._write_lock:
+                    self._dirty = True
+    
+    def _worker_loop(self):
+        while True:
+            items = [self._queue.get()]
+            # Take whatever else is queued so a burst of enrollments costs one
+            # copy of the gallery
+            while len(items) < MAX_BATCH:
+                try:
+                    items.append(self._queue.get_nowait())
+                except queue.Empty:
+                    break
+            
+            encoded = []
+            for student, version in items:
+                try:
+                    encoding = self.encoder(student['photo_path'])
+                except Exception as e:
+                    logger.error(f"Error encoding face for student {student['student_id']}: {str(e)}")
+                    encoding = None
+                encoded.append((student, version, encoding))
+            
+            with self._write_lock:
+                entries = dict(self._entries.items())
+                for student, version, encoding in encoded:
+                    student_id = student['student_id']
+                    if self._versions.get(student_id) != version:
+                        continue
+                    if encoding is None:
+                        entries.pop(student_id, None)
+                        continue
+                    entries[student_id] = {
+                        'student_id': student_id,
+                        'name': student['name'],
+                        'class_id': student['class_id'],
+                        'photo_path': student['photo_path'],
+                        'photo_mtime': _mtime(student['photo_path']),
+                        'encoding': encoding
+                    }
+                self._entries = MappingProxyType(entries)
+                self._mark_dirty()
+                self._pending -= len(items)
+                self._idle.notify_all()
+    
+    def _saver_loop(self):
+        while True:
+            time.sleep(SAVE_INTERVAL)
+            self.save()
+    
+    def _save(self, entries):
+        """Write the gallery snapshot; the previous file stays intact until it is replaced"""
+        size = write_snapshot(self.path, entries)
+        logger.info(f"Saved {len(entries)} face encodings to {self.path} ({size} bytes)")
+
+def _mtime(path):
+    try:
+        return os.path.getmtime(path)
+    except OSError:
+        return None
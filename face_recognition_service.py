@@ -1,47 +1,217 @@
 #!/usr/bin/env python3
-# Mock Face Recognition Service for Attendance System
+# Face Recognition Service for Attendance System
+#
+# Recognizes faces with a recognition engine (recognition_engine.py) when one is given,
+# batching the photos and faces of concurrent requests into one inference, and with a
+# mock that recognizes students at random otherwise.
 import os
-import logging
 import random
+import threading
+import hashlib
+import logging
 from models import Student
+from face_gallery import FaceGallery, GALLERY_FILE
+from micro_batcher import MicroBatcher
 
 # Configure logging
 logging.basicConfig(level=logging.INFO)
 logger = logging.getLogger(__name__)
 
+# Length of the mock face encodings, as produced by common face embedding models
+ENCODING_SIZE = 128
+
+# Score at which a face's best match is accepted, unless a calibrated threshold is given
+MATCH_THRESHOLD = 0.6
+
+# Seats of the mock classroom, in rows of MOCK_SEATS_PER_ROW, and the chance that the
+# student in a seat is looking down, hiding their face, when a frame is taken
+MOCK_SEATS = 30
+MOCK_SEATS_PER_ROW = 6
+MOCK_LOOKING_DOWN = 0.2
+
+def valid_boxes(boxes, width, height):
+    """
+    Clamp face boxes to an image, dropping those left with no area
+    
+    Boxes come from clients as well as detectors, and a crop of nothing fails the
+    whole batch of faces it is embedded with.
+    
+    Args:
+        boxes (list): Face boxes as [top, right, bottom, left]
+        width (int): Width of the image
+        height (int): Height of the image
+    
+    Returns:
+        list: (index in boxes, clamped box) of each box kept
+    """
+    kept = []
+    for index, box in enumerate(boxes):
+        try:
+            top, right, bottom, left = (int(value) for value in box)
+        except (TypeError, ValueError):
+            logger.warning(f"Dropping malformed face box {box!r}")
+            continue
+        top, bottom = max(top, 0), min(bottom, height)
+        left, right = max(left, 0), min(right, width)
+        if bottom <= top or right <= left:
+            logger.warning(f"Dropping face box {box!r} with no area inside the {width}x{height} image")
+            continue
+        kept.append((index, [top, right, bottom, left]))
+    return kept
+
 class FaceRecognitionService:
-    def __init__(self):
-        """Initialize the mock face recognition service"""
-        self.known_face_names = []
-        self.known_student_ids = []
-        self.update_student_encodings()
+    def __init__(self, gallery=None, photo_store=None, engine=None, batching=True):
+        """
+        Initialize the face recognition service
+        
+        Args:
+            gallery (FaceGallery): Known faces (default: the gallery of the engine's encodings)
+            photo_store (PhotoStore): Store student and classroom photos may be in
+            engine (RecognitionEngine): Engine to recognize with (default: the mock)
+            batching (bool): Whether concurrent requests share the engine's inferences
+        """
+        self.photo_store = photo_store
+        self.engine = engine
+        self._detect_batcher = None
+        self._embed_batcher = None
+        if engine is not None and batching:
+            self._detect_batcher = MicroBatcher(engine.detect, name="face-detect-batcher")
+            self._embed_batcher = MicroBatcher(engine.embed, name="face-embed-batcher")
+        if gallery is None:
+            # One engine's encodings mean nothing to another
+            path = GALLERY_FILE if engine is None else os.path.join('data', f"face_gallery.{engine.name}.snap")
+            gallery = FaceGallery(self.encode_photo, path)
+        self.gallery = gallery
+        # Serve recognition from the persisted snapshot straight away, and reconcile
+        # it with the roster in the background; only photos added or changed since
+        # the snapshot was written are encoded
+        self.gallery.load()
+        self._sync_thread = threading.Thread(target=self.update_student_encodings, name="face-gallery-sync", daemon=True)
+        self._sync_thread.start()
+    
+    @property
+    def known_face_names(self):
+        return [entry['name'] for entry in self.gallery.snapshot().values()]
+    
+    @property
+    def known_student_ids(self):
+        return list(self.gallery.snapshot().keys())
     
     def update_student_encodings(self):
-        """Update the student list from the database"""
+        """Reconcile the known faces with every student in the database"""
         logger.info("Updating student list (mock)")
-        students = Student.get_all()
+        queued = self.gallery.sync(Student.get_all())
+        logger.info(f"Queued {queued} students for encoding")
+    
+    def wait_until_synced(self, timeout=None):
+        """Wait for the startup reconciliation and the encodings it queued"""
+        self._sync_thread.join(timeout)
+        return not self._sync_thread.is_alive() and self.gallery.wait_until_idle(timeout)
+    
+    def add_student(self, student):
+        """Encode a newly enrolled student's photo in the background"""
+        self.gallery.add(student)
+    
+    def update_student(self, student):
+        """Apply a change to a student, re-encoding only if the photo changed"""
+        self.gallery.update(student)
+    
+    def remove_student(self, student_id):
+        """Forget a deleted student's face"""
+        self.gallery.remove(student_id)
+    
+    def encode_photo(self, photo_path):
+        """Compute the face encoding of a photo in the photo store or a loose file"""
+        if self.engine is not None:
+            image = self.engine.decode(self._read(photo_path))
+            boxes = [box for _, box in valid_boxes(self._detect([image])[0], *self.engine.size(image))]
+            if not boxes:
+                raise ValueError(f"No face found in {photo_path}")
+            # The student's own face is the largest in their photo
+            box = max(boxes, key=lambda b: (b[1] - b[3]) * (b[2] - b[0]))
+            return self._embed([(image, box)])[0]
+        if self.photo_store is not None and self.photo_store.owns(photo_path):
+            return self.compute_encoding_from_bytes(self.photo_store.read(photo_path))
+        return self.compute_encoding(photo_path)
+    
+    @staticmethod
+    def compute_encoding(photo_path):
+        """
+        Mock face encoding of a photo file
         
-        self.known_face_names = []
-        self.known_student_ids = []
+        Returns:
+            list: ENCODING_SIZE floats in [-1, 1)
+        """
+        with open(photo_path, 'rb') as f:
+            return FaceRecognitionService.compute_encoding_from_bytes(f.read())
+    
+    @staticmethod
+    def compute_encoding_from_bytes(data):
+        """
+        Mock face encoding: a deterministic vector derived from the photo's bytes
         
-        for student in students:
-            self.known_face_names.append(student['name'])
-            self.known_student_ids.append(student['student_id'])
-            logger.info(f"Added student: {student['name']}")
+        Returns:
+            list: ENCODING_SIZE floats in [-1, 1)
+        """
+        rng = random.Random(hashlib.sha256(data).digest())
+        return [round(rng.uniform(-1, 1), 6) for _ in range(ENCODING_SIZE)]
+    
+    def detect_faces(self, image_path):
+        """
+        Detect the faces in a photo with the engine. The mock finds the faces of a class
+        seated in rows, less those looking down; seats don't move, so a face is in the
+        same place in every frame of a clip.
         
-        logger.info(f"Updated student list with {len(self.known_student_ids)} students")
+        Returns:
+            list: Face boxes as [top, right, bottom, left]
+        """
+        if self.engine is not None:
+            return self._detect([self.engine.decode(self._read(image_path))])[0]
+        
+        boxes = []
+        for seat in range(MOCK_SEATS):
+            if random.random() < MOCK_LOOKING_DOWN:
+                continue
+            row, column = divmod(seat, MOCK_SEATS_PER_ROW)
+            top = 80 + row * 120
+            left = 60 + column * 200
+            boxes.append([top, left + 60, top + 60, left])
+        return boxes
     
-    def recognize_faces(self, image_path):
+    def recognize_faces(self, image_path, face_locations=None, threshold=MATCH_THRESHOLD, candidate_ids=None):
         """
-        Mock face recognition that randomly recognizes students
+        Recognize the students in a photo with the engine; the mock recognizes
+        students at random
+        
+        Args:
+            image_path (str): Path to the classroom photo
+            face_locations (list): Face boxes as [top, right, bottom, left], when the
+                                   client has already detected faces on the
+                                   full-resolution photo; each face is matched against
+                                   the known students instead of detecting again
+            threshold (float): Score at which a face's best match is accepted
+            candidate_ids (Iterable): Students the faces may be matched to, such as
+                                      those of the class's school (default: everyone
+                                      in the gallery)
         
         Returns:
-            dict: Dictionary with recognized students and unrecognized faces info
+            dict: Dictionary with recognized students and unrecognized faces info;
+                  an unrecognized face carries its best match below the threshold
+                  as candidate_student_id
         """
         logger.info(f"Processing image: {image_path}")
         
-        # Get all students from the database
-        students = Student.get_all()
+        # Match against the students whose faces have been encoded; only the chosen
+        # entries are read, since a mapped snapshot decodes entries on access
+        gallery = self.gallery.snapshot()
+        if candidate_ids is None:
+            students = list(gallery)
+        else:
+            students = [student_id for student_id in candidate_ids if student_id in gallery]
+        
+        if self.engine is not None:
+            return self._recognize_with_engine(image_path, face_locations, threshold,
+                                               [gallery[student_id] for student_id in students])
         
         recognized_students = []
         unrecognized_faces = []
@@ -50,47 +220,116 @@ class FaceRecognitionService:
         if students:
             # Randomly decide how many students to recognize
             num_to_recognize = random.randint(max(1, int(len(students) * 0.6)), max(1, int(len(students) * 0.8)))
+            if face_locations is not None:
+                num_to_recognize = min(num_to_recognize, len(face_locations))
+            
+            # Add some random unrecognized faces, or the detected faces left over
+            if face_locations is not None:
+                num_faces = len(face_locations)
+            else:
+                num_faces = num_to_recognize + random.randint(0, 2)
             
-            # Randomly select students to recognize
-            students_to_recognize = random.sample(students, min(num_to_recognize, len(students)))
+            # Randomly select the best match of each face; the first num_to_recognize
+            # are the students themselves, the rest look like someone else
+            matches = [gallery[student_id] for student_id in
+                       random.sample(students, min(num_faces, len(students)))]
             
-            for i, student in enumerate(students_to_recognize):
-                # Generate a random confidence score between 0.65 and 0.95
-                confidence = round(random.uniform(0.65, 0.95), 2)
+            for face_index in range(num_faces):
+                genuine = face_index < num_to_recognize
+                # Generate a random score between 0.65 and 0.95 for a genuine match, or
+                # between 0.2 and 0.55 otherwise
+                confidence = round(random.uniform(0.65, 0.95) if genuine else random.uniform(0.2, 0.55), 2)
+                student = matches[face_index] if face_index < len(matches) else None
+                
+                if face_locations is not None:
+                    location = face_locations[face_index]
+                elif genuine:
+                    location = [50 + face_index*30, 100 + face_index*20, 150 + face_index*30, 100 + face_index*20]  # Mock face location
+                else:
+                    location = [200, 200, 250, 150]  # Mock face location
                 
+                if student is not None and confidence >= threshold:
+                    recognized_students.append({
+                        "student_id": student['student_id'],
+                        "name": student['name'],
+                        "confidence": float(confidence),
+                        "face_index": face_index,
+                        "location": location
+                    })
+                    logger.info(f"Recognized student: {student['name']} (ID: {student['student_id']}) with confidence: {confidence:.2f}")
+                else:
+                    unrecognized_faces.append({
+                        "face_index": face_index,
+                        "confidence": float(confidence),
+                        "candidate_student_id": student['student_id'] if student is not None else None,
+                        "location": location
+                    })
+                    logger.info(f"Unrecognized face at position {face_index} with confidence: {confidence:.2f}")
+        
+        logger.info(f"Found {len(recognized_students)} recognized students and {len(unrecognized_faces)} unrecognized faces")
+        
+        return {
+            "recognized_students": recognized_students,
+            "unrecognized_faces": unrecognized_faces,
+            # The mock does not annotate the photo
+            "processed_image_path": None
+        }
+    
+    def _recognize_with_engine(self, image_path, face_locations, threshold, candidates):
+        """
+        Detect the faces of a photo (unless the client did), embed them and match them to the candidates
+        
+        Boxes with no area inside the photo are dropped; the faces kept keep their index
+        in face_locations, which a clip's frames are matched by.
+        """
+        image = self.engine.decode(self._read(image_path))
+        boxes = face_locations if face_locations is not None else self._detect([image])[0]
+        faces = valid_boxes(boxes, *self.engine.size(image))
+        embeddings = self._embed([(image, box) for _, box in faces]) if faces else []
+        matches = self.engine.match(embeddings, [candidate['encoding'] for candidate in candidates])
+        
+        recognized_students = []
+        unrecognized_faces = []
+        for (face_index, location), match in zip(faces, matches):
+            student = candidates[match[0]] if match is not None else None
+            confidence = round(match[1], 4) if match is not None else 0.0
+            if student is not None and confidence >= threshold:
                 recognized_students.append({
                     "student_id": student['student_id'],
                     "name": student['name'],
-                    "confidence": float(confidence),
-                    "face_index": i,
-                    "location": [50 + i*30, 100 + i*20, 150 + i*30, 100 + i*20]  # Mock face location
+                    "confidence": confidence,
+                    "face_index": face_index,
+                    "location": location
                 })
-                
-                logger.info(f"Recognized student: {student['name']} (ID: {student['student_id']}) with confidence: {confidence:.2f}")
-            
-            # Add some random unrecognized faces
-            num_unrecognized = random.randint(0, 2)
-            for i in range(num_unrecognized):
-                confidence = round(random.uniform(0.2, 0.55), 2)
+            else:
                 unrecognized_faces.append({
-                    "face_index": len(recognized_students) + i,
-                    "confidence": float(confidence),
-                    "location": [200, 200, 250, 150]  # Mock face location
+                    "face_index": face_index,
+                    "confidence": confidence,
+                    "candidate_student_id": student['student_id'] if student is not None else None,
+                    "location": location
                 })
-                
-                logger.info(f"Unrecognized face at position {i} with confidence: {confidence:.2f}")
-        
-        # Mock processed image path
-        output_path = image_path.replace('.jpg', '_processed.jpg')
-        # Just create an empty file as a placeholder
-        with open(output_path, 'w') as f:
-            f.write("")
         
-        logger.info(f"Mock processed image saved to: {output_path}")
         logger.info(f"Found {len(recognized_students)} recognized students and {len(unrecognized_faces)} unrecognized faces")
         
         return {
             "recognized_students": recognized_students,
             "unrecognized_faces": unrecognized_faces,
-            "processed_image_path": output_path
+            "processed_image_path": None
         }
+    
+    def _read(self, image_path):
+        """Read a photo in the photo store or a loose file"""
+        if self.photo_store is not None and self.photo_store.owns(image_path):
+            return self.photo_store.read(image_path)
+        with open(image_path, 'rb') as f:
+            return f.read()
+    
+    def _detect(self, images):
+        if self._detect_batcher is not None:
+            return self._detect_batcher.submit(images)
+        return self.engine.detect(images)
+    
+    def _embed(self, faces):
+        if self._embed_batcher is not None:
+            return self._embed_batcher.submit(faces)
+        return self.engine.embed(faces)
@@ -0,0 +1,197 @@
+#!/usr/bin/env python3
+# Binary, memory-mapped snapshot of the face gallery
+#
+# Layout (little-endian):
+#   header     HEADER_SIZE bytes, see HEADER_FORMAT
+#   records    count fixed-size records sorted by student_id, see RECORD_FORMAT;
+#              each string field is an (offset, length) pair into the string table
+#   encodings  count * encoding_size float32, 64-byte aligned, in record order
+#   strings    UTF-8 string table
+#
+# The CRC32 in the header covers everything after the header. Records are sorted so
+# a student is found by binary search without building an index at startup.
+import os
+import mmap
+import zlib
+import math
+import struct
+import logging
+from array import array
+from collections.abc import Mapping
+
+logger = logging.getLogger(__name__)
+
+MAGIC = b'AGSN'
+VERSION = 1
+HEADER_FORMAT = '<4sHHIHxxQQQQI'
+HEADER_SIZE = 64
+RECORD_FORMAT = '<IHIHIHIHd'
+RECORD_SIZE = struct.calcsize(RECORD_FORMAT)
+ALIGNMENT = 64
+
+class SnapshotError(Exception):
+    """Raised when a snapshot file is missing, corrupt or of an unknown version"""
+    pass
+
+class SnapshotEntries(Mapping):
+    def __init__(self, path):
+        """
+        Map a snapshot file and verify it
+        
+        Nothing is decoded up front; entries are decoded on access and encodings are
+        zero-copy float32 views into the mapped file.
+        """
+        with open(path, 'rb') as f:
+            try:
+                self._map = mmap.mmap(f.fileno(), 0, access=mmap.ACCESS_READ)
+            except ValueError:
+                raise SnapshotError(f"Empty snapshot {path}")
+        
+        if len(self._map) < HEADER_SIZE:
+            raise SnapshotError(f"Truncated snapshot {path}")
+        
+        (magic, version, header_size, self._count, self._encoding_size, self._records_offset,
+         self._encodings_offset, self._strings_offset, strings_size, checksum) = \
+            struct.unpack_from(HEADER_FORMAT, self._map, 0)
+        
+        if magic != MAGIC:
+            raise SnapshotError(f"Not a gallery snapshot: {path}")
+        if version != VERSION or header_size != HEADER_SIZE:
+            raise SnapshotError(f"Unsupported snapshot version {version}")
+        if self._strings_offset + strings_size != len(self._map):
+            raise SnapshotError(f"Truncated snapshot {path}")
+        if zlib.crc32(memoryview(self._map)[HEADER_SIZE:]) != checksum:
+            raise SnapshotError(f"Checksum mismatch in snapshot {path}")
+        
+        self._view = memoryview(self._map)
+    
+    def __len__(self):
+        return self._count
+    
+    def __iter__(self):
+        for index in range(self._count):
+            yield self._student_id(index)
+    
+    def __contains__(self, student_id):
+        return self._find(student_id) is not None
+    
+    def __getitem__(self, student_id):
+        index = self._find(student_id)
+        if index is None:
+            raise KeyError(student_id)
+        return self._entry(index)
+    
+    def values(self):
+        return [self._entry(index) for index in range(self._count)]
+    
+    def items(self):
+        return [(entry['student_id'], entry) for entry in self.values()]
+    
+    def _find(self, student_id):
+        low, high = 0, self._count
+        while low < high:
+            middle = (low + high) // 2
+            current = self._student_id(middle)
+            if current == student_id:
+                return middle
+            if current < student_id:
+                low = middle + 1
+            else:
+                high = middle
+        return None
+    
+    def _record(self, index):
+        return struct.unpack_from(RECORD_FORMAT, self._map, self._records_offset + index * RECORD_SIZE)
+    
+    def _string(self, offset, length):
+        start = self._strings_offset + offset
+        return self._map[start:start + length].decode('utf-8')
+    
+    def _student_id(self, index):
+        offset, length = struct.unpack_from('<IH', self._map, self._records_offset + index * RECORD_SIZE)
+        return self._string(offset, length)
+    
+    def _entry(self, index):
+        (id_offset, id_length, name_offset, name_length, class_offset, class_length,
+         path_offset, path_length, photo_mtime) = self._record(index)
+        encoding_bytes = self._encoding_size * 4
+        start = self._encodings_offset + index * encoding_bytes
+        return {
+            'student_id': self._string(id_offset, id_length),
+            'name': self._string(name_offset, name_length),
+            'class_id': self._string(class_offset, class_length),
+            'photo_path': self._string(path_offset, path_length),
+            'photo_mtime': None if math.isnan(photo_mtime) else photo_mtime,
+            'encoding': self._view[start:start + encoding_bytes].cast('f')
+        }
+
+def write_snapshot(path, entries):
+    """
+    Write entries to a snapshot file atomically
+    
+    Args:
+        path (str): Destination file
+        entries (Mapping): student_id -> entry, as kept by FaceGallery
+    
+    Returns:
+        int: Size of the snapshot in bytes
+    """
+    ordered = sorted(entries.values(), key=lambda entry: entry['student_id'])
+    encoding_size = len(ordered[0]['encoding']) if ordered else 0
+    
+    strings = bytearray()
+    string_offsets = {}
+    
+    def add_string(value):
+        value = str(value)
+        if value not in string_offsets:
+            data = value.encode('utf-8')
+            string_offsets[value] = (len(strings), len(data))
+            strings.extend(data)
+        return string_offsets[value]
+    
+    records = bytearray()
+    encodings = bytearray()
+    for entry in ordered:
+        if len(entry['encoding']) != encoding_size:
+            raise ValueError(f"Encoding for student {entry['student_id']} has {len(entry['encoding'])} values, "
+                             f"expected {encoding_size}")
+        photo_mtime = entry.get('photo_mtime')
+        records += struct.pack(RECORD_FORMAT,
+                               *add_string(entry['student_id']),
+                               *add_string(entry['name']),
+                               *add_string(entry['class_id']),
+                               *add_string(entry['photo_path']),
+                               float('nan') if photo_mtime is None else photo_mtime)
+        encoding = entry['encoding']
+        if isinstance(encoding, memoryview):
+            encodings += encoding
+        else:
+            encodings += array('f', encoding).tobytes()
+    
+    records_offset = HEADER_SIZE
+    encodings_offset = _align(records_offset + len(records))
+    strings_offset = encodings_offset + len(encodings)
+    
+    body = bytearray(records)
+    body += bytes(encodings_offset - records_offset - len(records))
+    body += encodings
+    body += strings
+    
+    header = struct.pack(HEADER_FORMAT, MAGIC, VERSION, HEADER_SIZE, len(ordered), encoding_size,
+                         records_offset, encodings_offset, strings_offset, len(strings), zlib.crc32(body))
+    header += bytes(HEADER_SIZE - len(header))
+    
+    os.makedirs(os.path.dirname(path) or '.', exist_ok=True)
+    tmp_path = f"{path}.tmp"
+    with open(tmp_path, 'wb') as f:
+        f.write(header)
+        f.write(body)
+        f.flush()
+        os.fsync(f.fileno())
+    os.replace(tmp_path, path)
+    
+    return HEADER_SIZE + len(body)
+
+def _align(offset):
+    return (offset + ALIGNMENT - 1) // ALIGNMENT * ALIGNMENT
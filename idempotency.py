@@ -0,0 +1,137 @@
+#!/usr/bin/env python3
+# Idempotency keys for attendance submissions
+#
+# A client that times out waiting for a submission can't tell whether the server ran
+# it, so it retries. With an Idempotency-Key header naming the attempt, the server
+# runs it once: a retry after it completed gets the stored result, and a retry while
+# it is still running waits a little for it instead of running it again.
+import time
+import logging
+import threading
+from collections import OrderedDict
+
+logger = logging.getLogger(__name__)
+
+IDEMPOTENCY_HEADER = 'Idempotency-Key'
+
+# Header marking a response as replayed from an earlier request with the same key
+REPLAYED_HEADER = 'Idempotent-Replayed'
+
+# Longest key accepted
+MAX_KEY_LENGTH = 255
+
+# Seconds a duplicate waits for the running request. It holds an admission slot while
+# it waits, so this stays short; past it the client is told to come back later
+IN_PROGRESS_WAIT_SECONDS = 5
+
+# Retry-After, in seconds, for a duplicate turned away while the first is still running
+IN_PROGRESS_RETRY_AFTER = 5
+
+class IdempotencyConflictError(Exception):
+    """Raised when a key is reused for a different request"""
+    pass
+
+class IdempotencyInProgressError(Exception):
+    """Raised when a request with the same key is still running after the wait"""
+    pass
+
+class IdempotencyCache:
+    def __init__(self, ttl=24 * 3600, max_entries=20000, wait_timeout=IN_PROGRESS_WAIT_SECONDS, clock=time.monotonic):
+        """
+        Initialize the cache of completed and running requests
+        
+        Entries live in memory only; after a restart a retry runs again, as it did
+        before keys existed.
+        
+        Args:
+            ttl (int): Seconds a completed result is kept, long enough for a device
+                       that was offline all morning to retry
+            max_entries (int): Completed results kept before the oldest are dropped
+            wait_timeout (float): Longest a duplicate waits for the running request
+            clock: Returns the current time in seconds, for expiry
+        """
+        self.ttl = ttl
+        self.max_entries = max_entries
+        self.wait_timeout = wait_timeout
+        self.clock = clock
+        
+        # (scope, key) -> entry, oldest first
+        self._entries = OrderedDict()
+        self._completed = 0
+        self._lock = threading.Lock()
+    
+    def run(self, scope, key, fingerprint, compute, cacheable):
+        """
+        Run a request once per key
+        
+        Args:
+            scope (str): What the key is unique within, e.g. the school and endpoint
+            key (str): The client's key for this attempt
+            fingerprint (str): Digest of the request, to catch a key reused for another
+            compute (callable): Runs the request and returns its result
+            cacheable (callable): Whether a result is final; others (e.g. a 503) are
+                                  not stored, so a retry runs the request again
+        
+        Returns:
+            tuple: The result, and whether it was replayed from an earlier request
+        
+        Raises:
+            IdempotencyConflictError: If the key was used for a different request
+            IdempotencyInProgressError: If the earlier request is still running
+        """
+        while True:
+            entry, owner = self._claim(scope, key, fingerprint)
+            if owner:
+                break
+            if not entry['done'].wait(self.wait_timeout):
+                raise IdempotencyInProgressError(f"A request with key {key} is still in progress")
+            if entry['result'] is not None:
+                logger.info(f"Replaying {scope} for key {key}")
+                return entry['result'], True
+            # The earlier request failed without a final result; run it here
+        
+        result = None
+        try:
+            result = compute()
+        finally:
+            self._finish(scope, key, entry, result if result is not None and cacheable(result) else None)
+        return result, False
+    
+    def _claim(self, scope, key, fingerprint):
+        """Get the entry for a key, creating it if this request is the first"""
+        now = self.clock()
+        with self._lock:
+            self._expire(now)
+            entry = self._entries.get((scope, key))
+            if entry is None:
+                entry = {'fingerprint': fingerprint, 'result': None, 'done': threading.Event(), 'expires': None}
+                self._entries[(scope, key)] = entry
+                return entry, True
+            if entry['fingerprint'] != fingerprint:
+                raise IdempotencyConflictError(f"Key {key} was already used for a different request")
+            return entry, False
+    
+    def _finish(self, scope, key, entry, result):
+        with self._lock:
+            if result is None:
+                del self._entries[(scope, key)]
+            else:
+                entry['result'] = result
+                entry['expires'] = self.clock() + self.ttl
+                self._completed += 1
+                # Order by completion, so expiry and eviction take the oldest first
+                self._entries.move_to_end((scope, key))
+        entry['done'].set()
+    
+    def _expire(self, now):
+        """Drop expired results, and the oldest past max_entries. Caller holds the lock."""
+        dropped = []
+        for entry_key, entry in self._entries.items():
+            if entry['expires'] is None:
+                continue
+            if entry['expires'] > now and self._completed - len(dropped) <= self.max_entries:
+                break
+            dropped.append(entry_key)
+        for entry_key in dropped:
+            del self._entries[entry_key]
+        self._completed -= len(dropped)
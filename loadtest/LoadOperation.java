@@ -0,0 +1,15 @@
+package com.example.attendancesystem;
+
+/**
+ * Request types replayed by {@link LoadTest}.
+ */
+enum LoadOperation {
+    /** Submit a classroom photo and long-poll the recognition job to completion. */
+    TAKE_ATTENDANCE,
+    /** Fetch the class list and the full roster, as the student list screen does. */
+    BROWSE_ROSTER,
+    /** Fetch one class's attendance report for a date. */
+    PULL_REPORT,
+    /** Manually mark one student present. */
+    MANUAL_MARK
+}
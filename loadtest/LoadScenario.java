@@ -0,0 +1,147 @@
+package com.example.attendancesystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of a load test run and the open-loop arrival schedule derived from it.
+ *
+ * Arguments are {@code key=value} pairs, e.g.
+ * {@code base-url=http://localhost:5000/ teachers=200 window-minutes=10 speedup=10}.
+ */
+final class LoadScenario {
+    
+    static final class Arrival {
+        final long offsetNanos;
+        final LoadOperation operation;
+        
+        Arrival(long offsetNanos, LoadOperation operation) {
+            this.offsetNanos = offsetNanos;
+            this.operation = operation;
+        }
+    }
+    
+    String baseUrl = "http://localhost:5000/";
+    int teachers = 50;
+    double windowMinutes = 10;
+    // Fraction of teachers who arrive in the first fifth of the window (the 8:00 bell)
+    double peakFraction = 0.6;
+    double rosterBrowsesPerSecond = 0.5;
+    double reportPullsPerSecond = 0.2;
+    double manualMarksPerSecond = 0.5;
+    int studentsPerClass = 0;
+    int photoBytes = 300 * 1024;
+    double speedup = 1;
+    // Multiplies every arrival rate, teachers included, e.g. 3 for three times a normal morning
+    double loadFactor = 1;
+    // Retry requests the server sheds (503/429) after its Retry-After, as the app does
+    boolean retryShed = true;
+    int maxConcurrency = 256;
+    long seed = 42;
+    
+    static LoadScenario fromArgs(String[] args) {
+        LoadScenario scenario = new LoadScenario();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            }
+            String key = arg.substring(0, eq).replaceFirst("^--", "");
+            String value = arg.substring(eq + 1);
+            
+            if ("base-url".equals(key)) {
+                scenario.baseUrl = value.endsWith("/") ? value : value + "/";
+            } else if ("teachers".equals(key)) {
+                scenario.teachers = Integer.parseInt(value);
+            } else if ("window-minutes".equals(key)) {
+                scenario.windowMinutes = Double.parseDouble(value);
+            } else if ("peak-fraction".equals(key)) {
+                scenario.peakFraction = Double.parseDouble(value);
+            } else if ("roster-rate".equals(key)) {
+                scenario.rosterBrowsesPerSecond = Double.parseDouble(value);
+            } else if ("report-rate".equals(key)) {
+                scenario.reportPullsPerSecond = Double.parseDouble(value);
+            } else if ("manual-rate".equals(key)) {
+                scenario.manualMarksPerSecond = Double.parseDouble(value);
+            } else if ("students-per-class".equals(key)) {
+                scenario.studentsPerClass = Integer.parseInt(value);
+            } else if ("photo-kb".equals(key)) {
+                scenario.photoBytes = Integer.parseInt(value) * 1024;
+            } else if ("speedup".equals(key)) {
+                scenario.speedup = Double.parseDouble(value);
+            } else if ("load-factor".equals(key)) {
+                scenario.loadFactor = Double.parseDouble(value);
+            } else if ("retry-shed".equals(key)) {
+                scenario.retryShed = Boolean.parseBoolean(value);
+            } else if ("max-concurrency".equals(key)) {
+                scenario.maxConcurrency = Integer.parseInt(value);
+            } else if ("seed".equals(key)) {
+                scenario.seed = Long.parseLong(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + key);
+            }
+        }
+        return scenario;
+    }
+    
+    long windowNanos() {
+        return (long) (TimeUnit.SECONDS.toNanos(60) * windowMinutes / speedup);
+    }
+    
+    /**
+     * Builds the arrival schedule, sorted by offset. Teachers arrive once each, front-loaded
+     * towards the start of the window; the other operations are Poisson processes at their
+     * configured rates. All rates are in real-world time, multiplied by {@code loadFactor}
+     * and compressed by {@code speedup}; extra teachers re-take the same classes.
+     */
+    List<Arrival> buildSchedule() {
+        Random random = new Random(seed);
+        long window = windowNanos();
+        List<Arrival> arrivals = new ArrayList<>();
+        
+        int arrivingTeachers = (int) Math.round(teachers * loadFactor);
+        for (int i = 0; i < arrivingTeachers; i++) {
+            double position = random.nextDouble() < peakFraction
+                    ? random.nextDouble() * 0.2
+                    : 0.2 + random.nextDouble() * 0.8;
+            arrivals.add(new Arrival((long) (position * window), LoadOperation.TAKE_ATTENDANCE));
+        }
+        double scale = loadFactor * speedup;
+        addPoisson(arrivals, random, LoadOperation.BROWSE_ROSTER, rosterBrowsesPerSecond * scale, window);
+        addPoisson(arrivals, random, LoadOperation.PULL_REPORT, reportPullsPerSecond * scale, window);
+        addPoisson(arrivals, random, LoadOperation.MANUAL_MARK, manualMarksPerSecond * scale, window);
+        
+        Collections.sort(arrivals, new Comparator<Arrival>() {
+            @Override
+            public int compare(Arrival a, Arrival b) {
+                return Long.compare(a.offsetNanos, b.offsetNanos);
+            }
+        });
+        return arrivals;
+    }
+    
+    private static void addPoisson(List<Arrival> arrivals, Random random, LoadOperation operation,
+                                   double perSecond, long windowNanos) {
+        if (perSecond <= 0) {
+            return;
+        }
+        double meanGapNanos = TimeUnit.SECONDS.toNanos(1) / perSecond;
+        double offset = -Math.log(1 - random.nextDouble()) * meanGapNanos;
+        while (offset < windowNanos) {
+            arrivals.add(new Arrival((long) offset, operation));
+            offset += -Math.log(1 - random.nextDouble()) * meanGapNanos;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("base-url=%s teachers=%d window=%.1fmin speedup=%.1f load-factor=%.1f roster-rate=%.2f/s "
+                        + "report-rate=%.2f/s manual-rate=%.2f/s photo=%dKB max-concurrency=%d retry-shed=%b",
+                baseUrl, teachers, windowMinutes, speedup, loadFactor, rosterBrowsesPerSecond,
+                reportPullsPerSecond, manualMarksPerSecond, photoBytes / 1024, maxConcurrency, retryShed);
+    }
+}
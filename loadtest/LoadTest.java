@@ -0,0 +1,318 @@
+package com.example.attendancesystem;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+/**
+ * Open-loop load generator that replays a school-morning traffic mix against the
+ * attendance API through the same {@link ApiService} the app uses.
+ *
+ * Builds its own client rather than going through {@link RetrofitClient}, which needs
+ * the Android framework, so it runs on a plain JVM.
+ *
+ * Requests are issued at their scheduled times whether or not earlier ones have
+ * completed, and latency is measured from the scheduled time rather than from when a
+ * worker got around to sending it, so queueing inside the harness shows up in the
+ * percentiles instead of being hidden (coordinated omission). Service time, measured
+ * from the actual send, is reported alongside for comparison.
+ */
+public class LoadTest {
+    
+    private static final int JOB_POLL_WAIT_SECONDS = 25;
+    
+    private static final class OperationStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram serviceTime = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+    }
+    
+    private final LoadScenario scenario;
+    private final ApiService apiService;
+    private final Map<LoadOperation, OperationStats> stats = new EnumMap<>(LoadOperation.class);
+    private final List<String> classIds = new ArrayList<>();
+    private final List<String> studentIds = new ArrayList<>();
+    private final String date = new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date());
+    private final String photo;
+    
+    LoadTest(LoadScenario scenario) {
+        this.scenario = scenario;
+        
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(scenario.maxConcurrency);
+        dispatcher.setMaxRequestsPerHost(scenario.maxConcurrency);
+        
+        // Same timeouts as the app, so timeouts under load match what teachers would see
+        OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(scenario.maxConcurrency, 5, TimeUnit.MINUTES))
+                .connectTimeout(60, TimeUnit.SECONDS)
+                .readTimeout(60, TimeUnit.SECONDS)
+                .writeTimeout(60, TimeUnit.SECONDS);
+        if (scenario.retryShed) {
+            // Backoff counts towards latency, since it is measured from the scheduled time
+            clientBuilder.addInterceptor(new RetryAfterInterceptor());
+        }
+        this.apiService = new Retrofit.Builder()
+                .baseUrl(scenario.baseUrl)
+                .client(clientBuilder.build())
+                .addConverterFactory(GsonConverterFactory.create())
+                .build()
+                .create(ApiService.class);
+        
+        for (LoadOperation operation : LoadOperation.values()) {
+            stats.put(operation, new OperationStats());
+        }
+        
+        byte[] photoBytes = new byte[scenario.photoBytes];
+        new Random(scenario.seed).nextBytes(photoBytes);
+        this.photo = Base64.getMimeEncoder().encodeToString(photoBytes);
+    }
+    
+    public static void main(String[] args) throws Exception {
+        LoadScenario scenario = LoadScenario.fromArgs(args);
+        System.out.println("Scenario: " + scenario);
+        
+        LoadTest loadTest = new LoadTest(scenario);
+        loadTest.prepare();
+        loadTest.run();
+    }
+    
+    /**
+     * Makes sure there is one class per teacher, optionally enrolling students.
+     */
+    void prepare() throws IOException {
+        Map<String, Object> classesResponse = body(apiService.getClasses().execute());
+        for (Object classData : list(classesResponse, "classes")) {
+            classIds.add((String) ((Map<?, ?>) classData).get("id"));
+        }
+        
+        while (classIds.size() < scenario.teachers) {
+            Map<String, Object> classData = new HashMap<>();
+            classData.put("name", "Load Test Class " + (classIds.size() + 1));
+            Map<String, Object> created = body(apiService.addClass(classData).execute());
+            classIds.add((String) object(created, "class").get("id"));
+        }
+        
+        if (scenario.studentsPerClass > 0) {
+            for (int c = 0; c < scenario.teachers; c++) {
+                for (int s = 0; s < scenario.studentsPerClass; s++) {
+                    Map<String, Object> student = new HashMap<>();
+                    student.put("name", "Load Student " + c + "-" + s);
+                    student.put("student_id", "LT-" + classIds.get(c) + "-" + s);
+                    student.put("class_id", classIds.get(c));
+                    student.put("photo", photo.substring(0, Math.min(photo.length(), 4096)));
+                    // Re-runs hit "already exists"; that's fine
+                    apiService.addStudent(student).execute();
+                }
+            }
+        }
+        
+        Map<String, Object> studentsResponse = body(apiService.getStudents().execute());
+        for (Object student : list(studentsResponse, "students")) {
+            studentIds.add((String) ((Map<?, ?>) student).get("student_id"));
+        }
+        
+        System.out.println("Prepared " + classIds.size() + " classes, " + studentIds.size() + " students");
+    }
+    
+    void run() throws InterruptedException {
+        List<LoadScenario.Arrival> schedule = scenario.buildSchedule();
+        ExecutorService workers = Executors.newFixedThreadPool(scenario.maxConcurrency);
+        final Random random = new Random(scenario.seed);
+        
+        System.out.println("Replaying " + schedule.size() + " requests over "
+                + TimeUnit.NANOSECONDS.toSeconds(scenario.windowNanos()) + "s");
+        
+        int nextTeacher = 0;
+        final long startNanos = System.nanoTime();
+        for (LoadScenario.Arrival arrival : schedule) {
+            final long intendedNanos = startNanos + arrival.offsetNanos;
+            long delay;
+            while ((delay = intendedNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            
+            final LoadOperation operation = arrival.operation;
+            // Each teacher takes attendance for their own class; other traffic hits any class
+            final String classId = operation == LoadOperation.TAKE_ATTENDANCE
+                    ? classIds.get(nextTeacher++ % classIds.size())
+                    : classIds.get(random.nextInt(classIds.size()));
+            final String studentId = studentIds.isEmpty() ? null : studentIds.get(random.nextInt(studentIds.size()));
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(operation, classId, studentId, intendedNanos);
+                }
+            });
+        }
+        
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.HOURS);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        
+        report(elapsedNanos);
+    }
+    
+    private void execute(LoadOperation operation, String classId, String studentId, long intendedNanos) {
+        OperationStats operationStats = stats.get(operation);
+        long sentNanos = System.nanoTime();
+        
+        try {
+            switch (operation) {
+                case TAKE_ATTENDANCE:
+                    takeAttendance(classId);
+                    break;
+                case BROWSE_ROSTER:
+                    body(apiService.getClasses().execute());
+                    body(apiService.getStudents().execute());
+                    break;
+                case PULL_REPORT:
+                    body(apiService.getAttendanceReport(null, classId, date).execute());
+                    break;
+                case MANUAL_MARK:
+                    if (studentId == null) {
+                        return;
+                    }
+                    Map<String, Object> mark = new HashMap<>();
+                    mark.put("student_id", studentId);
+                    mark.put("class_id", classId);
+                    mark.put("date", date);
+                    mark.put("status", true);
+                    body(apiService.manualAttendance(UUID.randomUUID().toString(), mark).execute());
+                    break;
+            }
+        } catch (RejectedException e) {
+            operationStats.rejected.incrementAndGet();
+            return;
+        } catch (IOException | RuntimeException e) {
+            operationStats.errors.incrementAndGet();
+            return;
+        }
+        
+        long doneNanos = System.nanoTime();
+        operationStats.latency.record(doneNanos - intendedNanos);
+        operationStats.serviceTime.record(doneNanos - sentNanos);
+    }
+    
+    private void takeAttendance(String classId) throws IOException {
+        Map<String, Object> requestData = new HashMap<>();
+        requestData.put("class_id", classId);
+        requestData.put("date", date);
+        requestData.put("photo", photo);
+        
+        // One key per take, as the app sends
+        Map<String, Object> submitted = body(apiService.submitAttendanceJob(UUID.randomUUID().toString(), requestData)
+                .execute());
+        String jobId = (String) object(submitted, "job").get("job_id");
+        
+        while (true) {
+            Map<String, Object> polled = body(apiService.getAttendanceJob(jobId, JOB_POLL_WAIT_SECONDS).execute());
+            String status = (String) object(polled, "job").get("status");
+            if ("completed".equals(status)) {
+                return;
+            }
+            if ("failed".equals(status)) {
+                throw new IOException("Recognition job failed");
+            }
+        }
+    }
+    
+    private static Map<String, Object> body(Response<Map<String, Object>> response) throws IOException {
+        if (response.code() == 503 || response.code() == 429) {
+            throw new RejectedException();
+        }
+        if (!response.isSuccessful() || response.body() == null) {
+            throw new IOException("HTTP " + response.code());
+        }
+        Map<String, Object> body = response.body();
+        if (!Boolean.TRUE.equals(body.get("success"))) {
+            throw new IOException(String.valueOf(body.get("error")));
+        }
+        return body;
+    }
+    
+    private static Map<?, ?> object(Map<String, Object> body, String key) throws IOException {
+        Object value = body.get(key);
+        if (!(value instanceof Map)) {
+            throw new IOException("Response has no " + key + " object");
+        }
+        return (Map<?, ?>) value;
+    }
+    
+    private static List<?> list(Map<String, Object> body, String key) throws IOException {
+        Object value = body.get(key);
+        if (!(value instanceof List)) {
+            throw new IOException("Response has no " + key + " list");
+        }
+        return (List<?>) value;
+    }
+    
+    private void report(long elapsedNanos) {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        long totalCompleted = 0;
+        
+        System.out.println();
+        System.out.println(String.format(Locale.US, "%-16s %7s %6s %6s %9s | %9s %9s %9s %9s %9s | %9s %9s",
+                "operation", "ok", "err", "503", "req/s",
+                "p50", "p90", "p99", "p99.9", "max", "svc p50", "svc p99"));
+        
+        for (LoadOperation operation : LoadOperation.values()) {
+            OperationStats operationStats = stats.get(operation);
+            long count = operationStats.latency.getCount();
+            totalCompleted += count;
+            if (count == 0 && operationStats.errors.get() == 0 && operationStats.rejected.get() == 0) {
+                continue;
+            }
+            
+            System.out.println(String.format(Locale.US, "%-16s %7d %6d %6d %9.2f | %9s %9s %9s %9s %9s | %9s %9s",
+                    operation.name().toLowerCase(Locale.US),
+                    count,
+                    operationStats.errors.get(),
+                    operationStats.rejected.get(),
+                    count / elapsedSeconds,
+                    millis(operationStats.latency.getValueAtPercentile(50)),
+                    millis(operationStats.latency.getValueAtPercentile(90)),
+                    millis(operationStats.latency.getValueAtPercentile(99)),
+                    millis(operationStats.latency.getValueAtPercentile(99.9)),
+                    millis(operationStats.latency.getMax()),
+                    millis(operationStats.serviceTime.getValueAtPercentile(50)),
+                    millis(operationStats.serviceTime.getValueAtPercentile(99))));
+        }
+        
+        System.out.println();
+        System.out.println(String.format(Locale.US, "Completed %d requests in %.1fs (%.2f req/s). "
+                        + "Latencies are in ms from the scheduled send time; svc columns exclude harness queueing.",
+                totalCompleted, elapsedSeconds, totalCompleted / elapsedSeconds));
+    }
+    
+    private static String millis(long nanos) {
+        return String.format(Locale.US, "%.1f", nanos / 1e6);
+    }
+    
+    private static class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+}
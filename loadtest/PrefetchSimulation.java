@@ -0,0 +1,457 @@
+package com.example.attendancesystem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays weeks of a school's timetable on a simulated clock to measure
+ * {@link PrefetchWorker}'s schedule, using the app's own {@link Timetable} and
+ * {@link PrefetchPolicy}.
+ *
+ * Each teacher's device has unmetered wifi at home and maybe at school, and now and
+ * then a low battery; the school's roster changes a few times a day. Teachers open
+ * the camera screen around the start of their sessions. Compares the class list and
+ * roster loads at the bell with and without prefetching: how many are revalidated
+ * with a 304 instead of downloaded, the bytes moved out of the rush, prefetches that
+ * were stale or unused by the bell, and how often the spinner preselects the right
+ * class.
+ *
+ * Arguments are {@code key=value} pairs, e.g. {@code teachers=200 weeks=4 school-wifi=0.5}.
+ * {@code PrefetchSimulationTest} runs it and checks its {@link Results}.
+ */
+final class PrefetchSimulation {
+    
+    private static final TimeZone ZONE = TimeZone.getTimeZone("UTC");
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    // Periods of 50 minutes from 8:00, on the hour
+    private static final int PERIODS = 8;
+    // A 304 for the class list and one for the roster
+    private static final int NOT_MODIFIED_BYTES = 2 * 350;
+    // Same as CameraActivity
+    private static final long CURRENT_CLASS_LEAD_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    
+    int teachers = 200;
+    int weeks = 4;
+    int maxClassesPerTeacher = 4;
+    int schoolStudents = 600;
+    // Roster edits per school day (enrolments, renames, photo updates)
+    double rosterChangesPerDay = 2;
+    // Fraction of teachers with wifi at home, and on unmetered wifi at school
+    double homeWifi = 0.8;
+    double schoolWifi = 0.5;
+    // Chance a device's battery goes low some afternoon
+    double lowBattery = 0.15;
+    // Chance a teacher opens the camera screen for a session
+    double openRate = 0.9;
+    // Teachers open it up to this many minutes before or after the bell
+    int openSpreadMinutes = 8;
+    long seed = 42;
+    
+    private long simulationStart;
+    private long simulationEnd;
+    private long[] rosterChanges;
+    
+    /**
+     * What one teacher's device does over the run.
+     */
+    private static final class Device {
+        final int index;
+        final List<ClassInfo> classes = new ArrayList<>();
+        final boolean homeWifi;
+        final boolean schoolWifi;
+        // Session starts and when the camera screen was opened for them, 0 if not
+        final List<Timetable.Session> sessions = new ArrayList<>();
+        final List<Long> opens = new ArrayList<>();
+        // Prefetches that ran, and the session start each was for
+        final List<Long> prefetches = new ArrayList<>();
+        final List<Long> prefetchTargets = new ArrayList<>();
+        int skipped;
+        
+        Device(int index, boolean homeWifi, boolean schoolWifi) {
+            this.index = index;
+            this.homeWifi = homeWifi;
+            this.schoolWifi = schoolWifi;
+        }
+    }
+    
+    /**
+     * What the run measured, summed over every device.
+     */
+    static final class Results {
+        int teachers;
+        int weeks;
+        int sessions;
+        int opens;
+        int rosterChanges;
+        int rosterBytes;
+        // Opens whose spinner preselected the session's class
+        int preselected;
+        // Bell loads revalidated with a 304, without and with prefetching
+        int hitsWithout;
+        int hitsWith;
+        long bellBytesWithout;
+        long bellBytesWith;
+        long prefetchBytes;
+        int prefetches;
+        int skipped;
+        int wasted;
+        // Prefetches that ran outside the policy's window before their session
+        int outsideWindow;
+        
+        double hitRateWithout() {
+            return (double) hitsWithout / opens;
+        }
+        
+        double hitRateWith() {
+            return (double) hitsWith / opens;
+        }
+        
+        double preselectedRate() {
+            return (double) preselected / opens;
+        }
+    }
+    
+    public static void main(String[] args) {
+        PrefetchSimulation simulation = fromArgs(args);
+        print(simulation.run());
+    }
+    
+    static PrefetchSimulation fromArgs(String[] args) {
+        PrefetchSimulation simulation = new PrefetchSimulation();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            }
+            String key = arg.substring(0, eq).replaceFirst("^--", "");
+            String value = arg.substring(eq + 1);
+            
+            if ("teachers".equals(key)) {
+                simulation.teachers = Integer.parseInt(value);
+            } else if ("weeks".equals(key)) {
+                simulation.weeks = Integer.parseInt(value);
+            } else if ("max-classes".equals(key)) {
+                simulation.maxClassesPerTeacher = Integer.parseInt(value);
+            } else if ("school-students".equals(key)) {
+                simulation.schoolStudents = Integer.parseInt(value);
+            } else if ("roster-changes".equals(key)) {
+                simulation.rosterChangesPerDay = Double.parseDouble(value);
+            } else if ("home-wifi".equals(key)) {
+                simulation.homeWifi = Double.parseDouble(value);
+            } else if ("school-wifi".equals(key)) {
+                simulation.schoolWifi = Double.parseDouble(value);
+            } else if ("low-battery".equals(key)) {
+                simulation.lowBattery = Double.parseDouble(value);
+            } else if ("open-rate".equals(key)) {
+                simulation.openRate = Double.parseDouble(value);
+            } else if ("open-spread-minutes".equals(key)) {
+                simulation.openSpreadMinutes = Integer.parseInt(value);
+            } else if ("seed".equals(key)) {
+                simulation.seed = Long.parseLong(value);
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + key);
+            }
+        }
+        return simulation;
+    }
+    
+    Results run() {
+        Calendar start = Calendar.getInstance(ZONE, Locale.US);
+        start.clear();
+        start.set(2026, Calendar.SEPTEMBER, 7);
+        simulationStart = start.getTimeInMillis();
+        start.add(Calendar.DAY_OF_MONTH, 7 * weeks);
+        simulationEnd = start.getTimeInMillis();
+        
+        Random random = new Random(seed);
+        rosterChanges = rosterChanges(random);
+        List<Device> devices = new ArrayList<>();
+        for (int teacher = 0; teacher < teachers; teacher++) {
+            Device device = new Device(teacher, random.nextDouble() < homeWifi, random.nextDouble() < schoolWifi);
+            timetable(device, teacher, random);
+            opens(device, random);
+            prefetches(device);
+            devices.add(device);
+        }
+        return measure(devices);
+    }
+    
+    /**
+     * Gives the teacher up to {@link #maxClassesPerTeacher} classes of three to five
+     * sessions a week, none overlapping.
+     */
+    private void timetable(Device device, int teacher, Random random) {
+        boolean[] taken = new boolean[5 * PERIODS];
+        int classCount = 1 + random.nextInt(maxClassesPerTeacher);
+        for (int c = 0; c < classCount; c++) {
+            List<Map<String, Object>> slots = new ArrayList<>();
+            int sessionsPerWeek = 3 + random.nextInt(3);
+            while (slots.size() < sessionsPerWeek) {
+                int slot = random.nextInt(taken.length);
+                if (taken[slot]) {
+                    continue;
+                }
+                taken[slot] = true;
+                int day = slot / PERIODS + 1;
+                int startMinutes = 8 * 60 + slot % PERIODS * 60;
+                Map<String, Object> session = new HashMap<>();
+                session.put("day", day);
+                session.put("start", clock(startMinutes));
+                session.put("end", clock(startMinutes + 50));
+                slots.add(session);
+            }
+            // The server sends slots sorted by day and start
+            slots.sort((a, b) -> {
+                int byDay = Integer.compare((Integer) a.get("day"), (Integer) b.get("day"));
+                return byDay != 0 ? byDay : ((String) a.get("start")).compareTo((String) b.get("start"));
+            });
+            
+            Map<String, Object> classData = new HashMap<>();
+            classData.put("id", teacher + "-" + c);
+            classData.put("name", "Class " + teacher + "-" + c);
+            classData.put("timetable", slots);
+            device.classes.add(ClassInfo.fromMap(classData));
+        }
+    }
+    
+    /**
+     * Walks the teacher's sessions and decides when, if at all, the camera screen is
+     * opened for each.
+     */
+    private void opens(Device device, Random random) {
+        long after = simulationStart;
+        while (true) {
+            Timetable.Session session = Timetable.nextSession(device.classes, after, ZONE);
+            if (session == null || session.getStartMillis() >= simulationEnd) {
+                return;
+            }
+            long open = 0;
+            if (random.nextDouble() < openRate) {
+                int offset = random.nextInt(2 * openSpreadMinutes + 1) - openSpreadMinutes;
+                open = session.getStartMillis() + offset * MINUTE;
+            }
+            device.sessions.add(session);
+            device.opens.add(open);
+            after = session.getStartMillis();
+        }
+    }
+    
+    /**
+     * Runs the worker's schedule: each run waits for its initial delay and then for
+     * an unmetered network with the battery not low, as WorkManager would.
+     */
+    private void prefetches(Device device) {
+        long now = simulationStart;
+        Timetable.Session session = PrefetchPolicy.target(device.classes, now, 0, ZONE);
+        while (session != null && session.getStartMillis() < simulationEnd) {
+            long runAt = firstAllowed(device, now + PrefetchPolicy.delayMillis(session, now));
+            if (runAt < 0) {
+                return;
+            }
+            now = runAt;
+            
+            if (session.getStartMillis() - now < PrefetchPolicy.QUIET_MILLIS) {
+                device.skipped++;
+                session = PrefetchPolicy.target(device.classes, now, session.getStartMillis(), ZONE);
+                continue;
+            }
+            Timetable.Session due = PrefetchPolicy.target(device.classes, now, session.getStartMillis() - 1, ZONE);
+            if (!PrefetchPolicy.isDue(due, now)) {
+                session = PrefetchPolicy.target(device.classes, now, now, ZONE);
+                continue;
+            }
+            device.prefetches.add(now);
+            device.prefetchTargets.add(due.getStartMillis());
+            session = PrefetchPolicy.target(device.classes, now, due.getStartMillis(), ZONE);
+        }
+    }
+    
+    /**
+     * Returns the first minute from {@code from} at which the worker's constraints
+     * hold, or -1 if they don't within the run.
+     */
+    private long firstAllowed(Device device, long from) {
+        for (long time = from; time < simulationEnd; time += MINUTE) {
+            if (unmetered(device, time) && !batteryLow(device, time)) {
+                return time;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * At school from 8:00 to 15:30 on weekdays, commuting half an hour either side,
+     * at home otherwise.
+     */
+    private boolean unmetered(Device device, long time) {
+        Calendar calendar = Calendar.getInstance(ZONE, Locale.US);
+        calendar.setTimeInMillis(time);
+        int minutes = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+        int dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK);
+        if (dayOfWeek == Calendar.SATURDAY || dayOfWeek == Calendar.SUNDAY) {
+            return device.homeWifi;
+        }
+        if (minutes >= 8 * 60 && minutes < 15 * 60 + 30) {
+            return device.schoolWifi;
+        }
+        if (minutes >= 7 * 60 + 30 && minutes < 16 * 60) {
+            return false;
+        }
+        return device.homeWifi;
+    }
+    
+    /**
+     * Some afternoons the battery runs low from a random time until the device is
+     * charged overnight.
+     */
+    private boolean batteryLow(Device device, long time) {
+        long day = (time - simulationStart) / TimeUnit.DAYS.toMillis(1);
+        Random random = new Random(seed * 31 + device.index * 17L + day);
+        if (random.nextDouble() >= lowBattery) {
+            return false;
+        }
+        long lowFrom = simulationStart + TimeUnit.DAYS.toMillis(day) + TimeUnit.HOURS.toMillis(12 + random.nextInt(8));
+        return time >= lowFrom;
+    }
+    
+    private long[] rosterChanges(Random random) {
+        List<Long> changes = new ArrayList<>();
+        for (long day = simulationStart; day < simulationEnd; day += TimeUnit.DAYS.toMillis(1)) {
+            Calendar calendar = Calendar.getInstance(ZONE, Locale.US);
+            calendar.setTimeInMillis(day);
+            int dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK);
+            if (dayOfWeek == Calendar.SATURDAY || dayOfWeek == Calendar.SUNDAY) {
+                continue;
+            }
+            // Poisson arrivals during the office's hours, 7:00 to 16:00
+            double at = 0;
+            while (true) {
+                at += -Math.log(1 - random.nextDouble()) / rosterChangesPerDay;
+                if (at >= 1) {
+                    break;
+                }
+                changes.add(day + TimeUnit.HOURS.toMillis(7) + (long) (at * TimeUnit.HOURS.toMillis(9)));
+            }
+        }
+        long[] times = new long[changes.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = changes.get(i);
+        }
+        Arrays.sort(times);
+        return times;
+    }
+    
+    /**
+     * Returns the roster version at {@code time}: the changes made up to it.
+     */
+    private int version(long time) {
+        int index = Arrays.binarySearch(rosterChanges, time);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+    
+    private Results measure(List<Device> devices) {
+        Results results = new Results();
+        results.teachers = teachers;
+        results.weeks = weeks;
+        results.rosterChanges = rosterChanges.length;
+        int rosterBytes = schoolStudents * 180 + 40 * 150;
+        results.rosterBytes = rosterBytes;
+        
+        for (Device device : devices) {
+            results.sessions += device.sessions.size();
+            results.prefetches += device.prefetches.size();
+            results.skipped += device.skipped;
+            for (int p = 0; p < device.prefetches.size(); p++) {
+                long lead = device.prefetchTargets.get(p) - device.prefetches.get(p);
+                if (lead < PrefetchPolicy.QUIET_MILLIS || lead > PrefetchPolicy.LEAD_MILLIS) {
+                    results.outsideWindow++;
+                }
+            }
+            
+            int cachedWithout = -1;
+            int cachedWith = -1;
+            int next = 0;
+            for (int i = 0; i < device.sessions.size(); i++) {
+                Timetable.Session session = device.sessions.get(i);
+                long open = device.opens.get(i);
+                
+                // Prefetches that ran before this session's bell; the last one is for it
+                int prefetchedVersion = -1;
+                while (next < device.prefetches.size()
+                        && device.prefetchTargets.get(next) <= session.getStartMillis()) {
+                    int version = version(device.prefetches.get(next));
+                    results.prefetchBytes += version == cachedWith ? NOT_MODIFIED_BYTES : rosterBytes;
+                    cachedWith = version;
+                    if (device.prefetchTargets.get(next) == session.getStartMillis()) {
+                        prefetchedVersion = version;
+                    } else {
+                        results.wasted++;
+                    }
+                    next++;
+                }
+                if (open == 0) {
+                    if (prefetchedVersion >= 0) {
+                        results.wasted++;
+                    }
+                    continue;
+                }
+                
+                results.opens++;
+                int current = version(open);
+                if (prefetchedVersion >= 0 && prefetchedVersion != current) {
+                    results.wasted++;
+                }
+                if (cachedWithout == current) {
+                    results.hitsWithout++;
+                    results.bellBytesWithout += NOT_MODIFIED_BYTES;
+                } else {
+                    results.bellBytesWithout += rosterBytes;
+                }
+                if (cachedWith == current) {
+                    results.hitsWith++;
+                    results.bellBytesWith += NOT_MODIFIED_BYTES;
+                } else {
+                    results.bellBytesWith += rosterBytes;
+                }
+                cachedWithout = current;
+                cachedWith = current;
+                
+                ClassInfo selected = Timetable.currentClass(device.classes, open, ZONE, CURRENT_CLASS_LEAD_MILLIS);
+                if (session.getClassInfo().equals(selected)) {
+                    results.preselected++;
+                }
+            }
+        }
+        return results;
+    }
+    
+    private static void print(Results results) {
+        System.out.println(String.format(Locale.US, "%d teachers, %d weeks, %d sessions, %d camera opens, "
+                + "%d roster changes, roster %.0fKB", results.teachers, results.weeks, results.sessions, results.opens,
+                results.rosterChanges, results.rosterBytes / 1024.0));
+        System.out.println();
+        System.out.println(String.format(Locale.US, "%-16s %9s %12s %14s", "", "hit rate", "bell MB", "off-peak MB"));
+        System.out.println(String.format(Locale.US, "%-16s %8.1f%% %12.1f %14.1f", "no prefetch",
+                100.0 * results.hitRateWithout(), results.bellBytesWithout / 1e6, 0.0));
+        System.out.println(String.format(Locale.US, "%-16s %8.1f%% %12.1f %14.1f", "prefetch",
+                100.0 * results.hitRateWith(), results.bellBytesWith / 1e6, results.prefetchBytes / 1e6));
+        System.out.println();
+        System.out.println(String.format(Locale.US, "Prefetches: %d run, %d skipped (no unmetered network before "
+                + "the rush), %d wasted (stale or unused by the bell)", results.prefetches, results.skipped,
+                results.wasted));
+        System.out.println(String.format(Locale.US, "Spinner preselected the session's class on %.1f%% of opens",
+                100.0 * results.preselectedRate()));
+    }
+    
+    private static String clock(int minutes) {
+        return String.format(Locale.US, "%02d:%02d", minutes / 60, minutes % 60);
+    }
+}
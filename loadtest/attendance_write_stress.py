@@ -0,0 +1,293 @@
+#!/usr/bin/env python3
+# Attendance write stress test
+#
+# Hundreds of writers hit the attendance records at once: teachers' photos marking a
+# whole class present and absent, and manual corrections that flip one student's mark,
+# sending the version (seq) of the record they last saw and retrying with the current
+# one on a conflict, as the app does. Runs the same writes three ways: as writes were,
+# one lock held while the whole file is loaded, changed and dumped; one lock over the
+# in-memory store (--stripes 1); and the store with its stripes. Reports throughput
+# and latency per kind of write, then checks nothing was lost:
+#
+# - attendance.json is the change log replayed, and each record carries its last event
+# - each record's history is an unbroken chain: every correction starts from the
+#   status the previous event left
+# - every acknowledged correction is in the log, written from the version its writer
+#   saw, and no correction is in the log that no writer was told about
+# - every class photographed has a record for each of its students
+#
+# Runs in a scratch directory; nothing under data/ is touched.
+#
+#   python loadtest/attendance_write_stress.py --writers 300 --ops 4
+#
+# Exits non-zero if any check fails.
+import os
+import sys
+import json
+import time
+import random
+import shutil
+import logging
+import argparse
+import tempfile
+import threading
+
+ROOT = os.path.join(os.path.dirname(os.path.abspath(__file__)), '..')
+sys.path.insert(0, ROOT)
+
+# Same as the app: tries of a correction that keeps meeting newer versions
+MAX_CONFLICT_RETRIES = 5
+
+def percentile(samples, p):
+    ordered = sorted(samples)
+    return ordered[min(len(ordered) - 1, int(len(ordered) * p / 100))]
+
+def seed(classes, class_size, history_days):
+    """Write a school's classes and students, and attendance for the days before the test"""
+    from models import CLASSES_FILE, STUDENTS_FILE, ATTENDANCE_FILE
+    class_list, students, records = [], [], []
+    for class_index in range(classes):
+        class_id = f"class-{class_index}"
+        class_list.append({'id': class_id, 'name': f"Class {class_index}", 'school_id': 'default'})
+        for student in range(class_size):
+            student_id = f"S{class_index:03d}{student:03d}"
+            students.append({'id': len(students) + 1, 'name': f"Student {student_id}", 'student_id': student_id,
+                             'class_id': class_id, 'photo_path': '', 'school_id': 'default'})
+            for day in range(history_days):
+                date = f"2026-08-{day + 1:02d}"
+                records.append({'id': f"{class_id}-{student_id}-{date}", 'student_id': student_id,
+                                'class_id': class_id, 'date': date, 'status': True,
+                                'created_at': f"{date}T08:05:00"})
+    with open(CLASSES_FILE, 'w') as f:
+        json.dump(class_list, f)
+    with open(STUDENTS_FILE, 'w') as f:
+        json.dump(students, f)
+    with open(ATTENDANCE_FILE, 'w') as f:
+        json.dump(records, f, indent=4)
+
+class StubRecognizer:
+    """Recognizes most of the class in the photo named by image_path, at no cost"""
+    def __init__(self, class_size, seed):
+        self.class_size = class_size
+        self._rng = random.Random(seed)
+        self._lock = threading.Lock()
+    
+    def recognize_faces(self, image_path, face_locations=None, threshold=None, candidate_ids=None):
+        class_index = int(image_path.split('-')[1])
+        with self._lock:
+            seen = self._rng.sample(range(self.class_size), int(self.class_size * 0.85))
+        return {
+            'recognized_students': [{'student_id': f"S{class_index:03d}{student:03d}", 'name': '', 'confidence': 0.9,
+                                     'face_index': i, 'location': [0, 0, 0, 0]} for i, student in enumerate(seen)],
+            'unrecognized_faces': [],
+            'processed_image_path': None
+        }
+
+class WholeFileStore:
+    """
+    The write path as it was: one lock held while the whole of attendance.json is
+    loaded, changed and dumped again. Has the AttendanceStore interface.
+    """
+    def __init__(self, change_log):
+        self.change_log = change_log
+        self._lock = threading.Lock()
+        self._commits = 0
+    
+    def hold(self, class_id, date):
+        return self._lock
+    
+    def hold_all(self):
+        return self._lock
+    
+    def load(self):
+        pass
+    
+    def records(self, class_id, date):
+        from models import Attendance
+        return {r['student_id']: r for r in Attendance.get_by_class_and_date(class_id, date)}
+    
+    def commit(self, events):
+        from models import Attendance
+        from attendance_log import apply_events
+        events = self.change_log.append(events)
+        Attendance.save_all(apply_events(Attendance.get_all(), events))
+        self._commits += 1
+        return events
+    
+    def stats(self):
+        return {'stripes': 1, 'commits': self._commits, 'flushes': self._commits}
+
+def run(mode, args):
+    """Run the writers against a fresh scratch directory; returns whether every check passed"""
+    from models import init_db, Attendance
+    from attendance_log import AttendanceLog, apply_events, MANUAL, CORRECTION
+    from attendance_service import AttendanceService
+    from attendance_store import ConflictError
+    
+    workdir = tempfile.mkdtemp(prefix='attendance-write-stress-')
+    os.chdir(workdir)
+    try:
+        init_db()
+        seed(args.classes, args.class_size, args.history_days)
+        log = AttendanceLog(os.path.join('data', 'attendance_log'))
+        service = AttendanceService(StubRecognizer(args.class_size, args.seed), change_log=log,
+                                    stripes=1 if mode == 'one lock, in memory' else args.stripes)
+        if mode == 'one lock, whole file':
+            service._store = WholeFileStore(log)
+        
+        dates = [f"2026-09-{day + 1:02d}" for day in range(args.dates)]
+        latencies = {'photo': [], 'correction': []}
+        # (expected_seq, returned record) of each acknowledged correction
+        acknowledged = []
+        photographed = set()
+        conflicts = [0]
+        gave_up = [0]
+        errors = []
+        results_lock = threading.Lock()
+        start_barrier = threading.Barrier(args.writers + 1)
+        
+        def writer(index):
+            rng = random.Random(args.seed * 1000 + index)
+            # The records this writer has seen, as a client would from its reports
+            seen = {}
+            start_barrier.wait()
+            for _ in range(args.ops):
+                class_index = rng.randrange(args.classes)
+                class_id = f"class-{class_index}"
+                date = rng.choice(dates)
+                started = time.perf_counter()
+                try:
+                    if rng.random() < args.photo_share:
+                        results = service.process_attendance(class_id, f"photo-{class_index}", date)
+                        for record in results['attendance']:
+                            seen[(record['student_id'], class_id, date)] = record
+                        with results_lock:
+                            latencies['photo'].append(time.perf_counter() - started)
+                            photographed.add((class_id, date))
+                        continue
+                    
+                    student_id = f"S{class_index:03d}{rng.randrange(args.class_size):03d}"
+                    key = (student_id, class_id, date)
+                    for attempt in range(MAX_CONFLICT_RETRIES):
+                        record = seen.get(key)
+                        expected_seq = record['seq'] if record else 0
+                        status = not record['status'] if record else False
+                        try:
+                            record = service.manual_attendance(student_id, class_id, date, status, expected_seq)
+                        except ConflictError as e:
+                            seen[key] = e.record
+                            with results_lock:
+                                conflicts[0] += 1
+                            continue
+                        seen[key] = record
+                        with results_lock:
+                            acknowledged.append((expected_seq, record))
+                            latencies['correction'].append(time.perf_counter() - started)
+                        break
+                    else:
+                        with results_lock:
+                            gave_up[0] += 1
+                except Exception as e:
+                    with results_lock:
+                        errors.append(repr(e))
+        
+        threads = [threading.Thread(target=writer, args=(i,)) for i in range(args.writers)]
+        for thread in threads:
+            thread.start()
+        start_barrier.wait()
+        started = time.perf_counter()
+        for thread in threads:
+            thread.join()
+        elapsed = time.perf_counter() - started
+        
+        writes = len(latencies['photo']) + len(latencies['correction'])
+        stats = service._store.stats()
+        print(f"{mode:<22} {writes / elapsed:9.1f} writes/s  {stats['commits']:6d} commits "
+              f"{stats['flushes']:6d} file writes  {conflicts[0]:5d} conflicts  {gave_up[0]:3d} given up")
+        for kind, samples in latencies.items():
+            if samples:
+                print(f"  {kind:<20} p50={percentile(samples, 50) * 1e3:9.1f}ms  "
+                      f"p99={percentile(samples, 99) * 1e3:9.1f}ms  max={max(samples) * 1e3:9.1f}ms")
+        
+        # Everything below reads what the writers left behind
+        failures = [f"writer error: {error}" for error in errors[:5]]
+        events = list(log.replay())
+        log.close()
+        
+        records = {(r['student_id'], r['class_id'], r['date']): r for r in Attendance.get_all()}
+        replayed = {(r['student_id'], r['class_id'], r['date']): r for r in apply_events([], events)}
+        if {k: (r['status'], r.get('seq')) for k, r in records.items()} != \
+                {k: (r['status'], r.get('seq')) for k, r in replayed.items()}:
+            differ = sum(1 for k in records.keys() | replayed.keys()
+                         if (records.get(k) or {}).get('status') != (replayed.get(k) or {}).get('status'))
+            failures.append(f"attendance.json differs from the log replayed ({differ} records)")
+        
+        by_seq = {e['seq']: e for e in events}
+        previous = {}
+        for event in events:
+            key = (event['student_id'], event['class_id'], event['date'])
+            if event['type'] == CORRECTION and previous.get(key, {}).get('status') != event['previous_status']:
+                failures.append(f"event {event['seq']} corrects {key} from a status it did not have")
+                break
+            event['prior_seq'] = previous[key]['seq'] if key in previous else 0
+            previous[key] = event
+        
+        acked = {}
+        for expected_seq, record in acknowledged:
+            event = by_seq.get(record['seq'])
+            if event is None or event['student_id'] != record['student_id'] or event['status'] != record['status']:
+                failures.append(f"acknowledged correction {record['seq']} is not in the log")
+                break
+            acked.setdefault(record['seq'], set()).add(expected_seq)
+        for event in events:
+            if event['source'] != MANUAL or event['date'] not in dates:
+                continue
+            if event['seq'] not in acked:
+                failures.append(f"correction {event['seq']} was written but never acknowledged")
+                break
+            if event['prior_seq'] not in acked[event['seq']]:
+                failures.append(f"correction {event['seq']} overwrote a version its writer never saw")
+                break
+        
+        for class_id, date in photographed:
+            count = sum(1 for (_, c, d) in records if c == class_id and d == date)
+            if count != args.class_size:
+                failures.append(f"{class_id} on {date} was photographed but has {count} records")
+                break
+        
+        for failure in failures:
+            print(f"  FAILED: {failure}")
+        if not failures:
+            print(f"  checked {len(events)} logged events and {len(acknowledged)} acknowledged corrections")
+        return not failures
+    finally:
+        os.chdir('/')
+        shutil.rmtree(workdir, ignore_errors=True)
+
+def main():
+    parser = argparse.ArgumentParser(description="Attendance write stress test")
+    parser.add_argument('--writers', type=int, default=300, help="Concurrent writers")
+    parser.add_argument('--ops', type=int, default=4, help="Writes per writer")
+    parser.add_argument('--photo-share', type=float, default=0.2, help="Share of writes that are class photos")
+    parser.add_argument('--classes', type=int, default=40, help="Classes in the school")
+    parser.add_argument('--class-size', type=int, default=30, help="Students per class")
+    parser.add_argument('--dates', type=int, default=2, help="Days being written, e.g. today and yesterday")
+    parser.add_argument('--history-days', type=int, default=5, help="Days of records already in the file")
+    parser.add_argument('--stripes', type=int, default=64, help="Stripes of the striped store")
+    parser.add_argument('--modes', default='one lock, whole file;one lock, in memory;striped',
+                        help="Semicolon-separated modes to run")
+    parser.add_argument('--seed', type=int, default=1)
+    args = parser.parse_args()
+    
+    logging.disable(logging.WARNING)
+    print(f"{args.writers} writers x {args.ops} writes, {args.classes} classes of {args.class_size}, "
+          f"{args.classes * args.class_size * args.history_days} records already written\n")
+    
+    passed = True
+    for mode in args.modes.split(';'):
+        passed = run(mode, args) and passed
+        print()
+    sys.exit(0 if passed else 1)
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,256 @@
+#!/usr/bin/env python3
+# Multi-node cluster test
+#
+# Starts several server nodes and the shard router on localhost, each node running
+# app.py in its own scratch directory, and enrolls a set of schools through the
+# router. Then it adds a node while teachers keep marking attendance and checks that:
+#
+#   - only the schools the new node takes over move, and every school ends up on
+#     exactly the node the ring gives it
+#   - every school's classes, students, attendance and photos survive the move
+#   - requests during the move succeed, apart from writes told to retry (503)
+#
+#   python loadtest/cluster_test.py --nodes 3 --schools 40
+#
+# Exits non-zero if a check fails.
+import os
+import sys
+import json
+import time
+import base64
+import random
+import shutil
+import argparse
+import tempfile
+import threading
+import subprocess
+import urllib.error
+import urllib.request
+
+ROOT = os.path.join(os.path.dirname(os.path.abspath(__file__)), '..')
+sys.path.insert(0, ROOT)
+
+from shard_ring import HashRing, SCHOOL_HEADER, CLUSTER_TOKEN_HEADER
+
+TOKEN = 'cluster-test'
+
+class Cluster:
+    def __init__(self, workdir, base_port):
+        """Processes of a localhost cluster; nodes listen on base_port + n, the router on base_port"""
+        self.workdir = workdir
+        self.base_port = base_port
+        self.router_url = f"http://127.0.0.1:{base_port}"
+        self.env = dict(os.environ, ATTENDANCE_CLUSTER_TOKEN=TOKEN,
+                        PYTHONPATH=os.pathsep.join(filter(None, [ROOT, os.environ.get('PYTHONPATH')])))
+        self.processes = []
+    
+    def start_node(self, number):
+        """Start app.py in a directory of its own, so the node keeps its own data/"""
+        node_dir = os.path.join(self.workdir, f"node-{number}")
+        os.makedirs(node_dir)
+        port = self.base_port + number
+        code = f"import app; app.app.run(host='127.0.0.1', port={port}, threaded=True)"
+        self._spawn([sys.executable, '-c', code], node_dir, 'node.log')
+        url = f"http://127.0.0.1:{port}"
+        wait_until_up(url + '/api/classes')
+        return f"node-{number}", url
+    
+    def start_router(self, nodes):
+        cluster_file = os.path.join(self.workdir, 'cluster.json')
+        with open(cluster_file, 'w') as f:
+            json.dump({'nodes': nodes}, f)
+        self._spawn([sys.executable, os.path.join(ROOT, 'shard_router.py'), '--cluster', cluster_file,
+                     '--host', '127.0.0.1', '--port', str(self.base_port)], self.workdir, 'router.log')
+        wait_until_up(self.router_url + '/api/classes')
+    
+    def stop(self):
+        for process in self.processes:
+            process.terminate()
+        for process in self.processes:
+            process.wait()
+    
+    def _spawn(self, command, cwd, log_name):
+        log = open(os.path.join(cwd, log_name), 'w')
+        self.processes.append(subprocess.Popen(command, cwd=cwd, env=self.env, stdout=log, stderr=subprocess.STDOUT))
+
+def request(url, method='GET', body=None, school_id=None, token=None):
+    """
+    Send a JSON request
+    
+    Returns:
+        tuple: HTTP status and decoded body (None if the body is not JSON)
+    """
+    headers = {'Content-Type': 'application/json', 'Accept': 'application/json'}
+    if school_id is not None:
+        headers[SCHOOL_HEADER] = school_id
+    if token is not None:
+        headers[CLUSTER_TOKEN_HEADER] = token
+    data = json.dumps(body).encode('utf-8') if body is not None else None
+    try:
+        with urllib.request.urlopen(urllib.request.Request(url, data=data, method=method, headers=headers),
+                                    timeout=60) as response:
+            status, payload = response.status, response.read()
+    except urllib.error.HTTPError as e:
+        status, payload = e.code, e.read()
+    try:
+        return status, json.loads(payload)
+    except ValueError:
+        return status, None
+
+def wait_until_up(url, timeout=30):
+    deadline = time.monotonic() + timeout
+    while True:
+        try:
+            urllib.request.urlopen(url, timeout=5).read()
+            return
+        except (urllib.error.URLError, OSError):
+            if time.monotonic() > deadline:
+                raise RuntimeError(f"{url} did not come up")
+            time.sleep(0.2)
+
+def enroll(router_url, school_id, classes, students_per_class, rng):
+    """
+    Create a school's classes and students, and one day of attendance
+    
+    Returns:
+        dict: class_id -> student IDs
+    """
+    roster = {}
+    for c in range(classes):
+        status, result = request(router_url + '/api/classes', 'POST', {'name': f"Class {c + 1}"}, school_id)
+        check(status == 200, f"creating a class of {school_id} returned {status}")
+        class_id = result['class']['id']
+        roster[class_id] = []
+        for s in range(students_per_class):
+            student_id = f"{school_id}-{c}-{s}"
+            photo = base64.b64encode(rng.randbytes(4096)).decode('ascii')
+            status, _ = request(router_url + '/api/students', 'POST', {
+                'name': f"Student {s + 1}", 'student_id': student_id, 'class_id': class_id, 'photo': photo
+            }, school_id)
+            check(status == 200, f"enrolling {student_id} returned {status}")
+            roster[class_id].append(student_id)
+            request(router_url + '/api/manual_attendance', 'POST', {
+                'student_id': student_id, 'class_id': class_id, 'date': '2024-09-02', 'status': True
+            }, school_id)
+    return roster
+
+def traffic(router_url, rosters, stop, counts, rng):
+    """Mark attendance and read rosters of random schools until stopped"""
+    day = 0
+    while not stop.is_set():
+        school_id = rng.choice(sorted(rosters))
+        class_id = rng.choice(sorted(rosters[school_id]))
+        day += 1
+        status, _ = request(router_url + '/api/manual_attendance', 'POST', {
+            'student_id': rosters[school_id][class_id][0], 'class_id': class_id,
+            'date': f"2024-10-{day % 28 + 1:02d}", 'status': True
+        }, school_id)
+        record(counts, 'write', status)
+        status, result = request(router_url + '/api/students', school_id=school_id)
+        record(counts, 'read', status)
+        if status == 200 and len(result['students']) != sum(len(s) for s in rosters[school_id].values()):
+            record(counts, 'read', 'incomplete')
+
+def record(counts, kind, status):
+    key = f"{kind} {status}"
+    counts[key] = counts.get(key, 0) + 1
+
+failures = []
+
+def check(condition, message):
+    if not condition:
+        failures.append(message)
+        print(f"FAIL: {message}")
+
+def main():
+    parser = argparse.ArgumentParser(description="Multi-node cluster test")
+    parser.add_argument('--nodes', type=int, default=3, help="Nodes before one is added")
+    parser.add_argument('--schools', type=int, default=40, help="Schools enrolled")
+    parser.add_argument('--classes', type=int, default=2, help="Classes per school")
+    parser.add_argument('--students', type=int, default=5, help="Students per class")
+    parser.add_argument('--clients', type=int, default=4, help="Concurrent clients during the move")
+    parser.add_argument('--port', type=int, default=7100, help="Router port; nodes use the ports after it")
+    parser.add_argument('--keep', action='store_true', help="Keep the scratch directory and its logs")
+    args = parser.parse_args()
+    
+    rng = random.Random(1)
+    workdir = tempfile.mkdtemp(prefix='attendance-cluster-')
+    cluster = Cluster(workdir, args.port)
+    try:
+        nodes = dict(cluster.start_node(n) for n in range(1, args.nodes + 1))
+        cluster.start_router(nodes)
+        print(f"{args.nodes} nodes and the router are up in {workdir}")
+        
+        rosters = {}
+        for i in range(args.schools):
+            school_id = f"school-{i + 1:03d}"
+            rosters[school_id] = enroll(cluster.router_url, school_id, args.classes, args.students, rng)
+        print(f"Enrolled {args.schools} schools")
+        
+        before = HashRing(nodes)
+        for node_id, url in nodes.items():
+            _, result = request(url + '/internal/schools', token=TOKEN)
+            held = set(result['schools'])
+            check(held == {s for s in rosters if before.node_for(s) == node_id},
+                  f"{node_id} holds the wrong schools before the move")
+        
+        new_node_id, new_url = cluster.start_node(args.nodes + 1)
+        after = before.with_node(new_node_id)
+        moving = sorted(s for s in rosters if after.node_for(s) != before.node_for(s))
+        check(all(after.node_for(s) == new_node_id for s in moving), "a school moved between existing nodes")
+        print(f"Adding {new_node_id}: {len(moving)} of {args.schools} schools move to it")
+        
+        stop = threading.Event()
+        counts = {}
+        clients = [threading.Thread(target=traffic, args=(cluster.router_url, rosters, stop, counts,
+                                                          random.Random(i)))
+                   for i in range(args.clients)]
+        for client in clients:
+            client.start()
+        
+        started = time.monotonic()
+        status, _ = request(cluster.router_url + '/cluster/nodes', 'POST', {'node_id': new_node_id, 'url': new_url},
+                            token=TOKEN)
+        check(status == 202, f"adding a node returned {status}")
+        while request(cluster.router_url + '/cluster', token=TOKEN)[1]['rebalancing']:
+            time.sleep(0.2)
+        elapsed = time.monotonic() - started
+        stop.set()
+        for client in clients:
+            client.join()
+        print(f"Rebalanced in {elapsed:.1f}s; requests during the move: "
+              + ", ".join(f"{key}: {count}" for key, count in sorted(counts.items())))
+        check(not any(key.split()[1] not in ('200', '503') for key in counts), "requests failed during the move")
+        
+        nodes[new_node_id] = new_url
+        for node_id, url in nodes.items():
+            _, result = request(url + '/internal/schools', token=TOKEN)
+            held = set(result['schools'])
+            check(held == {s for s in rosters if after.node_for(s) == node_id},
+                  f"{node_id} holds the wrong schools after the move")
+        
+        for school_id, roster in rosters.items():
+            _, result = request(cluster.router_url + '/api/classes', school_id=school_id)
+            check({c['id'] for c in result['classes']} == set(roster), f"{school_id} lost classes")
+            _, result = request(cluster.router_url + '/api/students', school_id=school_id)
+            students = result['students']
+            check(len(students) == sum(len(s) for s in roster.values()), f"{school_id} lost students")
+            photo = urllib.request.Request(f"{cluster.router_url}/{students[0]['photo_path']}",
+                                           headers={SCHOOL_HEADER: school_id})
+            check(len(urllib.request.urlopen(photo).read()) == 4096, f"{school_id} lost photos")
+            class_id = sorted(roster)[0]
+            _, result = request(f"{cluster.router_url}/api/attendance_report?class_id={class_id}&date=2024-09-02",
+                                school_id=school_id)
+            check(len(result['attendance_records']) == len(roster[class_id]), f"{school_id} lost attendance")
+    finally:
+        cluster.stop()
+        if args.keep or failures:
+            print(f"Logs are in {workdir}")
+        else:
+            shutil.rmtree(workdir, ignore_errors=True)
+    
+    print("FAILED" if failures else "PASSED")
+    sys.exit(1 if failures else 0)
+
+if __name__ == '__main__':
+    main()
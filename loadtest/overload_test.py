@@ -0,0 +1,325 @@
+#!/usr/bin/env python3
+# Overload test of admission control
+#
+# Starts a stand-in server node: the real admission middleware and recognition job
+# queue in front of handlers that take as much CPU as the real endpoints, so the test
+# runs without Flask or a face model. The CPU is simulated, cores shared round-robin in
+# time slices, so the stand-in's own HTTP handling doesn't fight the handlers for the
+# GIL and the test client doesn't take the server's CPU. It then offers the node a
+# school-morning mix at several times its capacity, once as it was (no admission
+# control, unbounded recognition queue) and once as it is, and reports latency per
+# request class.
+#
+# Clients retry shed requests after Retry-After plus jitter, as the app does, and
+# latency is measured from each request's scheduled time, so backoff counts against
+# it; requests still shed after the retries, or timed out, are counted separately.
+#
+#   python loadtest/overload_test.py --load 3
+#
+# Exits non-zero if the p99 of attendance takes exceeds --max-take-p99 with admission
+# control on.
+import os
+import sys
+import json
+import time
+import random
+import argparse
+import threading
+import subprocess
+import urllib.error
+import urllib.request
+from collections import deque
+from concurrent.futures import ThreadPoolExecutor
+from socketserver import ThreadingMixIn
+from wsgiref.simple_server import make_server, WSGIServer, WSGIRequestHandler
+
+ROOT = os.path.join(os.path.dirname(os.path.abspath(__file__)), '..')
+sys.path.insert(0, ROOT)
+
+from admission_control import AdmissionController, AdmissionMiddleware
+from recognition_job_service import RecognitionJobService, QueueFullError
+
+# CPU milliseconds per request on the stand-in, and the share of a normal morning's
+# CPU each kind of request takes; at --load 1 they add up to the node's capacity
+COSTS_MS = {'take': 20, 'recognition': 300, 'manual': 20, 'roster': 80, 'report': 160, 'enroll': 240}
+CPU_SHARES = {'take': 0.2, 'manual': 0.1, 'roster': 0.15, 'report': 0.35, 'enroll': 0.2}
+
+# Simulated cores of the stand-in, and the time slice they are shared in
+CORES = 2
+SLICE_MS = 5
+
+# Same as the app: request timeout, long-poll wait and retries of shed requests
+TIMEOUT_SECONDS = 60
+JOB_POLL_WAIT_SECONDS = 25
+MAX_RETRIES = 3
+BASE_BACKOFF_SECONDS = 0.5
+MAX_RETRY_WAIT_SECONDS = 15
+
+# Recognition workers on the stand-in
+WORKERS = CORES
+
+class ThreadingWSGIServer(ThreadingMixIn, WSGIServer):
+    daemon_threads = True
+    request_queue_size = 256
+
+class QuietHandler(WSGIRequestHandler):
+    def log_message(self, format, *args):
+        pass
+
+class SimulatedCpu:
+    def __init__(self, cores):
+        """Cores handed out in time slices, round-robin, to the threads that want them"""
+        self._free = cores
+        self._waiting = deque()
+        self._lock = threading.Lock()
+    
+    def run(self, ms):
+        """Take `ms` of CPU time, which takes longer the more threads want it"""
+        while ms > 0:
+            self._acquire()
+            time.sleep(min(SLICE_MS, ms) / 1000)
+            ms -= SLICE_MS
+            self._release()
+    
+    def _acquire(self):
+        with self._lock:
+            if self._free and not self._waiting:
+                self._free -= 1
+                return
+            turn = threading.Event()
+            self._waiting.append(turn)
+        turn.wait()
+    
+    def _release(self):
+        with self._lock:
+            if self._waiting:
+                # Hand the core straight to the longest waiter
+                self._waiting.popleft().set()
+            else:
+                self._free += 1
+
+class StandInNode:
+    def __init__(self, admission):
+        """
+        Server node with the real admission control and job queue around handlers
+        that only take CPU
+        
+        Args:
+            admission (bool): Whether to run admission control and bound the job queue
+        """
+        self.cpu = SimulatedCpu(CORES)
+        self.controller = AdmissionController() if admission else None
+        self.jobs = RecognitionJobService(self, num_workers=WORKERS, max_wait=20 if admission else None,
+                                          max_pending=100000, admission=self.controller)
+    
+    def process_attendance(self, class_id, photo_path, date, face_locations, camera_id):
+        self.cpu.run(COSTS_MS['recognition'])
+        return {'attendance': [], 'recognized_students': [], 'unrecognized_faces': 0,
+                'expected_missed': 0, 'recapture_suggested': False}
+    
+    def app(self):
+        if self.controller is None:
+            return self._handle
+        return AdmissionMiddleware(self._handle, self.controller)
+    
+    def _handle(self, environ, start_response):
+        method = environ['REQUEST_METHOD']
+        path = environ['PATH_INFO']
+        length = int(environ.get('CONTENT_LENGTH') or 0)
+        if length:
+            environ['wsgi.input'].read(length)
+        
+        status, headers, result = '200 OK', [], {'success': True}
+        if method == 'POST' and path == '/api/attendance_jobs':
+            self.cpu.run(COSTS_MS['take'])
+            try:
+                result['job'] = self.jobs.submit('class', 'photo', '2024-09-02')
+                status = '202 Accepted'
+            except QueueFullError as e:
+                status, result = '503 Service Unavailable', {'success': False, 'error': str(e)}
+                headers.append(('Retry-After', str(e.retry_after)))
+        elif method == 'GET' and path.startswith('/api/attendance_jobs/'):
+            wait = float(environ.get('QUERY_STRING', '').partition('wait=')[2] or 0)
+            result['job'] = self.jobs.get(path.rsplit('/', 1)[1], wait=wait)
+        elif method == 'POST' and path == '/api/manual_attendance':
+            self.cpu.run(COSTS_MS['manual'])
+        elif method == 'GET' and path == '/api/students':
+            self.cpu.run(COSTS_MS['roster'])
+        elif method == 'GET' and path == '/api/attendance_report':
+            self.cpu.run(COSTS_MS['report'])
+        elif method == 'POST' and path == '/api/students':
+            self.cpu.run(COSTS_MS['enroll'])
+        elif method == 'GET' and path == '/stats':
+            result = self.controller.stats() if self.controller else {}
+        else:
+            status, result = '404 Not Found', {'success': False}
+        
+        body = json.dumps(result).encode('utf-8')
+        start_response(status, [('Content-Type', 'application/json'), ('Content-Length', str(len(body)))] + headers)
+        return [body]
+
+def serve(port, admission):
+    node = StandInNode(admission)
+    server = make_server('127.0.0.1', port, node.app(), server_class=ThreadingWSGIServer, handler_class=QuietHandler)
+    server.serve_forever()
+
+def request(url, method='GET', body=None):
+    """
+    Send a JSON request
+    
+    Returns:
+        tuple: HTTP status, decoded body and Retry-After
+    """
+    data = json.dumps(body).encode('utf-8') if body is not None else None
+    req = urllib.request.Request(url, data=data, method=method, headers={'Content-Type': 'application/json'})
+    try:
+        with urllib.request.urlopen(req, timeout=TIMEOUT_SECONDS) as response:
+            return response.status, json.loads(response.read()), None
+    except urllib.error.HTTPError as e:
+        return e.code, None, e.headers.get('Retry-After')
+
+def request_with_retries(url, method='GET', body=None):
+    """Send a request, retrying it after Retry-After plus jittered backoff while it is shed"""
+    for attempt in range(MAX_RETRIES + 1):
+        status, result, retry_after = request(url, method, body)
+        if status not in (429, 503) or attempt == MAX_RETRIES:
+            return status, result
+        wait = float(retry_after or 0) + random.uniform(0, BASE_BACKOFF_SECONDS * 2 ** attempt)
+        if wait > MAX_RETRY_WAIT_SECONDS:
+            return status, result
+        time.sleep(wait)
+
+def run_request(base_url, kind):
+    if kind == 'take':
+        status, result = request_with_retries(base_url + '/api/attendance_jobs', 'POST', {'photo': 'x' * 4096})
+        if status != 202:
+            return status
+        job_id = result['job']['job_id']
+        while True:
+            status, result = request_with_retries(
+                f"{base_url}/api/attendance_jobs/{job_id}?wait={JOB_POLL_WAIT_SECONDS}")
+            if status != 200 or result['job']['status'] in ('completed', 'failed'):
+                return status
+    paths = {
+        'manual': ('POST', '/api/manual_attendance', {'student_id': 's', 'class_id': 'c', 'status': True}),
+        'roster': ('GET', '/api/students', None),
+        'report': ('GET', '/api/attendance_report', None),
+        'enroll': ('POST', '/api/students', {'name': 'n', 'photo': 'x' * 4096})
+    }
+    method, path, body = paths[kind]
+    return request_with_retries(base_url + path, method, body)[0]
+
+def drive(base_url, load, seconds, rng):
+    """
+    Offer an open-loop Poisson mix at `load` times capacity
+    
+    Returns:
+        dict: kind -> {'latencies': [...], 'shed': n, 'failed': n}
+    """
+    rates = {kind: load * share * CORES * 1000 / (COSTS_MS[kind] + (COSTS_MS['recognition'] if kind == 'take' else 0))
+             for kind, share in CPU_SHARES.items()}
+    arrivals = []
+    for kind, rate in rates.items():
+        offset = rng.expovariate(rate)
+        while offset < seconds:
+            arrivals.append((offset, kind))
+            offset += rng.expovariate(rate)
+    arrivals.sort()
+    
+    results = {kind: {'latencies': [], 'shed': 0, 'failed': 0} for kind in rates}
+    lock = threading.Lock()
+    
+    def execute(kind, intended):
+        try:
+            status = run_request(base_url, kind)
+        except OSError:
+            status = None
+        with lock:
+            if status in (200, 202):
+                results[kind]['latencies'].append(time.monotonic() - intended)
+            elif status in (429, 503):
+                results[kind]['shed'] += 1
+            else:
+                results[kind]['failed'] += 1
+    
+    started = time.monotonic()
+    with ThreadPoolExecutor(max_workers=1024) as pool:
+        for offset, kind in arrivals:
+            intended = started + offset
+            delay = intended - time.monotonic()
+            if delay > 0:
+                time.sleep(delay)
+            pool.submit(execute, kind, intended)
+    return results
+
+def percentile(values, p):
+    if not values:
+        return float('nan')
+    values = sorted(values)
+    return values[min(len(values) - 1, int(len(values) * p / 100))]
+
+def report(title, results, stats):
+    print(title)
+    print(f"  {'class':<8} {'ok':>6} {'shed':>6} {'failed':>6} {'p50 s':>8} {'p99 s':>8}")
+    for kind, result in results.items():
+        latencies = result['latencies']
+        print(f"  {kind:<8} {len(latencies):>6} {result['shed']:>6} {result['failed']:>6} "
+              f"{percentile(latencies, 50):>8.2f} {percentile(latencies, 99):>8.2f}")
+    if stats:
+        print(f"  admission: limit {stats['limit']}, shed {stats['shed']}")
+
+def run(args, admission):
+    env = dict(os.environ, PYTHONPATH=os.pathsep.join(filter(None, [ROOT, os.environ.get('PYTHONPATH')])))
+    command = [sys.executable, os.path.abspath(__file__), '--serve', '--port', str(args.port)]
+    if admission:
+        command.append('--admission')
+    server = subprocess.Popen(command, env=env)
+    base_url = f"http://127.0.0.1:{args.port}"
+    try:
+        deadline = time.monotonic() + 30
+        while True:
+            try:
+                urllib.request.urlopen(base_url + '/stats', timeout=5).read()
+                break
+            except (urllib.error.URLError, OSError):
+                if time.monotonic() > deadline:
+                    raise RuntimeError("Stand-in node did not come up")
+                time.sleep(0.2)
+        
+        results = drive(base_url, args.load, args.seconds, random.Random(args.seed))
+        stats = json.loads(urllib.request.urlopen(base_url + '/stats').read())
+    finally:
+        server.terminate()
+        server.wait()
+    report(f"Admission control {'on' if admission else 'off'}, {args.load:g}x capacity for {args.seconds}s:",
+           results, stats)
+    return results
+
+def main():
+    parser = argparse.ArgumentParser(description="Overload test of admission control")
+    parser.add_argument('--load', type=float, default=3, help="Offered load as a multiple of capacity")
+    parser.add_argument('--seconds', type=float, default=30, help="Length of the arrival window")
+    parser.add_argument('--max-take-p99', type=float, default=10, help="Bound on take p99, in seconds")
+    parser.add_argument('--port', type=int, default=7200)
+    parser.add_argument('--seed', type=int, default=1)
+    parser.add_argument('--serve', action='store_true', help=argparse.SUPPRESS)
+    parser.add_argument('--admission', action='store_true', help=argparse.SUPPRESS)
+    args = parser.parse_args()
+    
+    if args.serve:
+        serve(args.port, args.admission)
+        return
+    
+    run(args, admission=False)
+    print()
+    results = run(args, admission=True)
+    
+    take_p99 = percentile(results['take']['latencies'], 99)
+    passed = take_p99 <= args.max_take_p99
+    print()
+    print(f"Take p99 with admission control: {take_p99:.2f}s (bound {args.max_take_p99:g}s): "
+          f"{'PASSED' if passed else 'FAILED'}")
+    sys.exit(0 if passed else 1)
+
+if __name__ == '__main__':
+    main()
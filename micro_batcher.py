@@ -0,0 +1,181 @@
+#!/usr/bin/env python3
+# Dynamic micro-batching for the Attendance System
+#
+# A recognition model costs about as much to run on one face as on several: each run
+# has a fixed cost of preparing inputs and waking the inference threads, and larger
+# batches use the CPU's vector units better. Concurrent requests each running their
+# own faces pay that fixed cost again and again, and fight over the same cores. The
+# batcher queues the items of concurrent callers and runs them as one batch:
+#
+# - A batch is run once it holds MAX_BATCH items, or WINDOW_MS after the first item
+#   queued, whichever comes first. It waits for the window only while callers arrive
+#   together, when the previous batch held more than one caller's items, so a lone
+#   caller runs at once, as without batching.
+# - Batches run one at a time. Items queued while one runs go into the next at once,
+#   so under load batches grow without waiting for the window.
+# - A caller's items are never split between batches, and each caller gets back the
+#   results of its own items, in order.
+# - When a batch of several callers fails, each caller's items are run again on their
+#   own, so one caller's bad item fails only that caller.
+import time
+import logging
+import threading
+from collections import deque
+
+logger = logging.getLogger(__name__)
+
+# Most items run in one batch; a single request with more runs alone
+MAX_BATCH = 128
+
+# Longest the first item of a batch waits for others, in milliseconds
+WINDOW_MS = 5
+
+class _Request:
+    def __init__(self, items):
+        self.items = items
+        self.arrived = time.monotonic()
+        self.results = None
+        self.error = None
+        self.done = threading.Event()
+
+class MicroBatcher:
+    def __init__(self, run_batch, max_batch=MAX_BATCH, window_ms=WINDOW_MS, name='micro-batcher'):
+        """
+        Start the batcher's worker thread
+        
+        Args:
+            run_batch (callable): list of items -> list of their results, in order
+            max_batch (int): Items at which a batch runs without waiting for the window
+            window_ms (float): Longest the first item of a batch waits for others
+            name (str): Name of the worker thread, for logs and traces
+        """
+        self.run_batch = run_batch
+        self.max_batch = max_batch
+        self.window = window_ms / 1000
+        
+        self._condition = threading.Condition()
+        self._pending = deque()
+        self._pending_items = 0
+        self._closed = False
+        # Whether the previous batch had several callers, so the next may get them too
+        self._busy = False
+        self._batches = 0
+        self._items = 0
+        
+        self._worker = threading.Thread(target=self._worker_loop, name=name, daemon=True)
+        self._worker.start()
+    
+    def submit(self, items):
+        """
+        Run items in the next batch and wait for their results
+        
+        Args:
+            items (list): Items to run
+        
+        Returns:
+            list: Their results, in order
+        
+        Raises:
+            Exception: Whatever run_batch raised for these items, run on their own
+        """
+        if not items:
+            return []
+        request = _Request(list(items))
+        with self._condition:
+            if self._closed:
+                raise RuntimeError("Batcher is closed")
+            self._pending.append(request)
+            self._pending_items += len(request.items)
+            self._condition.notify()
+        request.done.wait()
+        if request.error is not None:
+            raise request.error
+        return request.results
+    
+    def stats(self):
+        """
+        Returns:
+            dict: Batches run, items run and their mean batch size
+        """
+        with self._condition:
+            return {
+                'batches': self._batches,
+                'items': self._items,
+                'mean_batch': self._items / self._batches if self._batches else 0
+            }
+    
+    def close(self):
+        """Run what is queued and stop the worker"""
+        with self._condition:
+            self._closed = True
+            self._condition.notify()
+        self._worker.join()
+    
+    def _next_batch(self):
+        """Wait for a batch to fill or its window to pass, and take it off the queue"""
+        with self._condition:
+            while not self._pending and not self._closed:
+                self._condition.wait()
+            if not self._pending:
+                return None
+            
+            deadline = self._pending[0].arrived + self.window
+            while self._busy and self._pending_items < self.max_batch and not self._closed:
+                remaining = deadline - time.monotonic()
+                if remaining <= 0:
+                    break
+                self._condition.wait(remaining)
+            
+            batch = [self._pending.popleft()]
+            size = len(batch[0].items)
+            while self._pending and size + len(self._pending[0].items) <= self.max_batch:
+                request = self._pending.popleft()
+                batch.append(request)
+                size += len(request.items)
+            self._pending_items -= size
+            self._busy = len(batch) > 1
+            self._batches += 1
+            self._items += size
+            return batch
+    
+    def _worker_loop(self):
+        while True:
+            batch = self._next_batch()
+            if batch is None:
+                return
+            
+            items = [item for request in batch for item in request.items]
+            try:
+                results = self._run(items)
+            except Exception as e:
+                if len(batch) == 1:
+                    self._fail(batch[0], e)
+                    continue
+                logger.warning(f"Error running a batch of {len(items)} items of {len(batch)} callers, "
+                               f"running each caller's alone: {str(e)}")
+                for request in batch:
+                    try:
+                        request.results = self._run(request.items)
+                    except Exception as e:
+                        self._fail(request, e)
+                        continue
+                    request.done.set()
+                continue
+            
+            start = 0
+            for request in batch:
+                request.results = results[start:start + len(request.items)]
+                start += len(request.items)
+                request.done.set()
+    
+    def _run(self, items):
+        results = self.run_batch(items)
+        if len(results) != len(items):
+            raise RuntimeError(f"Batch of {len(items)} items returned {len(results)} results")
+        return results
+    
+    @staticmethod
+    def _fail(request, error):
+        logger.error(f"Error running a batch of {len(request.items)} items: {str(error)}")
+        request.error = error
+        request.done.set()
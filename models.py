@@ -3,6 +3,7 @@
 import os
 import time
 import json
+import uuid
 import logging
 from datetime import datetime
 
@@ -15,13 +16,17 @@ DATA_DIR = 'data'
 STUDENTS_FILE = os.path.join(DATA_DIR, 'students.json')
 CLASSES_FILE = os.path.join(DATA_DIR, 'classes.json')
 ATTENDANCE_FILE = os.path.join(DATA_DIR, 'attendance.json')
+CLASSROOM_PHOTOS_FILE = os.path.join(DATA_DIR, 'classroom_photos.json')
+
+# School of records created before schools were tracked, and of requests that name none
+DEFAULT_SCHOOL = 'default'
 
 def init_db():
     """Initialize the database files if they don't exist"""
     os.makedirs(DATA_DIR, exist_ok=True)
     
     # Create empty JSON files if they don't exist
-    for file_path in [STUDENTS_FILE, CLASSES_FILE, ATTENDANCE_FILE]:
+    for file_path in [STUDENTS_FILE, CLASSES_FILE, ATTENDANCE_FILE, CLASSROOM_PHOTOS_FILE]:
         if not os.path.exists(file_path):
             with open(file_path, 'w') as f:
                 json.dump([], f)
@@ -53,7 +58,13 @@ class Student:
         return [s for s in students if s['class_id'] == class_id]
     
     @staticmethod
-    def create(name, student_id, class_id, photo_path):
+    def get_by_school(school_id):
+        """Get all students of a specific school"""
+        students = Student.get_all()
+        return [s for s in students if s.get('school_id', DEFAULT_SCHOOL) == school_id]
+    
+    @staticmethod
+    def create(name, student_id, class_id, photo_path, school_id=DEFAULT_SCHOOL):
         """Create a new student"""
         students = Student.get_all()
         
@@ -67,6 +78,7 @@ class Student:
             'name': name,
             'student_id': student_id,
             'class_id': class_id,
+            'school_id': school_id,
             'photo_path': photo_path,
             'created_at': datetime.now().isoformat()
         }
@@ -111,6 +123,43 @@ class Student:
             return True
         return False
 
+def _minutes(value):
+    """Minutes since midnight of an 'HH:MM' time"""
+    hours, minutes = (int(part) for part in value.split(':'))
+    if not (0 <= hours < 24 and 0 <= minutes < 60):
+        raise ValueError
+    return hours * 60 + minutes
+
+def parse_timetable(slots):
+    """
+    Check and normalize a class's weekly timetable
+    
+    Args:
+        slots (list): Weekly sessions as {'day': 1-7, Monday first, 'start': 'HH:MM',
+                      'end': 'HH:MM'}, in the school's local time
+    
+    Returns:
+        list: The sessions sorted by day and start
+    
+    Raises:
+        ValueError: If a session is malformed or ends before it starts
+    """
+    if not isinstance(slots, list):
+        raise ValueError("Timetable must be a list of sessions")
+    
+    timetable = []
+    for slot in slots:
+        try:
+            day = int(slot['day'])
+            start, end = _minutes(slot['start']), _minutes(slot['end'])
+        except (KeyError, TypeError, ValueError, AttributeError):
+            raise ValueError(f"Invalid timetable session {slot}: expected day 1-7, start and end as HH:MM")
+        if not 1 <= day <= 7 or end <= start:
+            raise ValueError(f"Invalid timetable session {slot}")
+        timetable.append({'day': day, 'start': f"{start // 60:02d}:{start % 60:02d}",
+                          'end': f"{end // 60:02d}:{end % 60:02d}"})
+    return sorted(timetable, key=lambda slot: (slot['day'], slot['start']))
+
 class Class:
     @staticmethod
     def get_all():
@@ -130,13 +179,29 @@ class Class:
         return None
     
     @staticmethod
-    def create(name):
-        """Create a new class"""
+    def get_by_school(school_id):
+        """Get all classes of a specific school"""
+        classes = Class.get_all()
+        return [c for c in classes if c.get('school_id', DEFAULT_SCHOOL) == school_id]
+    
+    @staticmethod
+    def school_of(class_id):
+        """Get the school a class belongs to"""
+        cls = Class.get(class_id)
+        return cls.get('school_id', DEFAULT_SCHOOL) if cls else DEFAULT_SCHOOL
+    
+    @staticmethod
+    def create(name, school_id=DEFAULT_SCHOOL, timetable=None):
+        """Create a new class, with its weekly timetable as returned by parse_timetable()"""
         classes = Class.get_all()
         
         new_class = {
-            'id': str(int(time.time())),  # Use timestamp as ID
+            # Random rather than a timestamp, so classes created in the same second on
+            # different nodes keep distinct IDs when one's school moves to the other
+            'id': uuid.uuid4().hex,
             'name': name,
+            'school_id': school_id,
+            'timetable': timetable or [],
             'created_at': datetime.now().isoformat()
         }
         
@@ -250,6 +315,16 @@ class Attendance:
         # Create new record if not found
         return Attendance.create(student_id, class_id, date, status)
     
+    @staticmethod
+    def save_all(records):
+        """Replace every attendance record, e.g. with a projection of the change log"""
+        # Written aside and renamed, so readers never load a half-written file while
+        # writes no longer hold one lock
+        tmp_path = ATTENDANCE_FILE + '.tmp'
+        with open(tmp_path, 'w') as f:
+            json.dump(records, f, indent=4)
+        os.replace(tmp_path, ATTENDANCE_FILE)
+    
     @staticmethod
     def delete(attendance_id):
         """Delete an attendance record"""
@@ -263,3 +338,155 @@ class Attendance:
                 json.dump(records, f, indent=4)
             return True
         return False
+
+class ClassroomPhoto:
+    @staticmethod
+    def get_all():
+        """Get all classroom photo records"""
+        if os.path.exists(CLASSROOM_PHOTOS_FILE):
+            with open(CLASSROOM_PHOTOS_FILE, 'r') as f:
+                return json.load(f)
+        return []
+    
+    @staticmethod
+    def create(class_id, date, photo_path, faces, session_id=None, taken_at=None, finalized_at=None):
+        """Record a classroom photo taken for attendance"""
+        photos = ClassroomPhoto.get_all()
+        
+        new_photo = {
+            'id': uuid.uuid4().hex,
+            'class_id': class_id,
+            'date': date,
+            'session_id': session_id,
+            'photo_path': photo_path,
+            'faces': faces,
+            'tier': 'hot',
+            'taken_at': taken_at,
+            'finalized_at': finalized_at,
+            'created_at': datetime.now().isoformat()
+        }
+        
+        photos.append(new_photo)
+        
+        with open(CLASSROOM_PHOTOS_FILE, 'w') as f:
+            json.dump(photos, f, indent=4)
+        
+        return new_photo
+    
+    @staticmethod
+    def update(photo_id, data):
+        """Update a classroom photo record"""
+        photos = ClassroomPhoto.get_all()
+        
+        for i, photo in enumerate(photos):
+            if photo['id'] == photo_id:
+                photos[i].update(data)
+                photos[i]['updated_at'] = datetime.now().isoformat()
+                with open(CLASSROOM_PHOTOS_FILE, 'w') as f:
+                    json.dump(photos, f, indent=4)
+                return photos[i]
+        return None
+    
+    @staticmethod
+    def finalize_session(session_id, finalized_at):
+        """Mark the photos of a closed session final"""
+        photos = ClassroomPhoto.get_all()
+        updated = [p for p in photos if p['session_id'] == session_id and p['finalized_at'] is None]
+        
+        for photo in updated:
+            photo['finalized_at'] = finalized_at
+        
+        if updated:
+            with open(CLASSROOM_PHOTOS_FILE, 'w') as f:
+                json.dump(photos, f, indent=4)
+        return len(updated)
+
+# Files holding each kind of record a school owns
+SCHOOL_FILES = {
+    'classes': CLASSES_FILE,
+    'students': STUDENTS_FILE,
+    'attendance': ATTENDANCE_FILE,
+    'classroom_photos': CLASSROOM_PHOTOS_FILE
+}
+
+def _school_filters(school_id):
+    """Predicates selecting a school's records in each file"""
+    class_ids = {c['id'] for c in Class.get_by_school(school_id)}
+    return {
+        'classes': lambda c: c['id'] in class_ids,
+        'students': lambda s: s.get('school_id', DEFAULT_SCHOOL) == school_id,
+        'attendance': lambda r: r['class_id'] in class_ids,
+        'classroom_photos': lambda p: p['class_id'] in class_ids
+    }
+
+def _load(file_path):
+    if os.path.exists(file_path):
+        with open(file_path, 'r') as f:
+            return json.load(f)
+    return []
+
+def list_schools():
+    """
+    Get the schools with records in this data directory
+    
+    Returns:
+        dict: school_id -> number of classes and students
+    """
+    schools = {}
+    for cls in Class.get_all():
+        counts = schools.setdefault(cls.get('school_id', DEFAULT_SCHOOL), {'classes': 0, 'students': 0})
+        counts['classes'] += 1
+    for student in Student.get_all():
+        counts = schools.setdefault(student.get('school_id', DEFAULT_SCHOOL), {'classes': 0, 'students': 0})
+        counts['students'] += 1
+    return schools
+
+def export_school(school_id):
+    """
+    Get every record of a school: its classes and students, and the attendance
+    records and classroom photos of its classes
+    
+    Returns:
+        dict: Record kind (a key of SCHOOL_FILES) -> list of records
+    """
+    filters = _school_filters(school_id)
+    return {kind: [r for r in _load(file_path) if filters[kind](r)] for kind, file_path in SCHOOL_FILES.items()}
+
+def import_school(school_id, records):
+    """
+    Replace a school's records with those exported from another data directory
+    
+    Raises:
+        ValueError: If a class or student ID is already used by another school here
+    """
+    filters = _school_filters(school_id)
+    existing = {kind: _load(file_path) for kind, file_path in SCHOOL_FILES.items()}
+    
+    # Class and student IDs are unique per data directory, not per school
+    for kind, key in [('classes', 'id'), ('students', 'student_id')]:
+        taken = {r[key] for r in existing[kind] if not filters[kind](r)}
+        clashes = taken.intersection(r[key] for r in records.get(kind, []))
+        if clashes:
+            raise ValueError(f"{kind.capitalize()} {', '.join(sorted(clashes))} already exist in another school")
+    
+    for kind, file_path in SCHOOL_FILES.items():
+        kept = [r for r in existing[kind] if not filters[kind](r)]
+        with open(file_path, 'w') as f:
+            json.dump(kept + list(records.get(kind, [])), f, indent=4)
+
+def delete_school(school_id):
+    """
+    Delete every record of a school
+    
+    Returns:
+        dict: The deleted records, by kind
+    """
+    filters = _school_filters(school_id)
+    deleted = {}
+    for kind, file_path in SCHOOL_FILES.items():
+        records = _load(file_path)
+        deleted[kind] = [r for r in records if filters[kind](r)]
+        if deleted[kind]:
+            with open(file_path, 'w') as f:
+                json.dump([r for r in records if not filters[kind](r)], f, indent=4)
+    return deleted
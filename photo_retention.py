@@ -0,0 +1,336 @@
+#!/usr/bin/env python3
+# Retention of classroom photos for the Attendance System
+#
+# A classroom photo moves through tiers once its attendance is final:
+#
+#   hot      the original, in the photo store
+#   cold     PREVIEW_AFTER_DAYS later: a low-resolution preview and a crop of each
+#            face are kept in the photo store; the original moves to cold storage
+#   expired  DELETE_AFTER_DAYS later: the original is deleted from cold storage
+#
+# The job runs in small, rate-limited passes outside busy hours, and the tier is
+# recorded per photo, so an interrupted pass resumes where it left off.
+import io
+import os
+import time
+import logging
+import threading
+from datetime import datetime
+from models import ClassroomPhoto
+from photo_store import PhotoNotFoundError
+
+try:
+    from PIL import Image
+except ImportError:
+    Image = None
+
+logger = logging.getLogger(__name__)
+
+COLD_DIR = os.path.join('data', 'cold_photos')
+
+# Days after attendance is final that the original is replaced by a preview and face crops
+PREVIEW_AFTER_DAYS = 30
+# Days after attendance is final that the original is deleted from cold storage
+DELETE_AFTER_DAYS = 365
+# A session that is never closed is treated as final this many days after the photo
+UNCLOSED_SESSION_DAYS = 1
+
+# Longest side of the preview, and of each face crop, in pixels
+PREVIEW_SIZE = 480
+CROP_SIZE = 160
+# Margin added around a face box before cropping, as a fraction of its size
+CROP_MARGIN = 0.25
+JPEG_QUALITY = 75
+
+# Seconds between passes, photos per pass, and bytes read or written per second
+RETENTION_INTERVAL = 300
+BATCH_SIZE = 50
+BYTES_PER_SECOND = 4 * 1024 * 1024
+# Local hours [start, end) during which no passes run, to stay out of the way of
+# morning attendance
+BUSY_HOURS = (7, 10)
+
+DAY = 24 * 3600
+
+class ColdStorage:
+    def __init__(self, root=COLD_DIR):
+        """
+        Flat key-value store for original photos no longer served
+        
+        A local directory standing in for an object storage bucket; only whole-object
+        put, get and delete are used, so it maps directly onto one.
+        """
+        self.root = root
+        os.makedirs(root, exist_ok=True)
+    
+    def put(self, key, data):
+        """Store an object; the write is atomic and durable once this returns"""
+        path = self._path(key)
+        tmp_path = f"{path}.tmp"
+        with open(tmp_path, 'wb') as f:
+            f.write(data)
+            f.flush()
+            os.fsync(f.fileno())
+        os.replace(tmp_path, path)
+    
+    def get(self, key):
+        with open(self._path(key), 'rb') as f:
+            return f.read()
+    
+    def delete(self, key):
+        """Delete an object; deleting a missing one is not an error"""
+        try:
+            os.remove(self._path(key))
+        except FileNotFoundError:
+            pass
+    
+    def _path(self, key):
+        return os.path.join(self.root, os.path.basename(key))
+
+class RateLimiter:
+    def __init__(self, rate, clock=time.monotonic, sleep=time.sleep):
+        """
+        Token bucket limiting a job to `rate` units per second, with up to one
+        second's worth of burst
+        """
+        self.rate = rate
+        self._clock = clock
+        self._sleep = sleep
+        self._tokens = rate
+        self._updated = clock()
+    
+    def acquire(self, amount):
+        """Block until `amount` units may be spent"""
+        now = self._clock()
+        self._tokens = min(self.rate, self._tokens + (now - self._updated) * self.rate)
+        self._updated = now
+        self._tokens -= amount
+        if self._tokens < 0:
+            # Spend now and sleep off the debt, so units larger than the burst
+            # still go through
+            self._sleep(-self._tokens / self.rate)
+
+class PhotoRetentionService:
+    def __init__(self, photo_store, cold_storage=None, preview_after_days=PREVIEW_AFTER_DAYS,
+                 delete_after_days=DELETE_AFTER_DAYS, bytes_per_second=BYTES_PER_SECOND, batch_size=BATCH_SIZE,
+                 busy_hours=BUSY_HOURS, interval=RETENTION_INTERVAL, clock=time.time, sleep=time.sleep):
+        """
+        Initialize the retention service
+        
+        Args:
+            photo_store: PhotoStore holding originals, previews and crops
+            cold_storage: Storage originals are moved to (default: ColdStorage())
+            preview_after_days (float): Days after attendance is final that the
+                                        original is replaced by a preview and crops
+            delete_after_days (float): Days after attendance is final that the
+                                       original is deleted
+            bytes_per_second (int): Photo bytes read and written per second
+            batch_size (int): Photos handled per pass
+            busy_hours (tuple): Local hours [start, end) with no passes, or None
+            interval (float): Seconds between passes of the background job
+            clock: Returns the current time in seconds since the epoch
+            sleep: Sleeps for a number of seconds; with clock, lets a simulated
+                   clock drive the job
+        """
+        if delete_after_days < preview_after_days:
+            raise ValueError("delete_after_days must not be less than preview_after_days")
+        
+        self.photo_store = photo_store
+        self.cold_storage = cold_storage or ColdStorage()
+        self.preview_after = preview_after_days * DAY
+        self.delete_after = delete_after_days * DAY
+        self.batch_size = batch_size
+        self.busy_hours = busy_hours
+        self.interval = interval
+        self._clock = clock
+        self._sleep = sleep
+        self._limiter = RateLimiter(bytes_per_second, clock, sleep)
+        # Serializes read-modify-write passes over the photo records
+        self._lock = threading.Lock()
+        self._worker = None
+    
+    def start(self):
+        """Start the background job"""
+        self._worker = threading.Thread(target=self._run_loop, name="photo-retention", daemon=True)
+        self._worker.start()
+    
+    def track(self, class_id, date, photo_path, recognized_students, unrecognized_faces, session_id=None):
+        """
+        Record a classroom photo and the faces found in it
+        
+        Photos of a session are final when the session closes; any other photo is
+        final as soon as its attendance is written. The record takes a reference of
+        its own to the photo, so the caller still releases the one it holds.
+        
+        Returns:
+            dict: The photo record
+        
+        Raises:
+            PhotoNotFoundError: If the photo has no references
+        """
+        faces = [{'location': s['location'], 'student_id': s['student_id']} for s in recognized_students]
+        faces += [{'location': f['location'], 'student_id': None} for f in unrecognized_faces]
+        now = self._clock()
+        self.photo_store.retain(photo_path)
+        try:
+            with self._lock:
+                return ClassroomPhoto.create(class_id, date, photo_path, faces, session_id=session_id, taken_at=now,
+                                             finalized_at=None if session_id else now)
+        except Exception:
+            self.photo_store.delete(photo_path)
+            raise
+    
+    def finalize_session(self, session_id):
+        """Start the retention clock for the photos of a closed session"""
+        with self._lock:
+            return ClassroomPhoto.finalize_session(session_id, self._clock())
+    
+    def hold_writes(self):
+        """Lock serializing writes of classroom photo records, for rewriting them elsewhere"""
+        return self._lock
+    
+    def is_busy(self):
+        """Whether the current local hour is within busy hours"""
+        if self.busy_hours is None:
+            return False
+        start, end = self.busy_hours
+        return start <= datetime.fromtimestamp(self._clock()).hour < end
+    
+    def run_once(self):
+        """
+        Run one pass: tier, then expire, up to batch_size of the oldest due photos
+        
+        Returns:
+            dict: Number of photos moved to cold storage and expired
+        """
+        now = self._clock()
+        with self._lock:
+            photos = ClassroomPhoto.get_all()
+        
+        due = []
+        for photo in photos:
+            final = self._final_time(photo)
+            if final is None:
+                continue
+            if photo['tier'] == 'hot' and now - final >= self.preview_after:
+                due.append((final, photo))
+            elif photo['tier'] == 'cold' and now - final >= self.delete_after:
+                due.append((final, photo))
+        due.sort(key=lambda item: item[0])
+        
+        counts = {'tiered': 0, 'expired': 0}
+        for _, photo in due[:self.batch_size]:
+            try:
+                if photo['tier'] == 'hot':
+                    self._tier(photo)
+                    counts['tiered'] += 1
+                else:
+                    self._expire(photo)
+                    counts['expired'] += 1
+            except Exception as e:
+                logger.error(f"Error applying retention to classroom photo {photo['id']}: {str(e)}")
+        
+        if due:
+            logger.info(f"Photo retention: {counts['tiered']} moved to cold storage, {counts['expired']} expired, "
+                        f"{max(0, len(due) - self.batch_size)} left for later passes")
+        return counts
+    
+    def _final_time(self, photo):
+        if photo['finalized_at'] is not None:
+            return photo['finalized_at']
+        if photo['session_id'] is not None and self._clock() - photo['taken_at'] >= UNCLOSED_SESSION_DAYS * DAY:
+            return photo['taken_at']
+        return None
+    
+    def _tier(self, photo):
+        """Keep a preview and face crops, and move the original to cold storage"""
+        try:
+            original = self.photo_store.read(photo['photo_path'])
+        except PhotoNotFoundError:
+            logger.warning(f"Classroom photo {photo['id']} is missing from the photo store")
+            with self._lock:
+                ClassroomPhoto.update(photo['id'], {'tier': 'expired', 'photo_path': None})
+            return
+        
+        self._limiter.acquire(len(original))
+        preview, crops = self._derivatives(photo, original)
+        preview_path = self.photo_store.put(preview) if preview is not None else None
+        crop_paths = [self.photo_store.put(crop) if crop is not None else None for crop in crops]
+        self._limiter.acquire(len(original) + (len(preview) if preview else 0) + sum(len(c) for c in crops if c))
+        
+        cold_key = os.path.basename(photo['photo_path'])
+        self.cold_storage.put(cold_key, original)
+        
+        faces = [dict(face, crop_path=crop_path) for face, crop_path in zip(photo['faces'], crop_paths)]
+        with self._lock:
+            ClassroomPhoto.update(photo['id'], {
+                'tier': 'cold',
+                'photo_path': None,
+                'cold_key': cold_key,
+                'preview_path': preview_path,
+                'faces': faces,
+                'tiered_at': self._clock()
+            })
+        # The record no longer points at the original, so drop its reference last
+        self.photo_store.delete(photo['photo_path'])
+    
+    def _expire(self, photo):
+        """Delete the original from cold storage"""
+        cold_key = photo['cold_key']
+        with self._lock:
+            ClassroomPhoto.update(photo['id'], {'tier': 'expired', 'cold_key': None, 'expired_at': self._clock()})
+            # Identical uploads share one cold object; keep it while any still needs it
+            shared = any(other['tier'] == 'cold' and other.get('cold_key') == cold_key
+                         for other in ClassroomPhoto.get_all())
+            if not shared:
+                self.cold_storage.delete(cold_key)
+    
+    def _derivatives(self, photo, original):
+        """
+        Encode a preview and a crop per face
+        
+        Returns:
+            tuple: Preview JPEG bytes and a list with each face's crop, or None where
+                   the photo could not be decoded
+        """
+        if Image is None:
+            return None, [None] * len(photo['faces'])
+        
+        try:
+            image = Image.open(io.BytesIO(original))
+            image.load()
+        except Exception as e:
+            logger.warning(f"Cannot decode classroom photo {photo['id']}, keeping no preview: {str(e)}")
+            return None, [None] * len(photo['faces'])
+        image = image.convert('RGB')
+        
+        crops = []
+        for face in photo['faces']:
+            top, right, bottom, left = face['location']
+            margin_x = int((right - left) * CROP_MARGIN)
+            margin_y = int((bottom - top) * CROP_MARGIN)
+            box = (max(0, left - margin_x), max(0, top - margin_y),
+                   min(image.width, right + margin_x), min(image.height, bottom + margin_y))
+            if box[2] <= box[0] or box[3] <= box[1]:
+                crops.append(None)
+                continue
+            crops.append(_jpeg(image.crop(box), CROP_SIZE))
+        
+        return _jpeg(image, PREVIEW_SIZE), crops
+    
+    def _run_loop(self):
+        while True:
+            self._sleep(self.interval)
+            if self.is_busy():
+                continue
+            try:
+                self.run_once()
+            except Exception as e:
+                logger.error(f"Error running photo retention: {str(e)}")
+
+def _jpeg(image, max_size):
+    image = image.copy()
+    image.thumbnail((max_size, max_size))
+    output = io.BytesIO()
+    image.save(output, format='JPEG', quality=JPEG_QUALITY)
+    return output.getvalue()
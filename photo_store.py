@@ -0,0 +1,420 @@
+#!/usr/bin/env python3
+# Content-addressed photo store for the Attendance System
+#
+# Photos are kept as blobs named by the SHA-256 of their bytes, appended to large
+# segment files instead of one file each. An append-only index log records where
+# each blob lives and how many records reference it:
+#
+#   segments/segment-NNNNNN.dat   blobs, each preceded by a BLOB_HEADER_FORMAT header
+#   index.log                     INDEX_RECORD_FORMAT records; the last one per digest wins
+#
+# Uploading the same bytes twice stores them once. A blob whose references drop to
+# zero stays in its segment until compaction copies the live blobs of a mostly-dead
+# segment forward and deletes it.
+import os
+import io
+import zlib
+import time
+import struct
+import hashlib
+import logging
+import threading
+
+logger = logging.getLogger(__name__)
+
+STORE_DIR = os.path.join('data', 'photo_store')
+# Photo paths handed out by the store, e.g. photos/<sha256>.jpg; also the URL they are served at
+PHOTO_PREFIX = 'photos/'
+PHOTO_SUFFIX = '.jpg'
+
+BLOB_MAGIC = b'APHB'
+BLOB_HEADER_FORMAT = '<4s32sI'
+BLOB_HEADER_SIZE = struct.calcsize(BLOB_HEADER_FORMAT)
+# digest, segment, offset, length, refs, CRC32 of the preceding fields
+INDEX_RECORD_FORMAT = '<32sIQII'
+INDEX_RECORD_SIZE = struct.calcsize(INDEX_RECORD_FORMAT) + 4
+
+# A segment is sealed and a new one started once it reaches this size
+SEGMENT_SIZE = 256 * 1024 * 1024
+# Sealed segments with at least this fraction of dead bytes are compacted
+COMPACT_THRESHOLD = 0.5
+# Seconds between compaction passes
+COMPACT_INTERVAL = 60
+
+class PhotoNotFoundError(KeyError):
+    """Raised when a photo path does not name a stored photo"""
+    pass
+
+class _Entry:
+    __slots__ = ('segment', 'offset', 'length', 'refs')
+    
+    def __init__(self, segment, offset, length, refs):
+        self.segment = segment
+        self.offset = offset
+        self.length = length
+        self.refs = refs
+
+class BlobReader(io.RawIOBase):
+    def __init__(self, path, offset, length):
+        """
+        File-like view of one blob in a segment
+        
+        Exposes the segment's file descriptor positioned at the blob, so a WSGI server
+        with sendfile support (e.g. gunicorn) sends it straight from the page cache;
+        reads never go past the end of the blob.
+        """
+        self._file = open(path, 'rb', buffering=0)
+        self._file.seek(offset)
+        self.length = length
+        self._remaining = length
+    
+    def readable(self):
+        return True
+    
+    def readinto(self, buffer):
+        if self._remaining <= 0:
+            return 0
+        view = memoryview(buffer)[:self._remaining]
+        count = self._file.readinto(view)
+        self._remaining -= count
+        return count
+    
+    def fileno(self):
+        return self._file.fileno()
+    
+    def tell(self):
+        return self._file.tell()
+    
+    def close(self):
+        self._file.close()
+        super().close()
+
+class PhotoStore:
+    def __init__(self, root=STORE_DIR, segment_size=SEGMENT_SIZE, compact_interval=COMPACT_INTERVAL):
+        """
+        Open the store, replaying its index, and start background compaction
+        
+        Args:
+            root (str): Directory holding the segments and the index log
+            segment_size (int): Size at which the active segment is sealed
+            compact_interval (float): Seconds between compaction passes, or None to
+                                      only compact when compact() is called
+        """
+        self.root = root
+        self.segment_size = segment_size
+        self._segments_dir = os.path.join(root, 'segments')
+        self._index_path = os.path.join(root, 'index.log')
+        os.makedirs(self._segments_dir, exist_ok=True)
+        
+        self._lock = threading.Lock()
+        self._index = {}
+        # Open read handles per segment; writes go through self._active_file
+        self._files = {}
+        self._live_bytes = {}
+        self._index_records = 0
+        
+        self._load()
+        
+        self._index_file = open(self._index_path, 'ab', buffering=0)
+        self._open_active(max(self._segment_numbers(), default=1))
+        
+        if compact_interval is not None:
+            self._compact_interval = compact_interval
+            self._compactor = threading.Thread(target=self._compactor_loop, name="photo-store-compactor", daemon=True)
+            self._compactor.start()
+    
+    @staticmethod
+    def owns(photo_path):
+        """Whether a photo path names a blob in a photo store rather than a loose file"""
+        return isinstance(photo_path, str) and photo_path.startswith(PHOTO_PREFIX) and photo_path.endswith(PHOTO_SUFFIX)
+    
+    def put(self, data):
+        """
+        Store a photo, or add a reference to an identical one already stored
+        
+        Returns:
+            str: Photo path, photos/<sha256>.jpg
+        """
+        digest = hashlib.sha256(data).digest()
+        
+        with self._lock:
+            entry = self._index.get(digest)
+            if entry is not None:
+                if entry.refs == 0:
+                    self._live_bytes[entry.segment] += BLOB_HEADER_SIZE + entry.length
+                entry.refs += 1
+                self._log(digest, entry)
+                return _photo_path(digest)
+            
+            entry = self._append(digest, data)
+            self._index[digest] = entry
+            self._log(digest, entry)
+        
+        return _photo_path(digest)
+    
+    def retain(self, photo_path):
+        """
+        Add a reference to a stored photo, as storing it again would
+        
+        Raises:
+            PhotoNotFoundError: If the photo has no references
+        """
+        with self._lock:
+            entry = self._lookup(photo_path)
+            entry.refs += 1
+            self._log(_digest(photo_path), entry)
+    
+    def read(self, photo_path):
+        """
+        Read a stored photo
+        
+        Returns:
+            bytes: The photo
+        """
+        with self._lock:
+            entry = self._lookup(photo_path)
+            segment_file = self._files[entry.segment]
+            offset, length = entry.offset, entry.length
+        # The handle stays valid even if compaction deletes the segment meanwhile
+        return os.pread(segment_file.fileno(), length, offset)
+    
+    def open(self, photo_path):
+        """
+        Open a stored photo for streaming
+        
+        Returns:
+            BlobReader: File-like object positioned at the photo; close it when done
+        """
+        with self._lock:
+            entry = self._lookup(photo_path)
+            return BlobReader(self._segment_path(entry.segment), entry.offset, entry.length)
+    
+    def contains(self, photo_path):
+        """Whether a photo path names a photo with at least one reference"""
+        with self._lock:
+            try:
+                return self._lookup(photo_path) is not None
+            except PhotoNotFoundError:
+                return False
+    
+    def delete(self, photo_path):
+        """
+        Drop one reference to a photo; its space is reclaimed by compaction once no
+        references remain
+        
+        Returns:
+            bool: True if the photo was stored
+        """
+        with self._lock:
+            try:
+                entry = self._lookup(photo_path)
+            except PhotoNotFoundError:
+                return False
+            entry.refs -= 1
+            if entry.refs == 0:
+                self._live_bytes[entry.segment] -= BLOB_HEADER_SIZE + entry.length
+            self._log(_digest(photo_path), entry)
+            return True
+    
+    def stats(self):
+        """
+        Get storage statistics
+        
+        Returns:
+            dict: Photo, segment and byte counts
+        """
+        with self._lock:
+            live = [entry for entry in self._index.values() if entry.refs > 0]
+            return {
+                "photos": len(live),
+                "references": sum(entry.refs for entry in live),
+                "segments": len(self._files),
+                "live_bytes": sum(self._live_bytes.values()),
+                "segment_bytes": sum(self._segment_size(segment) for segment in self._files)
+            }
+    
+    def compact(self, threshold=COMPACT_THRESHOLD):
+        """
+        Rewrite sealed segments whose dead bytes reach the threshold
+        
+        Live blobs are copied to the active segment one at a time, holding the lock
+        only for each copy, so uploads and reads carry on during compaction.
+        
+        Returns:
+            int: Bytes reclaimed
+        """
+        with self._lock:
+            candidates = [segment for segment in self._files
+                          if segment != self._active and self._dead_fraction(segment) >= threshold]
+        
+        reclaimed = 0
+        for segment in candidates:
+            reclaimed += self._compact_segment(segment)
+        
+        with self._lock:
+            # Rewrite the index once superseded records outnumber the entries
+            if self._index_records > 2 * len(self._index) + 1024:
+                self._rewrite_index()
+        
+        if candidates:
+            logger.info(f"Compacted {len(candidates)} photo segments, reclaimed {reclaimed} bytes")
+        return reclaimed
+    
+    def close(self):
+        """Close the store's files"""
+        with self._lock:
+            self._index_file.close()
+            self._active_file.close()
+            for segment_file in self._files.values():
+                segment_file.close()
+    
+    def _compact_segment(self, segment):
+        with self._lock:
+            digests = [digest for digest, entry in self._index.items() if entry.segment == segment]
+            reclaimed = self._segment_size(segment)
+        
+        for digest in digests:
+            with self._lock:
+                entry = self._index.get(digest)
+                if entry is None or entry.segment != segment:
+                    continue
+                if entry.refs == 0:
+                    del self._index[digest]
+                    continue
+                data = os.pread(self._files[segment].fileno(), entry.length, entry.offset)
+                self._live_bytes[segment] -= BLOB_HEADER_SIZE + entry.length
+                reclaimed -= BLOB_HEADER_SIZE + entry.length
+                moved = self._append(digest, data)
+                moved.refs = entry.refs
+                self._index[digest] = moved
+                self._log(digest, moved)
+        
+        with self._lock:
+            # Every blob has been moved, and new uploads go to the active segment. The
+            # handle is not closed here: a read() that looked up the old location may
+            # still be using it, and it closes once the last reference is dropped
+            self._files.pop(segment)
+            del self._live_bytes[segment]
+            os.remove(self._segment_path(segment))
+        return reclaimed
+    
+    def _compactor_loop(self):
+        while True:
+            time.sleep(self._compact_interval)
+            try:
+                self.compact()
+            except Exception as e:
+                logger.error(f"Error compacting photo store: {str(e)}")
+    
+    def _lookup(self, photo_path):
+        """Find a referenced entry. Caller holds the lock."""
+        if not self.owns(photo_path):
+            raise PhotoNotFoundError(photo_path)
+        try:
+            entry = self._index.get(_digest(photo_path))
+        except ValueError:
+            raise PhotoNotFoundError(photo_path)
+        if entry is None or entry.refs == 0:
+            raise PhotoNotFoundError(photo_path)
+        return entry
+    
+    def _append(self, digest, data):
+        """Append a blob to the active segment. Caller holds the lock."""
+        if self._active_size > 0 and self._active_size + BLOB_HEADER_SIZE + len(data) > self.segment_size:
+            self._open_active(self._active + 1)
+        
+        offset = self._active_size + BLOB_HEADER_SIZE
+        self._active_file.write(struct.pack(BLOB_HEADER_FORMAT, BLOB_MAGIC, digest, len(data)) + data)
+        self._active_size = offset + len(data)
+        self._live_bytes[self._active] += BLOB_HEADER_SIZE + len(data)
+        return _Entry(self._active, offset, len(data), 1)
+    
+    def _open_active(self, segment):
+        """Start appending to a segment. Caller holds the lock, or is the constructor."""
+        if getattr(self, '_active_file', None) is not None:
+            self._active_file.close()
+        path = self._segment_path(segment)
+        self._active_file = open(path, 'ab', buffering=0)
+        self._active = segment
+        self._active_size = os.path.getsize(path)
+        if segment not in self._files:
+            self._files[segment] = open(path, 'rb', buffering=0)
+            self._live_bytes[segment] = 0
+    
+    def _log(self, digest, entry):
+        """Append an index record. Caller holds the lock."""
+        self._index_file.write(_index_record(digest, entry))
+        self._index_records += 1
+    
+    def _rewrite_index(self):
+        """Replace the index log with one record per entry. Caller holds the lock."""
+        tmp_path = f"{self._index_path}.tmp"
+        with open(tmp_path, 'wb') as f:
+            f.write(b''.join(_index_record(digest, entry) for digest, entry in self._index.items()))
+            f.flush()
+            os.fsync(f.fileno())
+        os.replace(tmp_path, self._index_path)
+        self._index_file.close()
+        self._index_file = open(self._index_path, 'ab', buffering=0)
+        self._index_records = len(self._index)
+    
+    def _load(self):
+        """Replay the index log, dropping records that point past the end of a segment"""
+        for segment in self._segment_numbers():
+            self._files[segment] = open(self._segment_path(segment), 'rb', buffering=0)
+            self._live_bytes[segment] = 0
+        
+        if not os.path.exists(self._index_path):
+            return
+        
+        with open(self._index_path, 'rb') as f:
+            log = f.read()
+        
+        valid = 0
+        for start in range(0, len(log) - INDEX_RECORD_SIZE + 1, INDEX_RECORD_SIZE):
+            body = log[start:start + INDEX_RECORD_SIZE - 4]
+            checksum, = struct.unpack_from('<I', log, start + INDEX_RECORD_SIZE - 4)
+            if zlib.crc32(body) != checksum:
+                break
+            digest, segment, offset, length, refs = struct.unpack(INDEX_RECORD_FORMAT, body)
+            self._index[digest] = _Entry(segment, offset, length, refs)
+            valid = start + INDEX_RECORD_SIZE
+            self._index_records += 1
+        
+        if valid < len(log):
+            # A torn write from a crash; the records after it never completed
+            logger.warning(f"Truncating photo index {self._index_path} at byte {valid} of {len(log)}")
+            with open(self._index_path, 'r+b') as f:
+                f.truncate(valid)
+        
+        for digest, entry in list(self._index.items()):
+            if entry.segment not in self._files or entry.offset + entry.length > self._segment_size(entry.segment):
+                del self._index[digest]
+            elif entry.refs > 0:
+                self._live_bytes[entry.segment] += BLOB_HEADER_SIZE + entry.length
+        
+        logger.info(f"Loaded photo store {self.root}: {len(self._index)} photos in {len(self._files)} segments")
+    
+    def _dead_fraction(self, segment):
+        size = self._segment_size(segment)
+        return (size - self._live_bytes[segment]) / size if size else 0
+    
+    def _segment_size(self, segment):
+        return os.fstat(self._files[segment].fileno()).st_size
+    
+    def _segment_path(self, segment):
+        return os.path.join(self._segments_dir, f"segment-{segment:06d}.dat")
+    
+    def _segment_numbers(self):
+        return sorted(int(name[8:14]) for name in os.listdir(self._segments_dir)
+                      if name.startswith('segment-') and name.endswith('.dat'))
+
+def _photo_path(digest):
+    return f"{PHOTO_PREFIX}{digest.hex()}{PHOTO_SUFFIX}"
+
+def _digest(photo_path):
+    return bytes.fromhex(photo_path[len(PHOTO_PREFIX):-len(PHOTO_SUFFIX)])
+
+def _index_record(digest, entry):
+    body = struct.pack(INDEX_RECORD_FORMAT, digest, entry.segment, entry.offset, entry.length, entry.refs)
+    return body + struct.pack('<I', zlib.crc32(body))
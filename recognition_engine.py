@@ -0,0 +1,211 @@
+#!/usr/bin/env python3
+# Face recognition engines for the Attendance System
+#
+# Recognition is pluggable: an engine detects the faces of a photo, embeds each face
+# as a vector and matches the embeddings against the students' encodings. The service
+# (face_recognition_service.py) runs detection and embedding through micro-batchers
+# (micro_batcher.py), so engines take whole batches, the photos or faces of several
+# concurrent requests at once. Without an engine the service is the mock.
+#
+# OnnxEngine runs two ONNX models on the CPU with ONNX Runtime: an UltraFace detector
+# (version-RFB-320 of the ONNX model zoo: a 320x240 image in, 'scores' and 'boxes'
+# out) and an ArcFace-style embedder (a 112x112 face in, its embedding out, such as
+# MobileFaceNet). A batch is one inference when a model's batch dimension is dynamic,
+# and runs a photo or face at a time when it is fixed at 1. It needs onnxruntime,
+# numpy and Pillow. It is experimental: it has not yet been run against real models,
+# so the server does not use it; the recognition batching benchmark can run it.
+import io
+import logging
+
+logger = logging.getLogger(__name__)
+
+# Score at which an UltraFace box is a face, and overlap at which two boxes are one face
+DETECTION_THRESHOLD = 0.7
+NMS_OVERLAP = 0.3
+
+# Share of a face box added on each side of its crop, for the forehead and chin the
+# embedder was trained on
+CROP_MARGIN = 0.1
+
+class RecognitionEngine:
+    """
+    Interface of a face recognition engine. Embeddings are unit length, so the score
+    of a match is the cosine similarity of the face and the student's encoding.
+    """
+    # Short name of the engine; the gallery of its encodings is kept apart
+    name = None
+    
+    def decode(self, data):
+        """Decode a photo's bytes into the image detect() and embed() take"""
+        raise NotImplementedError
+    
+    def size(self, image):
+        """
+        Returns:
+            tuple: Width and height of a decoded image, in pixels
+        """
+        raise NotImplementedError
+    
+    def detect(self, images):
+        """
+        Find the faces in images
+        
+        Args:
+            images (list): Decoded images
+        
+        Returns:
+            list: Per image, its face boxes as [top, right, bottom, left]
+        """
+        raise NotImplementedError
+    
+    def embed(self, faces):
+        """
+        Embed faces
+        
+        Args:
+            faces (list): (image, box) pairs, the box as [top, right, bottom, left]
+        
+        Returns:
+            list: Per face, its embedding as a unit-length list of floats
+        """
+        raise NotImplementedError
+    
+    def match(self, embeddings, encodings):
+        """
+        Find the encoding most like each embedding
+        
+        Args:
+            embeddings (list): Embeddings of faces
+            encodings (list): Encodings of the candidates, made by embed()
+        
+        Returns:
+            list: Per embedding, (index of the best encoding, its similarity clipped
+                  to [0, 1]), or None when there are no encodings
+        """
+        matches = []
+        for embedding in embeddings:
+            best = None
+            for index, encoding in enumerate(encodings):
+                score = sum(a * b for a, b in zip(embedding, encoding))
+                if best is None or score > best[1]:
+                    best = (index, score)
+            matches.append(None if best is None else (best[0], min(max(best[1], 0.0), 1.0)))
+        return matches
+
+class OnnxEngine(RecognitionEngine):
+    name = 'onnx'
+    
+    def __init__(self, detector_path, embedder_path, threads=None):
+        """
+        Load the models into ONNX Runtime sessions on the CPU
+        
+        Args:
+            detector_path (str): UltraFace detector model
+            embedder_path (str): ArcFace-style embedding model
+            threads (int): Threads one inference may use (default: one per core)
+        """
+        import numpy
+        import onnxruntime
+        from PIL import Image, ImageOps
+        self._np = numpy
+        self._image = Image
+        self._image_ops = ImageOps
+        
+        options = onnxruntime.SessionOptions()
+        if threads:
+            options.intra_op_num_threads = threads
+        self._detector = onnxruntime.InferenceSession(detector_path, options, providers=['CPUExecutionProvider'])
+        self._embedder = onnxruntime.InferenceSession(embedder_path, options, providers=['CPUExecutionProvider'])
+        
+        # Inputs are NCHW; a dimension given by name (or not at all) is dynamic
+        detector_input = self._detector.get_inputs()[0]
+        self._detector_input = detector_input.name
+        self._detector_size = (detector_input.shape[3], detector_input.shape[2])
+        self._detector_batches = not isinstance(detector_input.shape[0], int)
+        embedder_input = self._embedder.get_inputs()[0]
+        self._embedder_input = embedder_input.name
+        self._embedder_size = (embedder_input.shape[3], embedder_input.shape[2])
+        self._embedder_batches = not isinstance(embedder_input.shape[0], int)
+        
+        logger.info(f"Loaded ONNX detector {detector_path} ({'batched' if self._detector_batches else 'batch of 1'}) "
+                    f"and embedder {embedder_path} ({'batched' if self._embedder_batches else 'batch of 1'})")
+    
+    def decode(self, data):
+        # Phones store photos sideways with an orientation tag
+        return self._image_ops.exif_transpose(self._image.open(io.BytesIO(data))).convert('RGB')
+    
+    def size(self, image):
+        return image.size
+    
+    def detect(self, images):
+        width, height = self._detector_size
+        batch = self._np.stack([self._tensor(image.resize((width, height)), 127.0, 128.0) for image in images])
+        scores, boxes = self._run(self._detector, self._detector_input, batch, self._detector_batches,
+                                  ['scores', 'boxes'])
+        
+        results = []
+        for image, image_scores, image_boxes in zip(images, scores, boxes):
+            faces = image_scores[:, 1] > DETECTION_THRESHOLD
+            # Boxes are corners relative to the image: left, top, right, bottom
+            kept = self._suppress(self._np.clip(image_boxes[faces], 0, 1), image_scores[faces, 1])
+            results.append([[int(top * image.height), int(right * image.width), int(bottom * image.height),
+                             int(left * image.width)] for left, top, right, bottom in kept])
+        return results
+    
+    def embed(self, faces):
+        width, height = self._embedder_size
+        crops = []
+        for image, (top, right, bottom, left) in faces:
+            side = max(right - left, bottom - top) * (1 + 2 * CROP_MARGIN)
+            centre_x = (left + right) / 2
+            centre_y = (top + bottom) / 2
+            crop = image.crop((int(centre_x - side / 2), int(centre_y - side / 2),
+                               int(centre_x + side / 2), int(centre_y + side / 2)))
+            crops.append(self._tensor(crop.resize((width, height)), 127.5, 127.5))
+        
+        (embeddings,) = self._run(self._embedder, self._embedder_input, self._np.stack(crops),
+                                  self._embedder_batches, [self._embedder.get_outputs()[0].name])
+        embeddings = embeddings.reshape(len(faces), -1)
+        norms = self._np.linalg.norm(embeddings, axis=1, keepdims=True)
+        return (embeddings / self._np.maximum(norms, 1e-12)).tolist()
+    
+    def match(self, embeddings, encodings):
+        if not embeddings:
+            return []
+        if not encodings:
+            return [None] * len(embeddings)
+        scores = self._np.asarray(embeddings, dtype=self._np.float32) @ \
+            self._np.asarray(encodings, dtype=self._np.float32).T
+        best = scores.argmax(axis=1)
+        return [(int(index), min(max(float(scores[row, index]), 0.0), 1.0)) for row, index in enumerate(best)]
+    
+    def _tensor(self, image, mean, scale):
+        """An RGB image as a normalized CHW float tensor"""
+        pixels = (self._np.asarray(image, dtype=self._np.float32) - mean) / scale
+        return pixels.transpose(2, 0, 1)
+    
+    def _run(self, session, input_name, batch, batches, outputs):
+        """Run a batch as one inference, or an item at a time if the model takes one"""
+        if batches:
+            return session.run(outputs, {input_name: batch})
+        runs = [session.run(outputs, {input_name: batch[i:i + 1]}) for i in range(len(batch))]
+        return [self._np.concatenate([run[output] for run in runs]) for output in range(len(outputs))]
+    
+    def _suppress(self, boxes, scores):
+        """Non-maximum suppression: the best box of each group overlapping by NMS_OVERLAP"""
+        np = self._np
+        areas = (boxes[:, 2] - boxes[:, 0]) * (boxes[:, 3] - boxes[:, 1])
+        order = np.argsort(-scores)
+        kept = []
+        while order.size:
+            best = order[0]
+            kept.append(boxes[best])
+            rest = order[1:]
+            left = np.maximum(boxes[best, 0], boxes[rest, 0])
+            top = np.maximum(boxes[best, 1], boxes[rest, 1])
+            right = np.minimum(boxes[best, 2], boxes[rest, 2])
+            bottom = np.minimum(boxes[best, 3], boxes[rest, 3])
+            intersection = np.clip(right - left, 0, None) * np.clip(bottom - top, 0, None)
+            overlap = intersection / np.maximum(areas[best] + areas[rest] - intersection, 1e-12)
+            order = rest[overlap <= NMS_OVERLAP]
+        return kept
@@ -0,0 +1,309 @@
+#!/usr/bin/env python3
+# Asynchronous recognition job queue for the Attendance System
+import os
+import math
+import uuid
+import time
+import logging
+import threading
+import contextlib
+from collections import deque
+from datetime import datetime
+
+logger = logging.getLogger(__name__)
+
+# Job states
+PENDING = 'pending'
+RUNNING = 'running'
+COMPLETED = 'completed'
+FAILED = 'failed'
+
+# Weight of the latest job in the running average of processing time
+PROCESSING_TIME_SMOOTHING = 0.2
+
+class QueueFullError(Exception):
+    """Raised when the job queue has no room for another submission"""
+    def __init__(self, message, retry_after=5):
+        super().__init__(message)
+        self.retry_after = retry_after
+
+class RecognitionJobService:
+    def __init__(self, attendance_service, num_workers=None, max_pending=500, max_wait=None, result_ttl=600,
+                 event_bus=None, session_service=None, admission=None, photo_store=None):
+        """
+        Initialize the job service and start its worker pool
+        
+        Args:
+            attendance_service: Service used to process each job
+            num_workers (int): Worker threads (default: number of CPU cores)
+            max_pending (int): Maximum queued jobs before submissions are rejected
+            max_wait (float): Longest expected queue wait, in seconds, before submissions
+                              are rejected (default: no limit), so an accepted photo is
+                              recognized in bounded time and the rest retry later
+            result_ttl (int): Seconds a finished job is kept for polling
+            event_bus (EventBus): Optional bus that receives job status changes
+            session_service (AttendanceSessionService): Service that merges photos
+                                                        submitted as part of a session
+            admission (AdmissionController): Controller that counts running jobs as
+                                             attendance takes, so report pulls and
+                                             enrollments give way to recognition
+            photo_store (PhotoStore): Store holding the submitted photos, whose
+                                      references the jobs release once done
+        """
+        self.attendance_service = attendance_service
+        self.event_bus = event_bus
+        self.session_service = session_service
+        self.admission = admission
+        self.photo_store = photo_store
+        self.num_workers = num_workers or os.cpu_count() or 2
+        self.max_pending = max_pending
+        self.max_wait = max_wait
+        self.result_ttl = result_ttl
+        
+        self._jobs = {}
+        # One FIFO per school, served round-robin so a school submitting many
+        # classes at once cannot starve the others
+        self._queues = {}
+        self._ready_schools = deque()
+        self._pending_count = 0
+        # Running average of seconds per job, for the queue wait estimate
+        self._processing_seconds = None
+        self._condition = threading.Condition()
+        
+        self._workers = []
+        for i in range(self.num_workers):
+            worker = threading.Thread(target=self._worker_loop, name=f"recognition-worker-{i}", daemon=True)
+            worker.start()
+            self._workers.append(worker)
+        
+        logger.info(f"Started recognition job service with {self.num_workers} workers")
+    
+    def submit(self, class_id, photo_path, date, school_id=None, session_id=None, face_locations=None, camera_id=None,
+               clip=False):
+        """
+        Queue a recognition job
+        
+        A job with a session_id only marks students present; absences are written
+        when the session closes. With clip set, photo_path is a short video clip,
+        which is sampled frame by frame and deleted once recognized.
+        
+        The job takes over the caller's reference to the photo, or the clip file,
+        and releases it when it finishes or is turned away.
+        
+        Returns:
+            dict: The public view of the new job
+        
+        Raises:
+            QueueFullError: If the queue has no room for the job
+        """
+        school_id = school_id or 'default'
+        
+        job = {
+            'job_id': uuid.uuid4().hex,
+            'class_id': class_id,
+            'date': date,
+            'school_id': school_id,
+            'session_id': session_id,
+            'photo_path': photo_path,
+            'face_locations': face_locations,
+            'camera_id': camera_id,
+            'clip': clip,
+            'status': PENDING,
+            'result': None,
+            'error': None,
+            'created_at': datetime.now().isoformat(),
+            'finished_at': None,
+            'processing_ms': None,
+            'done': threading.Event(),
+            'expires': None
+        }
+        
+        try:
+            with self._condition:
+                self._expire_finished()
+                
+                if self._pending_count >= self.max_pending:
+                    raise QueueFullError("Recognition queue is full")
+                
+                expected_wait = self._expected_wait()
+                if self.max_wait is not None and expected_wait > self.max_wait:
+                    raise QueueFullError(f"Recognition queue is {expected_wait:.0f}s long",
+                                         retry_after=max(1, math.ceil(expected_wait - self.max_wait)))
+                
+                queue = self._queues.get(school_id)
+                if queue is None:
+                    queue = deque()
+                    self._queues[school_id] = queue
+                if not queue:
+                    self._ready_schools.append(school_id)
+                queue.append(job)
+                
+                self._jobs[job['job_id']] = job
+                self._pending_count += 1
+                self._condition.notify()
+        except QueueFullError:
+            self._release(job)
+            raise
+        
+        logger.info(f"Queued recognition job {job['job_id']} for class {class_id} on {date}")
+        self._publish(job)
+        
+        return self._public_view(job)
+    
+    def get(self, job_id, wait=0):
+        """
+        Get a job, optionally waiting up to `wait` seconds for it to finish
+        
+        Returns:
+            dict: The public view of the job, or None if unknown or expired
+        """
+        with self._condition:
+            job = self._jobs.get(job_id)
+        
+        if job is None:
+            return None
+        
+        if wait > 0:
+            job['done'].wait(wait)
+        
+        return self._public_view(job)
+    
+    def active_count(self, school_id):
+        """Number of a school's jobs queued or running"""
+        with self._condition:
+            return sum(1 for job in self._jobs.values()
+                       if job['school_id'] == school_id and job['status'] in (PENDING, RUNNING))
+    
+    def has_active(self, class_id, date):
+        """Whether a class has jobs queued or running for a date"""
+        with self._condition:
+            return any(job['class_id'] == class_id and job['date'] == date and job['status'] in (PENDING, RUNNING)
+                       for job in self._jobs.values())
+    
+    def _expected_wait(self):
+        """Seconds a job submitted now would wait to start. Caller holds the condition."""
+        if self._processing_seconds is None:
+            return 0
+        return self._pending_count * self._processing_seconds / self.num_workers
+    
+    def _next_job(self):
+        """Pop the next job, rotating across schools. Caller holds the condition."""
+        while not self._ready_schools:
+            self._condition.wait()
+        
+        school_id = self._ready_schools.popleft()
+        queue = self._queues[school_id]
+        job = queue.popleft()
+        
+        if queue:
+            self._ready_schools.append(school_id)
+        else:
+            del self._queues[school_id]
+        
+        self._pending_count -= 1
+        job['status'] = RUNNING
+        return job
+    
+    def _worker_loop(self):
+        while True:
+            with self._condition:
+                job = self._next_job()
+            self._publish(job)
+            
+            started = time.monotonic()
+            occupancy = self.admission.occupy('recognition') if self.admission is not None else contextlib.nullcontext()
+            try:
+                with occupancy:
+                    if job['session_id']:
+                        results = self.session_service.add_photo(job['session_id'], job['photo_path'],
+                                                                 job['face_locations'], job['camera_id'],
+                                                                 clip=job['clip'])
+                    else:
+                        results = self.attendance_service.process_attendance(job['class_id'], job['photo_path'],
+                                                                             job['date'], job['face_locations'],
+                                                                             job['camera_id'], clip=job['clip'])
+                job['result'] = {
+                    "attendance": results['attendance'],
+                    "recognized_students": results['recognized_students'],
+                    "unrecognized_faces": results['unrecognized_faces'],
+                    "expected_missed": results['expected_missed'],
+                    "recapture_suggested": results['recapture_suggested']
+                }
+                if job['session_id']:
+                    job['result']['session'] = results['session']
+                if job['clip']:
+                    job['result']['clip'] = results['clip']
+                status = COMPLETED
+            except Exception as e:
+                logger.error(f"Error processing recognition job {job['job_id']}: {str(e)}")
+                job['error'] = str(e)
+                status = FAILED
+            
+            # A photo that can't be released is left for the store to reclaim; the worker
+            # must live on and the job still finish
+            try:
+                self._release(job)
+            except Exception as e:
+                logger.error(f"Error releasing the photo of recognition job {job['job_id']}: {str(e)}")
+            
+            elapsed = time.monotonic() - started
+            with self._condition:
+                if self._processing_seconds is None:
+                    self._processing_seconds = elapsed
+                else:
+                    self._processing_seconds += PROCESSING_TIME_SMOOTHING * (elapsed - self._processing_seconds)
+            
+            # Finished only once its timing is written and its photo released
+            job['processing_ms'] = round(elapsed * 1000, 1)
+            job['finished_at'] = datetime.now().isoformat()
+            job['expires'] = time.monotonic() + self.result_ttl
+            job['status'] = status
+            job['done'].set()
+            self._publish(job)
+    
+    def _release(self, job):
+        """Drop the job's reference to its photo, or delete its clip if recognition left it"""
+        if job['clip']:
+            if os.path.exists(job['photo_path']):
+                os.remove(job['photo_path'])
+        elif self.photo_store is not None:
+            self.photo_store.delete(job['photo_path'])
+    
+    def _expire_finished(self):
+        """Drop finished jobs past their TTL. Caller holds the condition."""
+        now = time.monotonic()
+        expired = [job_id for job_id, job in self._jobs.items()
+                   if job['expires'] is not None and job['expires'] < now]
+        for job_id in expired:
+            del self._jobs[job_id]
+    
+    def _publish(self, job):
+        """Push a job status change to event stream subscribers"""
+        if self.event_bus is None:
+            return
+        self.event_bus.publish('job', {
+            # Subscribers only see their own school's jobs
+            'school_id': job['school_id'],
+            'job_id': job['job_id'],
+            'class_id': job['class_id'],
+            'date': job['date'],
+            'status': job['status']
+        })
+    
+    @staticmethod
+    def _public_view(job):
+        view = {
+            'job_id': job['job_id'],
+            'class_id': job['class_id'],
+            'date': job['date'],
+            'session_id': job['session_id'],
+            'status': job['status'],
+            'created_at': job['created_at'],
+            'finished_at': job['finished_at'],
+            'processing_ms': job['processing_ms']
+        }
+        if job['status'] == COMPLETED:
+            view.update(job['result'])
+        elif job['status'] == FAILED:
+            view['error'] = job['error']
+        return view
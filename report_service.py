@@ -0,0 +1,132 @@
+#!/usr/bin/env python3
+# Attendance reports for the Attendance System
+#
+# Building a report reads every attendance record and the roster, yet a class's past
+# days almost never change. Built reports are kept per class and date (and per
+# student) along with the version of the records they were built from; every write
+# of a class's attendance for a date bumps its version, so a report is rebuilt only
+# after its records changed.
+import json
+import hashlib
+import logging
+import threading
+from collections import OrderedDict
+from models import Student, Attendance
+
+logger = logging.getLogger(__name__)
+
+def digest(value):
+    """Digest of a JSON-serializable value, the same for equal values"""
+    return hashlib.sha256(json.dumps(value, sort_keys=True).encode('utf-8')).hexdigest()[:32]
+
+class AttendanceReportService:
+    def __init__(self, max_entries=5000):
+        """
+        Initialize the report service
+        
+        Versions live in memory only. That is enough for the server's own cache,
+        which starts empty too; clients validate against a digest of the report
+        itself, which stays the same across restarts and nodes.
+        
+        Args:
+            max_entries (int): Reports kept before the least recently used are dropped
+        """
+        self.max_entries = max_entries
+        
+        # (class_id, date) -> writes of its records
+        self._versions = {}
+        # Writes of any record, which student reports are versioned by
+        self._writes = 0
+        # Bumped when records are rewritten wholesale or students change, which
+        # invalidates every report
+        self._generation = 0
+        # key -> (version, report, digest), least recently used first
+        self._entries = OrderedDict()
+        self._hits = 0
+        self._misses = 0
+        self._lock = threading.Lock()
+    
+    def class_report(self, class_id, date):
+        """
+        Get a class's attendance records on a date, with student names
+        
+        Returns:
+            tuple: The report, and a digest of it to validate cached copies against
+        """
+        return self._cached(('class', class_id, date),
+                            lambda: (self._generation, self._versions.get((class_id, date), 0)),
+                            lambda: self._build_class_report(class_id, date))
+    
+    def student_report(self, student_id):
+        """
+        Get every attendance record of a student
+        
+        Returns:
+            tuple: The report, and a digest of it to validate cached copies against
+        """
+        return self._cached(('student', student_id), lambda: (self._generation, self._writes),
+                            lambda: self._build_student_report(student_id))
+    
+    def changed(self, class_id, date):
+        """
+        Invalidate the reports covering a class's attendance on a date
+        
+        Call it after the records are written, not before, so a report built
+        concurrently from the old records is never stored under the new version.
+        """
+        with self._lock:
+            self._versions[(class_id, date)] = self._versions.get((class_id, date), 0) + 1
+            self._writes += 1
+    
+    def changed_all(self):
+        """Invalidate every report, e.g. after a school's records are replaced or a student is renamed"""
+        with self._lock:
+            self._generation += 1
+            self._entries.clear()
+    
+    def stats(self):
+        """
+        Get the cache's size and hit counts
+        
+        Returns:
+            dict: Reports cached, and hits and misses since startup
+        """
+        with self._lock:
+            return {'entries': len(self._entries), 'hits': self._hits, 'misses': self._misses}
+    
+    def _cached(self, key, current_version, build):
+        """Get a report from the cache, or build it. current_version is called under the lock."""
+        with self._lock:
+            version = current_version()
+            entry = self._entries.get(key)
+            if entry is not None and entry[0] == version:
+                self._entries.move_to_end(key)
+                self._hits += 1
+                return entry[1], entry[2]
+            self._misses += 1
+        
+        report = build()
+        report_digest = digest(report)
+        
+        with self._lock:
+            # Records written during the build have bumped the version; the next
+            # request rebuilds
+            if current_version() == version:
+                self._entries[key] = (version, report, report_digest)
+                self._entries.move_to_end(key)
+                while len(self._entries) > self.max_entries:
+                    self._entries.popitem(last=False)
+        return report, report_digest
+    
+    @staticmethod
+    def _build_class_report(class_id, date):
+        attendance_records = Attendance.get_by_class_and_date(class_id, date)
+        
+        # One pass over the roster instead of a lookup per record
+        names = {s['student_id']: s['name'] for s in Student.get_all()}
+        return [{**record, 'student_name': names[record['student_id']]}
+                for record in attendance_records if record['student_id'] in names]
+    
+    @staticmethod
+    def _build_student_report(student_id):
+        return Attendance.get_by_student(student_id)
@@ -0,0 +1,254 @@
+#!/usr/bin/env python3
+# Multi-photo attendance sessions for the Attendance System
+import uuid
+import time
+import logging
+import threading
+from datetime import datetime
+
+logger = logging.getLogger(__name__)
+
+# Session states
+OPEN = 'open'
+CLOSED = 'closed'
+
+# Seconds an open session may go without a photo before it is closed as its teacher
+# would have, so an abandoned one still gets its absences and doesn't keep its class's
+# report from being final or its school from moving
+SESSION_IDLE_SECONDS = 30 * 60
+
+# Seconds between the background job's passes over the open sessions
+SESSION_SWEEP_SECONDS = 60
+
+class SessionClosedError(Exception):
+    """Raised when a photo is submitted to a session that has already closed"""
+    pass
+
+class AttendanceSessionService:
+    def __init__(self, attendance_service, closed_ttl=3600, idle_timeout=SESSION_IDLE_SECONDS,
+                 sweep_interval=SESSION_SWEEP_SECONDS, clock=time.monotonic, sleep=time.sleep):
+        """
+        Initialize the session service
+        
+        A session collects any number of photos, from one or several devices, for one
+        class on one date. Students recognized in any photo are marked present as the
+        photos come in; absences are only written when the session closes, so a later
+        photo can never mark a student absent who an earlier photo found.
+        
+        Args:
+            attendance_service: Service used to recognize photos and write records
+            closed_ttl (int): Seconds a closed session is kept for lookups
+            idle_timeout (int): Seconds without a photo after which an open session is closed
+            sweep_interval (float): Seconds between the background job's passes closing idle sessions
+            clock (callable): Monotonic time in seconds
+            sleep: Sleeps for a number of seconds
+        """
+        self.attendance_service = attendance_service
+        self.closed_ttl = closed_ttl
+        self.idle_timeout = idle_timeout
+        self.sweep_interval = sweep_interval
+        self.clock = clock
+        self._sleep = sleep
+        self._sessions = {}
+        # Open session per (class_id, date), so a second device joins the first one's session
+        self._open_by_class_date = {}
+        self._lock = threading.Lock()
+        self._worker = None
+    
+    def start(self):
+        """Start the background job that closes idle sessions"""
+        self._worker = threading.Thread(target=self._run_loop, name="session-sweeper", daemon=True)
+        self._worker.start()
+    
+    def open_session(self, class_id, date):
+        """
+        Open a session, or join the one already open for this class and date
+        
+        Returns:
+            dict: The public view of the session
+        """
+        self.expire_idle()
+        with self._lock:
+            self._expire_closed()
+            
+            session_id = self._open_by_class_date.get((class_id, date))
+            if session_id is None:
+                session_id = uuid.uuid4().hex
+                self._sessions[session_id] = {
+                    'session_id': session_id,
+                    'class_id': class_id,
+                    'date': date,
+                    'status': OPEN,
+                    'photo_count': 0,
+                    'present_student_ids': set(),
+                    'recognized_students': {},
+                    'unrecognized_face_count': 0,
+                    'created_at': datetime.now().isoformat(),
+                    'closed_at': None,
+                    'expires': None,
+                    'last_activity': self.clock(),
+                    'lock': threading.Lock()
+                }
+                self._open_by_class_date[(class_id, date)] = session_id
+                logger.info(f"Opened attendance session {session_id} for class {class_id} on {date}")
+            session = self._sessions[session_id]
+            session['last_activity'] = self.clock()
+        
+        return self._public_view(session)
+    
+    def get(self, session_id):
+        """Get the public view of a session, or None if unknown"""
+        session = self._sessions.get(session_id)
+        if session is None:
+            return None
+        with session['lock']:
+            return self._public_view(session)
+    
+    def open_class_ids(self):
+        """Classes with a session open, including idle ones the background job has yet to close"""
+        with self._lock:
+            return {class_id for class_id, _ in self._open_by_class_date}
+    
+    def is_open(self, class_id, date):
+        """Whether a session is open for a class and date. Only reads, so report lookups never close one."""
+        with self._lock:
+            return (class_id, date) in self._open_by_class_date
+    
+    def add_photo(self, session_id, photo_path, face_locations=None, camera_id=None, clip=False):
+        """
+        Recognize one photo, or one clip if clip is set, and merge its results into the session
+        
+        Recognition runs outside the session lock so several photos for the same
+        session are processed in parallel; only the merge is serialized.
+        
+        Returns:
+            dict: The photo's recognition results and the updated session
+        """
+        session = self._sessions.get(session_id)
+        if session is None:
+            raise KeyError(session_id)
+        if session['status'] != OPEN:
+            raise SessionClosedError(f"Session {session_id} is closed")
+        
+        # Share the session's present set so students already marked aren't rewritten
+        with session['lock']:
+            already_present = set(session['present_student_ids'])
+            session['last_activity'] = self.clock()
+        
+        results = self.attendance_service.recognize_and_mark_present(
+            session['class_id'], photo_path, session['date'], already_present, face_locations, session_id=session_id,
+            camera_id=camera_id, clip=clip)
+        
+        with session['lock']:
+            if session['status'] != OPEN:
+                # Closed while we were recognizing. The students this photo marked stay
+                # present, as closing never marks a student with a present record absent,
+                # but the closed session's counts are final
+                raise SessionClosedError(f"Session {session_id} is closed")
+            
+            session['photo_count'] += 1
+            session['last_activity'] = self.clock()
+            session['unrecognized_face_count'] += len(results['unrecognized_faces'])
+            for student in results['recognized_students']:
+                session['present_student_ids'].add(student['student_id'])
+                best = session['recognized_students'].get(student['student_id'])
+                if best is None or student['confidence'] > best['confidence']:
+                    session['recognized_students'][student['student_id']] = student
+            
+            view = self._public_view(session)
+        
+        logger.info(f"Merged photo into session {session_id}: {len(results['recognized_students'])} recognized, "
+                    f"{view['present_count']} present so far")
+        
+        return {
+            "attendance": results['attendance'],
+            "recognized_students": results['recognized_students'],
+            "unrecognized_faces": results['unrecognized_faces'],
+            "expected_missed": results['expected_missed'],
+            "recapture_suggested": results['recapture_suggested'],
+            "session": view
+        }
+    
+    def close_session(self, session_id):
+        """
+        Close a session and mark every student not seen in any photo absent
+        
+        Closing an already closed session is a no-op that returns the same result.
+        
+        Returns:
+            dict: The class's final attendance records and the closed session
+        """
+        session = self._sessions.get(session_id)
+        if session is None:
+            raise KeyError(session_id)
+        
+        with session['lock']:
+            if session['status'] == OPEN:
+                session['status'] = CLOSED
+                session['closed_at'] = datetime.now().isoformat()
+                session['expires'] = self.clock() + self.closed_ttl
+                with self._lock:
+                    key = (session['class_id'], session['date'])
+                    if self._open_by_class_date.get(key) == session_id:
+                        del self._open_by_class_date[key]
+                logger.info(f"Closing attendance session {session_id} after {session['photo_count']} photos")
+            present_student_ids = set(session['present_student_ids'])
+            view = self._public_view(session)
+        
+        attendance_records = self.attendance_service.finalize_absences(
+            session['class_id'], session['date'], present_student_ids, session_id=session_id)
+        
+        return {"attendance": attendance_records, "session": view}
+    
+    def expire_idle(self):
+        """
+        Close the open sessions that have had no photo for idle_timeout seconds, marking
+        every student not seen in them absent as closing them by hand would. Runs in
+        the background job, and when a session is opened so a late join starts afresh.
+        
+        Returns:
+            list: IDs of the sessions closed
+        """
+        deadline = self.clock() - self.idle_timeout
+        with self._lock:
+            idle = [session_id for session_id in self._open_by_class_date.values()
+                    if self._sessions[session_id]['last_activity'] < deadline]
+        
+        for session_id in idle:
+            logger.info(f"Closing attendance session {session_id}, idle for over {self.idle_timeout}s")
+            try:
+                self.close_session(session_id)
+            except Exception as e:
+                logger.error(f"Error closing idle attendance session {session_id}: {str(e)}")
+        return idle
+    
+    def _run_loop(self):
+        while True:
+            self._sleep(self.sweep_interval)
+            try:
+                self.expire_idle()
+            except Exception as e:
+                logger.error(f"Error closing idle attendance sessions: {str(e)}")
+    
+    def _expire_closed(self):
+        """Drop closed sessions past their TTL. Caller holds the lock."""
+        now = self.clock()
+        expired = [session_id for session_id, session in self._sessions.items()
+                   if session['expires'] is not None and session['expires'] < now]
+        for session_id in expired:
+            del self._sessions[session_id]
+    
+    @staticmethod
+    def _public_view(session):
+        return {
+            'session_id': session['session_id'],
+            'class_id': session['class_id'],
+            'date': session['date'],
+            'status': session['status'],
+            'photo_count': session['photo_count'],
+            'present_count': len(session['present_student_ids']),
+            'recognized_students': sorted(session['recognized_students'].values(), key=lambda s: s['student_id']),
+            'unrecognized_face_count': session['unrecognized_face_count'],
+            'created_at': session['created_at'],
+            'closed_at': session['closed_at']
+        }
@@ -0,0 +1,78 @@
+#!/usr/bin/env python3
+# Consistent hashing of schools to server nodes for the Attendance System
+import bisect
+import hashlib
+
+# Header naming the school a request belongs to; the router places the request by it
+SCHOOL_HEADER = 'X-School-ID'
+
+# Header carrying the shared secret of the node endpoints that move schools
+CLUSTER_TOKEN_HEADER = 'X-Cluster-Token'
+
+# Points per node on the ring; more points spread schools more evenly
+VIRTUAL_NODES = 128
+
+class HashRing:
+    def __init__(self, node_ids=(), virtual_nodes=VIRTUAL_NODES):
+        """
+        Initialize a ring of nodes
+        
+        Each node owns the arcs ending at its points, so adding a node only takes
+        schools from the nodes on either side of its points, about 1/N of them in all,
+        and every other school stays where it is.
+        
+        Args:
+            node_ids (Iterable): IDs of the nodes on the ring
+            virtual_nodes (int): Points per node
+        """
+        self.virtual_nodes = virtual_nodes
+        self.node_ids = set()
+        self._points = []
+        self._owners = []
+        for node_id in node_ids:
+            self.add(node_id)
+    
+    def add(self, node_id):
+        """Add a node's points to the ring"""
+        if node_id in self.node_ids:
+            return
+        self.node_ids.add(node_id)
+        for i in range(self.virtual_nodes):
+            point = _hash(f"{node_id}#{i}")
+            index = bisect.bisect(self._points, point)
+            self._points.insert(index, point)
+            self._owners.insert(index, node_id)
+    
+    def remove(self, node_id):
+        """Remove a node's points from the ring"""
+        if node_id not in self.node_ids:
+            return
+        self.node_ids.discard(node_id)
+        kept = [(point, owner) for point, owner in zip(self._points, self._owners) if owner != node_id]
+        self._points = [point for point, _ in kept]
+        self._owners = [owner for _, owner in kept]
+    
+    def node_for(self, school_id):
+        """
+        Get the node that owns a school
+        
+        Returns:
+            str: Node ID, or None if the ring is empty
+        """
+        if not self._points:
+            return None
+        index = bisect.bisect(self._points, _hash(school_id)) % len(self._points)
+        return self._owners[index]
+    
+    def with_node(self, node_id):
+        """Get a copy of the ring with another node added"""
+        ring = HashRing(virtual_nodes=self.virtual_nodes)
+        ring.node_ids = set(self.node_ids)
+        ring._points = list(self._points)
+        ring._owners = list(self._owners)
+        ring.add(node_id)
+        return ring
+
+def _hash(key):
+    """Position of a key on the ring: the first 8 bytes of its MD5, for an even spread"""
+    return int.from_bytes(hashlib.md5(key.encode('utf-8')).digest()[:8], 'big')
@@ -0,0 +1,456 @@
+#!/usr/bin/env python3
+# Shard router for the Attendance System
+#
+# A thin WSGI proxy in front of several server nodes, each running app.py in its
+# own working directory. Every request is sent to the node that owns its school,
+# named by the X-School-ID header or a school_id query parameter, and schools are
+# placed on nodes by consistent hashing. Adding a node moves the schools it takes
+# over while the cluster keeps serving:
+#
+#   python shard_router.py --cluster cluster.json --port 8000
+#   curl -X POST -H "X-Cluster-Token: $ATTENDANCE_CLUSTER_TOKEN" \
+#        -d '{"node_id": "node-4", "url": "http://10.0.0.4:5000"}' http://localhost:8000/cluster/nodes
+#
+# cluster.json lists the nodes, {"nodes": {"node-1": "http://10.0.0.1:5000", ...}},
+# and is rewritten as nodes are added and schools move. The router and the nodes
+# share ATTENDANCE_CLUSTER_TOKEN.
+import os
+import json
+import hmac
+import time
+import logging
+import argparse
+import threading
+import http.client
+from urllib.parse import urlsplit, quote, parse_qs
+from socketserver import ThreadingMixIn
+from wsgiref.simple_server import make_server, WSGIServer
+import wire_format
+from models import DEFAULT_SCHOOL
+from shard_ring import HashRing, SCHOOL_HEADER, CLUSTER_TOKEN_HEADER, VIRTUAL_NODES
+
+logging.basicConfig(level=logging.INFO)
+logger = logging.getLogger(__name__)
+
+CLUSTER_FILE = 'cluster.json'
+
+# Seconds a client is asked to wait before retrying a write to a school being moved
+MOVE_RETRY_AFTER = 2
+
+# Longest a move waits for writes already sent to the old node to finish
+DRAIN_TIMEOUT = 30
+
+# Seconds between passes over schools that could not move yet, e.g. because a
+# teacher still has an attendance session open
+REBALANCE_RETRY_SECONDS = 10
+
+# Seconds the router waits for a node to answer; long-polls and event streams stay
+# open for longer between bytes than any other request
+NODE_TIMEOUT = 120
+
+# Bytes read from a node per chunk of a proxied response
+CHUNK_SIZE = 64 * 1024
+
+# Headers that describe one connection rather than the message, which a WSGI
+# application may not set
+HOP_BY_HOP_HEADERS = {'connection', 'keep-alive', 'proxy-authenticate', 'proxy-authorization', 'te', 'trailer',
+                      'trailers', 'transfer-encoding', 'upgrade'}
+
+READ_METHODS = {'GET', 'HEAD', 'OPTIONS'}
+
+class NodeError(Exception):
+    """Raised when a node rejects or fails a request from the router"""
+    def __init__(self, node_id, status, message):
+        super().__init__(f"Node {node_id} returned {status}: {message}")
+        self.status = status
+
+class ShardRouter:
+    def __init__(self, path=CLUSTER_FILE, token=None):
+        """
+        Initialize the router from its cluster file, resuming an unfinished rebalance
+        
+        While a rebalance runs, a school that changes owner is served by its old node
+        until it has been copied; only writes during the final copy are turned away,
+        with 503 and Retry-After. Schools created meanwhile are placed by the old ring
+        too, and moved by a later pass.
+        
+        Args:
+            path (str): Cluster file
+            token (str): Shared secret of the nodes' /internal endpoints and of this
+                         router's /cluster endpoints
+        """
+        self.path = path
+        self.token = token
+        
+        with open(path, 'r') as f:
+            config = json.load(f)
+        virtual_nodes = config.get('virtual_nodes', VIRTUAL_NODES)
+        self.nodes = dict(config['nodes'])
+        self.ring = HashRing(self.nodes, virtual_nodes)
+        # Ring before the node being added, and the schools already moved off it
+        self._previous = None
+        self._moved = set()
+        if config.get('previous_nodes') is not None:
+            self._previous = HashRing(config['previous_nodes'], virtual_nodes)
+            self._moved = set(config.get('moved', []))
+        
+        # Schools whose writes are held while their records are copied, and the
+        # writes each school has in flight
+        self._frozen = set()
+        self._finishing = False
+        self._writes = {}
+        self._lock = threading.Condition()
+        
+        self._rebalancer = None
+        if self._previous is not None:
+            logger.info(f"Resuming rebalance onto {len(self.nodes)} nodes")
+            self._start_rebalance()
+    
+    def __call__(self, environ, start_response):
+        path = environ.get('PATH_INFO', '')
+        if path == '/cluster' or path.startswith('/cluster/'):
+            return self._admin(environ, start_response)
+        if path.startswith('/internal/'):
+            return self._respond(start_response, '404 Not Found', {"success": False, "error": "Not found"})
+        
+        school_id = environ.get('HTTP_' + SCHOOL_HEADER.upper().replace('-', '_'))
+        if not school_id:
+            school_id = parse_qs(environ.get('QUERY_STRING', '')).get('school_id', [DEFAULT_SCHOOL])[0]
+        write = environ['REQUEST_METHOD'] not in READ_METHODS
+        
+        with self._lock:
+            if write and (school_id in self._frozen or (self._finishing and self._changes_node(school_id))):
+                return self._respond(start_response, '503 Service Unavailable',
+                                     {"success": False, "error": "School is moving to another node"},
+                                     [('Retry-After', str(MOVE_RETRY_AFTER))])
+            node_id = self.node_for(school_id)
+            if write:
+                self._writes[school_id] = self._writes.get(school_id, 0) + 1
+        
+        def finished():
+            if write:
+                with self._lock:
+                    self._writes[school_id] -= 1
+                    if not self._writes[school_id]:
+                        del self._writes[school_id]
+                    self._lock.notify_all()
+        
+        return self._proxy(environ, start_response, node_id, finished)
+    
+    def node_for(self, school_id):
+        """Node currently serving a school. Caller holds the lock."""
+        if self._previous is None or school_id in self._moved:
+            return self.ring.node_for(school_id)
+        return self._previous.node_for(school_id)
+    
+    def add_node(self, node_id, url):
+        """
+        Add a node and start moving the schools it takes over
+        
+        Raises:
+            ValueError: If the node exists or a rebalance is still running
+        """
+        with self._lock:
+            if node_id in self.nodes:
+                raise ValueError(f"Node {node_id} already exists")
+            if self._previous is not None:
+                raise ValueError("A rebalance is still in progress")
+            self._previous = self.ring
+            self._moved = set()
+            self.ring = self.ring.with_node(node_id)
+            self.nodes[node_id] = url
+            self._save()
+        logger.info(f"Added node {node_id} at {url}")
+        self._start_rebalance()
+    
+    def status(self):
+        """Nodes, and progress of any rebalance"""
+        with self._lock:
+            return {
+                'nodes': dict(self.nodes),
+                'rebalancing': self._previous is not None,
+                'moved': sorted(self._moved),
+                'moving': sorted(self._frozen)
+            }
+    
+    def _start_rebalance(self):
+        self._rebalancer = threading.Thread(target=self._rebalance, name="shard-rebalancer", daemon=True)
+        self._rebalancer.start()
+    
+    def _rebalance(self):
+        """Move schools until every node holds only the schools the ring gives it"""
+        while True:
+            try:
+                pending = self._misplaced_schools()
+            except (OSError, http.client.HTTPException, NodeError) as e:
+                logger.error(f"Error listing schools to rebalance: {str(e)}")
+                time.sleep(REBALANCE_RETRY_SECONDS)
+                continue
+            if not pending:
+                if self._finish():
+                    break
+                continue
+            
+            moved = 0
+            for school_id, (source, target) in sorted(pending.items()):
+                try:
+                    self._move(school_id, source, target)
+                    moved += 1
+                except (OSError, http.client.HTTPException, NodeError) as e:
+                    logger.warning(f"School {school_id} stays on node {source} for now: {str(e)}")
+            if moved < len(pending):
+                time.sleep(REBALANCE_RETRY_SECONDS)
+        logger.info("Rebalance complete")
+    
+    def _finish(self):
+        """
+        Switch every school to the new ring, unless a school was created on its old
+        node since the last pass; writes to schools that would change node are held
+        while that is checked
+        
+        Returns:
+            bool: True if the rebalance is complete
+        """
+        with self._lock:
+            self._finishing = True
+            drained = self._lock.wait_for(lambda: not any(self._changes_node(s) for s in self._writes), DRAIN_TIMEOUT)
+        pending = None
+        try:
+            if drained:
+                pending = self._misplaced_schools()
+        except (OSError, http.client.HTTPException, NodeError) as e:
+            logger.error(f"Error listing schools to rebalance: {str(e)}")
+        finally:
+            with self._lock:
+                self._finishing = False
+                if pending == {}:
+                    self._previous = None
+                    self._moved = set()
+                    self._save()
+        if pending is None:
+            time.sleep(REBALANCE_RETRY_SECONDS)
+        return pending == {}
+    
+    def _changes_node(self, school_id):
+        """Whether a school has yet to move to another node. Caller holds the lock."""
+        return (self._previous is not None and school_id not in self._moved
+                and self._previous.node_for(school_id) != self.ring.node_for(school_id))
+    
+    def _misplaced_schools(self):
+        """
+        Find schools held by a node the ring no longer gives them to
+        
+        Returns:
+            dict: school_id -> (node holding it, node it belongs on)
+        """
+        with self._lock:
+            node_ids = sorted(self._previous.node_ids)
+        pending = {}
+        for node_id in node_ids:
+            for school_id in self._call(node_id, 'GET', '/internal/schools')['schools']:
+                with self._lock:
+                    target = self.ring.node_for(school_id)
+                    if target != node_id and school_id not in self._moved:
+                        pending[school_id] = (node_id, target)
+        return pending
+    
+    def _move(self, school_id, source, target):
+        """
+        Copy a school to its new node and switch its traffic there
+        
+        Photos are copied while the school is still in use; writes are only held
+        for the final copy of its records.
+        """
+        path = f"/internal/schools/{quote(school_id, safe='')}"
+        # Export once up front for the photo list; fails fast if the school is busy
+        staged = self._copy_photos(self._call(source, 'GET', f"{path}/export"), source, target, set())
+        
+        with self._lock:
+            self._frozen.add(school_id)
+            drained = self._lock.wait_for(lambda: school_id not in self._writes, DRAIN_TIMEOUT)
+        try:
+            if not drained:
+                raise NodeError(source, 503, "writes did not drain")
+            bundle = self._call(source, 'GET', f"{path}/export")
+            staged = self._copy_photos(bundle, source, target, staged)
+            result = self._call(target, 'POST', f"{path}/import", {'bundle': bundle, 'staged_paths': sorted(staged)})
+            with self._lock:
+                self._moved.add(school_id)
+                self._save()
+        finally:
+            with self._lock:
+                self._frozen.discard(school_id)
+        
+        logger.info(f"Moved school {school_id} from {source} to {target}: {result['classes']} classes, "
+                    f"{result['students']} students")
+        try:
+            self._call(source, 'DELETE', path)
+        except (OSError, http.client.HTTPException, NodeError) as e:
+            # Nothing routes to the old copy any more; it only takes up space
+            logger.error(f"Error deleting school {school_id} from node {source}: {str(e)}")
+    
+    def _copy_photos(self, bundle, source, target, staged):
+        """Copy the bundle's photos and cold originals not yet staged on the target"""
+        staged = set(staged)
+        for photo_path in bundle['photo_paths']:
+            if photo_path not in staged:
+                data = self._call(source, 'GET', f"/{photo_path}", raw=True)
+                self._call(target, 'PUT', f"/internal/{photo_path}", data, raw=True)
+                staged.add(photo_path)
+        for key in bundle['cold_keys']:
+            data = self._call(source, 'GET', f"/internal/cold/{quote(key, safe='')}", raw=True)
+            self._call(target, 'PUT', f"/internal/cold/{quote(key, safe='')}", data, raw=True)
+        return staged
+    
+    def _call(self, node_id, method, path, body=None, raw=False):
+        """
+        Make a request of a node and decode the response
+        
+        Args:
+            raw (bool): Send and return bytes as they are, instead of CBOR
+        
+        Raises:
+            NodeError: If the node answers with an error status
+        """
+        with self._lock:
+            url = urlsplit(self.nodes[node_id])
+        headers = {CLUSTER_TOKEN_HEADER: self.token or '', 'Accept': wire_format.CBOR_MIMETYPE}
+        if body is not None:
+            headers['Content-Type'] = 'application/octet-stream' if raw else wire_format.CBOR_MIMETYPE
+            body = body if raw else wire_format.dumps(body)
+        
+        connection = http.client.HTTPConnection(url.hostname, url.port, timeout=NODE_TIMEOUT)
+        try:
+            connection.request(method, url.path.rstrip('/') + path, body=body, headers=headers)
+            response = connection.getresponse()
+            data = response.read()
+        finally:
+            connection.close()
+        
+        content_type = response.getheader('Content-Type', '')
+        if response.status >= 400:
+            try:
+                message = json.loads(data)['error'] if 'json' in content_type else data[:200]
+            except (ValueError, KeyError):
+                message = data[:200]
+            raise NodeError(node_id, response.status, message)
+        if raw:
+            return data
+        if content_type.startswith(wire_format.CBOR_MIMETYPE):
+            return wire_format.loads(data)
+        return json.loads(data)
+    
+    def _proxy(self, environ, start_response, node_id, finished):
+        """Forward a request to a node, streaming the response back"""
+        with self._lock:
+            url = urlsplit(self.nodes[node_id])
+        # PATH_INFO carries the request's bytes as Latin-1
+        target = url.path.rstrip('/') + quote(environ.get('PATH_INFO', '').encode('latin-1'))
+        if environ.get('QUERY_STRING'):
+            target += '?' + environ['QUERY_STRING']
+        
+        headers = {}
+        for key, value in environ.items():
+            if key.startswith('HTTP_'):
+                name = key[5:].replace('_', '-').title()
+                if name.lower() not in HOP_BY_HOP_HEADERS and name.lower() not in ('host', CLUSTER_TOKEN_HEADER.lower()):
+                    headers[name] = value
+        if environ.get('CONTENT_TYPE'):
+            headers['Content-Type'] = environ['CONTENT_TYPE']
+        remote = environ.get('REMOTE_ADDR')
+        if remote:
+            forwarded = headers.get('X-Forwarded-For')
+            headers['X-Forwarded-For'] = f"{forwarded}, {remote}" if forwarded else remote
+        
+        length = int(environ.get('CONTENT_LENGTH') or 0)
+        body = environ['wsgi.input'].read(length) if length else None
+        
+        connection = http.client.HTTPConnection(url.hostname, url.port, timeout=NODE_TIMEOUT)
+        try:
+            connection.request(environ['REQUEST_METHOD'], target, body=body, headers=headers)
+            response = connection.getresponse()
+        except (OSError, http.client.HTTPException) as e:
+            connection.close()
+            finished()
+            logger.error(f"Error forwarding to node {node_id}: {str(e)}")
+            return self._respond(start_response, '502 Bad Gateway',
+                                 {"success": False, "error": f"Node {node_id} is unavailable"})
+        
+        start_response(f"{response.status} {response.reason}",
+                       [(name, value) for name, value in response.getheaders()
+                        if name.lower() not in HOP_BY_HOP_HEADERS])
+        
+        def stream():
+            try:
+                while True:
+                    # read1 returns what has arrived, so event streams aren't held back
+                    chunk = response.read1(CHUNK_SIZE)
+                    if not chunk:
+                        break
+                    yield chunk
+            finally:
+                connection.close()
+                finished()
+        
+        return stream()
+    
+    def _admin(self, environ, start_response):
+        """GET /cluster for status; POST /cluster/nodes to add a node"""
+        token = environ.get('HTTP_' + CLUSTER_TOKEN_HEADER.upper().replace('-', '_'), '')
+        if not self.token or not hmac.compare_digest(token.encode('utf-8'), self.token.encode('utf-8')):
+            return self._respond(start_response, '404 Not Found', {"success": False, "error": "Not found"})
+        
+        path = environ.get('PATH_INFO', '')
+        method = environ['REQUEST_METHOD']
+        if path == '/cluster' and method == 'GET':
+            return self._respond(start_response, '200 OK', {"success": True, **self.status()})
+        if path == '/cluster/nodes' and method == 'POST':
+            try:
+                length = int(environ.get('CONTENT_LENGTH') or 0)
+                data = json.loads(environ['wsgi.input'].read(length) or b'{}')
+                if not data.get('node_id') or not data.get('url'):
+                    return self._respond(start_response, '400 Bad Request',
+                                         {"success": False, "error": "Missing required fields"})
+                self.add_node(data['node_id'], data['url'])
+                return self._respond(start_response, '202 Accepted', {"success": True, **self.status()})
+            except ValueError as e:
+                return self._respond(start_response, '409 Conflict', {"success": False, "error": str(e)})
+        return self._respond(start_response, '404 Not Found', {"success": False, "error": "Not found"})
+    
+    def _save(self):
+        """Write the cluster file. Caller holds the lock."""
+        config = {'nodes': self.nodes, 'virtual_nodes': self.ring.virtual_nodes}
+        if self._previous is not None:
+            config['previous_nodes'] = sorted(self._previous.node_ids)
+            config['moved'] = sorted(self._moved)
+        tmp_path = f"{self.path}.tmp"
+        with open(tmp_path, 'w') as f:
+            json.dump(config, f, indent=4)
+        os.replace(tmp_path, self.path)
+    
+    @staticmethod
+    def _respond(start_response, status, body, headers=()):
+        data = json.dumps(body).encode('utf-8')
+        start_response(status, [('Content-Type', 'application/json'), ('Content-Length', str(len(data)))] + list(headers))
+        return [data]
+
+class ThreadingWSGIServer(ThreadingMixIn, WSGIServer):
+    daemon_threads = True
+
+def main():
+    parser = argparse.ArgumentParser(description="Attendance System shard router")
+    parser.add_argument('--cluster', default=CLUSTER_FILE, help="Cluster file listing the nodes")
+    parser.add_argument('--host', default='0.0.0.0')
+    parser.add_argument('--port', type=int, default=8000)
+    args = parser.parse_args()
+    
+    token = os.environ.get('ATTENDANCE_CLUSTER_TOKEN')
+    if not token:
+        logger.warning("ATTENDANCE_CLUSTER_TOKEN is unset; schools can't be moved between nodes")
+    router = ShardRouter(args.cluster, token)
+    server = make_server(args.host, args.port, router, server_class=ThreadingWSGIServer)
+    logger.info(f"Routing {len(router.nodes)} nodes on port {args.port}")
+    server.serve_forever()
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,240 @@
+#!/usr/bin/env python3
+# Moves a school's data between server nodes for the Attendance System
+import logging
+import contextlib
+import models
+from photo_store import PhotoNotFoundError
+
+logger = logging.getLogger(__name__)
+
+class SchoolBusyError(Exception):
+    """Raised when a school has work in progress that only this node knows about"""
+    pass
+
+class SchoolShardService:
+    def __init__(self, photo_store, face_recognition_service, attendance_service=None, calibration=None,
+                 photo_retention=None, job_service=None, session_service=None, reports=None):
+        """
+        Initialize the shard service
+        
+        A school is the unit of placement. Moving one copies its photos to the new
+        node one at a time (they are immutable, so this can happen while the school
+        is still in use), then its records, face encodings and recognition log in a
+        single export, so nothing is re-encoded on arrival.
+        
+        Args:
+            photo_store (PhotoStore): Store holding the school's photos
+            face_recognition_service: Service whose gallery holds the school's encodings
+            attendance_service (AttendanceService): Service whose writes are held while
+                                                    records are rewritten
+            calibration (CalibrationService): Service logging the school's matches
+            photo_retention (PhotoRetentionService): Service holding cold originals
+            job_service (RecognitionJobService): Queue checked for the school's jobs
+            session_service (AttendanceSessionService): Service checked for open sessions
+            reports (AttendanceReportService): Reports invalidated when records are rewritten
+        """
+        self.photo_store = photo_store
+        self.face_recognition_service = face_recognition_service
+        self.attendance_service = attendance_service
+        self.calibration = calibration
+        self.photo_retention = photo_retention
+        self.job_service = job_service
+        self.session_service = session_service
+        self.reports = reports
+    
+    def list_schools(self):
+        """
+        Get the schools held by this node
+        
+        Returns:
+            dict: school_id -> number of classes and students
+        """
+        return models.list_schools()
+    
+    def export_school(self, school_id):
+        """
+        Get everything a school owns except photo and cold original bytes
+        
+        Recognition jobs and attendance sessions live only in this node's memory, so
+        a school with either in progress can't move yet.
+        
+        Returns:
+            dict: The school's records, the photo paths and cold original keys they
+                  refer to, face encodings and recognition log events
+        
+        Raises:
+            SchoolBusyError: If the school has recognition jobs or sessions in progress
+        """
+        self._check_idle(school_id)
+        
+        records = models.export_school(school_id)
+        
+        gallery = self.face_recognition_service.gallery.snapshot()
+        encodings = [dict(gallery[s['student_id']]) for s in records['students'] if s['student_id'] in gallery]
+        
+        class_ids = [c['id'] for c in records['classes']]
+        events = self.calibration.events(class_ids) if self.calibration is not None else []
+        
+        return {
+            'school_id': school_id,
+            'records': records,
+            'photo_paths': sorted(set(self._photo_refs(records))),
+            'cold_keys': sorted({p['cold_key'] for p in records['classroom_photos'] if p.get('cold_key')}),
+            'encodings': encodings,
+            'calibration_events': events
+        }
+    
+    def stage_photo(self, photo_path, data):
+        """
+        Store a photo copied ahead of an import
+        
+        The copy holds one reference until import_school() takes it over, so
+        compaction can't reclaim it in between.
+        
+        Raises:
+            ValueError: If the data doesn't match the photo path
+        """
+        stored_path = self.photo_store.put(data)
+        if stored_path != photo_path:
+            self.photo_store.delete(stored_path)
+            raise ValueError(f"Photo {photo_path} does not match its content")
+    
+    def stage_cold_object(self, key, data):
+        """Store a cold original copied ahead of an import"""
+        self.photo_retention.cold_storage.put(key, data)
+    
+    def read_cold_object(self, key):
+        """
+        Read a cold original to copy it to another node
+        
+        Raises:
+            FileNotFoundError: If there is no such object
+        """
+        return self.photo_retention.cold_storage.get(key)
+    
+    def import_school(self, school_id, bundle, staged_paths):
+        """
+        Take over a school exported from another node
+        
+        The school's records replace any left here by an earlier attempt. Every
+        staged photo's reference is dropped, whether or not the import succeeds.
+        
+        Args:
+            school_id (str): The school
+            bundle (dict): As returned by export_school() on the other node
+            staged_paths (list): Photos passed to stage_photo() for this move
+        
+        Returns:
+            dict: Number of classes, students and photo references imported
+        
+        Raises:
+            ValueError: If the bundle is for another school, one of its photos was not
+                        staged, or a class or student ID is taken by another school here
+        """
+        try:
+            return self._import_school(school_id, bundle)
+        finally:
+            for photo_path in staged_paths:
+                self.photo_store.delete(photo_path)
+    
+    def _import_school(self, school_id, bundle):
+        if bundle.get('school_id') != school_id:
+            raise ValueError(f"Bundle is for school {bundle.get('school_id')}, not {school_id}")
+        
+        records = bundle['records']
+        
+        # Records hold a reference per use of a photo
+        retained = []
+        try:
+            for photo_path in self._photo_refs(records):
+                self.photo_store.retain(photo_path)
+                retained.append(photo_path)
+            with self._hold_writes():
+                previous = models.export_school(school_id)
+                models.import_school(school_id, records)
+                if self.attendance_service is not None:
+                    self.attendance_service.log_school_records(school_id, previous['attendance'],
+                                                               records.get('attendance', []))
+                if self.reports is not None:
+                    self.reports.changed_all()
+        except (PhotoNotFoundError, ValueError) as e:
+            for photo_path in retained:
+                self.photo_store.delete(photo_path)
+            if isinstance(e, PhotoNotFoundError):
+                raise ValueError(f"Photo {e.args[0]} was not copied")
+            raise
+        for photo_path in self._photo_refs(previous):
+            self.photo_store.delete(photo_path)
+        
+        gallery = self.face_recognition_service.gallery
+        gallery.restore(bundle.get('encodings', []))
+        encoded = {entry['student_id'] for entry in bundle.get('encodings', [])}
+        for student in records['students']:
+            if student['student_id'] not in encoded:
+                gallery.add(student)
+        
+        if self.calibration is not None and bundle.get('calibration_events'):
+            self.calibration.import_events(bundle['calibration_events'])
+        
+        logger.info(f"Imported school {school_id}: {len(records['classes'])} classes, "
+                    f"{len(records['students'])} students, {len(retained)} photo references")
+        return {
+            'classes': len(records['classes']),
+            'students': len(records['students']),
+            'photos': len(retained)
+        }
+    
+    def delete_school(self, school_id):
+        """
+        Drop a school that has moved to another node
+        
+        Returns:
+            dict: Number of classes and students deleted
+        """
+        with self._hold_writes():
+            deleted = models.delete_school(school_id)
+            if self.attendance_service is not None:
+                self.attendance_service.log_school_records(school_id, deleted['attendance'], [])
+            if self.reports is not None:
+                self.reports.changed_all()
+        
+        for student in deleted['students']:
+            self.face_recognition_service.remove_student(student['student_id'])
+        for photo_path in self._photo_refs(deleted):
+            self.photo_store.delete(photo_path)
+        
+        if self.photo_retention is not None:
+            # Identical originals of other schools share a cold object
+            remaining = {p.get('cold_key') for p in models.ClassroomPhoto.get_all()}
+            for photo in deleted['classroom_photos']:
+                if photo.get('cold_key') and photo['cold_key'] not in remaining:
+                    self.photo_retention.cold_storage.delete(photo['cold_key'])
+        
+        logger.info(f"Deleted school {school_id}: {len(deleted['classes'])} classes, "
+                    f"{len(deleted['students'])} students")
+        return {'classes': len(deleted['classes']), 'students': len(deleted['students'])}
+    
+    def _hold_writes(self):
+        """Hold off the other schools' attendance and photo writes while the files are rewritten"""
+        stack = contextlib.ExitStack()
+        for service in (self.attendance_service, self.photo_retention):
+            if service is not None:
+                stack.enter_context(service.hold_writes())
+        return stack
+    
+    def _check_idle(self, school_id):
+        if self.job_service is not None and self.job_service.active_count(school_id):
+            raise SchoolBusyError(f"School {school_id} has recognition jobs in progress")
+        if self.session_service is not None:
+            class_ids = {c['id'] for c in models.Class.get_by_school(school_id)}
+            if class_ids & self.session_service.open_class_ids():
+                raise SchoolBusyError(f"School {school_id} has attendance sessions open")
+    
+    def _photo_refs(self, records):
+        """Every reference the records hold to the photo store, once per reference"""
+        refs = [s['photo_path'] for s in records.get('students', [])]
+        for photo in records.get('classroom_photos', []):
+            refs.append(photo.get('photo_path'))
+            refs.append(photo.get('preview_path'))
+            refs.extend(face.get('crop_path') for face in photo.get('faces', []))
+        return [path for path in refs if self.photo_store.owns(path)]
@@ -0,0 +1,123 @@
+#!/usr/bin/env python3
+# Tests of the striped attendance write path: concurrent corrections and stale versions
+import random
+import threading
+import unittest
+from collections import Counter
+
+from support import ScratchTestCase, StubRecognizer
+
+from models import Attendance
+from attendance_log import AttendanceLog, CORRECTION, apply_events
+from attendance_service import AttendanceService
+from attendance_store import ConflictError
+
+DATES = ['2024-09-02', '2024-09-03']
+
+class StripedWriteTest(ScratchTestCase):
+    def setUp(self):
+        super().setUp()
+        self.log = AttendanceLog('attendance_log')
+        # Few stripes, so partitions share locks as well as running alongside each other
+        self.attendance = AttendanceService(StubRecognizer(), change_log=self.log, stripes=4)
+        self.classes = [self.seed_class(5) for _ in range(3)]
+        for class_id, student_ids in self.classes:
+            for date in DATES:
+                for student_id in student_ids:
+                    self.attendance.manual_attendance(student_id, class_id, date, False)
+    
+    def tearDown(self):
+        self.log.close()
+        super().tearDown()
+    
+    def record(self, class_id, date, student_id):
+        """The record as a client reading attendance.json sees it"""
+        return next(r for r in Attendance.get_by_class_and_date(class_id, date) if r['student_id'] == student_id)
+    
+    def test_concurrent_corrections_lose_no_update(self):
+        acknowledged = []
+        errors = []
+        
+        def writer(seed):
+            rng = random.Random(seed)
+            try:
+                for _ in range(15):
+                    class_id, student_ids = rng.choice(self.classes)
+                    date = rng.choice(DATES)
+                    student_id = rng.choice(student_ids)
+                    # Flip the record over the version read, rereading after a conflict as the app does
+                    while True:
+                        seen = self.record(class_id, date, student_id)
+                        try:
+                            written = self.attendance.manual_attendance(student_id, class_id, date,
+                                                                        not seen['status'], expected_seq=seen['seq'])
+                        except ConflictError:
+                            continue
+                        acknowledged.append((seen['seq'], written))
+                        break
+            except Exception as e:
+                errors.append(e)
+        threads = [threading.Thread(target=writer, args=(seed,)) for seed in range(24)]
+        for thread in threads:
+            thread.start()
+        for thread in threads:
+            thread.join(30)
+        self.assertFalse(any(thread.is_alive() for thread in threads))
+        self.assertEqual(errors, [])
+        self.assertEqual(len(acknowledged), 24 * 15)
+        
+        # Each acknowledged write is in the log. A writer beaten to the same flip gets the
+        # other's event back; every other correction was written over the version its writer saw
+        events = {e['seq']: e for e in self.log.replay()}
+        corrections = [e for e in events.values() if e['type'] == CORRECTION]
+        previous = {}
+        for seq in sorted(events):
+            event = events[seq]
+            key = (event['class_id'], event['date'], event['student_id'])
+            event['previous_seq'] = previous.get(key)
+            previous[key] = seq
+        written_over_seen = set()
+        for seen_seq, written in acknowledged:
+            event = events[written['seq']]
+            self.assertEqual(event['status'], written['status'])
+            self.assertGreater(written['seq'], seen_seq)
+            if event['previous_seq'] == seen_seq:
+                written_over_seen.add(written['seq'])
+        self.assertEqual(written_over_seen, {e['seq'] for e in corrections})
+        
+        # attendance.json is the log replayed
+        replayed = {(r['class_id'], r['date'], r['student_id']): (r['status'], r['seq'])
+                    for r in apply_events([], list(self.log.replay()))}
+        stored = {(r['class_id'], r['date'], r['student_id']): (r['status'], r['seq']) for r in Attendance.get_all()}
+        self.assertEqual(stored, replayed)
+        flips = Counter((e['class_id'], e['date'], e['student_id']) for e in corrections)
+        for key, (status, _) in stored.items():
+            self.assertEqual(status, flips[key] % 2 == 1)
+    
+    def test_stale_expected_seq_conflicts(self):
+        class_id, (student_id, *_) = self.classes[0]
+        seen = self.record(class_id, DATES[0], student_id)
+        # Another teacher corrects the record first
+        other = self.attendance.manual_attendance(student_id, class_id, DATES[0], True, expected_seq=seen['seq'])
+        last_seq = self.log.last_seq
+        
+        with self.assertRaises(ConflictError) as conflict:
+            self.attendance.manual_attendance(student_id, class_id, DATES[0], False, expected_seq=seen['seq'])
+        self.assertEqual(conflict.exception.record['seq'], other['seq'])
+        self.assertTrue(conflict.exception.record['status'])
+        self.assertEqual(self.log.last_seq, last_seq)
+        self.assertTrue(self.record(class_id, DATES[0], student_id)['status'])
+        
+        # Writing the status the record already has is no conflict, and writes nothing
+        same = self.attendance.manual_attendance(student_id, class_id, DATES[0], True, expected_seq=seen['seq'])
+        self.assertEqual(same['seq'], other['seq'])
+        self.assertEqual(self.log.last_seq, last_seq)
+        
+        # A record that doesn't exist yet is version 0
+        with self.assertRaises(ConflictError):
+            self.attendance.manual_attendance(student_id, class_id, DATES[0], False, expected_seq=0)
+        self.assertEqual(self.attendance.manual_attendance(student_id, class_id, '2024-09-04', True,
+                                                           expected_seq=0)['seq'], last_seq + 1)
+
+if __name__ == '__main__':
+    unittest.main()
@@ -0,0 +1,143 @@
+#!/usr/bin/env python3
+# Tests of recognition through an engine: client face boxes and photos that fail their batch
+import json
+import time
+import threading
+import unittest
+
+from support import ScratchTestCase
+
+from recognition_engine import RecognitionEngine
+from face_recognition_service import FaceRecognitionService
+
+WIDTH, HEIGHT = 400, 300
+
+def axis(i):
+    """Unit vector of a student's encoding, and of a face in the stub engine's column i"""
+    return [1.0 if j == i else 0.0 for j in range(4)]
+
+class StubEngine(RecognitionEngine):
+    """
+    Recognizes photos written as JSON: a face's embedding is the student of its column
+    of 100 pixels. Embedding a face with no area or of a corrupt photo fails its batch.
+    """
+    name = 'stub'
+    
+    def __init__(self):
+        self.embedded = []
+        self.started = threading.Event()
+        self.release = threading.Event()
+        self.release.set()
+    
+    def decode(self, data):
+        return json.loads(data)
+    
+    def size(self, image):
+        return WIDTH, HEIGHT
+    
+    def detect(self, images):
+        return [image['faces'] for image in images]
+    
+    def embed(self, faces):
+        self.embedded.append([box for _, box in faces])
+        self.started.set()
+        self.release.wait(5)
+        for image, (top, right, bottom, left) in faces:
+            if image.get('corrupt'):
+                raise ValueError("Cannot decode face")
+            if bottom <= top or right <= left:
+                raise ValueError("Face crop is empty")
+        return [axis(box[3] // 100) for _, box in faces]
+
+class StubGallery:
+    """Holds a student's face in each column of the photo"""
+    def __init__(self):
+        self.entries = {f"s{i}": {'student_id': f"s{i}", 'name': f"Student {i}", 'encoding': axis(i)}
+                        for i in range(4)}
+    
+    def snapshot(self):
+        return self.entries
+    
+    def load(self):
+        pass
+    
+    def sync(self, students):
+        return 0
+    
+    def wait_until_idle(self, timeout=None):
+        return True
+
+class EngineRecognitionTest(ScratchTestCase):
+    def setUp(self):
+        super().setUp()
+        self.engine = StubEngine()
+        self.service = FaceRecognitionService(gallery=StubGallery(), engine=self.engine)
+    
+    def photo(self, name, faces=(), corrupt=False):
+        with open(name, 'w') as f:
+            json.dump({'faces': list(faces), 'corrupt': corrupt}, f)
+        return name
+    
+    def test_client_boxes_are_clamped_and_empty_ones_dropped(self):
+        boxes = [
+            [10, 90, 80, 10],
+            [50, 150, 50, 100],     # No height
+            [100, 500, 200, 300],   # Past the right edge
+            ['top', 0, 0, 0],
+            [-20, 280, 40, 200]     # Above the top edge
+        ]
+        
+        result = self.service.recognize_faces(self.photo('photo.json'), face_locations=boxes, threshold=0.5)
+        self.assertEqual(self.engine.embedded, [[[10, 90, 80, 10], [100, 400, 200, 300], [0, 280, 40, 200]]])
+        # Faces keep their index among the client's boxes
+        self.assertEqual([(s['face_index'], s['student_id'], s['location']) for s in result['recognized_students']],
+                         [(0, 's0', [10, 90, 80, 10]), (2, 's3', [100, 400, 200, 300]),
+                          (4, 's2', [0, 280, 40, 200])])
+        self.assertEqual(result['unrecognized_faces'], [])
+    
+    def test_detected_boxes_are_clamped(self):
+        photo = self.photo('photo.json', faces=[[10, 190, 80, 110], [250, 390, 320, 330], [90, 90, 90, 90]])
+        
+        result = self.service.recognize_faces(photo, threshold=0.5)
+        self.assertEqual([(s['face_index'], s['student_id'], s['location']) for s in result['recognized_students']],
+                         [(0, 's1', [10, 190, 80, 110]), (1, 's3', [250, 390, 300, 330])])
+    
+    def test_no_face_left_is_no_batch(self):
+        result = self.service.recognize_faces(self.photo('photo.json'), face_locations=[[0, 0, 0, 0]])
+        
+        self.assertEqual(result['recognized_students'] + result['unrecognized_faces'], [])
+        self.assertEqual(self.engine.embedded, [])
+    
+    def test_corrupt_photo_fails_only_its_own_request(self):
+        results = {}
+        
+        def recognize(name, corrupt=False):
+            try:
+                results[name] = self.service.recognize_faces(self.photo(name, corrupt=corrupt),
+                                                             face_locations=[[10, 90, 80, 10]], threshold=0.5)
+            except ValueError as e:
+                results[name] = e
+        # Hold the first request in the engine, so the others share the next batch
+        self.engine.release.clear()
+        first = threading.Thread(target=recognize, args=('first.json',))
+        first.start()
+        self.assertTrue(self.engine.started.wait(5))
+        others = [threading.Thread(target=recognize, args=(name, name == 'corrupt.json'))
+                  for name in ['a.json', 'corrupt.json', 'b.json']]
+        for thread in others:
+            thread.start()
+        deadline = time.monotonic() + 5
+        while len(self.service._embed_batcher._pending) < 3 and time.monotonic() < deadline:
+            time.sleep(0.01)
+        self.engine.release.set()
+        for thread in [first] + others:
+            thread.join(5)
+        
+        self.assertIsInstance(results['corrupt.json'], ValueError)
+        for name in ['first.json', 'a.json', 'b.json']:
+            self.assertEqual([s['student_id'] for s in results[name]['recognized_students']], ['s0'])
+        # The shared batch, then each of its requests alone
+        self.assertEqual([len(batch) for batch in self.engine.embedded], [1, 3, 1, 1, 1])
+
+if __name__ == '__main__':
+    unittest.main()
@@ -0,0 +1,152 @@
+#!/usr/bin/env python3
+# Tests of idempotency keys for attendance submissions
+import threading
+import unittest
+
+from support import ScratchTestCase, StubRecognizer, photo_of
+
+from attendance_service import AttendanceService
+from recognition_job_service import RecognitionJobService
+from idempotency import IdempotencyCache, IdempotencyConflictError, IdempotencyInProgressError
+
+DATE = '2024-09-02'
+SCOPE = 'default POST /api/attendance_jobs'
+
+class FakeClock:
+    def __init__(self):
+        self.now = 1000.0
+    
+    def __call__(self):
+        return self.now
+
+def accepted(result):
+    return 200 <= result[0] < 300
+
+class IdempotentSubmissionTest(ScratchTestCase):
+    """Submissions retried with the same Idempotency-Key"""
+    def setUp(self):
+        super().setUp()
+        self.clock = FakeClock()
+        self.cache = IdempotencyCache(ttl=600, wait_timeout=5, clock=self.clock)
+        self.class_id, self.students = self.seed_class(3)
+        # Jobs stay queued until the test lets them run, so each one submitted is counted
+        self.gate = threading.Event()
+        attendance = AttendanceService(StubRecognizer())
+        process_attendance = attendance.process_attendance
+        
+        def process_when_let_through(*args, **kwargs):
+            self.gate.wait(5)
+            return process_attendance(*args, **kwargs)
+        attendance.process_attendance = process_when_let_through
+        self.jobs = RecognitionJobService(attendance, num_workers=1)
+        self.submits = 0
+    
+    def tearDown(self):
+        self.gate.set()
+        super().tearDown()
+    
+    def submit(self, started=None, proceed=None):
+        """Stands in for the submission endpoint: queues a job and returns its response"""
+        if started is not None:
+            started.set()
+            proceed.wait(5)
+        self.submits += 1
+        job = self.jobs.submit(self.class_id, photo_of(self.students), DATE)
+        return 202, [], job
+    
+    def test_retry_gets_the_first_response_without_queueing_again(self):
+        first, replayed = self.cache.run(SCOPE, 'key-1', 'body', self.submit, accepted)
+        self.assertFalse(replayed)
+        
+        retry, replayed = self.cache.run(SCOPE, 'key-1', 'body', self.submit, accepted)
+        self.assertTrue(replayed)
+        self.assertEqual(retry, first)
+        self.assertEqual(self.submits, 1)
+        self.assertEqual(self.jobs.active_count('default'), 1)
+    
+    def test_concurrent_duplicate_waits_for_the_first(self):
+        started, proceed = threading.Event(), threading.Event()
+        results = []
+        
+        def first():
+            results.append(self.cache.run(SCOPE, 'key-1', 'body', lambda: self.submit(started, proceed), accepted))
+        thread = threading.Thread(target=first)
+        thread.start()
+        self.assertTrue(started.wait(5))
+        
+        # Let the first finish only once the duplicate found it running
+        waiting = threading.Event()
+        claim = self.cache._claim
+        
+        def claim_and_signal(*args):
+            entry, owner = claim(*args)
+            if not owner:
+                waiting.set()
+            return entry, owner
+        self.cache._claim = claim_and_signal
+        
+        def duplicate():
+            results.append(self.cache.run(SCOPE, 'key-1', 'body', self.submit, accepted))
+        duplicate_thread = threading.Thread(target=duplicate)
+        duplicate_thread.start()
+        self.assertTrue(waiting.wait(5))
+        proceed.set()
+        thread.join()
+        duplicate_thread.join()
+        
+        self.assertEqual(self.submits, 1)
+        self.assertEqual(self.jobs.active_count('default'), 1)
+        self.assertEqual(sorted(replayed for _, replayed in results), [False, True])
+        self.assertEqual(results[0][0], results[1][0])
+    
+    def test_duplicate_gives_up_on_a_request_still_running(self):
+        cache = IdempotencyCache(wait_timeout=0.05, clock=self.clock)
+        started, proceed = threading.Event(), threading.Event()
+        thread = threading.Thread(target=cache.run,
+                                  args=(SCOPE, 'key-1', 'body', lambda: self.submit(started, proceed), accepted))
+        thread.start()
+        self.assertTrue(started.wait(5))
+        
+        with self.assertRaises(IdempotencyInProgressError):
+            cache.run(SCOPE, 'key-1', 'body', self.submit, accepted)
+        proceed.set()
+        thread.join()
+        self.assertEqual(self.submits, 1)
+    
+    def test_expired_key_runs_again(self):
+        self.cache.run(SCOPE, 'key-1', 'body', self.submit, accepted)
+        
+        self.clock.now += 599
+        self.assertTrue(self.cache.run(SCOPE, 'key-1', 'body', self.submit, accepted)[1])
+        self.clock.now += 1
+        self.assertFalse(self.cache.run(SCOPE, 'key-1', 'body', self.submit, accepted)[1])
+        self.assertEqual(self.submits, 2)
+        self.assertEqual(self.jobs.active_count('default'), 2)
+    
+    def test_rejected_submission_is_not_kept(self):
+        rejected = (503, [], {'success': False})
+        self.assertEqual(self.cache.run(SCOPE, 'key-1', 'body', lambda: rejected, accepted), (rejected, False))
+        
+        self.assertFalse(self.cache.run(SCOPE, 'key-1', 'body', self.submit, accepted)[1])
+        self.assertEqual(self.submits, 1)
+    
+    def test_failed_submission_is_run_again(self):
+        def fail():
+            raise ValueError("Cannot decode photo")
+        with self.assertRaises(ValueError):
+            self.cache.run(SCOPE, 'key-1', 'body', fail, accepted)
+        
+        self.assertFalse(self.cache.run(SCOPE, 'key-1', 'body', self.submit, accepted)[1])
+        self.assertEqual(self.submits, 1)
+    
+    def test_key_reused_for_another_request_conflicts(self):
+        self.cache.run(SCOPE, 'key-1', 'body', self.submit, accepted)
+        
+        with self.assertRaises(IdempotencyConflictError):
+            self.cache.run(SCOPE, 'key-1', 'another body', self.submit, accepted)
+        self.assertFalse(self.cache.run('school-2 POST /api/attendance_jobs', 'key-1', 'another body', self.submit,
+                                        accepted)[1])
+        self.assertEqual(self.submits, 2)
+
+if __name__ == '__main__':
+    unittest.main()
@@ -0,0 +1,111 @@
+#!/usr/bin/env python3
+# Tests of Idempotency-Key handling at the HTTP layer, through Flask's test client
+#
+# Skipped where Flask and the app's dependencies aren't installed.
+import os
+import uuid
+import shutil
+import tempfile
+import threading
+import unittest
+
+import support
+
+try:
+    import flask
+except ImportError:
+    flask = None
+
+class Submission:
+    """Stands in for a submission endpoint, counting the requests it runs"""
+    def __init__(self):
+        self.calls = 0
+        self.started = threading.Event()
+        self.proceed = threading.Event()
+        self.proceed.set()
+    
+    def __call__(self):
+        self.calls += 1
+        self.started.set()
+        self.proceed.wait(5)
+        return flask.jsonify({"success": True, "call": self.calls}), 202
+
+@unittest.skipIf(flask is None, "Flask is not installed")
+class IdempotentEndpointTest(unittest.TestCase):
+    """Retried submissions as the app answers them"""
+    @classmethod
+    def setUpClass(cls):
+        # The app opens its data files where it is imported
+        cls._cwd = os.getcwd()
+        cls.workdir = tempfile.mkdtemp(prefix='attendance-test-')
+        os.chdir(cls.workdir)
+        os.environ['ATTENDANCE_ADMISSION_CONTROL'] = 'off'
+        try:
+            import app
+        except ImportError as e:
+            os.chdir(cls._cwd)
+            raise unittest.SkipTest(f"The app's dependencies are not installed: {e}")
+        cls.app = app
+        cls.submission = Submission()
+        app.app.add_url_rule('/test/submissions', 'test_submissions', app.idempotent(cls.submission),
+                             methods=['POST'])
+    
+    @classmethod
+    def tearDownClass(cls):
+        os.chdir(cls._cwd)
+        shutil.rmtree(cls.workdir, ignore_errors=True)
+    
+    def setUp(self):
+        self.submission.calls = 0
+        self.submission.started.clear()
+        self.submission.proceed.set()
+        self.key = uuid.uuid4().hex
+    
+    def post(self, body):
+        return self.app.app.test_client().post('/test/submissions', json=body,
+                                               headers={'Idempotency-Key': self.key})
+    
+    def test_retry_is_replayed(self):
+        first = self.post({'class_id': '1'})
+        retry = self.post({'class_id': '1'})
+        
+        self.assertEqual(first.status_code, 202)
+        self.assertEqual(retry.status_code, 202)
+        self.assertEqual(retry.get_json(), first.get_json())
+        self.assertEqual(retry.headers.get('Idempotent-Replayed'), 'true')
+        self.assertIsNone(first.headers.get('Idempotent-Replayed'))
+        self.assertEqual(self.submission.calls, 1)
+    
+    def test_key_reused_for_another_body_is_refused(self):
+        self.post({'class_id': '1'})
+        
+        response = self.post({'class_id': '2'})
+        self.assertEqual(response.status_code, 422)
+        self.assertFalse(response.get_json()['success'])
+        self.assertEqual(self.submission.calls, 1)
+    
+    def test_duplicate_of_a_running_request_is_told_to_come_back(self):
+        cache = self.app.idempotency_cache
+        wait_timeout = cache.wait_timeout
+        cache.wait_timeout = 0.05
+        self.addCleanup(setattr, cache, 'wait_timeout', wait_timeout)
+        self.submission.proceed.clear()
+        first = []
+        thread = threading.Thread(target=lambda: first.append(self.post({'class_id': '1'})))
+        thread.start()
+        self.assertTrue(self.submission.started.wait(5))
+        
+        duplicate = self.post({'class_id': '1'})
+        self.submission.proceed.set()
+        thread.join()
+        
+        # Shed rather than 409, which means a closed session or a changed record
+        self.assertEqual(duplicate.status_code, 503)
+        self.assertEqual(duplicate.headers.get('Retry-After'), '5')
+        self.assertTrue(duplicate.get_json()['in_progress'])
+        self.assertEqual(first[0].status_code, 202)
+        self.assertEqual(self.post({'class_id': '1'}).headers.get('Idempotent-Replayed'), 'true')
+        self.assertEqual(self.submission.calls, 1)
+
+if __name__ == '__main__':
+    unittest.main()
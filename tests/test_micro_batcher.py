@@ -0,0 +1,106 @@
+#!/usr/bin/env python3
+# Tests of the micro-batcher: batch boundaries, each caller's results, and failures kept to their caller
+import time
+import threading
+import unittest
+
+import support
+
+from micro_batcher import MicroBatcher
+
+class HeldRunner:
+    """Runs batches, holding the first until released so the callers after it queue up"""
+    def __init__(self, fail_on=None):
+        self.fail_on = fail_on
+        self.batches = []
+        self.started = threading.Event()
+        self.release = threading.Event()
+    
+    def __call__(self, items):
+        self.batches.append(list(items))
+        if not self.started.is_set():
+            self.started.set()
+            self.release.wait(5)
+        if self.fail_on in items:
+            raise ValueError(f"Cannot run {self.fail_on}")
+        return [f"result of {item}" for item in items]
+
+class MicroBatcherTest(unittest.TestCase):
+    def setUp(self):
+        self.results = {}
+        self.errors = {}
+    
+    def call(self, batcher, caller, items):
+        try:
+            self.results[caller] = batcher.submit(items)
+        except Exception as e:
+            self.errors[caller] = e
+    
+    def run_queued(self, batcher, runner, callers):
+        """Hold the worker on a first caller, queue the others behind it and let them all run"""
+        first = threading.Thread(target=self.call, args=(batcher, 'first', ['first']))
+        first.start()
+        self.assertTrue(runner.started.wait(5))
+        threads = [threading.Thread(target=self.call, args=(batcher, caller, items)) for caller, items in callers]
+        for thread in threads:
+            thread.start()
+        deadline = time.monotonic() + 5
+        while len(batcher._pending) < len(callers) and time.monotonic() < deadline:
+            time.sleep(0.01)
+        runner.release.set()
+        for thread in [first] + threads:
+            thread.join(5)
+        batcher.close()
+    
+    def test_callers_get_their_own_results_in_order(self):
+        runner = HeldRunner()
+        batcher = MicroBatcher(runner, max_batch=10)
+        callers = [(f"caller-{c}", [f"{c}.{i}" for i in range(size)]) for c, size in enumerate([3, 4, 5, 6, 12])]
+        
+        self.run_queued(batcher, runner, callers)
+        self.assertEqual(self.errors, {})
+        for caller, items in callers:
+            self.assertEqual(self.results[caller], [f"result of {item}" for item in items])
+        
+        # Each caller's items run together in one batch, which holds at most max_batch
+        # items unless one caller alone has more
+        batches = runner.batches[1:]
+        self.assertEqual(sorted(item for batch in batches for item in batch),
+                         sorted(item for _, items in callers for item in items))
+        for caller, items in callers:
+            batch = next(batch for batch in batches if items[0] in batch)
+            start = batch.index(items[0])
+            self.assertEqual(batch[start:start + len(items)], items)
+        for batch in batches:
+            self.assertTrue(len(batch) <= 10 or len({item.split('.')[0] for item in batch}) == 1)
+        self.assertIn([f"4.{i}" for i in range(12)], batches)
+        self.assertLess(len(batches), len(callers))
+        self.assertEqual(batcher.stats()['items'], 1 + sum(len(items) for _, items in callers))
+    
+    def test_failed_batch_fails_only_the_caller_with_the_bad_item(self):
+        runner = HeldRunner(fail_on='bad')
+        batcher = MicroBatcher(runner, max_batch=10)
+        callers = [('a', ['a.0', 'a.1']), ('b', ['bad']), ('c', ['c.0'])]
+        
+        self.run_queued(batcher, runner, callers)
+        self.assertEqual(self.results['a'], ['result of a.0', 'result of a.1'])
+        self.assertEqual(self.results['c'], ['result of c.0'])
+        self.assertNotIn('b', self.results)
+        self.assertIsInstance(self.errors['b'], ValueError)
+        self.assertEqual(set(self.errors), {'b'})
+        # The batch of all three ran once, then each caller on its own
+        self.assertEqual(sorted(runner.batches[1]), ['a.0', 'a.1', 'bad', 'c.0'])
+        self.assertEqual(sorted(runner.batches[2:]), [['a.0', 'a.1'], ['bad'], ['c.0']])
+    
+    def test_lone_caller_gets_the_error(self):
+        batcher = MicroBatcher(lambda items: items[:-1])
+        
+        with self.assertRaises(RuntimeError):
+            batcher.submit([1, 2])
+        self.assertEqual(batcher.submit([]), [])
+        batcher.close()
+        with self.assertRaises(RuntimeError):
+            batcher.submit([1])
+
+if __name__ == '__main__':
+    unittest.main()
@@ -0,0 +1,196 @@
+#!/usr/bin/env python3
+# Tests of classroom photo retention, driven by a simulated clock
+import unittest
+from datetime import datetime
+
+from support import ScratchTestCase
+
+from models import ClassroomPhoto
+from photo_store import PhotoStore
+from photo_retention import PhotoRetentionService, RateLimiter, ColdStorage, DAY
+
+DATE = '2024-09-02'
+
+class SimulatedClock:
+    """A clock that only moves when slept on or advanced, recording each sleep"""
+    def __init__(self, now):
+        self.now = now
+        self.sleeps = []
+    
+    def __call__(self):
+        return self.now
+    
+    def sleep(self, seconds):
+        self.sleeps.append(seconds)
+        self.now += seconds
+
+class StopLoop(Exception):
+    pass
+
+class RateLimiterTest(unittest.TestCase):
+    def setUp(self):
+        self.clock = SimulatedClock(0.0)
+        self.limiter = RateLimiter(100, self.clock, self.clock.sleep)
+    
+    def test_burst_goes_through_without_sleeping(self):
+        self.limiter.acquire(60)
+        self.limiter.acquire(40)
+        self.assertEqual(self.clock.sleeps, [])
+    
+    def test_debt_is_slept_off(self):
+        self.limiter.acquire(100)
+        self.limiter.acquire(50)
+        self.assertEqual(self.clock.sleeps, [0.5])
+        self.limiter.acquire(250)
+        self.assertEqual(self.clock.sleeps, [0.5, 2.5])
+    
+    def test_tokens_refill_up_to_one_second(self):
+        self.limiter.acquire(100)
+        self.clock.now += 10
+        self.limiter.acquire(100)
+        self.assertEqual(self.clock.sleeps, [])
+        self.limiter.acquire(20)
+        self.assertAlmostEqual(self.clock.sleeps[0], 0.2)
+
+class PhotoRetentionTest(ScratchTestCase):
+    def setUp(self):
+        super().setUp()
+        self.store = PhotoStore('photo_store', compact_interval=None)
+        # Noon, outside the default busy hours
+        self.clock = SimulatedClock(datetime(2024, 9, 2, 12).timestamp())
+        self.cold = ColdStorage('cold')
+        self.class_id, _ = self.seed_class(1)
+    
+    def tearDown(self):
+        self.store.close()
+        super().tearDown()
+    
+    def retention(self, **kwargs):
+        return PhotoRetentionService(self.store, cold_storage=self.cold, clock=self.clock, sleep=self.clock.sleep,
+                                     **kwargs)
+    
+    def take(self, retention, data=b'classroom photo', session_id=None):
+        photo_path = self.store.put(data)
+        record = retention.track(self.class_id, DATE, photo_path, [], [], session_id=session_id)
+        self.store.delete(photo_path)
+        return record
+    
+    def tier_of(self, record):
+        return next(p for p in ClassroomPhoto.get_all() if p['id'] == record['id'])['tier']
+    
+    def test_original_moves_to_cold_storage_after_thirty_days(self):
+        retention = self.retention()
+        record = self.take(retention)
+        
+        self.clock.now += 30 * DAY - 1
+        self.assertEqual(retention.run_once(), {'tiered': 0, 'expired': 0})
+        self.clock.now += 1
+        self.assertEqual(retention.run_once(), {'tiered': 1, 'expired': 0})
+        
+        self.assertEqual(self.tier_of(record), 'cold')
+        self.assertFalse(self.store.contains(record['photo_path']))
+        self.assertEqual(self.cold.get(record['photo_path']), b'classroom photo')
+    
+    def test_original_is_deleted_after_a_year(self):
+        retention = self.retention()
+        record = self.take(retention)
+        self.clock.now += 30 * DAY
+        retention.run_once()
+        
+        self.clock.now += 335 * DAY - 1
+        self.assertEqual(retention.run_once(), {'tiered': 0, 'expired': 0})
+        self.clock.now += 1
+        self.assertEqual(retention.run_once(), {'tiered': 0, 'expired': 1})
+        
+        self.assertEqual(self.tier_of(record), 'expired')
+        with self.assertRaises(FileNotFoundError):
+            self.cold.get(record['photo_path'])
+    
+    def test_shared_cold_original_is_kept_while_still_needed(self):
+        retention = self.retention()
+        first = self.take(retention)
+        self.clock.now += DAY
+        second = self.take(retention)
+        self.clock.now += 29 * DAY
+        retention.run_once()
+        self.clock.now += DAY
+        retention.run_once()
+        
+        self.clock.now += 334 * DAY
+        self.assertEqual(retention.run_once(), {'tiered': 0, 'expired': 1})
+        self.assertEqual(self.tier_of(first), 'expired')
+        self.assertEqual(self.cold.get(second['photo_path']), b'classroom photo')
+    
+    def test_session_photos_wait_for_the_session_to_close(self):
+        retention = self.retention()
+        record = self.take(retention, session_id='session-1')
+        self.clock.now += 30 * DAY
+        self.take(retention, data=b'photo of a session never closed', session_id='session-2')
+        
+        self.clock.now += 12 * 3600
+        self.assertEqual(retention.finalize_session('session-1'), 1)
+        self.clock.now += 30 * DAY - 1
+        self.assertEqual(retention.run_once(), {'tiered': 1, 'expired': 0})
+        self.assertEqual(self.tier_of(record), 'hot')
+        self.clock.now += 1
+        self.assertEqual(retention.run_once(), {'tiered': 1, 'expired': 0})
+        self.assertEqual(self.tier_of(record), 'cold')
+    
+    def test_unclosed_session_is_final_a_day_after_its_photo(self):
+        retention = self.retention(preview_after_days=0)
+        record = self.take(retention, session_id='session-1')
+        
+        self.clock.now += DAY - 1
+        self.assertEqual(retention.run_once()['tiered'], 0)
+        self.clock.now += 1
+        self.assertEqual(retention.run_once()['tiered'], 1)
+        self.assertEqual(self.tier_of(record), 'cold')
+    
+    def test_passes_take_the_oldest_photos_first(self):
+        retention = self.retention(batch_size=2)
+        records = []
+        for i in range(3):
+            records.append(self.take(retention, data=f"photo {i}".encode()))
+            self.clock.now += 3600
+        
+        self.clock.now += 30 * DAY
+        self.assertEqual(retention.run_once()['tiered'], 2)
+        self.assertEqual([self.tier_of(r) for r in records], ['cold', 'cold', 'hot'])
+        self.assertEqual(retention.run_once()['tiered'], 1)
+    
+    def test_reads_and_writes_are_rate_limited(self):
+        retention = self.retention(bytes_per_second=10)
+        self.take(retention, data=b'x' * 40)
+        self.clock.now += 30 * DAY
+        retention.run_once()
+        
+        # Reading the original, then writing it to cold storage, each sleeps off what
+        # the 10 byte burst does not cover
+        self.assertEqual(self.clock.sleeps, [3.0, 4.0])
+    
+    def test_no_passes_run_during_busy_hours(self):
+        passes = []
+        
+        def sleep(seconds):
+            # Let the loop run two passes, then stop it
+            if len(passes) == 2:
+                raise StopLoop()
+            self.clock.sleep(seconds)
+        retention = PhotoRetentionService(self.store, cold_storage=self.cold, interval=3600, busy_hours=(7, 10),
+                                          clock=self.clock, sleep=sleep)
+        record = self.take(retention)
+        self.clock.now = datetime(2024, 10, 3, 6).timestamp()
+        run_once = retention.run_once
+        
+        def record_pass():
+            passes.append(datetime.fromtimestamp(self.clock.now).hour)
+            return run_once()
+        retention.run_once = record_pass
+        
+        with self.assertRaises(StopLoop):
+            retention._run_loop()
+        self.assertEqual(passes, [10, 11])
+        self.assertEqual(self.tier_of(record), 'cold')
+
+if __name__ == '__main__':
+    unittest.main()
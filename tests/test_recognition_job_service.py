@@ -0,0 +1,241 @@
+#!/usr/bin/env python3
+# Tests of the recognition job queue: fairness, shedding, and its hold on submitted photos
+import os
+import threading
+import unittest
+
+from support import ScratchTestCase
+
+from models import ClassroomPhoto
+from photo_store import PhotoStore
+from photo_retention import PhotoRetentionService, DAY
+from attendance_service import AttendanceService
+from recognition_job_service import RecognitionJobService, QueueFullError, COMPLETED, FAILED
+
+DATE = '2024-09-02'
+
+class EmptyRecognizer:
+    """Finds no faces in any photo"""
+    def recognize_faces(self, image_path, face_locations=None, threshold=None, candidate_ids=None):
+        return {'recognized_students': [], 'unrecognized_faces': [], 'processed_image_path': None}
+
+class FailingAttendance:
+    def process_attendance(self, class_id, image_path, date=None, face_locations=None, camera_id=None, clip=False):
+        raise ValueError("Cannot decode photo")
+
+class BlockedAttendance:
+    """Holds every job until released, recording the classes in the order they ran"""
+    def __init__(self):
+        self.started = threading.Event()
+        self.release = threading.Event()
+        self.order = []
+    
+    def process_attendance(self, class_id, image_path, date=None, face_locations=None, camera_id=None, clip=False):
+        self.order.append(class_id)
+        self.started.set()
+        self.release.wait(5)
+        return {'attendance': [], 'recognized_students': [], 'unrecognized_faces': [], 'expected_missed': 0,
+                'recapture_suggested': False}
+
+class RecordingBus:
+    def __init__(self):
+        self.events = []
+    
+    def publish(self, event_type, data):
+        self.events.append((event_type, data))
+
+class JobPhotoReleaseTest(ScratchTestCase):
+    """Photos a job is done with are released to the photo store"""
+    def setUp(self):
+        super().setUp()
+        self.store = PhotoStore('photo_store', compact_interval=None)
+        self.now = 1725264000.0
+        self.retention = PhotoRetentionService(self.store, busy_hours=None, clock=lambda: self.now,
+                                               sleep=lambda seconds: None)
+        self.class_id, _ = self.seed_class(3)
+    
+    def tearDown(self):
+        self.store.close()
+        super().tearDown()
+    
+    def run_job(self, attendance, photo_path):
+        jobs = RecognitionJobService(attendance, num_workers=1, photo_store=self.store)
+        job = jobs.submit(self.class_id, photo_path, DATE)
+        return jobs.get(job['job_id'], wait=5)
+    
+    def test_tracked_photo_is_kept_until_retention_moves_it(self):
+        photo_path = self.store.put(b'classroom photo')
+        attendance = AttendanceService(EmptyRecognizer(), photo_retention=self.retention, photo_store=self.store)
+        
+        self.assertEqual(self.run_job(attendance, photo_path)['status'], COMPLETED)
+        self.assertTrue(self.store.contains(photo_path))
+        self.assertEqual([p['photo_path'] for p in ClassroomPhoto.get_all()], [photo_path])
+        
+        self.now += 30 * DAY
+        self.assertEqual(self.retention.run_once()['tiered'], 1)
+        self.assertFalse(self.store.contains(photo_path))
+    
+    def test_untracked_photo_is_released_when_the_job_finishes(self):
+        photo_path = self.store.put(b'classroom photo')
+        
+        self.assertEqual(self.run_job(AttendanceService(EmptyRecognizer()), photo_path)['status'], COMPLETED)
+        self.assertFalse(self.store.contains(photo_path))
+    
+    def test_photo_of_a_failed_job_is_released(self):
+        photo_path = self.store.put(b'classroom photo')
+        
+        self.assertEqual(self.run_job(FailingAttendance(), photo_path)['status'], FAILED)
+        self.assertFalse(self.store.contains(photo_path))
+        self.assertEqual(ClassroomPhoto.get_all(), [])
+    
+    def test_resubmitted_photo_keeps_the_earlier_take(self):
+        first = self.store.put(b'classroom photo')
+        attendance = AttendanceService(EmptyRecognizer(), photo_retention=self.retention, photo_store=self.store)
+        self.run_job(attendance, first)
+        second = self.store.put(b'classroom photo')
+        self.assertEqual(second, first)
+        
+        self.assertEqual(self.run_job(FailingAttendance(), second)['status'], FAILED)
+        self.assertTrue(self.store.contains(first))
+    
+    def test_photos_turned_away_by_a_full_queue_are_released(self):
+        attendance = BlockedAttendance()
+        jobs = RecognitionJobService(attendance, num_workers=1, max_pending=1, photo_store=self.store)
+        running = self.store.put(b'photo 1')
+        accepted = [jobs.submit(self.class_id, running, DATE)]
+        self.assertTrue(attendance.started.wait(5))
+        queued = self.store.put(b'photo 2')
+        accepted.append(jobs.submit(self.class_id, queued, DATE))
+        
+        shed = [self.store.put(f"photo {i}".encode()) for i in range(3, 10)]
+        for photo_path in shed:
+            with self.assertRaises(QueueFullError):
+                jobs.submit(self.class_id, photo_path, DATE)
+        os.makedirs('clips')
+        clip_path = os.path.join('clips', 'take.mp4')
+        with open(clip_path, 'wb') as f:
+            f.write(b'clip')
+        with self.assertRaises(QueueFullError):
+            jobs.submit(self.class_id, clip_path, DATE, clip=True)
+        
+        self.assertEqual([self.store.contains(p) for p in shed], [False] * len(shed))
+        self.assertFalse(os.path.exists(clip_path))
+        self.assertTrue(self.store.contains(running))
+        self.assertTrue(self.store.contains(queued))
+        self.assertEqual(self.store.stats()['references'], 2)
+        
+        attendance.release.set()
+        for job in accepted:
+            self.assertEqual(jobs.get(job['job_id'], wait=5)['status'], COMPLETED)
+        self.assertEqual(self.store.stats()['references'], 0)
+
+class UnwritableStore:
+    """A photo store whose change log can't be written, so every release fails"""
+    def __init__(self):
+        self.deletes = 0
+    
+    def delete(self, photo_path):
+        self.deletes += 1
+        raise OSError(28, "No space left on device")
+
+class JobReleaseFailureTest(unittest.TestCase):
+    """A photo that can't be released neither kills the worker nor leaves the job running"""
+    def test_jobs_finish_when_their_photo_cannot_be_released(self):
+        store = UnwritableStore()
+        attendance = BlockedAttendance()
+        attendance.release.set()
+        jobs = RecognitionJobService(attendance, num_workers=1, photo_store=store)
+        
+        submitted = [jobs.submit(f"class-{i}", 'photo', DATE) for i in range(3)]
+        for job in submitted:
+            finished = jobs.get(job['job_id'], wait=5)
+            self.assertEqual(finished['status'], COMPLETED)
+            self.assertIsNotNone(finished['processing_ms'])
+        self.assertEqual(store.deletes, 3)
+        self.assertEqual(jobs.active_count('default'), 0)
+
+class JobQueueTest(unittest.TestCase):
+    """Service order and bounds of the queue while a morning's submissions pile up"""
+    def setUp(self):
+        self.attendance = BlockedAttendance()
+    
+    def tearDown(self):
+        self.attendance.release.set()
+    
+    def hold_worker(self, jobs):
+        """Submit a job that keeps the only worker busy until the test releases it"""
+        job = jobs.submit('held', 'photo', DATE, school_id='held')
+        self.assertTrue(self.attendance.started.wait(5))
+        return job
+    
+    def test_schools_are_served_round_robin(self):
+        jobs = RecognitionJobService(self.attendance, num_workers=1)
+        self.hold_worker(jobs)
+        
+        # 200 classes of 20 schools, each school submitting all its classes at once
+        submitted = []
+        for school in range(20):
+            for c in range(10):
+                submitted.append(jobs.submit(f"{school}-{c}", 'photo', DATE, school_id=f"school-{school}"))
+        self.attendance.release.set()
+        for job in submitted:
+            self.assertEqual(jobs.get(job['job_id'], wait=5)['status'], COMPLETED)
+        
+        order = self.attendance.order[1:]
+        self.assertEqual(len(order), 200)
+        # Every round serves each school's next class once, in the order schools arrived
+        for c in range(10):
+            self.assertEqual(order[c * 20:(c + 1) * 20], [f"{school}-{c}" for school in range(20)])
+    
+    def test_job_events_name_their_school(self):
+        bus = RecordingBus()
+        self.attendance.release.set()
+        jobs = RecognitionJobService(self.attendance, num_workers=1, event_bus=bus)
+        
+        job = jobs.submit('class-1', 'photo', DATE, school_id='school-1')
+        jobs.get(job['job_id'], wait=5)
+        # The completed event may still be on its way
+        self.assertEqual([(t, e['school_id'], e['status']) for t, e in bus.events][:2],
+                         [('job', 'school-1', 'pending'), ('job', 'school-1', 'running')])
+        self.assertEqual({e['school_id'] for _, e in bus.events}, {'school-1'})
+    
+    def test_submissions_past_max_pending_are_shed(self):
+        jobs = RecognitionJobService(self.attendance, num_workers=1, max_pending=50)
+        self.hold_worker(jobs)
+        
+        shed = 0
+        accepted = []
+        for i in range(200):
+            try:
+                accepted.append(jobs.submit(f"class-{i}", 'photo', DATE, school_id=f"school-{i % 20}"))
+            except QueueFullError as e:
+                shed += 1
+                self.assertGreaterEqual(e.retry_after, 1)
+        self.assertEqual(shed, 150)
+        self.assertEqual(sum(jobs.active_count(f"school-{s}") for s in range(20)), 50)
+        
+        # Room frees up as jobs are taken off the queue
+        self.attendance.release.set()
+        for job in accepted:
+            jobs.get(job['job_id'], wait=5)
+        jobs.submit('late', 'photo', DATE)
+    
+    def test_submissions_past_max_wait_are_shed(self):
+        jobs = RecognitionJobService(self.attendance, num_workers=1, max_wait=0)
+        # The first job finishes at once, so the queue knows how long a job takes
+        self.attendance.release.set()
+        first = jobs.submit('first', 'photo', DATE)
+        self.assertEqual(jobs.get(first['job_id'], wait=5)['status'], COMPLETED)
+        self.attendance.release.clear()
+        self.attendance.started.clear()
+        self.hold_worker(jobs)
+        
+        # An empty queue has no wait; one queued job is already more than max_wait
+        jobs.submit('queued', 'photo', DATE)
+        with self.assertRaises(QueueFullError) as rejected:
+            jobs.submit('shed', 'photo', DATE)
+        self.assertGreaterEqual(rejected.exception.retry_after, 1)
+        self.assertNotIn('shed', self.attendance.order)
+
+if __name__ == '__main__':
+    unittest.main()
@@ -0,0 +1,183 @@
+#!/usr/bin/env python3
+# Tests of multi-photo attendance sessions
+import time
+import random
+import threading
+import unittest
+
+from support import ScratchTestCase, StubRecognizer, photo_of
+
+from models import Attendance
+from attendance_service import AttendanceService
+from session_service import AttendanceSessionService, SessionClosedError
+
+DATE = '2024-09-02'
+
+class SessionCloseRaceTest(ScratchTestCase):
+    """Photos being merged while their session closes"""
+    def setUp(self):
+        super().setUp()
+        self.attendance = AttendanceService(StubRecognizer())
+        self.sessions = AttendanceSessionService(self.attendance)
+        self.class_id, self.students = self.seed_class(30)
+    
+    def statuses(self, date):
+        return {r['student_id']: r['status'] for r in Attendance.get_by_class_and_date(self.class_id, date)}
+    
+    def test_students_marked_while_closing_stay_present(self):
+        session_id = self.sessions.open_session(self.class_id, DATE)['session_id']
+        marked = threading.Event()
+        closed = threading.Event()
+        recognize = self.attendance.recognize_and_mark_present
+        
+        def recognize_until_closed(*args, **kwargs):
+            # The photo's students are marked; hold the merge until the session closed
+            results = recognize(*args, **kwargs)
+            marked.set()
+            closed.wait(5)
+            return results
+        self.attendance.recognize_and_mark_present = recognize_until_closed
+        
+        errors = []
+        
+        def add_photo():
+            try:
+                self.sessions.add_photo(session_id, photo_of(self.students[:2]))
+            except SessionClosedError as e:
+                errors.append(e)
+        thread = threading.Thread(target=add_photo)
+        thread.start()
+        self.assertTrue(marked.wait(5))
+        result = self.sessions.close_session(session_id)
+        closed.set()
+        thread.join()
+        
+        self.assertEqual(len(errors), 1)
+        self.assertEqual(self.statuses(DATE), {s: s in self.students[:2] for s in self.students})
+        self.assertEqual({r['student_id'] for r in result['attendance'] if r['status']}, set(self.students[:2]))
+    
+    def test_every_student_found_is_present_after_submits_race_a_close(self):
+        found = set()
+        found_lock = threading.Lock()
+        recognize = self.attendance.recognize_and_mark_present
+        
+        def recognize_and_record(*args, **kwargs):
+            results = recognize(*args, **kwargs)
+            with found_lock:
+                found.update(s['student_id'] for s in results['recognized_students'])
+            # Widen the window between marking and merging
+            time.sleep(random.random() * 0.002)
+            return results
+        self.attendance.recognize_and_mark_present = recognize_and_record
+        
+        for day in range(1, 21):
+            date = f"2024-09-{day:02d}"
+            found.clear()
+            session_id = self.sessions.open_session(self.class_id, date)['session_id']
+            
+            def submit(seed):
+                rng = random.Random(seed)
+                for _ in range(3):
+                    try:
+                        self.sessions.add_photo(session_id, photo_of(rng.sample(self.students, 4)))
+                    except SessionClosedError:
+                        return
+            
+            def close(seed):
+                time.sleep(random.Random(seed).random() * 0.01)
+                self.sessions.close_session(session_id)
+            
+            threads = [threading.Thread(target=submit, args=(day * 100 + i,)) for i in range(8)]
+            threads.append(threading.Thread(target=close, args=(day,)))
+            for thread in threads:
+                thread.start()
+            for thread in threads:
+                thread.join()
+            
+            statuses = self.statuses(date)
+            self.assertEqual(set(statuses), set(self.students), date)
+            self.assertEqual({s for s, status in statuses.items() if status}, found, date)
+
+class FakeClock:
+    def __init__(self):
+        self.now = 1000.0
+    
+    def __call__(self):
+        return self.now
+
+class StopLoop(Exception):
+    pass
+
+class SessionIdleTest(ScratchTestCase):
+    """Sessions left open by their teacher"""
+    def setUp(self):
+        super().setUp()
+        self.clock = FakeClock()
+        self.sessions = AttendanceSessionService(AttendanceService(StubRecognizer()), idle_timeout=600,
+                                                 clock=self.clock)
+        self.class_id, self.students = self.seed_class(5)
+    
+    def test_idle_session_is_closed_with_its_absences(self):
+        session_id = self.sessions.open_session(self.class_id, DATE)['session_id']
+        self.sessions.add_photo(session_id, photo_of(self.students[:2]))
+        
+        self.clock.now += 600
+        self.assertEqual(self.sessions.expire_idle(), [])
+        self.clock.now += 1
+        self.assertEqual(self.sessions.expire_idle(), [session_id])
+        self.assertFalse(self.sessions.is_open(self.class_id, DATE))
+        self.assertEqual(self.sessions.open_class_ids(), set())
+        
+        self.assertEqual(self.sessions.get(session_id)['status'], 'closed')
+        statuses = {r['student_id']: r['status'] for r in Attendance.get_by_class_and_date(self.class_id, DATE)}
+        self.assertEqual(statuses, {s: s in self.students[:2] for s in self.students})
+        with self.assertRaises(SessionClosedError):
+            self.sessions.add_photo(session_id, photo_of(self.students[2:3]))
+    
+    def test_photos_and_joins_keep_a_session_open(self):
+        session_id = self.sessions.open_session(self.class_id, DATE)['session_id']
+        self.clock.now += 500
+        self.sessions.add_photo(session_id, photo_of(self.students[:1]))
+        self.clock.now += 500
+        self.assertEqual(self.sessions.open_session(self.class_id, DATE)['session_id'], session_id)
+        self.clock.now += 500
+        self.assertEqual(self.sessions.expire_idle(), [])
+        self.assertEqual(self.sessions.open_class_ids(), {self.class_id})
+    
+    def test_opening_after_the_timeout_starts_a_new_session(self):
+        session_id = self.sessions.open_session(self.class_id, DATE)['session_id']
+        self.clock.now += 601
+        session = self.sessions.open_session(self.class_id, DATE)
+        
+        self.assertNotEqual(session['session_id'], session_id)
+        self.assertEqual(self.sessions.get(session_id)['status'], 'closed')
+        self.assertEqual(self.sessions.expire_idle(), [])
+    
+    def test_lookups_leave_idle_sessions_to_the_background_job(self):
+        sweeps = []
+        
+        def sleep(seconds):
+            # Let the loop run one pass, then stop it
+            if sweeps:
+                raise StopLoop()
+            sweeps.append(seconds)
+            self.clock.now += seconds
+        sessions = AttendanceSessionService(AttendanceService(StubRecognizer()), idle_timeout=600, sweep_interval=60,
+                                            clock=self.clock, sleep=sleep)
+        session_id = sessions.open_session(self.class_id, DATE)['session_id']
+        
+        # Looking a session up, as a report does, never closes it or writes absences
+        self.clock.now += 601
+        self.assertTrue(sessions.is_open(self.class_id, DATE))
+        self.assertEqual(sessions.open_class_ids(), {self.class_id})
+        self.assertEqual(Attendance.get_by_class_and_date(self.class_id, DATE), [])
+        
+        with self.assertRaises(StopLoop):
+            sessions._run_loop()
+        self.assertEqual(sweeps, [60])
+        self.assertFalse(sessions.is_open(self.class_id, DATE))
+        self.assertEqual(sessions.get(session_id)['status'], 'closed')
+        self.assertEqual(len(Attendance.get_by_class_and_date(self.class_id, DATE)), 5)
+
+if __name__ == '__main__':
+    unittest.main()
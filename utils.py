@@ -34,6 +34,26 @@ def save_uploaded_image(file, directory, filename=None):
     
     return file_path
 
+def decode_base64_data(base64_string):
+    """
+    Decode a base64 image string, with or without a data URL prefix
+    
+    Args:
+        base64_string (str): Base64 encoded image, or the image itself as bytes,
+                             which is how CBOR clients send it
+    
+    Returns:
+        bytes: The image
+    """
+    if isinstance(base64_string, bytes):
+        return base64_string
+    
+    # Remove data URL prefix if present
+    if "base64," in base64_string:
+        base64_string = base64_string.split("base64,")[1]
+    
+    return base64.b64decode(base64_string)
+
 def decode_base64_image(base64_string, output_path):
     """
     Decode a base64 image string and save it to a file
@@ -46,12 +66,8 @@ def decode_base64_image(base64_string, output_path):
         str: Path to the saved image
     """
     try:
-        # Remove data URL prefix if present
-        if "base64," in base64_string:
-            base64_string = base64_string.split("base64,")[1]
-        
         # Decode the base64 string
-        image_data = base64.b64decode(base64_string)
+        image_data = decode_base64_data(base64_string)
         
         # Ensure the directory exists
         os.makedirs(os.path.dirname(output_path), exist_ok=True)
@@ -0,0 +1,355 @@
+#!/usr/bin/env python3
+# Compact wire format and compression for the Attendance System API
+#
+# JSON stays the default. A client that sends `Accept: application/cbor` gets CBOR
+# (RFC 8949) responses instead, and may send CBOR request bodies with
+# `Content-Type: application/cbor`; the structure is the same as the JSON, so
+# endpoints are unchanged. Request bodies may be compressed with
+# `Content-Encoding: gzip` (or deflate, or zstd when the zstandard package is
+# installed), and responses are gzipped for clients that accept it.
+#
+# The cbor2 package is used when installed; otherwise the codec below, which covers
+# everything the API sends.
+import io
+import gzip
+import json
+import zlib
+import struct
+import logging
+from flask import Request, request
+from flask.json.provider import DefaultJSONProvider
+from werkzeug.exceptions import BadRequest
+from werkzeug.wrappers import Response
+from werkzeug.wsgi import get_input_stream
+
+try:
+    import cbor2
+except ImportError:
+    cbor2 = None
+
+try:
+    import zstandard
+except ImportError:
+    zstandard = None
+
+logger = logging.getLogger(__name__)
+
+CBOR_MIMETYPE = 'application/cbor'
+
+# Largest request body accepted after decompression, so a small compressed body
+# cannot expand without bound
+MAX_DECOMPRESSED_BYTES = 32 * 1024 * 1024
+# Responses smaller than this are sent uncompressed; gzip's overhead isn't worth it
+MIN_COMPRESS_BYTES = 1024
+# Fast levels: responses are compressed per request, and most of the gain comes early
+GZIP_LEVEL = 5
+COMPRESSIBLE_MIMETYPES = {'application/json', CBOR_MIMETYPE, 'text/html', 'text/plain'}
+
+# Initial bytes of CBOR data items: major type in the high 3 bits
+_UINT, _NEGINT, _BYTES, _TEXT, _ARRAY, _MAP, _TAG, _SIMPLE = range(8)
+_FALSE, _TRUE, _NULL = 0xf4, 0xf5, 0xf6
+_FLOAT16, _FLOAT32, _FLOAT64 = 0xf9, 0xfa, 0xfb
+_MAX_DEPTH = 256
+
+def dumps(value, default=None):
+    """
+    Encode a value as CBOR
+    
+    Args:
+        value: None, bool, int, float, str, bytes, or lists and dicts of these
+        default: Called with any other object; its result is encoded instead
+    
+    Returns:
+        bytes: The encoded value
+    """
+    if cbor2 is not None:
+        return cbor2.dumps(value, default=(lambda encoder, v: encoder.encode(default(v))) if default else None)
+    out = bytearray()
+    _encode(value, out, default, 0)
+    return bytes(out)
+
+def loads(data):
+    """
+    Decode a CBOR value
+    
+    Raises:
+        ValueError: If the data is not one well-formed CBOR value
+    """
+    if cbor2 is not None:
+        try:
+            return cbor2.loads(data)
+        except Exception as e:
+            raise ValueError(f"Invalid CBOR: {str(e)}")
+    
+    try:
+        value, end = _decode(memoryview(data), 0, 0)
+    except (IndexError, struct.error, UnicodeDecodeError, TypeError, RecursionError) as e:
+        raise ValueError(f"Invalid CBOR: {str(e) or type(e).__name__}")
+    if end != len(data):
+        raise ValueError(f"Invalid CBOR: {len(data) - end} bytes after the value")
+    return value
+
+def _head(major, length, out):
+    if length < 24:
+        out.append(major << 5 | length)
+    elif length < 0x100:
+        out += struct.pack('>BB', major << 5 | 24, length)
+    elif length < 0x10000:
+        out += struct.pack('>BH', major << 5 | 25, length)
+    elif length < 0x100000000:
+        out += struct.pack('>BI', major << 5 | 26, length)
+    elif length < 0x10000000000000000:
+        out += struct.pack('>BQ', major << 5 | 27, length)
+    else:
+        raise ValueError(f"Integer out of CBOR range: {length}")
+
+def _encode(value, out, default, depth):
+    if depth > _MAX_DEPTH:
+        raise ValueError("Value nested too deeply to encode")
+    
+    # bool before int: True is an int in Python
+    if value is None:
+        out.append(_NULL)
+    elif value is True:
+        out.append(_TRUE)
+    elif value is False:
+        out.append(_FALSE)
+    elif isinstance(value, str):
+        encoded = value.encode('utf-8')
+        _head(_TEXT, len(encoded), out)
+        out += encoded
+    elif isinstance(value, int):
+        if value >= 0:
+            _head(_UINT, value, out)
+        else:
+            _head(_NEGINT, -1 - value, out)
+    elif isinstance(value, float):
+        # Single precision when that loses nothing, as for small integral values
+        try:
+            packed = struct.pack('>f', value)
+        except OverflowError:
+            packed = None
+        if packed is not None and (struct.unpack('>f', packed)[0] == value or value != value):
+            out.append(_FLOAT32)
+            out += packed
+        else:
+            out += struct.pack('>Bd', _FLOAT64, value)
+    elif isinstance(value, dict):
+        _head(_MAP, len(value), out)
+        for key, item in value.items():
+            _encode(key, out, default, depth + 1)
+            _encode(item, out, default, depth + 1)
+    elif isinstance(value, (list, tuple)):
+        _head(_ARRAY, len(value), out)
+        for item in value:
+            _encode(item, out, default, depth + 1)
+    elif isinstance(value, (bytes, bytearray, memoryview)):
+        _head(_BYTES, len(value), out)
+        out += value
+    elif default is not None:
+        _encode(default(value), out, default, depth + 1)
+    else:
+        raise TypeError(f"Object of type {type(value).__name__} is not CBOR serializable")
+
+def _decode(data, offset, depth):
+    """Decode the data item at offset. Returns the value and the offset after it."""
+    if depth > _MAX_DEPTH:
+        raise ValueError("CBOR nested too deeply")
+    
+    initial = data[offset]
+    major, info = initial >> 5, initial & 0x1f
+    offset += 1
+    
+    if major == _SIMPLE:
+        if initial == _FALSE:
+            return False, offset
+        if initial == _TRUE:
+            return True, offset
+        if initial in (_NULL, 0xf7):
+            # null, and undefined, which JSON has no other way to say
+            return None, offset
+        if initial == _FLOAT16:
+            return struct.unpack_from('>e', data, offset)[0], offset + 2
+        if initial == _FLOAT32:
+            return struct.unpack_from('>f', data, offset)[0], offset + 4
+        if initial == _FLOAT64:
+            return struct.unpack_from('>d', data, offset)[0], offset + 8
+        raise ValueError(f"Unsupported CBOR simple value 0x{initial:02x}")
+    
+    if info < 24:
+        argument = info
+    elif info == 24:
+        argument = data[offset]
+        offset += 1
+    elif info == 25:
+        argument = struct.unpack_from('>H', data, offset)[0]
+        offset += 2
+    elif info == 26:
+        argument = struct.unpack_from('>I', data, offset)[0]
+        offset += 4
+    elif info == 27:
+        argument = struct.unpack_from('>Q', data, offset)[0]
+        offset += 8
+    else:
+        # Indefinite lengths are legal CBOR, but no client of this API needs them
+        raise ValueError(f"Unsupported CBOR length encoding {info}")
+    
+    if major == _UINT:
+        return argument, offset
+    if major == _NEGINT:
+        return -1 - argument, offset
+    if major in (_BYTES, _TEXT):
+        end = offset + argument
+        if end > len(data):
+            raise ValueError("CBOR string runs past the end of the data")
+        chunk = data[offset:end]
+        return (bytes(chunk) if major == _BYTES else str(chunk, 'utf-8')), end
+    if major == _ARRAY:
+        items = []
+        for _ in range(argument):
+            item, offset = _decode(data, offset, depth + 1)
+            items.append(item)
+        return items, offset
+    if major == _MAP:
+        items = {}
+        for _ in range(argument):
+            key, offset = _decode(data, offset, depth + 1)
+            items[key], offset = _decode(data, offset, depth + 1)
+        return items, offset
+    # A tag only annotates the item after it; the API uses none, so keep the item
+    return _decode(data, offset, depth + 1)
+
+def wants_cbor():
+    """Whether the current request prefers CBOR to JSON; ties go to JSON"""
+    return request.accept_mimetypes.best_match(['application/json', CBOR_MIMETYPE]) == CBOR_MIMETYPE
+
+class WireJSONProvider(DefaultJSONProvider):
+    """JSON provider whose jsonify() answers in CBOR when the client asks for it"""
+    
+    def response(self, *args, **kwargs):
+        if not wants_cbor():
+            return super().response(*args, **kwargs)
+        
+        # Same argument handling as jsonify()
+        if args and kwargs:
+            raise TypeError("jsonify() behavior undefined when passed both args and kwargs")
+        value = args[0] if len(args) == 1 else (args or kwargs or None)
+        response = self._app.response_class(dumps(value, default=self.default), mimetype=CBOR_MIMETYPE)
+        response.vary.add('Accept')
+        return response
+
+class WireRequest(Request):
+    """Request whose JSON accessors also read CBOR bodies"""
+    
+    def get_json(self, force=False, silent=False, cache=True):
+        if self.mimetype != CBOR_MIMETYPE:
+            return super().get_json(force=force, silent=silent, cache=cache)
+        try:
+            return loads(self.get_data(cache=cache))
+        except ValueError as e:
+            if silent:
+                return None
+            raise BadRequest(str(e))
+
+def _gunzip(data, limit):
+    return _inflate(zlib.decompressobj(16 + zlib.MAX_WBITS), data, limit)
+
+def _inflate_zlib(data, limit):
+    return _inflate(zlib.decompressobj(), data, limit)
+
+def _inflate(decompressor, data, limit):
+    try:
+        body = decompressor.decompress(data, limit + 1)
+    except zlib.error as e:
+        raise ValueError(f"Invalid compressed body: {str(e)}")
+    if len(body) > limit or decompressor.unconsumed_tail:
+        raise OverflowError()
+    return body
+
+def _unzstd(data, limit):
+    try:
+        with zstandard.ZstdDecompressor().stream_reader(io.BytesIO(data)) as reader:
+            body = reader.read(limit + 1)
+    except zstandard.ZstdError as e:
+        raise ValueError(f"Invalid compressed body: {str(e)}")
+    if len(body) > limit:
+        raise OverflowError()
+    return body
+
+DECOMPRESSORS = {'gzip': _gunzip, 'x-gzip': _gunzip, 'deflate': _inflate_zlib}
+if zstandard is not None:
+    DECOMPRESSORS['zstd'] = _unzstd
+
+class RequestDecompressionMiddleware:
+    def __init__(self, app, max_size=MAX_DECOMPRESSED_BYTES):
+        """
+        WSGI middleware that decompresses request bodies sent with Content-Encoding,
+        so the application only ever sees plain bodies
+        
+        Args:
+            app: The WSGI application to wrap
+            max_size (int): Largest decompressed body accepted
+        """
+        self.app = app
+        self.max_size = max_size
+    
+    def __call__(self, environ, start_response):
+        encoding = environ.get('HTTP_CONTENT_ENCODING', '').strip().lower()
+        if encoding in ('', 'identity'):
+            return self.app(environ, start_response)
+        
+        decompress = DECOMPRESSORS.get(encoding)
+        if decompress is None:
+            return self._error(415, f"Unsupported Content-Encoding: {encoding}")(environ, start_response)
+        
+        try:
+            body = decompress(get_input_stream(environ).read(), self.max_size)
+        except ValueError as e:
+            return self._error(400, str(e))(environ, start_response)
+        except OverflowError:
+            return self._error(413, f"Request body larger than {self.max_size} bytes")(environ, start_response)
+        
+        environ['wsgi.input'] = io.BytesIO(body)
+        environ['CONTENT_LENGTH'] = str(len(body))
+        environ.pop('HTTP_CONTENT_ENCODING')
+        # The body is now complete and its length known, whatever the framing was
+        environ.pop('HTTP_TRANSFER_ENCODING', None)
+        environ['wsgi.input_terminated'] = False
+        return self.app(environ, start_response)
+    
+    @staticmethod
+    def _error(status, message):
+        logger.warning(f"Rejected request body: {message}")
+        return Response(json.dumps({"success": False, "error": message}), status=status, mimetype='application/json')
+
+def compress_response(response, accept_encodings, min_size=MIN_COMPRESS_BYTES):
+    """
+    Gzip a buffered response body if the client accepts it and it is worth it
+    
+    Photos (already compressed, and streamed from the photo store) and event streams
+    are left alone.
+    
+    Args:
+        response: The Flask response
+        accept_encodings: The request's parsed Accept-Encoding header
+        min_size (int): Smallest body worth compressing
+    
+    Returns:
+        The same response, compressed in place if appropriate
+    """
+    if (response.direct_passthrough or response.is_streamed or response.status_code in (204, 206, 304)
+            or 'Content-Encoding' in response.headers or response.mimetype not in COMPRESSIBLE_MIMETYPES):
+        return response
+    
+    # Caches must keep compressed and uncompressed versions apart
+    response.vary.add('Accept-Encoding')
+    if accept_encodings['gzip'] <= 0:
+        return response
+    
+    body = response.get_data()
+    if len(body) < min_size:
+        return response
+    
+    response.set_data(gzip.compress(body, compresslevel=GZIP_LEVEL))
+    response.headers['Content-Encoding'] = 'gzip'
+    return response